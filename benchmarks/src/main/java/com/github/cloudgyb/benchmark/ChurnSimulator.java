@@ -0,0 +1,474 @@
+package com.github.cloudgyb.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.github.cloudgyb.ServiceRegistryAndDiscovery;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.connection.SharedZookeeperConnection;
+import com.github.cloudgyb.connection.ZookeeperConnectionManager;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import com.github.cloudgyb.discovery.RegistryChangeEvent;
+import com.github.cloudgyb.discovery.ServiceChange;
+import com.github.cloudgyb.metrics.DiscoveryMetricsMXBean;
+import com.github.cloudgyb.metrics.JmxDiscoveryMetrics;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * 离线的端到端抖动模拟，用于上线前评估收敛延迟和内存占用。
+ * 在进程内的zookeeper server上用多个session模拟大量实例的注册和反复上下线，
+ * 用一个ServiceRegistryAndDiscovery观察，统计：
+ * <ul>
+ * <li>从发出znode变化到变化对findService可见的延迟（在注册表变化监听器中记录，监听器在新快照发布后回调，是可见延迟的上限）</li>
+ * <li>持续的事件吞吐和观察端每个事件的内存分配</li>
+ * <li>注册表的堆内存占用</li>
+ * <li>强制session过期后的恢复时间及重新与zookeeper一致的时间</li>
+ * </ul>
+ * 结果以JSON写入report指定的文件，同时输出到标准输出。运行：
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.github.cloudgyb.benchmark.ChurnSimulator \
+ *     instances=5000 services=100 sessions=20 rate=500 duration=30 report=target/churn-report.json
+ * </pre>
+ * @author cloudgyb
+ * 2021/3/26 10:20
+ */
+public class ChurnSimulator {
+	private static final String NAMESPACE = "/churn";
+	private static final String OBSERVER_THREAD = "churn-observer";
+	/**
+	 * 观察端的线程：zookeeper客户端线程以创建它的线程名为前缀，其余为事件分发、监听器及session恢复线程
+	 */
+	private static final String[] OBSERVER_THREAD_PREFIXES = {OBSERVER_THREAD, "discovery-", "zookeeper-"};
+	private static final long CONVERGE_TIMEOUT_MILLIS = 60000;
+
+	private final int instanceCount;
+	private final int serviceCount;
+	private final int sessionCount;
+	private final int rate;
+	private final int durationSeconds;
+	private final File reportFile;
+
+	private Instance[] instances;
+	/**
+	 * ip:port -> 发出变化的时间（System.nanoTime），观察端看到变化后移除
+	 */
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+	private long[] latencies;
+	private final AtomicInteger latencyCount = new AtomicInteger();
+	private final AtomicLong changeErrors = new AtomicLong();
+	private DiscoveryService discovery;
+
+	public ChurnSimulator(int instanceCount, int serviceCount, int sessionCount, int rate, int durationSeconds,
+			File reportFile) {
+		this.instanceCount = instanceCount;
+		this.serviceCount = serviceCount;
+		this.sessionCount = sessionCount;
+		this.rate = rate;
+		this.durationSeconds = durationSeconds;
+		this.reportFile = reportFile;
+	}
+
+	/**
+	 * 参数格式为name=value，未指定的使用默认值
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("参数格式为name=value：" + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		ChurnSimulator simulator = new ChurnSimulator(
+				Integer.parseInt(options.getOrDefault("instances", "5000")),
+				Integer.parseInt(options.getOrDefault("services", "100")),
+				Integer.parseInt(options.getOrDefault("sessions", "20")),
+				Integer.parseInt(options.getOrDefault("rate", "500")),
+				Integer.parseInt(options.getOrDefault("duration", "30")),
+				new File(options.getOrDefault("report", "target/churn-report.json")));
+		String report = simulator.run();
+		System.out.println(report);
+		System.exit(0);
+	}
+
+	/**
+	 * @return JSON报告
+	 */
+	public String run() throws Exception {
+		Report report = new Report();
+		try (EmbeddedZookeeper server = new EmbeddedZookeeper()) {
+			ZooKeeper[] clients = new ZooKeeper[sessionCount];
+			for (int i = 0; i < sessionCount; i++)
+				clients[i] = server.connect(null);
+			registerAll(clients);
+
+			long heapBefore = usedHeapAfterGc();
+			ZookeeperServerConfigProperties config = ZookeeperServerConfigProperties.config()
+					.withServerAddress(server.getConnectString()).withNamespace(NAMESPACE).withSnapshotFile(null);
+			long startupBegin = System.nanoTime();
+			ServiceRegistryAndDiscovery observer = startObserver(config);
+			discovery = observer.getDiscoveryService();
+			if (!awaitConverged())
+				throw new IllegalStateException("观察端未能在" + CONVERGE_TIMEOUT_MILLIS + "ms内加载所有实例");
+			report.put("startupMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startupBegin));
+			long registryHeap = usedHeapAfterGc() - heapBefore;
+			report.put("registryHeapBytes", registryHeap);
+			report.put("registryHeapBytesPerInstance", registryHeap / instanceCount);
+
+			discovery.addChangeListener(this::onChange);
+			DiscoveryMetricsMXBean metrics = metrics();
+			churn(clients, metrics, report);
+
+			expireAndRecover(config, metrics, report);
+			observer.close();
+			for (ZooKeeper client : clients)
+				client.close();
+		}
+		String json = report.toJson(this);
+		File parent = reportFile.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			Files.createDirectories(parent.toPath());
+		Files.write(reportFile.toPath(), json.getBytes(StandardCharsets.UTF_8));
+		return json;
+	}
+
+	/**
+	 * 实例平均分布在各服务及各session上，全部以临时顺序节点注册
+	 */
+	private void registerAll(ZooKeeper[] clients) throws Exception {
+		EmbeddedZookeeper.createIfAbsent(clients[0], NAMESPACE);
+		for (int s = 0; s < serviceCount; s++)
+			EmbeddedZookeeper.createIfAbsent(clients[0], NAMESPACE + "/" + serviceName(s));
+		ServiceInstanceCodec codec = ServiceInstanceCodecs.defaultCodec();
+		instances = new Instance[instanceCount];
+		Semaphore window = new Semaphore(1000);
+		for (int i = 0; i < instanceCount; i++) {
+			int s = i % serviceCount;
+			ServiceInstanceInfo info = new ServiceInstanceInfo(serviceName(s),
+					"10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 8000 + s);
+			Instance instance = new Instance(info, codec.encode(info), clients[i % clients.length]);
+			instances[i] = instance;
+			window.acquire();
+			instance.busy.set(true);
+			instance.create(rc -> window.release());
+		}
+		window.acquire(1000);
+		window.release(1000);
+		if (changeErrors.get() > 0)
+			throw new IllegalStateException("注册实例失败：" + changeErrors.get());
+	}
+
+	private static String serviceName(int s) {
+		return "churn-service-" + s;
+	}
+
+	/**
+	 * 在单独命名的线程上创建观察端，使它的zookeeper客户端线程可以按名称识别
+	 */
+	private ServiceRegistryAndDiscovery startObserver(ZookeeperServerConfigProperties config)
+			throws InterruptedException {
+		ServiceRegistryAndDiscovery[] holder = new ServiceRegistryAndDiscovery[1];
+		Thread thread = new Thread(() -> holder[0] = new ServiceRegistryAndDiscovery(config), OBSERVER_THREAD);
+		thread.start();
+		thread.join();
+		return holder[0];
+	}
+
+	/**
+	 * 按rate匀速发出上下线变化，同一实例的上一次变化被观察到之前不会再变化
+	 */
+	private void churn(ZooKeeper[] clients, DiscoveryMetricsMXBean metrics, Report report)
+			throws InterruptedException {
+		latencies = new long[Math.max(1024, rate * durationSeconds * 2)];
+		long[] observerThreads = observerThreadIds();
+		long allocatedBefore = allocatedBytes(observerThreads);
+		long appliedBefore = metrics.getEventsApplied();
+		long issued = 0;
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long next = start;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (next < end) {
+			long now = System.nanoTime();
+			if (now < next) {
+				TimeUnit.NANOSECONDS.sleep(next - now);
+				continue;
+			}
+			next += intervalNanos;
+			Instance instance = instances[random.nextInt(instances.length)];
+			if (pending.containsKey(instance.key) || !instance.busy.compareAndSet(false, true))
+				continue;
+			pending.put(instance.key, System.nanoTime());
+			if (instance.path == null)
+				instance.create(null);
+			else
+				instance.delete();
+			issued++;
+		}
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		long awaitStart = System.nanoTime();
+		while (!pending.isEmpty() && System.nanoTime() - awaitStart < TimeUnit.MILLISECONDS.toNanos(CONVERGE_TIMEOUT_MILLIS))
+			Thread.sleep(10);
+		long applied = metrics.getEventsApplied() - appliedBefore;
+		long allocated = allocatedBytes(observerThreads) - allocatedBefore;
+		report.put("changesIssued", issued);
+		report.put("changesObserved", latencyCount.get());
+		report.put("changesNotObserved", pending.size());
+		report.put("changeErrors", changeErrors.get());
+		report.put("offeredEventsPerSecond", Math.round(issued / elapsedSeconds));
+		report.put("appliedEventsPerSecond", Math.round(applied / elapsedSeconds));
+		report.put("allocatedBytesPerEvent", allocated < 0 || applied == 0 ? -1 : allocated / applied);
+		report.putLatencies("visibilityLatencyMicros", Arrays.copyOf(latencies,
+				Math.min(latencyCount.get(), latencies.length)));
+		report.put("convergedAfterChurn", matchesZookeeper(instancesByService()));
+	}
+
+	private void onChange(RegistryChangeEvent event) {
+		long now = System.nanoTime();
+		for (ServiceChange change : event.getChanges()) {
+			for (ServiceInstanceInfo info : change.getAdded().values())
+				observed(info, now);
+			for (ServiceInstanceInfo info : change.getRemoved().values())
+				observed(info, now);
+		}
+	}
+
+	private void observed(ServiceInstanceInfo info, long now) {
+		Long issuedAt = pending.remove(info.getIp() + ":" + info.getPort());
+		if (issuedAt == null)
+			return;
+		int i = latencyCount.getAndIncrement();
+		if (i < latencies.length)
+			latencies[i] = TimeUnit.NANOSECONDS.toMicros(now - issuedAt);
+	}
+
+	/**
+	 * 强制观察端的session过期，统计恢复耗时及恢复后注册表重新与zookeeper一致的时间
+	 */
+	private void expireAndRecover(ZookeeperServerConfigProperties config, DiscoveryMetricsMXBean metrics,
+			Report report) throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		try {
+			long recoveries = metrics.getSessionRecoveries();
+			ZooKeeper zooKeeper = connection.getZooKeeper();
+			long start = System.nanoTime();
+			//用同一个session id和密码连接后关闭，服务端随即使该session过期
+			new ZooKeeper(config.getServerAddress(), config.getSessionTimeout(), event -> {
+			}, zooKeeper.getSessionId(), zooKeeper.getSessionPasswd()).close();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(CONVERGE_TIMEOUT_MILLIS);
+			while (metrics.getSessionRecoveries() == recoveries && System.nanoTime() < deadline)
+				Thread.sleep(5);
+			Map<String, Integer> expected = instancesByService();
+			while (!matchesZookeeper(expected) && System.nanoTime() < deadline)
+				Thread.sleep(5);
+			report.put("sessionRecovered", metrics.getSessionRecoveries() > recoveries);
+			report.put("sessionRecoveryMillis", metrics.getLastTimeToRecoverMillis());
+			report.put("recoveryConnectAttempts", metrics.getLastRecoveryConnectAttempts());
+			report.put("convergedAfterExpiryMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			report.put("convergedAfterExpiry", matchesZookeeper(expected) && !discovery.isStale());
+		}
+		finally {
+			connection.release();
+		}
+	}
+
+	private boolean awaitConverged() throws InterruptedException {
+		Map<String, Integer> expected = instancesByService();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONVERGE_TIMEOUT_MILLIS);
+		while (System.nanoTime() < deadline) {
+			if (discovery.getLastSyncTime() > 0 && matchesZookeeper(expected))
+				return true;
+			Thread.sleep(5);
+		}
+		return false;
+	}
+
+	/**
+	 * @return 服务名 -> 当前在线的实例数
+	 */
+	private Map<String, Integer> instancesByService() {
+		Map<String, Integer> counts = new HashMap<>();
+		for (int s = 0; s < serviceCount; s++)
+			counts.put(serviceName(s), 0);
+		for (Instance instance : instances) {
+			if (instance.path != null)
+				counts.merge(instance.info.getServiceName(), 1, Integer::sum);
+		}
+		return counts;
+	}
+
+	private boolean matchesZookeeper(Map<String, Integer> expected) {
+		for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+			if (discovery.findService(entry.getKey()).size() != entry.getValue())
+				return false;
+		}
+		return true;
+	}
+
+	private static DiscoveryMetricsMXBean metrics() throws MalformedObjectNameException {
+		ObjectName name = new ObjectName(JmxDiscoveryMetrics.DOMAIN + ":type=ServiceDiscovery,namespace=" +
+				ObjectName.quote(NAMESPACE));
+		return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, DiscoveryMetricsMXBean.class);
+	}
+
+	private static long usedHeapAfterGc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long[] observerThreadIds() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		List<Long> ids = new ArrayList<>();
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info == null)
+				continue;
+			for (String prefix : OBSERVER_THREAD_PREFIXES) {
+				if (info.getThreadName().startsWith(prefix)) {
+					ids.add(info.getThreadId());
+					break;
+				}
+			}
+		}
+		long[] result = new long[ids.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ids.get(i);
+		return result;
+	}
+
+	/**
+	 * @return 这些线程累计分配的字节数，JVM不支持时返回-1
+	 */
+	private static long allocatedBytes(long[] threadIds) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		long total = 0;
+		for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadIds)) {
+			if (bytes > 0)
+				total += bytes;
+		}
+		return total;
+	}
+
+	/**
+	 * 一个模拟的实例，path为null表示当前已下线；busy表示有尚未返回的zookeeper请求
+	 */
+	private final class Instance {
+		private final ServiceInstanceInfo info;
+		private final String key;
+		private final byte[] data;
+		private final ZooKeeper client;
+		private final AtomicBoolean busy = new AtomicBoolean();
+		private volatile String path;
+
+		private Instance(ServiceInstanceInfo info, byte[] data, ZooKeeper client) {
+			this.info = info;
+			this.key = info.getIp() + ":" + info.getPort();
+			this.data = data;
+			this.client = client;
+		}
+
+		private void create(IntConsumer done) {
+			String prefix = NAMESPACE + "/" + info.getServiceName() + "/" + info.getServiceName();
+			client.create(prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+					(rc, p, ctx, name) -> {
+						if (rc == KeeperException.Code.OK.intValue())
+							path = name;
+						else
+							failed();
+						busy.set(false);
+						if (done != null)
+							done.accept(rc);
+					}, null);
+		}
+
+		private void delete() {
+			client.delete(path, -1, (rc, p, ctx) -> {
+				if (rc == KeeperException.Code.OK.intValue())
+					path = null;
+				else
+					failed();
+				busy.set(false);
+			}, null);
+		}
+
+		private void failed() {
+			changeErrors.incrementAndGet();
+			pending.remove(key);
+		}
+	}
+
+	/**
+	 * 按插入顺序输出的扁平JSON报告
+	 */
+	private static final class Report {
+		private final StringBuilder fields = new StringBuilder();
+
+		private void put(String name, Object value) {
+			if (fields.length() > 0)
+				fields.append(",\n");
+			fields.append("  \"").append(name).append("\": ").append(value);
+		}
+
+		private void putLatencies(String name, long[] values) {
+			Arrays.sort(values);
+			long sum = 0;
+			for (long value : values)
+				sum += value;
+			put(name, "{\"count\": " + values.length +
+					", \"mean\": " + (values.length == 0 ? 0 : sum / values.length) +
+					", \"p50\": " + percentile(values, 0.5) +
+					", \"p90\": " + percentile(values, 0.9) +
+					", \"p99\": " + percentile(values, 0.99) +
+					", \"p999\": " + percentile(values, 0.999) +
+					", \"max\": " + (values.length == 0 ? 0 : values[values.length - 1]) + "}");
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			if (sorted.length == 0)
+				return 0;
+			return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+		}
+
+		private String toJson(ChurnSimulator simulator) {
+			return "{\n" +
+					"  \"instances\": " + simulator.instanceCount + ",\n" +
+					"  \"services\": " + simulator.serviceCount + ",\n" +
+					"  \"sessions\": " + simulator.sessionCount + ",\n" +
+					"  \"targetRate\": " + simulator.rate + ",\n" +
+					"  \"durationSeconds\": " + simulator.durationSeconds + ",\n" +
+					fields + "\n}\n";
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.github.cloudgyb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.codec.BinaryServiceInstanceCodec;
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.JavaSerializationCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 服务实例信息编码、解码耗时，setup时打印每个实例的编码字节数
+ * @author cloudgyb
+ * 2021/3/17 10:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"binary", "java"})
+	private String codecName;
+
+	private ServiceInstanceCodec codec;
+	private ServiceInstanceInfo info;
+	private byte[] payload;
+
+	@Setup
+	public void setup() throws CodecException {
+		codec = "java".equals(codecName) ? new JavaSerializationCodec() : new BinaryServiceInstanceCodec();
+		info = new ServiceInstanceInfo("order-service", "10.12.34.56", 8093);
+		payload = codec.encode(info);
+		System.out.println("\n" + codecName + " payload: " + payload.length + " bytes/instance");
+	}
+
+	@Benchmark
+	public byte[] encode() throws CodecException {
+		return codec.encode(info);
+	}
+
+	@Benchmark
+	public ServiceInstanceInfo decode() throws CodecException {
+		return codec.decode(payload);
+	}
+}
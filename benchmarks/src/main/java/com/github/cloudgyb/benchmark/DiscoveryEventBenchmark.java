@@ -0,0 +1,86 @@
+package com.github.cloudgyb.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DiscoveryService.discovery()处理一次实例上线（getData+解码+发布快照）和下线事件的耗时，
+ * 单线程执行，与分发器中同一服务的事件按顺序处理一致
+ * @author cloudgyb
+ * 2021/3/17 11:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryEventBenchmark {
+	@Param({"100", "1000"})
+	private int instancesPerService;
+
+	private EmbeddedZookeeper server;
+	private ZooKeeper zooKeeper;
+	private DiscoveryService discoveryService;
+	private WatchedEvent[] created;
+	private WatchedEvent[] deleted;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new EmbeddedZookeeper();
+		zooKeeper = server.connect(null);
+		//测量逐个应用事件的耗时，不检测事件突发
+		ZookeeperServerConfigProperties config = ZookeeperServerConfigProperties.config().withBurstThreshold(0);
+		List<String> paths = EmbeddedZookeeper.populate(zooKeeper, config.getNamespace(), 10,
+				instancesPerService, ServiceInstanceCodecs.defaultCodec());
+		discoveryService = new DiscoveryService(config, zooKeeper);
+		discoveryService.flushRegistry();
+		created = new WatchedEvent[paths.size()];
+		deleted = new WatchedEvent[paths.size()];
+		for (int i = 0; i < paths.size(); i++) {
+			created[i] = new WatchedEvent(Watcher.Event.EventType.NodeCreated,
+					Watcher.Event.KeeperState.SyncConnected, paths.get(i));
+			deleted[i] = new WatchedEvent(Watcher.Event.EventType.NodeDeleted,
+					Watcher.Event.KeeperState.SyncConnected, paths.get(i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		discoveryService.shutdown();
+		zooKeeper.close();
+		server.close();
+	}
+
+	/**
+	 * 先应用一个实例的下线事件，再应用它的上线事件，注册表大小保持不变
+	 */
+	@Benchmark
+	public void applyDeleteThenCreate() throws Exception {
+		int i = next;
+		next = i + 1 == created.length ? 0 : i + 1;
+		discoveryService.discovery(deleted[i]);
+		discoveryService.discovery(created[i]);
+	}
+}
@@ -0,0 +1,127 @@
+package com.github.cloudgyb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * 进程内的单机zookeeper server，监听随机端口，数据目录在关闭时删除
+ * @author cloudgyb
+ * 2021/3/17 10:05
+ */
+public class EmbeddedZookeeper implements AutoCloseable {
+	private final File dataDir;
+	private final ZooKeeperServer server;
+	private final ServerCnxnFactory factory;
+
+	public EmbeddedZookeeper() throws IOException, InterruptedException {
+		this.dataDir = Files.createTempDirectory("zk-benchmark").toFile();
+		this.server = new ZooKeeperServer(dataDir, dataDir, 2000);
+		this.factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 10000);
+		factory.startup(server);
+	}
+
+	public String getConnectString() {
+		return "127.0.0.1:" + factory.getLocalPort();
+	}
+
+	/**
+	 * @return 已连接的客户端
+	 */
+	public ZooKeeper connect(Watcher watcher) throws IOException, InterruptedException {
+		CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zooKeeper = new ZooKeeper(getConnectString(), 30000, event -> {
+			if (event.getState() == Watcher.Event.KeeperState.SyncConnected)
+				connected.countDown();
+			if (watcher != null)
+				watcher.process(event);
+		});
+		connected.await();
+		return zooKeeper;
+	}
+
+	/**
+	 * 在namespace下创建services个服务，每个服务instancesPerService个持久化顺序实例节点
+	 * @return 所有实例节点的path
+	 */
+	public static List<String> populate(ZooKeeper zooKeeper, String namespace, int services,
+			int instancesPerService, ServiceInstanceCodec codec)
+			throws KeeperException, InterruptedException, CodecException {
+		createIfAbsent(zooKeeper, namespace);
+		List<String> paths = new ArrayList<>(services * instancesPerService);
+		Semaphore window = new Semaphore(1000);
+		AtomicReference<KeeperException.Code> failure = new AtomicReference<>();
+		for (int s = 0; s < services; s++) {
+			String serviceName = "service-" + s;
+			String servicePath = namespace + "/" + serviceName;
+			createIfAbsent(zooKeeper, servicePath);
+			for (int i = 0; i < instancesPerService; i++) {
+				ServiceInstanceInfo info = new ServiceInstanceInfo(serviceName,
+						"10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 8000 + s);
+				//实例平均分布在3个区域
+				info.setMetadata(Collections.singletonMap(ServiceInstanceInfo.ZONE_KEY, "zone-" + i % 3));
+				byte[] data = codec.encode(info);
+				window.acquire();
+				zooKeeper.create(servicePath + "/" + serviceName, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+						CreateMode.PERSISTENT_SEQUENTIAL, (rc, path, ctx, name) -> {
+							if (rc == 0) {
+								synchronized (paths) {
+									paths.add(name);
+								}
+							}
+							else {
+								failure.set(KeeperException.Code.get(rc));
+							}
+							window.release();
+						}, null);
+			}
+		}
+		window.acquire(1000);
+		window.release(1000);
+		if (failure.get() != null)
+			throw KeeperException.create(failure.get());
+		return paths;
+	}
+
+	static void createIfAbsent(ZooKeeper zooKeeper, String path) throws KeeperException, InterruptedException {
+		try {
+			zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		}
+		catch (KeeperException.NodeExistsException ignored) {
+		}
+	}
+
+	@Override
+	public void close() {
+		factory.shutdown();
+		server.shutdown();
+		delete(dataDir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
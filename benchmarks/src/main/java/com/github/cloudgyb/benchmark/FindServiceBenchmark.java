@@ -0,0 +1,119 @@
+package com.github.cloudgyb.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import com.github.cloudgyb.discovery.TagQuery;
+import com.github.cloudgyb.discovery.selector.RoundRobinSelector;
+import com.github.cloudgyb.discovery.selector.WeightedRandomSelector;
+import com.github.cloudgyb.discovery.selector.ZoneAffinitySelector;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * findService和select的吞吐量，注册表大小由services和instancesPerService决定，
+ * 线程数通过jmh的-t参数指定，例如：java -jar benchmarks.jar FindServiceBenchmark -t 8
+ * @author cloudgyb
+ * 2021/3/17 11:02
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindServiceBenchmark {
+	@Param({"10", "100"})
+	private int services;
+	@Param({"10", "100", "500"})
+	private int instancesPerService;
+
+	private EmbeddedZookeeper server;
+	private ZooKeeper zooKeeper;
+	private DiscoveryService discoveryService;
+	private String[] serviceNames;
+	private RoundRobinSelector roundRobin;
+	private WeightedRandomSelector weightedRandom;
+	private ZoneAffinitySelector zoneAffinity;
+	private TagQuery zoneQuery;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new EmbeddedZookeeper();
+		zooKeeper = server.connect(null);
+		ZookeeperServerConfigProperties config = ZookeeperServerConfigProperties.config();
+		EmbeddedZookeeper.populate(zooKeeper, config.getNamespace(), services, instancesPerService,
+				ServiceInstanceCodecs.defaultCodec());
+		discoveryService = new DiscoveryService(config, zooKeeper);
+		discoveryService.flushRegistry();
+		serviceNames = new String[services];
+		for (int i = 0; i < services; i++)
+			serviceNames[i] = "service-" + i;
+		roundRobin = new RoundRobinSelector();
+		weightedRandom = new WeightedRandomSelector(info -> 1 + (info.getPort() & 3));
+		zoneAffinity = new ZoneAffinitySelector("zone-0");
+		zoneQuery = TagQuery.of(ServiceInstanceInfo.ZONE_KEY, "zone-1");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		discoveryService.shutdown();
+		zooKeeper.close();
+		server.close();
+	}
+
+	/**
+	 * 每个线程按顺序轮换查询的服务
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int i;
+
+		String next(String[] names) {
+			if (++i >= names.length)
+				i = 0;
+			return names[i];
+		}
+	}
+
+	@Benchmark
+	public Collection<ServiceInstanceInfo> findService(Cursor cursor) {
+		return discoveryService.findService(cursor.next(serviceNames));
+	}
+
+	@Benchmark
+	public ServiceInstanceInfo selectRoundRobin(Cursor cursor) {
+		return discoveryService.select(cursor.next(serviceNames), roundRobin);
+	}
+
+	@Benchmark
+	public ServiceInstanceInfo selectWeightedRandom(Cursor cursor) {
+		return discoveryService.select(cursor.next(serviceNames), weightedRandom);
+	}
+
+	@Benchmark
+	public Collection<ServiceInstanceInfo> findServiceByTag(Cursor cursor) {
+		return discoveryService.findService(cursor.next(serviceNames), zoneQuery);
+	}
+
+	@Benchmark
+	public ServiceInstanceInfo selectZoneAffinity(Cursor cursor) {
+		return discoveryService.select(cursor.next(serviceNames), zoneAffinity);
+	}
+}
@@ -0,0 +1,79 @@
+package com.github.cloudgyb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import com.github.cloudgyb.discovery.RegistryLoadReport;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 对进程内zookeeper拉取注册表的耗时，对比异步流水线、串行两种全量方式及注册表没有变化时的增量同步
+ * @author cloudgyb
+ * 2021/3/17 14:10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushRegistryBenchmark {
+	@Param({"50"})
+	private int services;
+	@Param({"20", "200"})
+	private int instancesPerService;
+
+	private EmbeddedZookeeper server;
+	private ZooKeeper zooKeeper;
+	private DiscoveryService discoveryService;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new EmbeddedZookeeper();
+		zooKeeper = server.connect(null);
+		ZookeeperServerConfigProperties config = ZookeeperServerConfigProperties.config();
+		EmbeddedZookeeper.populate(zooKeeper, config.getNamespace(), services, instancesPerService,
+				ServiceInstanceCodecs.defaultCodec());
+		discoveryService = new DiscoveryService(config, zooKeeper);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		discoveryService.shutdown();
+		zooKeeper.close();
+		server.close();
+	}
+
+	@Benchmark
+	public RegistryLoadReport async() throws Exception {
+		return discoveryService.flushRegistry();
+	}
+
+	/**
+	 * 注册表没有变化时的增量同步：只有exists请求，不读取和解析实例数据
+	 */
+	@Benchmark
+	public RegistryLoadReport incremental() throws Exception {
+		return discoveryService.resyncRegistry();
+	}
+
+	@Benchmark
+	public RegistryLoadReport serial() throws Exception {
+		return discoveryService.flushRegistrySerially();
+	}
+}
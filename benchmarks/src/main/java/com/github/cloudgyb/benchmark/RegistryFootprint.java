@@ -0,0 +1,71 @@
+package com.github.cloudgyb.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * 测量注册表每个实例占用的堆内存：全量拉取后（尚未查询）以及所有实例都被读取过之后各测一次。
+ * 每次测量前多次System.gc()，结果是近似值，应使用相同的JVM参数对比不同版本，例如：
+ * <pre>
+ * java -Xmx2g -cp benchmarks/target/benchmarks.jar com.github.cloudgyb.benchmark.RegistryFootprint \
+ *     instances=100000 services=100
+ * </pre>
+ * @author cloudgyb
+ * 2021/3/29 10:10
+ */
+public class RegistryFootprint {
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("参数格式为name=value：" + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		int instances = Integer.parseInt(options.getOrDefault("instances", "100000"));
+		int services = Integer.parseInt(options.getOrDefault("services", "100"));
+		int perService = Math.max(1, instances / services);
+		try (EmbeddedZookeeper server = new EmbeddedZookeeper()) {
+			ZooKeeper zooKeeper = server.connect(null);
+			ZookeeperServerConfigProperties config = ZookeeperServerConfigProperties.config();
+			EmbeddedZookeeper.populate(zooKeeper, config.getNamespace(), services, perService,
+					ServiceInstanceCodecs.defaultCodec());
+			long total = (long) services * perService;
+			long baseline = usedHeapAfterGc();
+			DiscoveryService discoveryService = new DiscoveryService(config, zooKeeper);
+			discoveryService.flushRegistry();
+			long loaded = usedHeapAfterGc() - baseline;
+			long checksum = 0;
+			for (String serviceName : discoveryService.getSnapshot().getServiceNames()) {
+				for (ServiceInstanceInfo info : discoveryService.findService(serviceName))
+					checksum += info.getIp().length() + info.getMetadata().size();
+			}
+			long read = usedHeapAfterGc() - baseline;
+			System.out.println("{\n" +
+					"  \"instances\": " + total + ",\n" +
+					"  \"services\": " + services + ",\n" +
+					"  \"bytesPerInstanceLoaded\": " + loaded / total + ",\n" +
+					"  \"bytesPerInstanceRead\": " + read / total + ",\n" +
+					"  \"checksum\": " + checksum + "\n}");
+			discoveryService.shutdown();
+			zooKeeper.close();
+		}
+		System.exit(0);
+	}
+
+	private static long usedHeapAfterGc() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
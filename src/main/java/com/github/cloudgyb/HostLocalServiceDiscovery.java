@@ -0,0 +1,315 @@
+package com.github.cloudgyb;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.DiscoveryService;
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.discovery.SharedRegistryFile;
+import com.github.cloudgyb.discovery.TagQuery;
+import com.github.cloudgyb.discovery.selector.InstanceSelector;
+import com.github.cloudgyb.discovery.selector.RoundRobinSelector;
+import com.github.cloudgyb.discovery.selector.ZoneAffinitySelector;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 本机共享模式的服务发现入口，只做服务发现，不注册本应用。
+ * 同一主机上使用同一个共享文件（zk.discovery.hostlocal.file）的进程中只有一个leader：
+ * 持有共享文件旁的.lock文件锁的进程建立zookeeper session、监听命名空间，并在注册表变化时发布到共享文件；
+ * 其他进程直接从内存映射中查询，没有自己的session和监听。
+ * leader进程退出后操作系统释放文件锁，其他进程在下一个zk.discovery.hostlocal.interval内接替，
+ * 接替的进程完成首次全量拉取之前仍使用共享文件中的注册表。
+ * @author cloudgyb
+ * 2021/3/26 16:30
+ */
+public class HostLocalServiceDiscovery {
+	private final Logger logger = LoggerFactory.getLogger(HostLocalServiceDiscovery.class);
+	/**
+	 * leader超过这么多个心跳间隔没有心跳时，认为共享的注册表已过时
+	 */
+	private static final int STALE_HEARTBEATS = 3;
+	private final ZookeeperServerConfigProperties config;
+	private final SharedRegistryFile registryFile;
+	private final FileChannel lockChannel;
+	private final ScheduledExecutorService elector;
+	private FileLock lock;
+	private volatile ServiceRegistryAndDiscovery leader;
+	private volatile DiscoveryService leaderDiscovery;
+	private volatile InstanceSelector selector;
+	/**
+	 * 默认负载均衡策略最后一次清理时的注册表
+	 */
+	private volatile RegistrySnapshot retained;
+	private final long openedAt = System.currentTimeMillis();
+	/**
+	 * 本进程在当前任期内是否已经发布过注册表
+	 */
+	private boolean published;
+	private boolean closed;
+
+	public HostLocalServiceDiscovery() throws IOException {
+		this(ZookeeperServerConfigProperties.config());
+	}
+
+	/**
+	 * 打开共享文件并进行一次选举，成为leader时等待连接zookeeper并完成首次拉取后返回
+	 * @param config 需要配置zk.discovery.hostlocal.file，只支持all模式
+	 */
+	public HostLocalServiceDiscovery(ZookeeperServerConfigProperties config) throws IOException {
+		if (config.getHostLocalFile() == null)
+			throw new IllegalArgumentException("未配置本机共享注册表文件！");
+		if (!ZookeeperServerConfigProperties.DISCOVERY_MODE_ALL.equals(config.getDiscoveryMode()))
+			throw new IllegalArgumentException("本机共享模式只支持all服务发现模式！");
+		this.config = config;
+		this.selector = config.getZone() == null ? new RoundRobinSelector() :
+				new ZoneAffinitySelector(config.getZone());
+		Path file = Paths.get(config.getHostLocalFile());
+		this.registryFile = new SharedRegistryFile(file, ServiceInstanceCodecs.defaultCodec());
+		Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+		this.lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		elect();
+		this.elector = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-hostlocal-elector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = config.getHostLocalIntervalMillis();
+		elector.scheduleWithFixedDelay(this::elect, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * leader写入心跳，其他进程尝试获取文件锁成为leader。
+	 * 只在构造方法和选举线程中调用，不会并发执行；连接zookeeper和首次拉取在监视器之外进行，
+	 * 期间注册表变化的通知和close不会被阻塞
+	 */
+	private void elect() {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (leader != null) {
+				DiscoveryService discovery = leaderDiscovery;
+				//从本地快照启动且拉取后没有变化时不会通知监听器，在这里补发
+				if (!published)
+					publish();
+				registryFile.heartbeat(staleSince(discovery));
+				return;
+			}
+			try {
+				lock = lockChannel.tryLock();
+			}
+			catch (OverlappingFileLockException e) {
+				//同一JVM中的另一个实例是leader
+				return;
+			}
+			catch (IOException e) {
+				logger.error("获取本机共享注册表的文件锁失败！", e);
+				return;
+			}
+			if (lock == null)
+				return;
+			logger.info("成为本机共享注册表" + registryFile.getFile() + "的leader，开始连接zookeeper.");
+			registryFile.startTerm();
+			published = false;
+		}
+		lead();
+	}
+
+	/**
+	 * 在监视器之外启动leader，等待连接zookeeper并完成首次拉取
+	 */
+	private void lead() {
+		ServiceRegistryAndDiscovery leader = new ServiceRegistryAndDiscovery(config, false);
+		DiscoveryService discovery = leader.getDiscoveryService();
+		synchronized (this) {
+			if (discovery == null) {
+				if (!closed)
+					releaseLock();
+				return;
+			}
+			if (!closed) {
+				this.leaderDiscovery = discovery;
+				this.leader = leader;
+				discovery.addChangeListener(event -> publish());
+				if (discovery.getLastSyncTime() > 0)
+					publish();
+				return;
+			}
+		}
+		//启动期间已被关闭，文件锁已由close释放
+		leader.close();
+	}
+
+	/**
+	 * 发布leader当前的注册表，尚未完成首次拉取时不覆盖之前的leader发布的注册表
+	 */
+	private synchronized void publish() {
+		DiscoveryService discovery = leaderDiscovery;
+		if (closed || discovery == null || discovery.getLastSyncTime() == 0)
+			return;
+		try {
+			registryFile.publish(discovery.getSnapshot(), staleSince(discovery));
+			published = true;
+		}
+		catch (IOException e) {
+			logger.error("发布本机共享注册表失败！", e);
+		}
+	}
+
+	private static long staleSince(DiscoveryService discovery) {
+		long staleness = discovery.getStalenessMillis();
+		return staleness == 0 ? 0 : System.currentTimeMillis() - staleness;
+	}
+
+	private void releaseLock() {
+		try {
+			if (lock != null)
+				lock.release();
+		}
+		catch (IOException e) {
+			logger.warn("释放本机共享注册表的文件锁失败！", e);
+		}
+		lock = null;
+	}
+
+	/**
+	 * @return leader完成首次拉取后使用自己的注册表，否则使用共享文件中的注册表
+	 */
+	public RegistrySnapshot getSnapshot() {
+		DiscoveryService discovery = leaderDiscovery;
+		if (discovery != null && discovery.getLastSyncTime() > 0)
+			return discovery.getSnapshot();
+		return registryFile.read();
+	}
+
+	/**
+	 * @return 服务的实例快照，服务不存在时返回null
+	 */
+	public ServiceInstances getServiceInstances(String serviceName) {
+		if (serviceName == null)
+			throw new NullPointerException();
+		return getSnapshot().get(serviceName);
+	}
+
+	/**
+	 * @return 只读集合，直接引用当前快照中的实例数组，不会复制
+	 */
+	public Collection<ServiceInstanceInfo> findService(String serviceName) {
+		ServiceInstances instances = getServiceInstances(serviceName);
+		return instances == null ? Collections.<ServiceInstanceInfo>emptyList() : instances.asList();
+	}
+
+	/**
+	 * 按标签（实例元数据）查找服务实例
+	 * @param query 查询条件，应复用同一个对象
+	 */
+	public List<ServiceInstanceInfo> findService(String serviceName, TagQuery query) {
+		ServiceInstances instances = getServiceInstances(serviceName);
+		return instances == null ? Collections.<ServiceInstanceInfo>emptyList() : instances.query(query).asList();
+	}
+
+	/**
+	 * 使用默认负载均衡策略（轮询，配置了zk.discovery.zone时为同区域优先）选出一个状态为UP的实例
+	 * @return 服务没有状态为UP的实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName) {
+		InstanceSelector selector = this.selector;
+		RegistrySnapshot snapshot = getSnapshot();
+		//注册表变化后释放默认策略中已删除的服务的表
+		if (snapshot != retained) {
+			retained = snapshot;
+			selector.retain(snapshot);
+		}
+		return select(serviceName, selector);
+	}
+
+	/**
+	 * @return 服务没有状态为UP的实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName, InstanceSelector selector) {
+		ServiceInstances instances = getServiceInstances(serviceName);
+		if (instances == null || instances.available().isEmpty())
+			return null;
+		return selector.select(instances.available());
+	}
+
+	public void setSelector(InstanceSelector selector) {
+		if (selector == null)
+			throw new NullPointerException();
+		this.selector = selector;
+	}
+
+	/**
+	 * @return 本进程是否为leader
+	 */
+	public boolean isLeader() {
+		return leader != null;
+	}
+
+	/**
+	 * @return 注册表是否可能已过时：leader与zookeeper断开、leader超过3个心跳间隔没有心跳，或还没有leader发布过注册表
+	 */
+	public boolean isStale() {
+		return getStalenessMillis() > 0;
+	}
+
+	/**
+	 * @return 注册表已过时多久（毫秒），未过时返回0
+	 */
+	public long getStalenessMillis() {
+		DiscoveryService discovery = leaderDiscovery;
+		if (discovery != null && discovery.getLastSyncTime() > 0)
+			return discovery.getStalenessMillis();
+		long now = System.currentTimeMillis();
+		if (!registryFile.isPublished())
+			return Math.max(1, now - openedAt);
+		long staleSince = registryFile.getStaleSince();
+		long heartbeatDeadline = registryFile.getHeartbeat() + STALE_HEARTBEATS * config.getHostLocalIntervalMillis();
+		if (heartbeatDeadline < now && (staleSince == 0 || heartbeatDeadline < staleSince))
+			staleSince = heartbeatDeadline;
+		return staleSince == 0 ? 0 : Math.max(1, now - staleSince);
+	}
+
+	/**
+	 * 停止选举，leader关闭zookeeper连接并释放文件锁，由其他进程接替
+	 */
+	public void close() {
+		ServiceRegistryAndDiscovery leader;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			leader = this.leader;
+			this.leader = null;
+			this.leaderDiscovery = null;
+		}
+		elector.shutdownNow();
+		if (leader != null)
+			leader.close();
+		synchronized (this) {
+			releaseLock();
+		}
+		try {
+			lockChannel.close();
+			registryFile.close();
+		}
+		catch (IOException e) {
+			logger.warn("关闭本机共享注册表文件失败！", e);
+		}
+	}
+}
@@ -1,20 +1,29 @@
 package com.github.cloudgyb;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
 
 import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.connection.SharedZookeeperConnection;
+import com.github.cloudgyb.connection.ZookeeperConnectionManager;
 import com.github.cloudgyb.discovery.DiscoveryService;
 import com.github.cloudgyb.discovery.ZookeeperWatcher;
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+import com.github.cloudgyb.metrics.JmxDiscoveryMetrics;
+import com.github.cloudgyb.metrics.ZookeeperOperation;
 import com.github.cloudgyb.registry.RegistryService;
 import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * 入口类，负责启动注册和发现服务
+ * 入口类，负责启动一个命名空间的注册和发现服务。
+ * 同一个JVM中zookeeper地址相同的多个实例共用一个连接（session），事件按命名空间路由
  * @author cloudgyb
  * 2021/3/1 18:19
  */
@@ -23,46 +32,95 @@ public class ServiceRegistryAndDiscovery implements ZookeeperSessionExpiredListe
 	private RegistryService registryService;
 	private DiscoveryService discoveryService;
 	private ZooKeeper zooKeeper;
+	private final ZookeeperServerConfigProperties config;
+	private SharedZookeeperConnection connection;
+	private ZookeeperWatcher defaultWatcher;
+	private JmxDiscoveryMetrics jmxMetrics;
+	private volatile boolean closed;
+	/**
+	 * 是否将本应用注册到zookeeper，本机共享模式的leader只负责服务发现
+	 */
+	private final boolean registerSelf;
 	/**
 	 * 用于等待zookeeper链接成功
 	 */
 	private final CountDownLatch cdl = new CountDownLatch(1);
 
 	public ServiceRegistryAndDiscovery(){
+		this(ZookeeperServerConfigProperties.config());
+	}
+
+	/**
+	 * 使用指定的配置启动，可通过ZookeeperServerConfigProperties.withNamespace为每个命名空间创建配置
+	 * @param config 该命名空间的配置
+	 */
+	public ServiceRegistryAndDiscovery(ZookeeperServerConfigProperties config) {
+		this(config, true);
+	}
+
+	/**
+	 * @param registerSelf 为false时只做服务发现，不注册本应用
+	 */
+	ServiceRegistryAndDiscovery(ZookeeperServerConfigProperties config, boolean registerSelf) {
+		this.config = config;
+		this.registerSelf = registerSelf;
 		try {
 			//读取配置，实例化zookeeper,Watcher对象
 			init();
+		}catch (IOException e){
+			logger.error("初始化服务注册与发现错误！",e);
+			return;
+		}
+		//配置了本地快照时先用快照提供查询，在后台等待zookeeper连接并同步
+		if (discoveryService.loadLocalSnapshot()) {
+			Thread thread = new Thread(this::start, "discovery-warm-start");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		else {
+			start();
+		}
+	}
+
+	private void start() {
+		try {
 			//等待zookeeper连接成功
 			cdl.await();
 			//注册本服务到zookeeper
-			registryService();
+			if (registerSelf)
+				registryService();
+			//先启用命名空间znode监听再拉取，拉取期间发生的变化不会丢失（与sessionExpired的顺序一致）；
+			//subscribe模式下拉取时逐个服务先监听再拉取
+			if (!discoveryService.isSubscriptionMode())
+				enableNamespaceWatch();
 			//服务发现，从zookeeper获取服务信息
 			initDiscoveryService();
-			//启用命名空间znode监听
-			enableNamespaceWatch();
-		}catch (InterruptedException | KeeperException | IOException e){
+		}catch (InterruptedException | KeeperException e){
 			logger.error("初始化服务注册与发现错误！",e);
-			try {
-				zooKeeper.close();
-			}
-			catch (InterruptedException ie) {
-				ie.printStackTrace();
-			}
+			close();
 		}
 	}
 
 	private void init() throws IOException {
-		ZookeeperWatcher defaultWatcher = new ZookeeperWatcher(this.cdl);
-		ZookeeperServerConfigProperties zkConfig = ZookeeperServerConfigProperties.config();
-		this.zooKeeper = new ZooKeeper(zkConfig.getServerAddress(), zkConfig.getSessionTimeout(),
-				defaultWatcher);
-		this.registryService = new RegistryService(this.zooKeeper);
+		ZookeeperServerConfigProperties zkConfig = this.config;
+		this.connection = ZookeeperConnectionManager.acquire(zkConfig);
+		ZookeeperWatcher defaultWatcher = new ZookeeperWatcher(this.cdl, zkConfig, true);
+		this.defaultWatcher = defaultWatcher;
+		this.zooKeeper = connection.getZooKeeper();
+		this.registryService = new RegistryService(this.zooKeeper, zkConfig);
 		this.discoveryService= new DiscoveryService(zkConfig, zooKeeper);
 		defaultWatcher.setDiscoveryService(this.discoveryService);
-		//注意：session过期监听器的注册顺序不能改变，先注册服务，再发现服务，后this
-		defaultWatcher.addSessionExpireListener(this.registryService);
-		defaultWatcher.addSessionExpireListener(this.discoveryService);
+		if (zkConfig.isJmxMetricsEnabled()) {
+			this.jmxMetrics = new JmxDiscoveryMetrics().register(zkConfig.getNamespace());
+			DiscoveryMetrics metrics = this.jmxMetrics;
+			this.registryService.setMetrics(metrics);
+			this.discoveryService.setMetrics(metrics);
+			defaultWatcher.getEventDispatcher().bindMetrics(metrics);
+		}
+		//session过期后由this安排重新注册、重新监听和同步的顺序
 		defaultWatcher.addSessionExpireListener(this);
+		//最后注册到共享连接，连接已建立时会立即收到SyncConnected
+		connection.register(zkConfig.getNamespace(), defaultWatcher);
 	}
 	/**
 	 * 将自己注册到zookeeper
@@ -84,11 +142,13 @@ public class ServiceRegistryAndDiscovery implements ZookeeperSessionExpiredListe
 	 * 启动路径监听
 	 */
 	private void enableNamespaceWatch() throws KeeperException, InterruptedException {
-		ZookeeperServerConfigProperties zkConfig = ZookeeperServerConfigProperties.config();
-		String namespace = zkConfig.getNamespace();
+		String namespace = config.getNamespace();
 		logger.info("启用"+namespace+"监听");
 		try {
-			zooKeeper.addWatch(namespace, AddWatchMode.PERSISTENT_RECURSIVE);
+			discoveryService.getMetrics().time(ZookeeperOperation.ADD_WATCH, () -> {
+				zooKeeper.addWatch(namespace, AddWatchMode.PERSISTENT_RECURSIVE);
+				return null;
+			});
 		}catch (Exception e){
 			logger.error("监听"+namespace+"错误！",e);
 			throw e;
@@ -96,14 +156,100 @@ public class ServiceRegistryAndDiscovery implements ZookeeperSessionExpiredListe
 		logger.info("启用"+namespace+"监听成功！");
 	}
 
+	/**
+	 * 注销本实例注册的节点并停止该命名空间的后台任务，释放共享连接；
+	 * 没有其他实例使用同一命名空间时移除服务端的监听，最后一个使用者释放时关闭连接
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed || connection == null)
+				return;
+			closed = true;
+		}
+		boolean lastOfNamespace = connection.unregister(defaultWatcher);
+		try {
+			registryService.deregisterAll();
+			if (lastOfNamespace)
+				removeWatches();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		discoveryService.shutdown();
+		defaultWatcher.shutdown();
+		if (jmxMetrics != null)
+			jmxMetrics.unregister();
+		connection.release();
+	}
+
+	private void removeWatches() throws InterruptedException {
+		String namespace = config.getNamespace();
+		if (!discoveryService.isSubscriptionMode()) {
+			removeWatch(namespace);
+			return;
+		}
+		for (String serviceName : discoveryService.getSubscribedServices())
+			removeWatch(namespace + "/" + serviceName);
+	}
+
+	private void removeWatch(String path) throws InterruptedException {
+		try {
+			discoveryService.getMetrics().time(ZookeeperOperation.REMOVE_WATCH, () -> {
+				zooKeeper.removeAllWatches(path, Watcher.WatcherType.Any, false);
+				return null;
+			});
+		}
+		catch (KeeperException.NoWatcherException ignored) {
+		}
+		catch (KeeperException e) {
+			logger.warn("移除" + path + "的监听失败！", e);
+		}
+	}
+
+	public DiscoveryService getDiscoveryService() {
+		return discoveryService;
+	}
+
+	/**
+	 * @return 注册服务，可通过update更新本实例的权重、状态和元数据
+	 */
+	public RegistryService getRegistryService() {
+		return registryService;
+	}
+
+	/**
+	 * 使用新session恢复：重新注册与重新同步互不依赖，并行执行；
+	 * 同步前先重新启用namespace的监听，拉取期间发生的变化不会丢失（subscribe模式下拉取时逐个服务先监听再拉取）。
+	 * 每个步骤失败时按共享连接的指数退避重试，全部成功后才返回
+	 */
 	@Override
-	public void sessionExpired(ZooKeeper zooKeeper) {
+	public void sessionExpired(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
 		this.zooKeeper = zooKeeper;
+		CompletableFuture<Void> registration = CompletableFuture.runAsync(() -> {
+			try {
+				connection.retryRecoveryStep("重新注册服务", () -> registryService.sessionExpired(zooKeeper));
+			}
+			catch (KeeperException e) {
+				throw new CompletionException(e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(e);
+			}
+		}, connection.getRecoveryExecutor());
+		if (!discoveryService.isSubscriptionMode())
+			connection.retryRecoveryStep("重新启用命名空间监听", this::enableNamespaceWatch);
+		connection.retryRecoveryStep("重新同步注册表", () -> discoveryService.sessionExpired(zooKeeper));
 		try {
-			//重新启用namespace的监听
-			enableNamespaceWatch();
+			registration.join();
 		}
-		catch (KeeperException | InterruptedException ignored) {
+		catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof KeeperException)
+				throw (KeeperException) cause;
+			if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			throw e;
 		}
 	}
 }
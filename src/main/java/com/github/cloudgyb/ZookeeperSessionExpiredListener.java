@@ -1,5 +1,6 @@
 package com.github.cloudgyb;
 
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 
 /**
@@ -11,8 +12,9 @@ import org.apache.zookeeper.ZooKeeper;
  */
 public interface ZookeeperSessionExpiredListener {
 	/**
-	 * session过期通知，将新的zookeeper连接发送给监听者
+	 * session过期通知，将新的zookeeper连接发送给监听者。
+	 * 恢复失败时抛出异常，使用同一个zookeeper客户端再次调用时应能继续完成恢复
 	 * @param zooKeeper 新的zookeeper客户端
 	 */
-	void sessionExpired(ZooKeeper zooKeeper);
+	void sessionExpired(ZooKeeper zooKeeper) throws KeeperException, InterruptedException;
 }
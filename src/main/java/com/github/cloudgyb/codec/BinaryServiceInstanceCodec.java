@@ -0,0 +1,241 @@
+package com.github.cloudgyb.codec;
+
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+
+/**
+ * 默认的紧凑二进制格式，布局如下（多字节整数均为大端）：
+ * <pre>
+ * 0  magic    2字节 'Z' 'S'
+ * 2  version  1字节 schema版本
+ * 3  flags    1字节 bit0=消息体经过DEFLATE压缩
+ * 4  length   4字节 消息体（压缩后）长度
+ * 8  [rawLen] 4字节 仅压缩时存在，解压后的消息体长度
+ *    body     v1: serviceName(string) ip(string) port(int)
+ *             v2: v1 weight(int) status(1字节) metadataCount(2字节) metadataCount*(key(string) value(string))
+ * string = 2字节长度(0xFFFF表示null) + UTF-8字节
+ * </pre>
+ * 新版本只能在body末尾追加字段，旧版本读取时按length跳过不认识的部分，
+ * 这样滚动升级期间新旧版本可以互相读取。
+ * @author cloudgyb
+ * 2021/3/8 10:32
+ */
+public class BinaryServiceInstanceCodec implements ServiceInstanceCodec {
+	public static final String NAME = "binary";
+	static final byte MAGIC_0 = 'Z';
+	static final byte MAGIC_1 = 'S';
+	static final byte SCHEMA_VERSION = 2;
+	/**
+	 * 能读取的最早的schema版本
+	 */
+	static final int MIN_SCHEMA_VERSION = 1;
+	static final int FLAG_DEFLATE = 1;
+	static final int HEADER_LENGTH = 8;
+	private static final int NULL_STRING = 0xFFFF;
+	/**
+	 * 解压后消息体的最大长度，与zookeeper默认的单个znode数据上限（jute.maxbuffer）相同
+	 */
+	static final int MAX_RAW_LENGTH = 1024 * 1024;
+	/**
+	 * DEFLATE的最大压缩比约为1032:1，头部声明的解压长度超过压缩长度的该倍数时数据一定不合法
+	 */
+	private static final int MAX_INFLATE_RATIO = 1032;
+	/**
+	 * 默认消息体超过该字节数才尝试压缩
+	 */
+	public static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+
+	private final int compressThreshold;
+
+	public BinaryServiceInstanceCodec() {
+		this(DEFAULT_COMPRESS_THRESHOLD);
+	}
+
+	/**
+	 * @param compressThreshold 消息体超过该字节数时尝试压缩，小于等于0表示不压缩
+	 */
+	public BinaryServiceInstanceCodec(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public boolean canDecode(byte[] data) {
+		return data != null && data.length >= HEADER_LENGTH &&
+				data[0] == MAGIC_0 && data[1] == MAGIC_1;
+	}
+
+	@Override
+	public byte[] encode(ServiceInstanceInfo info) throws CodecException {
+		if (info == null)
+			throw new CodecException("服务实例信息不能为null！");
+		ByteArrayWriter body = new ByteArrayWriter(64);
+		writeBody(info, body);
+		int flags = 0;
+		byte[] bodyBytes = body.buffer();
+		int bodyLength = body.size();
+		int rawLength = bodyLength;
+		if (compressThreshold > 0 && bodyLength > compressThreshold) {
+			byte[] compressed = deflate(bodyBytes, bodyLength);
+			if (compressed != null) {
+				flags |= FLAG_DEFLATE;
+				bodyBytes = compressed;
+				bodyLength = compressed.length;
+			}
+		}
+		boolean deflated = (flags & FLAG_DEFLATE) != 0;
+		ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + (deflated ? 4 : 0) + bodyLength);
+		out.put(MAGIC_0).put(MAGIC_1).put(SCHEMA_VERSION).put((byte) flags).putInt(bodyLength);
+		if (deflated)
+			out.putInt(rawLength);
+		out.put(bodyBytes, 0, bodyLength);
+		return out.array();
+	}
+
+	@Override
+	public ServiceInstanceInfo decode(byte[] data) throws CodecException {
+		if (!canDecode(data))
+			throw new CodecException("不是合法的二进制服务实例数据！");
+		try {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			((Buffer) in).position(2);
+			int version = in.get() & 0xFF;
+			if (version < MIN_SCHEMA_VERSION)
+				throw new CodecException("不支持的二进制服务实例数据版本：" + version);
+			int flags = in.get() & 0xFF;
+			int bodyLength = in.getInt();
+			if ((flags & FLAG_DEFLATE) != 0) {
+				int rawLength = in.getInt();
+				byte[] raw = inflate(data, in.position(), bodyLength, rawLength);
+				in = ByteBuffer.wrap(raw);
+			}
+			else {
+				if (bodyLength > in.remaining())
+					throw new CodecException("二进制服务实例数据长度不合法！");
+				in = ByteBuffer.wrap(data, in.position(), bodyLength).slice();
+			}
+			return readBody(version, in);
+		}
+		catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new CodecException("二进制服务实例数据已损坏！", e);
+		}
+	}
+
+	private void writeBody(ServiceInstanceInfo info, ByteArrayWriter body) {
+		writeString(body, info.getServiceName());
+		writeString(body, info.getIp());
+		body.writeInt(info.getPort());
+		body.writeInt(info.getWeight());
+		body.writeByte(info.getStatus().getCode());
+		Map<String, String> metadata = info.getMetadata();
+		if (metadata.size() > 0xFFFF)
+			throw new IllegalArgumentException("元数据过多：" + metadata.size());
+		body.writeShort(metadata.size());
+		for (Map.Entry<String, String> entry : metadata.entrySet()) {
+			writeString(body, entry.getKey());
+			writeString(body, entry.getValue());
+		}
+	}
+
+	/**
+	 * 按version读取已知字段：v1只有地址，v2起才有权重、状态和元数据；新版本追加的字段直接忽略
+	 */
+	private ServiceInstanceInfo readBody(int version, ByteBuffer in) {
+		String serviceName = readString(in);
+		String ip = readString(in);
+		int port = in.getInt();
+		ServiceInstanceInfo info = new ServiceInstanceInfo(serviceName, ip, port);
+		if (version < 2)
+			return info;
+		info.setWeight(in.getInt());
+		info.setStatus(ServiceInstanceStatus.fromCode(in.get() & 0xFF));
+		int metadataCount = in.getShort() & 0xFFFF;
+		if (metadataCount > 0) {
+			Map<String, String> metadata = new LinkedHashMap<>(metadataCount * 4 / 3 + 1);
+			for (int i = 0; i < metadataCount; i++)
+				metadata.put(readString(in), readString(in));
+			info.setMetadata(metadata);
+		}
+		return info;
+	}
+
+	static void writeString(ByteArrayWriter out, String s) {
+		if (s == null) {
+			out.writeShort(NULL_STRING);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= NULL_STRING)
+			throw new IllegalArgumentException("字符串过长：" + bytes.length);
+		out.writeShort(bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = in.getShort() & 0xFFFF;
+		if (length == NULL_STRING)
+			return null;
+		if (length > in.remaining())
+			throw new BufferUnderflowException();
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		((Buffer) in).position(in.position() + length);
+		return s;
+	}
+
+	/**
+	 * @return 压缩后更小则返回压缩结果，否则返回null
+	 */
+	private static byte[] deflate(byte[] raw, int length) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw, 0, length);
+			deflater.finish();
+			byte[] out = new byte[length];
+			int n = deflater.deflate(out);
+			if (!deflater.finished() || n >= length)
+				return null;
+			return Arrays.copyOf(out, n);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int offset, int length, int rawLength) throws CodecException {
+		if (length < 0 || length > data.length - offset || rawLength < 0)
+			throw new CodecException("二进制服务实例数据长度不合法！");
+		//按头部声明的长度分配内存前先检查，损坏或恶意的数据不能导致分配超大数组
+		if (rawLength > MAX_RAW_LENGTH || rawLength > (long) length * MAX_INFLATE_RATIO)
+			throw new CodecException("二进制服务实例数据解压后长度不合法：" + rawLength);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+			byte[] raw = new byte[rawLength];
+			int n = inflater.inflate(raw);
+			if (n != rawLength || !inflater.finished())
+				throw new CodecException("二进制服务实例数据解压失败！");
+			return raw;
+		}
+		catch (DataFormatException e) {
+			throw new CodecException("二进制服务实例数据解压失败！", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.cloudgyb.codec;
+
+import java.util.Arrays;
+
+/**
+ * 可增长的大端字节数组写入器，避免DataOutputStream的流包装开销
+ * @author cloudgyb
+ * 2021/3/8 10:40
+ */
+final class ByteArrayWriter {
+	private byte[] buf;
+	private int size;
+
+	ByteArrayWriter(int initialCapacity) {
+		this.buf = new byte[Math.max(16, initialCapacity)];
+	}
+
+	void writeByte(int v) {
+		ensure(1);
+		buf[size++] = (byte) v;
+	}
+
+	void writeShort(int v) {
+		ensure(2);
+		buf[size++] = (byte) (v >>> 8);
+		buf[size++] = (byte) v;
+	}
+
+	void writeInt(int v) {
+		ensure(4);
+		buf[size++] = (byte) (v >>> 24);
+		buf[size++] = (byte) (v >>> 16);
+		buf[size++] = (byte) (v >>> 8);
+		buf[size++] = (byte) v;
+	}
+
+	void writeLong(long v) {
+		writeInt((int) (v >>> 32));
+		writeInt((int) v);
+	}
+
+	void write(byte[] bytes, int offset, int length) {
+		ensure(length);
+		System.arraycopy(bytes, offset, buf, size, length);
+		size += length;
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int size() {
+		return size;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, size);
+	}
+
+	private void ensure(int n) {
+		if (size + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+	}
+}
@@ -0,0 +1,16 @@
+package com.github.cloudgyb.codec;
+
+/**
+ * 服务实例信息编解码异常
+ * @author cloudgyb
+ * 2021/3/8 10:12
+ */
+public class CodecException extends Exception {
+	public CodecException(String mess) {
+		super(mess);
+	}
+
+	public CodecException(String mess, Throwable cause) {
+		super(mess, cause);
+	}
+}
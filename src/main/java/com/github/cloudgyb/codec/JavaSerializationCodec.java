@@ -0,0 +1,60 @@
+package com.github.cloudgyb.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 旧版本使用的Java序列化格式，保留用于滚动升级期间读取（或继续写入）旧数据
+ * @author cloudgyb
+ * 2021/3/8 10:20
+ */
+public class JavaSerializationCodec implements ServiceInstanceCodec {
+	public static final String NAME = "java";
+	/**
+	 * ObjectOutputStream写入的流头 0xACED
+	 */
+	private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+	private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public boolean canDecode(byte[] data) {
+		return data != null && data.length > 2 &&
+				data[0] == STREAM_MAGIC_0 && data[1] == STREAM_MAGIC_1;
+	}
+
+	@Override
+	public byte[] encode(ServiceInstanceInfo info) throws CodecException {
+		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			 ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+			oos.writeObject(info);
+			oos.flush();
+			return baos.toByteArray();
+		}
+		catch (IOException e) {
+			throw new CodecException("Java序列化服务实例信息失败！", e);
+		}
+	}
+
+	@Override
+	public ServiceInstanceInfo decode(byte[] data) throws CodecException {
+		try (
+				ByteArrayInputStream bis = new ByteArrayInputStream(data);
+				ObjectInputStream ois = new ObjectInputStream(bis)
+		) {
+			return (ServiceInstanceInfo) ois.readObject();
+		}
+		catch (ClassNotFoundException | IOException | ClassCastException e) {
+			throw new CodecException("Java反序列化服务实例信息失败！", e);
+		}
+	}
+}
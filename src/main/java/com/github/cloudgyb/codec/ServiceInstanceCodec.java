@@ -0,0 +1,29 @@
+package com.github.cloudgyb.codec;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 服务实例信息编解码SPI。
+ * 注册时使用encode将实例信息写入znode，发现时使用decode读取znode数据。
+ * 自定义实现可以通过META-INF/services/com.github.cloudgyb.codec.ServiceInstanceCodec注册，
+ * 并在zookeeper.properties中用zk.registry.codec指定其name()作为写入格式。
+ * @author cloudgyb
+ * 2021/3/8 10:15
+ */
+public interface ServiceInstanceCodec {
+	/**
+	 * @return 编解码器名称，用于配置中选择写入格式
+	 */
+	String name();
+
+	/**
+	 * 根据数据头判断该编解码器能否解码这段数据，不能抛出异常
+	 * @param data znode数据
+	 * @return 能解码返回true
+	 */
+	boolean canDecode(byte[] data);
+
+	byte[] encode(ServiceInstanceInfo info) throws CodecException;
+
+	ServiceInstanceInfo decode(byte[] data) throws CodecException;
+}
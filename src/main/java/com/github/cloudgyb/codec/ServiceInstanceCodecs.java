@@ -0,0 +1,98 @@
+package com.github.cloudgyb.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 编解码器工厂，内置binary和java两种格式，并通过ServiceLoader加载自定义实现。
+ * 解码时根据数据头自动识别格式，保证滚动升级期间可以读取旧的Java序列化数据。
+ * @author cloudgyb
+ * 2021/3/8 11:02
+ */
+public final class ServiceInstanceCodecs {
+	private static final Logger logger = LoggerFactory.getLogger(ServiceInstanceCodecs.class);
+	private static final List<ServiceInstanceCodec> codecs;
+
+	static {
+		List<ServiceInstanceCodec> list = new ArrayList<>(4);
+		list.add(new BinaryServiceInstanceCodec());
+		list.add(new JavaSerializationCodec());
+		for (ServiceInstanceCodec codec : ServiceLoader.load(ServiceInstanceCodec.class)) {
+			logger.info("加载自定义服务实例编解码器：" + codec.name());
+			list.add(codec);
+		}
+		codecs = Collections.unmodifiableList(list);
+	}
+
+	private ServiceInstanceCodecs() {
+	}
+
+	/**
+	 * 按名称查找编解码器
+	 * @param name 编解码器名称，为null或空时使用binary
+	 * @return 编码使用name对应的格式，解码时自动识别格式的编解码器
+	 */
+	public static ServiceInstanceCodec forName(String name) throws CodecException {
+		if (name == null || "".equals(name))
+			name = BinaryServiceInstanceCodec.NAME;
+		for (ServiceInstanceCodec codec : codecs) {
+			if (codec.name().equals(name))
+				return new CompatibleCodec(codec);
+		}
+		throw new CodecException("未找到服务实例编解码器：" + name);
+	}
+
+	/**
+	 * @return 使用默认binary格式编码，解码时自动识别格式的编解码器
+	 */
+	public static ServiceInstanceCodec defaultCodec() {
+		return new CompatibleCodec(codecs.get(0));
+	}
+
+	/**
+	 * 写入使用指定格式，读取时依次尝试各编解码器
+	 */
+	private static final class CompatibleCodec implements ServiceInstanceCodec {
+		private final ServiceInstanceCodec writer;
+
+		private CompatibleCodec(ServiceInstanceCodec writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public String name() {
+			return writer.name();
+		}
+
+		@Override
+		public boolean canDecode(byte[] data) {
+			for (ServiceInstanceCodec codec : codecs) {
+				if (codec.canDecode(data))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public byte[] encode(ServiceInstanceInfo info) throws CodecException {
+			return writer.encode(info);
+		}
+
+		@Override
+		public ServiceInstanceInfo decode(byte[] data) throws CodecException {
+			if (writer.canDecode(data))
+				return writer.decode(data);
+			for (ServiceInstanceCodec codec : codecs) {
+				if (codec != writer && codec.canDecode(data))
+					return codec.decode(data);
+			}
+			throw new CodecException("无法识别的服务实例数据格式！");
+		}
+	}
+}
@@ -2,6 +2,9 @@ package com.github.cloudgyb.config;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -18,10 +21,68 @@ public class ZookeeperServerConfigProperties {
 	private static final String serverAddrKey = "zk.server.addr";
 	private static final String sessionTimeoutKey = "zk.server.session.timeout";
 	private static final String namespaceKey = "zk.server.namespace";
+	private static final String registryCodecKey = "zk.registry.codec";
+	private static final String flushMaxInFlightKey = "zk.discovery.flush.max-inflight";
+	private static final String dispatcherWorkersKey = "zk.discovery.dispatcher.workers";
+	private static final String dispatcherQueueCapacityKey = "zk.discovery.dispatcher.queue-capacity";
+	private static final String snapshotFileKey = "zk.discovery.snapshot.file";
+	private static final String snapshotIntervalKey = "zk.discovery.snapshot.interval";
+	private static final String jmxMetricsEnabledKey = "zk.metrics.jmx.enabled";
+	private static final String discoveryModeKey = "zk.discovery.mode";
+	private static final String subscriptionsKey = "zk.discovery.subscriptions";
+	private static final String subscriptionIdleTtlKey = "zk.discovery.subscription.idle-ttl";
+	private static final String zoneKey = "zk.discovery.zone";
+	private static final String recoveryBackoffBaseKey = "zk.session.recovery.backoff.base";
+	private static final String recoveryBackoffMaxKey = "zk.session.recovery.backoff.max";
+	private static final String hostLocalFileKey = "zk.discovery.hostlocal.file";
+	private static final String hostLocalIntervalKey = "zk.discovery.hostlocal.interval";
+	private static final String debounceKey = "zk.discovery.debounce";
+	private static final String flapSuppressKey = "zk.discovery.flap.suppress";
+	private static final String flapHalfLifeKey = "zk.discovery.flap.half-life";
+	private static final String burstThresholdKey = "zk.discovery.burst.threshold";
+	private static final String burstWindowKey = "zk.discovery.burst.window";
+	private static final String journalCapacityKey = "zk.discovery.journal.capacity";
+	public static final String DISCOVERY_MODE_ALL = "all";
+	public static final String DISCOVERY_MODE_SUBSCRIBE = "subscribe";
 	private static final int defaultSessionTimeout = 2000;
+	private static final int defaultFlushMaxInFlight = 64;
+	private static final int defaultDispatcherWorkers = 2;
+	private static final int defaultDispatcherQueueCapacity = 10000;
+	private static final int defaultSnapshotInterval = 5000;
+	private static final int defaultSubscriptionIdleTtl = 600000;
+	private static final int defaultRecoveryBackoffBase = 500;
+	private static final int defaultRecoveryBackoffMax = 30000;
+	private static final int defaultHostLocalInterval = 1000;
+	private static final int defaultDebounce = 0;
+	private static final int defaultFlapSuppress = 0;
+	private static final int defaultFlapHalfLife = 60000;
+	private static final int defaultBurstThreshold = 0;
+	private static final int defaultBurstWindow = 1000;
+	private static final int defaultJournalCapacity = 1024;
 	private String serverAddress;
 	private Integer sessionTimeout;
 	private String namespace;
+	private String registryCodec;
+	private int flushMaxInFlight;
+	private int dispatcherWorkers;
+	private int dispatcherQueueCapacity;
+	private String snapshotFile;
+	private int snapshotInterval;
+	private boolean jmxMetricsEnabled;
+	private String discoveryMode;
+	private List<String> subscriptions;
+	private int subscriptionIdleTtl;
+	private String zone;
+	private int recoveryBackoffBase;
+	private int recoveryBackoffMax;
+	private String hostLocalFile;
+	private int hostLocalInterval;
+	private int debounce;
+	private int flapSuppress;
+	private int flapHalfLife;
+	private int burstThreshold;
+	private int burstWindow;
+	private int journalCapacity;
 
 	private static final ZookeeperServerConfigProperties configPropertiesHolder = new ZookeeperServerConfigProperties();
 
@@ -57,6 +118,81 @@ public class ZookeeperServerConfigProperties {
 			else {
 				configPropertiesHolder.namespace = ns;
 			}
+			configPropertiesHolder.registryCodec = properties.getProperty(registryCodecKey);
+			configPropertiesHolder.flushMaxInFlight = intProperty(properties, flushMaxInFlightKey,
+					defaultFlushMaxInFlight);
+			configPropertiesHolder.dispatcherWorkers = intProperty(properties, dispatcherWorkersKey,
+					defaultDispatcherWorkers);
+			configPropertiesHolder.dispatcherQueueCapacity = intProperty(properties, dispatcherQueueCapacityKey,
+					defaultDispatcherQueueCapacity);
+			String snapshotFile = properties.getProperty(snapshotFileKey);
+			if (snapshotFile != null && !"".equals(snapshotFile.trim()))
+				configPropertiesHolder.snapshotFile = snapshotFile.trim();
+			configPropertiesHolder.snapshotInterval = intProperty(properties, snapshotIntervalKey,
+					defaultSnapshotInterval);
+			if (configPropertiesHolder.snapshotInterval <= 0)
+				throw new ZookeeperConfigException("配置错误，'" + snapshotIntervalKey + "'值不合法！");
+			String jmxMetricsEnabled = properties.getProperty(jmxMetricsEnabledKey);
+			configPropertiesHolder.jmxMetricsEnabled = jmxMetricsEnabled == null ||
+					"".equals(jmxMetricsEnabled.trim()) || Boolean.parseBoolean(jmxMetricsEnabled.trim());
+			String mode = properties.getProperty(discoveryModeKey);
+			if (mode == null || "".equals(mode.trim()))
+				configPropertiesHolder.discoveryMode = DISCOVERY_MODE_ALL;
+			else if (DISCOVERY_MODE_ALL.equals(mode.trim()) || DISCOVERY_MODE_SUBSCRIBE.equals(mode.trim()))
+				configPropertiesHolder.discoveryMode = mode.trim();
+			else
+				throw new ZookeeperConfigException("配置错误，'" + discoveryModeKey + "'值不合法！");
+			List<String> subscriptions = new ArrayList<>();
+			String subscriptionList = properties.getProperty(subscriptionsKey);
+			if (subscriptionList != null) {
+				for (String serviceName : subscriptionList.split(",")) {
+					if (!"".equals(serviceName.trim()))
+						subscriptions.add(serviceName.trim());
+				}
+			}
+			configPropertiesHolder.subscriptions = Collections.unmodifiableList(subscriptions);
+			configPropertiesHolder.subscriptionIdleTtl = intProperty(properties, subscriptionIdleTtlKey,
+					defaultSubscriptionIdleTtl);
+			if (configPropertiesHolder.subscriptionIdleTtl < 0)
+				throw new ZookeeperConfigException("配置错误，'" + subscriptionIdleTtlKey + "'值不合法！");
+			String zone = properties.getProperty(zoneKey);
+			if (zone != null && !"".equals(zone.trim()))
+				configPropertiesHolder.zone = zone.trim();
+			configPropertiesHolder.recoveryBackoffBase = intProperty(properties, recoveryBackoffBaseKey,
+					defaultRecoveryBackoffBase);
+			configPropertiesHolder.recoveryBackoffMax = intProperty(properties, recoveryBackoffMaxKey,
+					defaultRecoveryBackoffMax);
+			if (configPropertiesHolder.recoveryBackoffBase <= 0 ||
+					configPropertiesHolder.recoveryBackoffMax < configPropertiesHolder.recoveryBackoffBase)
+				throw new ZookeeperConfigException("配置错误，'" + recoveryBackoffBaseKey + "'或'" +
+						recoveryBackoffMaxKey + "'值不合法！");
+			String hostLocalFile = properties.getProperty(hostLocalFileKey);
+			if (hostLocalFile != null && !"".equals(hostLocalFile.trim()))
+				configPropertiesHolder.hostLocalFile = hostLocalFile.trim();
+			configPropertiesHolder.hostLocalInterval = intProperty(properties, hostLocalIntervalKey,
+					defaultHostLocalInterval);
+			if (configPropertiesHolder.hostLocalInterval <= 0)
+				throw new ZookeeperConfigException("配置错误，'" + hostLocalIntervalKey + "'值不合法！");
+			configPropertiesHolder.debounce = intProperty(properties, debounceKey, defaultDebounce);
+			if (configPropertiesHolder.debounce < 0)
+				throw new ZookeeperConfigException("配置错误，'" + debounceKey + "'值不合法！");
+			configPropertiesHolder.flapSuppress = intProperty(properties, flapSuppressKey, defaultFlapSuppress);
+			if (configPropertiesHolder.flapSuppress < 0)
+				throw new ZookeeperConfigException("配置错误，'" + flapSuppressKey + "'值不合法！");
+			configPropertiesHolder.flapHalfLife = intProperty(properties, flapHalfLifeKey, defaultFlapHalfLife);
+			if (configPropertiesHolder.flapHalfLife <= 0)
+				throw new ZookeeperConfigException("配置错误，'" + flapHalfLifeKey + "'值不合法！");
+			configPropertiesHolder.burstThreshold = intProperty(properties, burstThresholdKey,
+					defaultBurstThreshold);
+			if (configPropertiesHolder.burstThreshold < 0)
+				throw new ZookeeperConfigException("配置错误，'" + burstThresholdKey + "'值不合法！");
+			configPropertiesHolder.burstWindow = intProperty(properties, burstWindowKey, defaultBurstWindow);
+			if (configPropertiesHolder.burstWindow <= 0)
+				throw new ZookeeperConfigException("配置错误，'" + burstWindowKey + "'值不合法！");
+			configPropertiesHolder.journalCapacity = intProperty(properties, journalCapacityKey,
+					defaultJournalCapacity);
+			if (configPropertiesHolder.journalCapacity < 0)
+				throw new ZookeeperConfigException("配置错误，'" + journalCapacityKey + "'值不合法！");
 			logger.info("从" + confFile + "读取zookeeper配置完成.");
 		}
 		catch (IOException e) {
@@ -72,6 +208,121 @@ public class ZookeeperServerConfigProperties {
 	private ZookeeperServerConfigProperties() {
 	}
 
+	private ZookeeperServerConfigProperties copy() {
+		ZookeeperServerConfigProperties copy = new ZookeeperServerConfigProperties();
+		copy.serverAddress = serverAddress;
+		copy.sessionTimeout = sessionTimeout;
+		copy.namespace = namespace;
+		copy.registryCodec = registryCodec;
+		copy.flushMaxInFlight = flushMaxInFlight;
+		copy.dispatcherWorkers = dispatcherWorkers;
+		copy.dispatcherQueueCapacity = dispatcherQueueCapacity;
+		copy.snapshotFile = snapshotFile;
+		copy.snapshotInterval = snapshotInterval;
+		copy.jmxMetricsEnabled = jmxMetricsEnabled;
+		copy.discoveryMode = discoveryMode;
+		copy.subscriptions = subscriptions;
+		copy.subscriptionIdleTtl = subscriptionIdleTtl;
+		copy.zone = zone;
+		copy.recoveryBackoffBase = recoveryBackoffBase;
+		copy.recoveryBackoffMax = recoveryBackoffMax;
+		copy.hostLocalFile = hostLocalFile;
+		copy.hostLocalInterval = hostLocalInterval;
+		copy.debounce = debounce;
+		copy.flapSuppress = flapSuppress;
+		copy.flapHalfLife = flapHalfLife;
+		copy.burstThreshold = burstThreshold;
+		copy.burstWindow = burstWindow;
+		copy.journalCapacity = journalCapacity;
+		return copy;
+	}
+
+	/**
+	 * 同一个JVM中注册或发现多个命名空间时使用，其余配置与当前配置相同。
+	 * 配置了本地快照时，不同命名空间需要各自的快照文件，见withSnapshotFile
+	 * @param namespace 命名空间，例如/service-b
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withNamespace(String namespace) {
+		if (namespace == null || !namespace.startsWith("/") || namespace.endsWith("/"))
+			throw new IllegalArgumentException("命名空间不合法：" + namespace);
+		ZookeeperServerConfigProperties copy = copy();
+		copy.namespace = namespace;
+		return copy;
+	}
+
+	/**
+	 * @param serverAddress zookeeper地址，地址相同的配置共用一个zookeeper session
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withServerAddress(String serverAddress) {
+		if (serverAddress == null || "".equals(serverAddress))
+			throw new IllegalArgumentException("zookeeper地址不能为空！");
+		ZookeeperServerConfigProperties copy = copy();
+		copy.serverAddress = serverAddress;
+		return copy;
+	}
+
+	/**
+	 * @param snapshotFile 本地注册表快照文件，为null时不启用本地快照
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withSnapshotFile(String snapshotFile) {
+		ZookeeperServerConfigProperties copy = copy();
+		copy.snapshotFile = snapshotFile;
+		return copy;
+	}
+
+	/**
+	 * @param hostLocalFile 本机共享注册表文件，同一主机上使用同一文件的进程共享一份注册表
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withHostLocalFile(String hostLocalFile) {
+		ZookeeperServerConfigProperties copy = copy();
+		copy.hostLocalFile = hostLocalFile;
+		return copy;
+	}
+
+	/**
+	 * @param discoveryMode 服务发现模式，DISCOVERY_MODE_ALL或DISCOVERY_MODE_SUBSCRIBE
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withDiscoveryMode(String discoveryMode) {
+		if (!DISCOVERY_MODE_ALL.equals(discoveryMode) && !DISCOVERY_MODE_SUBSCRIBE.equals(discoveryMode))
+			throw new IllegalArgumentException("服务发现模式不合法：" + discoveryMode);
+		ZookeeperServerConfigProperties copy = copy();
+		copy.discoveryMode = discoveryMode;
+		return copy;
+	}
+
+	/**
+	 * @param burstThreshold 事件突发检测的阈值，0表示不检测
+	 * @return 新的配置对象，不影响config()返回的全局配置
+	 */
+	public ZookeeperServerConfigProperties withBurstThreshold(int burstThreshold) {
+		if (burstThreshold < 0)
+			throw new IllegalArgumentException("事件突发检测的阈值不合法：" + burstThreshold);
+		ZookeeperServerConfigProperties copy = copy();
+		copy.burstThreshold = burstThreshold;
+		return copy;
+	}
+
+	/**
+	 * 读取可选的整数配置项，未配置时返回默认值
+	 */
+	private static int intProperty(Properties properties, String key, int defaultValue)
+			throws ZookeeperConfigException {
+		String value = properties.getProperty(key);
+		if (value == null || "".equals(value.trim()))
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new ZookeeperConfigException("配置错误，'" + key + "'值不合法！");
+		}
+	}
+
 	public static ZookeeperServerConfigProperties config() {
 		return configPropertiesHolder;
 	}
@@ -87,4 +338,151 @@ public class ZookeeperServerConfigProperties {
 	public String getNamespace() {
 		return namespace;
 	}
+
+	/**
+	 * @return 注册时写入znode的编码格式名称，未配置时为null（使用默认的binary格式）
+	 */
+	public String getRegistryCodec() {
+		return registryCodec;
+	}
+
+	/**
+	 * @return 全量拉取注册表时同时在途的最大请求数，小于等于1时使用串行方式拉取
+	 */
+	public int getFlushMaxInFlight() {
+		return flushMaxInFlight;
+	}
+
+	/**
+	 * @return 处理服务发现事件的工作线程数，同一服务的事件总是由同一线程处理
+	 */
+	public int getDispatcherWorkers() {
+		return dispatcherWorkers;
+	}
+
+	/**
+	 * @return 服务发现事件队列的总容量，队列满时丢弃事件并触发全量拉取
+	 */
+	public int getDispatcherQueueCapacity() {
+		return dispatcherQueueCapacity;
+	}
+
+	/**
+	 * @return 本地注册表快照文件路径，未配置时为null（不启用本地快照）
+	 */
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * @return 注册表有变化时写入本地快照的最小间隔（毫秒）
+	 */
+	public int getSnapshotIntervalMillis() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * @return 是否将监控指标注册到JMX，默认启用
+	 */
+	public boolean isJmxMetricsEnabled() {
+		return jmxMetricsEnabled;
+	}
+
+	/**
+	 * @return 服务发现模式：all（监听并缓存整个命名空间）或subscribe（只监听并缓存订阅的服务）
+	 */
+	public String getDiscoveryMode() {
+		return discoveryMode;
+	}
+
+	/**
+	 * @return subscribe模式下启动时订阅的服务，这些服务不会因空闲被淘汰
+	 */
+	public List<String> getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * @return subscribe模式下按需加载的服务空闲多久（毫秒）后被淘汰，0表示不淘汰
+	 */
+	public int getSubscriptionIdleTtlMillis() {
+		return subscriptionIdleTtl;
+	}
+
+	/**
+	 * @return 本实例所在区域，配置后注册到元数据zone中，并默认优先选择同区域的实例；未配置时为null
+	 */
+	public String getZone() {
+		return zone;
+	}
+
+	/**
+	 * @return session过期后重建连接的退避基数（毫秒），第n次重试前等待[0, base*2^n]内的随机时间
+	 */
+	public int getRecoveryBackoffBaseMillis() {
+		return recoveryBackoffBase;
+	}
+
+	/**
+	 * @return session过期后重建连接的最大退避时间（毫秒）
+	 */
+	public int getRecoveryBackoffMaxMillis() {
+		return recoveryBackoffMax;
+	}
+
+	/**
+	 * @return 本机共享注册表文件路径，未配置时为null（不能使用HostLocalServiceDiscovery）
+	 */
+	public String getHostLocalFile() {
+		return hostLocalFile;
+	}
+
+	/**
+	 * @return 本机共享模式下leader写入心跳、其他进程尝试接替leader的间隔（毫秒）
+	 */
+	public int getHostLocalIntervalMillis() {
+		return hostLocalInterval;
+	}
+
+	/**
+	 * @return 实例下线后延迟多久（毫秒）从注册表删除，期间同一地址重新注册时合并为一次修改，0表示不延迟
+	 */
+	public int getDebounceMillis() {
+		return debounce;
+	}
+
+	/**
+	 * @return 抑制反复上下线实例的惩罚值阈值，每次下线加1，0表示不抑制
+	 */
+	public int getFlapSuppress() {
+		return flapSuppress;
+	}
+
+	/**
+	 * @return 抖动惩罚值的半衰期（毫秒）
+	 */
+	public int getFlapHalfLifeMillis() {
+		return flapHalfLife;
+	}
+
+	/**
+	 * @return 一个服务在一个窗口内的实例事件数超过该值时改为合并重新加载该服务，0表示不检测
+	 */
+	public int getBurstThreshold() {
+		return burstThreshold;
+	}
+
+	/**
+	 * @return 检测事件突发的窗口长度（毫秒）
+	 */
+	public int getBurstWindowMillis() {
+		return burstWindow;
+	}
+
+	/**
+	 * @return 变化日志最多保留的变化批次数，0表示不记录
+	 */
+	public int getJournalCapacity() {
+		return journalCapacity;
+	}
 }
@@ -0,0 +1,41 @@
+package com.github.cloudgyb.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 带完全抖动（full jitter）的指数退避：第attempt次（从0开始）尝试前等待[0, min(max, base*2^attempt)]内的随机时间。
+ * zookeeper集群重启后大量客户端的session同时过期，随机等待把重连、重新注册和全量拉取分散开，避免集群再次被压垮
+ * @author cloudgyb
+ * 2021/3/25 9:40
+ */
+public final class ExponentialBackoff {
+	/**
+	 * 超过该次数后不再翻倍，避免移位溢出
+	 */
+	private static final int MAX_SHIFT = 30;
+	private final long baseMillis;
+	private final long maxMillis;
+
+	public ExponentialBackoff(long baseMillis, long maxMillis) {
+		if (baseMillis <= 0 || maxMillis < baseMillis)
+			throw new IllegalArgumentException("退避时间不合法：base=" + baseMillis + ", max=" + maxMillis);
+		this.baseMillis = baseMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * @return 第attempt次尝试前等待的上限（毫秒）
+	 */
+	public long ceilingMillis(int attempt) {
+		int shift = Math.min(Math.max(attempt, 0), MAX_SHIFT);
+		long ceiling = baseMillis << shift;
+		return ceiling < 0 || ceiling > maxMillis ? maxMillis : ceiling;
+	}
+
+	/**
+	 * @return 第attempt次尝试前随机等待的时间（毫秒）
+	 */
+	public long delayMillis(int attempt) {
+		return ThreadLocalRandom.current().nextLong(ceilingMillis(attempt) + 1);
+	}
+}
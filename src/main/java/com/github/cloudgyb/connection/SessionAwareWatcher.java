@@ -0,0 +1,20 @@
+package com.github.cloudgyb.connection;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * 注册到共享连接上的命名空间watcher，接收该命名空间下的节点事件及所有连接状态事件
+ * @author cloudgyb
+ * 2021/3/24 10:20
+ */
+public interface SessionAwareWatcher extends Watcher {
+	/**
+	 * 共享连接的session过期并重新建立后调用。各命名空间在恢复线程池上并行执行，
+	 * 方法返回时该命名空间应已完成重新注册、重新监听和注册表同步，未能完成时抛出异常，连接不会回到CONNECTED
+	 * @param zooKeeper 新的zookeeper客户端
+	 * @param connectAttempts 本次恢复重建连接的尝试次数
+	 */
+	void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts) throws KeeperException, InterruptedException;
+}
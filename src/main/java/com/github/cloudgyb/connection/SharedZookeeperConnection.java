@@ -0,0 +1,437 @@
+package com.github.cloudgyb.connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 同一个JVM中多个命名空间的注册与发现共用的zookeeper连接（一个session）。
+ * 节点事件按路径前缀（最长匹配的命名空间）分发给对应命名空间的watcher，连接状态事件分发给所有watcher。
+ * session过期后由恢复状态机在单独的线程上重建连接：每次尝试前按指数退避随机等待，
+ * 连接建立后各命名空间并行恢复，全部成功后才回到CONNECTED。
+ * 通过ZookeeperConnectionManager获取，使用完后调用release，引用计数降为0时关闭连接
+ * @author cloudgyb
+ * 2021/3/24 10:32
+ */
+public final class SharedZookeeperConnection {
+	private final Logger logger = LoggerFactory.getLogger(SharedZookeeperConnection.class);
+
+	/**
+	 * 连接状态
+	 */
+	public enum State {
+		/**
+		 * 首次连接中
+		 */
+		CONNECTING,
+		CONNECTED,
+		/**
+		 * 连接断开，zookeeper客户端自动重连中，session可能仍然有效
+		 */
+		DISCONNECTED,
+		/**
+		 * session已过期，等待退避后重建连接
+		 */
+		EXPIRED,
+		/**
+		 * 正在建立新的session
+		 */
+		RECONNECTING,
+		/**
+		 * 新session已建立，各命名空间正在重新注册、监听并同步
+		 */
+		RECOVERING,
+		CLOSED
+	}
+
+	private final String serverAddress;
+	private final int sessionTimeout;
+	private final ExponentialBackoff backoff;
+	private volatile ZooKeeper zooKeeper;
+	private volatile State state = State.CONNECTING;
+	/**
+	 * 当前zookeeper客户端的代数，旧客户端（已过期或重连超时被关闭的）的事件直接忽略
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+	private volatile CountDownLatch connectedLatch = new CountDownLatch(1);
+	/**
+	 * 按命名空间长度倒序排列，查找时第一个匹配的就是最长前缀；在this锁内整体替换。
+	 * 连接状态在同一个锁内修改，register与连接事件之间不会漏发SyncConnected
+	 */
+	private volatile Route[] routes = new Route[0];
+	/**
+	 * 引用计数，由ZookeeperConnectionManager在其锁内修改
+	 */
+	int refCount;
+	private volatile long lastTimeToRecoverNanos;
+	private volatile int lastRecoveryAttempts;
+	/**
+	 * 运行恢复状态机，session过期事件只在这里排队，不阻塞zookeeper事件线程
+	 */
+	private final ExecutorService recoveryExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "zookeeper-shared-session-recovery");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * 执行各命名空间的并行恢复任务
+	 */
+	private final ExecutorService recoveryWorkers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "zookeeper-session-recovery-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	SharedZookeeperConnection(ZookeeperServerConfigProperties config) throws IOException {
+		this.serverAddress = config.getServerAddress();
+		this.sessionTimeout = config.getSessionTimeout();
+		this.backoff = new ExponentialBackoff(config.getRecoveryBackoffBaseMillis(),
+				config.getRecoveryBackoffMaxMillis());
+		this.zooKeeper = new ZooKeeper(serverAddress, sessionTimeout, new ClientWatcher(generation.get()));
+	}
+
+	/**
+	 * @return 当前的zookeeper客户端，session过期重建后会变化
+	 */
+	public ZooKeeper getZooKeeper() {
+		return zooKeeper;
+	}
+
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return 最近一次从session过期到所有命名空间恢复完成的耗时（毫秒），未发生过恢复时为0
+	 */
+	public long getLastTimeToRecoverMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastTimeToRecoverNanos);
+	}
+
+	/**
+	 * @return 最近一次恢复重建连接的尝试次数
+	 */
+	public int getLastRecoveryAttempts() {
+		return lastRecoveryAttempts;
+	}
+
+	/**
+	 * @return 用于执行恢复任务的线程池，命名空间可以用它并行执行互不依赖的恢复步骤
+	 */
+	public Executor getRecoveryExecutor() {
+		return recoveryWorkers;
+	}
+
+	/**
+	 * 恢复过程中的一个步骤，例如重新注册、重新监听或重新同步
+	 */
+	public interface RecoveryStep {
+		void run() throws KeeperException, InterruptedException;
+	}
+
+	/**
+	 * 执行一个恢复步骤，失败时按重建连接使用的指数退避等待后重试，直到成功。
+	 * 新session也已过期时不再重试，抛出SessionExpiredException，由随后的Expired事件重新开始恢复
+	 * @param name 步骤名称，用于日志
+	 */
+	public void retryRecoveryStep(String name, RecoveryStep step) throws KeeperException, InterruptedException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				step.run();
+				return;
+			}
+			catch (KeeperException.SessionExpiredException e) {
+				throw e;
+			}
+			catch (KeeperException e) {
+				if (state == State.CLOSED)
+					throw e;
+				long delay = backoff.delayMillis(attempt);
+				logger.warn("第" + (attempt + 1) + "次" + name + "失败，" + delay + "ms后重试", e);
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	/**
+	 * 注册命名空间的watcher，连接已建立时立即向它发送一次SyncConnected事件，
+	 * 否则在连接建立（或session恢复完成）时发送
+	 * @param namespace 命名空间，该路径及其下的节点事件分发给watcher
+	 * @param watcher 命名空间的watcher，同一个命名空间可以有多个
+	 */
+	public void register(String namespace, SessionAwareWatcher watcher) {
+		Route added = new Route(namespace, watcher);
+		synchronized (this) {
+			List<Route> list = new ArrayList<>(routes.length + 1);
+			boolean inserted = false;
+			for (Route route : routes) {
+				if (!inserted && route.namespace.length() < namespace.length()) {
+					list.add(added);
+					inserted = true;
+				}
+				list.add(route);
+			}
+			if (!inserted)
+				list.add(added);
+			routes = list.toArray(new Route[0]);
+			if (state != State.CONNECTED)
+				return;
+			added.synced = true;
+		}
+		watcher.process(syncConnected());
+	}
+
+	private static WatchedEvent syncConnected() {
+		return new WatchedEvent(Watcher.Event.EventType.None, Watcher.Event.KeeperState.SyncConnected, null);
+	}
+
+	/**
+	 * @return 该watcher所在的命名空间是否已没有其他watcher（可以移除该命名空间在服务端的监听）
+	 */
+	public synchronized boolean unregister(SessionAwareWatcher watcher) {
+		List<Route> list = new ArrayList<>(routes.length);
+		String namespace = null;
+		for (Route route : routes) {
+			if (route.watcher == watcher)
+				namespace = route.namespace;
+			else
+				list.add(route);
+		}
+		routes = list.toArray(new Route[0]);
+		if (namespace == null)
+			return false;
+		for (Route route : list) {
+			if (route.namespace.equals(namespace))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 释放一次引用，最后一个引用释放时关闭连接
+	 */
+	public void release() {
+		ZookeeperConnectionManager.release(this);
+	}
+
+	private void process(WatchedEvent event) {
+		if (event.getType() == Watcher.Event.EventType.None) {
+			Route[] current;
+			//修改状态与读取routes在同一个锁内，与register互斥
+			synchronized (this) {
+				Watcher.Event.KeeperState keeperState = event.getState();
+				if (keeperState == Watcher.Event.KeeperState.SyncConnected) {
+					//恢复期间的新连接由状态机在所有命名空间恢复后置为CONNECTED
+					if (state == State.CONNECTING || state == State.DISCONNECTED)
+						state = State.CONNECTED;
+					connectedLatch.countDown();
+				}
+				else if (keeperState == Watcher.Event.KeeperState.Disconnected) {
+					if (state == State.CONNECTED)
+						state = State.DISCONNECTED;
+				}
+				else if (keeperState == Watcher.Event.KeeperState.Expired) {
+					if (state == State.CLOSED)
+						return;
+					state = State.EXPIRED;
+					long expiredAt = System.nanoTime();
+					logger.info("共享的zookeeper会话超时，开始恢复：" + serverAddress);
+					recoveryExecutor.execute(() -> recoverSession(expiredAt));
+				}
+				current = this.routes;
+				if (keeperState == Watcher.Event.KeeperState.SyncConnected) {
+					for (Route route : current)
+						route.synced = true;
+				}
+			}
+			for (Route route : current)
+				route.watcher.process(event);
+			return;
+		}
+		Route[] current = this.routes;
+		String path = event.getPath();
+		if (path == null)
+			return;
+		String matched = null;
+		for (Route route : current) {
+			if (matched != null && !matched.equals(route.namespace))
+				break;
+			if (matched != null || route.matches(path)) {
+				matched = route.namespace;
+				route.watcher.process(event);
+			}
+		}
+	}
+
+	/**
+	 * 恢复状态机：EXPIRED -(退避)-> RECONNECTING -(连接成功)-> RECOVERING -(各命名空间恢复完成)-> CONNECTED。
+	 * 连接失败或在session超时时间内未连接成功时关闭该客户端，回到EXPIRED继续退避重试，直到连接关闭
+	 */
+	private void recoverSession(long expiredAt) {
+		//释放过期客户端的线程，先递增代数使它关闭时的Closed事件被忽略
+		generation.incrementAndGet();
+		closeQuietly(this.zooKeeper);
+		int attempt = 0;
+		ZooKeeper newZooKeeper = null;
+		while (state != State.CLOSED) {
+			long delay = backoff.delayMillis(attempt);
+			attempt++;
+			try {
+				Thread.sleep(delay);
+				if (state == State.CLOSED)
+					return;
+				state = State.RECONNECTING;
+				connectedLatch = new CountDownLatch(1);
+				int gen = generation.incrementAndGet();
+				newZooKeeper = new ZooKeeper(serverAddress, sessionTimeout, new ClientWatcher(gen));
+				if (connectedLatch.await(sessionTimeout, TimeUnit.MILLISECONDS))
+					break;
+				logger.warn("第" + attempt + "次重建zookeeper连接超时，退避后重试");
+				generation.incrementAndGet();
+				closeQuietly(newZooKeeper);
+				newZooKeeper = null;
+			}
+			catch (IOException e) {
+				logger.error("第" + attempt + "次重建zookeeper连接失败，退避后重试", e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (state != State.CLOSED)
+				state = State.EXPIRED;
+		}
+		if (newZooKeeper == null)
+			return;
+		Route[] current;
+		synchronized (this) {
+			this.zooKeeper = newZooKeeper;
+			state = State.RECOVERING;
+			current = this.routes;
+		}
+		logger.info("共享的zookeeper连接已重建（尝试" + attempt + "次），开始并行恢复各命名空间...");
+		CompletableFuture<?>[] recoveries = new CompletableFuture<?>[current.length];
+		int connectAttempts = attempt;
+		ZooKeeper recovered = newZooKeeper;
+		for (int i = 0; i < current.length; i++) {
+			SessionAwareWatcher watcher = current[i].watcher;
+			recoveries[i] = CompletableFuture.runAsync(() -> {
+				try {
+					watcher.sessionRecovered(recovered, connectAttempts);
+				}
+				catch (KeeperException e) {
+					throw new CompletionException(e);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CompletionException(e);
+				}
+			}, recoveryWorkers);
+		}
+		try {
+			CompletableFuture.allOf(recoveries).join();
+		}
+		catch (RuntimeException e) {
+			//新session已过期时随后的Expired事件会重新开始恢复，不能标记为CONNECTED
+			logger.error("恢复命名空间失败，共享连接保持" + state + "状态！", e);
+			return;
+		}
+		//恢复期间注册、还没有收到过SyncConnected的watcher在这里补发
+		List<Route> pending = new ArrayList<>();
+		synchronized (this) {
+			if (state == State.RECOVERING) {
+				state = State.CONNECTED;
+				for (Route route : routes) {
+					if (!route.synced) {
+						route.synced = true;
+						pending.add(route);
+					}
+				}
+			}
+		}
+		for (Route route : pending)
+			route.watcher.process(syncConnected());
+		lastRecoveryAttempts = attempt;
+		lastTimeToRecoverNanos = System.nanoTime() - expiredAt;
+		logger.info("共享的zookeeper连接恢复完成，耗时" + getLastTimeToRecoverMillis() + "ms");
+	}
+
+	private static void closeQuietly(ZooKeeper zooKeeper) {
+		try {
+			zooKeeper.close();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 由ZookeeperConnectionManager在引用计数降为0时调用
+	 */
+	void close() {
+		synchronized (this) {
+			state = State.CLOSED;
+		}
+		generation.incrementAndGet();
+		recoveryExecutor.shutdownNow();
+		recoveryWorkers.shutdownNow();
+		closeQuietly(zooKeeper);
+	}
+
+	/**
+	 * 每个zookeeper客户端一个，只转发当前代客户端的事件
+	 */
+	private final class ClientWatcher implements Watcher {
+		private final int generation;
+
+		private ClientWatcher(int generation) {
+			this.generation = generation;
+		}
+
+		@Override
+		public void process(WatchedEvent event) {
+			if (generation == SharedZookeeperConnection.this.generation.get())
+				SharedZookeeperConnection.this.process(event);
+		}
+	}
+
+	private static final class Route {
+		private final String namespace;
+		private final String prefix;
+		private final SessionAwareWatcher watcher;
+		/**
+		 * 是否已收到过SyncConnected，在SharedZookeeperConnection的锁内读写
+		 */
+		private boolean synced;
+
+		private Route(String namespace, SessionAwareWatcher watcher) {
+			this.namespace = namespace;
+			this.prefix = namespace + "/";
+			this.watcher = watcher;
+		}
+
+		private boolean matches(String path) {
+			return path.startsWith(prefix) || path.equals(namespace);
+		}
+	}
+}
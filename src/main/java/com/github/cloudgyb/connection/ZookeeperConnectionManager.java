@@ -0,0 +1,50 @@
+package com.github.cloudgyb.connection;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 按zookeeper地址共享连接：同一个JVM中地址相同的多个命名空间的注册与发现共用一个session，
+ * 避免重复的session、心跳和重复的监听流量。连接按引用计数管理，最后一个使用者释放时关闭
+ * @author cloudgyb
+ * 2021/3/24 10:25
+ */
+public final class ZookeeperConnectionManager {
+	private static final Logger logger = LoggerFactory.getLogger(ZookeeperConnectionManager.class);
+	private static final Map<String, SharedZookeeperConnection> connections = new HashMap<>();
+
+	private ZookeeperConnectionManager() {
+	}
+
+	/**
+	 * 获取配置的zookeeper地址对应的共享连接，引用计数加1，不存在时创建（异步连接）。
+	 * 地址相同时沿用第一次创建连接时的session超时时间及退避配置
+	 */
+	public static synchronized SharedZookeeperConnection acquire(ZookeeperServerConfigProperties config)
+			throws IOException {
+		String address = config.getServerAddress();
+		SharedZookeeperConnection connection = connections.get(address);
+		if (connection == null) {
+			connection = new SharedZookeeperConnection(config);
+			connections.put(address, connection);
+			logger.info("已创建共享的zookeeper连接：" + address);
+		}
+		connection.refCount++;
+		return connection;
+	}
+
+	static synchronized void release(SharedZookeeperConnection connection) {
+		if (connection.refCount <= 0)
+			return;
+		if (--connection.refCount > 0)
+			return;
+		connections.remove(connection.getServerAddress(), connection);
+		connection.close();
+		logger.info("已关闭共享的zookeeper连接：" + connection.getServerAddress());
+	}
+}
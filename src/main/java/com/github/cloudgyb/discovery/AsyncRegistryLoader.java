@@ -0,0 +1,416 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+import com.github.cloudgyb.metrics.ZookeeperOperation;
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 使用zookeeper异步回调API流水线式地拉取整个注册表。
+ * 调用线程负责按窗口大小发出请求，回调（运行在zookeeper事件线程）只负责解析结果并提交后续请求，
+ * 所以回调中不会因为等待窗口而阻塞事件线程。
+ * 全部请求完成后才返回新的注册表（包含每个实例znode的数据版本号和mzxid），由调用方整体替换，加载失败则不替换。
+ * <p>
+ * 指定了上一次的快照时增量加载：服务znode的pzxid没有变化时不再拉取子节点列表，沿用快照中的实例名称；
+ * 快照中mzxid已知的实例只用exists读取Stat，mzxid没有变化时沿用快照中的实例对象，不再读取和解析数据。
+ * 实例的数据变化不会改变服务znode的pzxid，所以每个实例仍然需要一次exists，但响应中没有实例数据。
+ * @author cloudgyb
+ * 2021/3/9 15:32
+ */
+class AsyncRegistryLoader {
+	private final Logger logger = LoggerFactory.getLogger(AsyncRegistryLoader.class);
+	/**
+	 * 所有请求都已完成的标记
+	 */
+	private static final Runnable END = () -> {
+	};
+	private final ZooKeeper zooKeeper;
+	private final String namespace;
+	private final ServiceInstanceCodec codec;
+	private final int maxInFlight;
+	private final DiscoveryMetrics metrics;
+	/**
+	 * 增量加载时参照的上一次快照，全量加载时为null
+	 */
+	private final RegistrySnapshot previous;
+
+	private final ConcurrentHashMap<String, Map<String, InstanceRecord>> registry =
+			new ConcurrentHashMap<>(4);
+	private final BlockingQueue<Runnable> requestQueue = new LinkedBlockingQueue<>();
+	private final Semaphore window;
+	/**
+	 * 已入队但还未完成回调的请求数，降为0时加载结束
+	 */
+	private final AtomicInteger remaining = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger instances = new AtomicInteger();
+	private final AtomicInteger dataReads = new AtomicInteger();
+	private final AtomicInteger reusedInstances = new AtomicInteger();
+	/**
+	 * 服务名 -> 拉取时服务znode的pzxid
+	 */
+	private final ConcurrentHashMap<String, Long> childrenZxids = new ConcurrentHashMap<>(4);
+	private volatile KeeperException.Code failure;
+	private volatile String failurePath;
+	private RegistryLoadReport report;
+	/**
+	 * 合并重新加载一个服务时，事件涉及（新建或数据变化）的实例，其他情况为null
+	 */
+	private Set<String> touched;
+
+	AsyncRegistryLoader(ZooKeeper zooKeeper, String namespace, ServiceInstanceCodec codec, int maxInFlight,
+			DiscoveryMetrics metrics) {
+		this(zooKeeper, namespace, codec, maxInFlight, metrics, null);
+	}
+
+	/**
+	 * @param previous 增量加载参照的上一次快照，为null时全量加载
+	 */
+	AsyncRegistryLoader(ZooKeeper zooKeeper, String namespace, ServiceInstanceCodec codec, int maxInFlight,
+			DiscoveryMetrics metrics, RegistrySnapshot previous) {
+		this.zooKeeper = zooKeeper;
+		this.previous = previous;
+		this.namespace = namespace;
+		this.codec = codec;
+		this.maxInFlight = maxInFlight;
+		this.metrics = metrics;
+		this.window = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * 加载整个命名空间，只能调用一次
+	 * @return 完整的新注册表
+	 */
+	ConcurrentHashMap<String, Map<String, InstanceRecord>> load() throws KeeperException, InterruptedException {
+		submit(this::listServices);
+		return run();
+	}
+
+	/**
+	 * 只加载指定的服务，每个服务先添加持久递归监听再拉取实例，用于subscribe模式。只能调用一次
+	 * @return 新注册表，不存在的服务不包含在内
+	 */
+	ConcurrentHashMap<String, Map<String, InstanceRecord>> load(Collection<String> serviceNames)
+			throws KeeperException, InterruptedException {
+		if (serviceNames.isEmpty()) {
+			report = new RegistryLoadReport(mode(), 0, 0, 0, maxInFlight, 0);
+			return registry;
+		}
+		for (String serviceName : serviceNames) {
+			registry.put(serviceName, new ConcurrentHashMap<>());
+			submit(() -> watchService(serviceName));
+		}
+		return run();
+	}
+
+	/**
+	 * 事件突发时合并重新加载一个服务：拉取一次子节点列表，只读取touched中的实例和旧快照中没有的实例，
+	 * 旧快照中其余的实例直接沿用，需要在构造时指定上一次快照。只能调用一次
+	 * @param touched 事件涉及（新建或数据变化）的实例znode名称
+	 * @return 新注册表，服务节点不存在时不包含该服务
+	 */
+	ConcurrentHashMap<String, Map<String, InstanceRecord>> reload(String serviceName, Set<String> touched)
+			throws KeeperException, InterruptedException {
+		if (previous == null)
+			throw new IllegalStateException("合并重新加载需要上一次快照！");
+		this.touched = touched;
+		registry.put(serviceName, new ConcurrentHashMap<>());
+		submit(() -> listInstances(serviceName));
+		return run();
+	}
+
+	private ConcurrentHashMap<String, Map<String, InstanceRecord>> run()
+			throws KeeperException, InterruptedException {
+		long start = System.nanoTime();
+		while (true) {
+			Runnable request = requestQueue.take();
+			if (request == END)
+				break;
+			window.acquire();
+			requests.incrementAndGet();
+			request.run();
+		}
+		if (failure != null)
+			throw KeeperException.create(failure, failurePath);
+		report = new RegistryLoadReport(mode(), registry.size(), instances.get(), requests.get(),
+				maxInFlight, System.nanoTime() - start, dataReads.get(), reusedInstances.get());
+		return registry;
+	}
+
+	private String mode() {
+		return touched != null ? "reload" : previous == null ? "async" : "incremental";
+	}
+
+	RegistryLoadReport getReport() {
+		return report;
+	}
+
+	/**
+	 * @return 服务名 -> 拉取时服务znode的pzxid，加载完成后调用
+	 */
+	Map<String, Long> getChildrenZxids() {
+		return childrenZxids;
+	}
+
+	/**
+	 * @return 上一次快照中可以增量比较的服务，pzxid未知时返回null
+	 */
+	private ServiceInstances previousService(String serviceName) {
+		if (previous == null)
+			return null;
+		ServiceInstances old = previous.get(serviceName);
+		return old == null || old.getChildrenZxid() == InstanceRecord.UNKNOWN_ZXID ? null : old;
+	}
+
+	/**
+	 * 拉取服务的实例：有可比较的旧快照时先检查pzxid，否则直接拉取子节点列表
+	 */
+	private void loadService(String serviceName) {
+		if (previousService(serviceName) != null)
+			checkService(serviceName);
+		else
+			listInstances(serviceName);
+	}
+
+	private void listServices() {
+		long start = System.nanoTime();
+		zooKeeper.getChildren(namespace, true, (AsyncCallback.Children2Callback) (rc, path, ctx, children, stat) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.GET_CHILDREN, System.nanoTime() - start,
+						code == KeeperException.Code.OK);
+				if (code == KeeperException.Code.NONODE)
+					return;
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				for (String serviceName : children) {
+					registry.put(serviceName, new ConcurrentHashMap<>());
+					submit(() -> loadService(serviceName));
+				}
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	private void watchService(String serviceName) {
+		String servicePath = namespace + "/" + serviceName;
+		long start = System.nanoTime();
+		zooKeeper.addWatch(servicePath, AddWatchMode.PERSISTENT_RECURSIVE, (rc, path, ctx) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.ADD_WATCH, System.nanoTime() - start,
+						code == KeeperException.Code.OK);
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				submit(() -> loadService(serviceName));
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	/**
+	 * 服务znode的pzxid与旧快照相同时子节点没有变化，沿用旧快照中的实例名称逐个检查，否则重新拉取子节点列表
+	 */
+	private void checkService(String serviceName) {
+		String servicePath = namespace + "/" + serviceName;
+		long start = System.nanoTime();
+		zooKeeper.exists(servicePath, false, (rc, path, ctx, stat) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.EXISTS, System.nanoTime() - start,
+						code == KeeperException.Code.OK || code == KeeperException.Code.NONODE);
+				if (code == KeeperException.Code.NONODE) {
+					registry.remove(serviceName);
+					return;
+				}
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				ServiceInstances old = previousService(serviceName);
+				if (stat.getPzxid() != old.getChildrenZxid()) {
+					submit(() -> listInstances(serviceName));
+					return;
+				}
+				childrenZxids.put(serviceName, stat.getPzxid());
+				for (int i = 0; i < old.size(); i++)
+					submitInstance(serviceName, old.getName(i));
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	private void listInstances(String serviceName) {
+		String servicePath = namespace + "/" + serviceName;
+		long start = System.nanoTime();
+		zooKeeper.getChildren(servicePath, false, (AsyncCallback.Children2Callback) (rc, path, ctx, children, stat) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.GET_CHILDREN, System.nanoTime() - start,
+						code == KeeperException.Code.OK);
+				if (code == KeeperException.Code.NONODE) {
+					//加载过程中服务节点被删除
+					registry.remove(serviceName);
+					return;
+				}
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				childrenZxids.put(serviceName, stat.getPzxid());
+				for (String serviceInstanceName : children)
+					submitInstance(serviceName, serviceInstanceName);
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	/**
+	 * 旧快照中有该实例且mzxid已知时只检查Stat，否则读取数据。
+	 * 合并重新加载时只读取事件涉及的实例和新出现的实例，其余实例直接沿用旧快照，不发请求
+	 */
+	private void submitInstance(String serviceName, String serviceInstanceName) {
+		if (touched != null) {
+			ServiceInstances old = previous.get(serviceName);
+			int i = old == null ? -1 : old.indexOf(serviceInstanceName);
+			Map<String, InstanceRecord> instanceMap = registry.get(serviceName);
+			if (i >= 0 && !touched.contains(serviceInstanceName) && instanceMap != null) {
+				instanceMap.put(serviceInstanceName, old.record(i));
+				instances.incrementAndGet();
+				reusedInstances.incrementAndGet();
+			}
+			else {
+				submit(() -> loadInstance(serviceName, serviceInstanceName));
+			}
+			return;
+		}
+		ServiceInstances old = previousService(serviceName);
+		int i = old == null ? -1 : old.indexOf(serviceInstanceName);
+		if (i >= 0 && old.getModifiedZxid(i) != InstanceRecord.UNKNOWN_ZXID)
+			submit(() -> checkInstance(serviceName, serviceInstanceName, old.record(i)));
+		else
+			submit(() -> loadInstance(serviceName, serviceInstanceName));
+	}
+
+	private void checkInstance(String serviceName, String serviceInstanceName, InstanceRecord cached) {
+		String instancePath = namespace + "/" + serviceName + "/" + serviceInstanceName;
+		long start = System.nanoTime();
+		zooKeeper.exists(instancePath, false, (rc, path, ctx, stat) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.EXISTS, System.nanoTime() - start,
+						code == KeeperException.Code.OK || code == KeeperException.Code.NONODE);
+				if (code == KeeperException.Code.NONODE)
+					return;
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				if (stat.getMzxid() != cached.modifiedZxid) {
+					submit(() -> loadInstance(serviceName, serviceInstanceName));
+					return;
+				}
+				Map<String, InstanceRecord> instanceMap = registry.get(serviceName);
+				if (instanceMap != null) {
+					instanceMap.put(serviceInstanceName, cached);
+					instances.incrementAndGet();
+					reusedInstances.incrementAndGet();
+				}
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	private void loadInstance(String serviceName, String serviceInstanceName) {
+		String instancePath = namespace + "/" + serviceName + "/" + serviceInstanceName;
+		long start = System.nanoTime();
+		dataReads.incrementAndGet();
+		zooKeeper.getData(instancePath, false, (AsyncCallback.DataCallback) (rc, path, ctx, data, stat) -> {
+			try {
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				metrics.zookeeperOperation(ZookeeperOperation.GET_DATA, System.nanoTime() - start,
+						code == KeeperException.Code.OK);
+				if (code == KeeperException.Code.NONODE)
+					return;
+				if (code != KeeperException.Code.OK) {
+					fail(code, path);
+					return;
+				}
+				InstanceRecord record = record(path, data, stat);
+				Map<String, InstanceRecord> instanceMap = registry.get(serviceName);
+				if (record != null && instanceMap != null) {
+					instanceMap.put(serviceInstanceName, record);
+					instances.incrementAndGet();
+				}
+			}
+			finally {
+				complete();
+			}
+		}, null);
+	}
+
+	/**
+	 * 只检查数据头，实例在首次访问时才解码
+	 */
+	private InstanceRecord record(String path, byte[] data, Stat stat) {
+		if (data == null)
+			return null;
+		if (!codec.canDecode(data)) {
+			logger.error("解析服务实例信息失败，无法识别的数据格式，path=" + path);
+			return null;
+		}
+		return InstanceRecord.encoded(data, codec, stat.getVersion(), stat.getCzxid(), stat.getMzxid());
+	}
+
+	private void submit(Runnable request) {
+		if (failure != null)
+			return;
+		remaining.incrementAndGet();
+		requestQueue.add(request);
+	}
+
+	private void fail(KeeperException.Code code, String path) {
+		if (failure == null) {
+			failure = code;
+			failurePath = path;
+		}
+	}
+
+	/**
+	 * 在回调的最后调用，释放窗口；失败时直接结束，不再等待其余请求
+	 */
+	private void complete() {
+		window.release();
+		if (remaining.decrementAndGet() == 0 || failure != null)
+			requestQueue.add(END);
+	}
+}
@@ -0,0 +1,423 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+import org.apache.zookeeper.WatchedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 服务发现事件分发器。
+ * zookeeper事件线程只负责调用dispatch入队，由独立的工作线程调用DiscoveryService处理事件，
+ * 避免在事件线程上执行同步的getData等操作。
+ * <ul>
+ *     <li>同一服务的事件总是由同一个工作线程按顺序处理</li>
+ *     <li>同一path尚未处理的事件会被合并，只保留最新的一个（未处理的节点创建事件不会被数据变化事件替换）</li>
+ *     <li>队列有界，队列满时丢弃事件并在之后触发一次全量拉取，保证注册表最终一致</li>
+ * </ul>
+ * @author cloudgyb
+ * 2021/3/10 10:05
+ */
+public class DiscoveryEventDispatcher {
+	private final Logger logger = LoggerFactory.getLogger(DiscoveryEventDispatcher.class);
+	/**
+	 * 全量拉取失败后的重试间隔
+	 */
+	private static final long RESYNC_RETRY_MILLIS = 1000;
+	/**
+	 * 任务在队列中的key前缀，不会与znode路径冲突
+	 */
+	private static final String TASK_KEY_PREFIX = "\u0000task:";
+	private static final int NODE_CREATED = 1;
+	private static final int NODE_DATA_CHANGED = 3;
+	/**
+	 * 队列一直不空时，最多处理这么多事件就通知一次注册表变化监听器
+	 */
+	private static final int MAX_BATCH = 256;
+	private final DiscoveryService discoveryService;
+	private final Worker[] workers;
+	private final int workerCapacity;
+	private volatile boolean running = true;
+	/**
+	 * 有事件因队列满被丢弃，需要全量拉取
+	 */
+	private final AtomicBoolean resyncRequired = new AtomicBoolean();
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder resyncs = new LongAdder();
+	private final LongAdder totalLagNanos = new LongAdder();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicLong maxLagNanos = new AtomicLong();
+
+	/**
+	 * @param discoveryService 事件处理者
+	 * @param workerCount 工作线程数
+	 * @param queueCapacity 所有工作线程队列的总容量
+	 */
+	public DiscoveryEventDispatcher(DiscoveryService discoveryService, int workerCount, int queueCapacity) {
+		this.discoveryService = discoveryService;
+		workerCount = Math.max(1, workerCount);
+		this.workerCapacity = Math.max(1, queueCapacity / workerCount);
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker();
+			Thread thread = new Thread(workers[i], "discovery-dispatcher-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * 由zookeeper事件线程调用，只入队不处理，不会阻塞
+	 * @param event zookeeper事件
+	 * @return 入队（或合并）成功返回true，队列满返回false
+	 */
+	public boolean dispatch(WatchedEvent event) {
+		String path = event.getPath();
+		if (path == null || !running)
+			return false;
+		Worker worker = workers[(discoveryService.serviceNameOf(path).hashCode() & 0x7fffffff) % workers.length];
+		if (worker.offer(path, event))
+			return true;
+		rejected.increment();
+		if (resyncRequired.compareAndSet(false, true))
+			logger.warn("服务发现事件队列已满，丢弃事件并等待全量拉取，path=" + path);
+		worker.wakeUp();
+		return false;
+	}
+
+	/**
+	 * 在处理该服务事件的工作线程上执行任务，任务之前入队的该服务事件先处理，之后入队的事件后处理。
+	 * 用于按需加载服务，保证加载结果不会被之前的旧事件覆盖
+	 * @param serviceName 服务名
+	 * @param task 任务
+	 * @return 队列满或已停止时返回false，此时任务不会执行
+	 */
+	boolean execute(String serviceName, Runnable task) {
+		if (!running)
+			return false;
+		Worker worker = workers[(serviceName.hashCode() & 0x7fffffff) % workers.length];
+		return worker.offer(task);
+	}
+
+	/**
+	 * 有事件处理失败且无法补救时调用，由工作线程在之后进行一次全量拉取
+	 */
+	void requestResync() {
+		if (resyncRequired.compareAndSet(false, true))
+			workers[0].wakeUp();
+	}
+
+	/**
+	 * @return 当前线程是否是分发器的工作线程
+	 */
+	boolean isWorkerThread() {
+		Thread current = Thread.currentThread();
+		for (Worker worker : workers) {
+			if (worker.thread == current)
+				return true;
+		}
+		return false;
+	}
+
+	private void process(Pending pending) {
+		long lag = System.nanoTime() - pending.enqueuedNanos;
+		totalLagNanos.add(lag);
+		updateMax(maxLagNanos, lag);
+		try {
+			discoveryService.discovery(pending.event);
+			discoveryService.getMetrics().eventApplied(System.nanoTime() - pending.enqueuedNanos);
+			if (logger.isDebugEnabled())
+				logger.debug(discoveryService.getRegistrySummary());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			logger.error("更新注册信息失败！", e);
+		}
+		processed.increment();
+	}
+
+	private void runTask(Pending pending) {
+		try {
+			pending.task.run();
+		}
+		catch (RuntimeException e) {
+			logger.error("执行服务发现任务失败！", e);
+		}
+		processed.increment();
+	}
+
+	private void resync() {
+		resyncs.increment();
+		logger.info("开始重新同步注册表以补偿被丢弃的事件...");
+		try {
+			discoveryService.resyncRegistry();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			logger.error("重新同步注册表失败，" + RESYNC_RETRY_MILLIS + "ms后重试！", e);
+			resyncRequired.set(true);
+			try {
+				Thread.sleep(RESYNC_RETRY_MILLIS);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	private static void updateMax(AtomicInteger max, int value) {
+		int current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	/**
+	 * 将队列深度等统计注册为监控指标
+	 */
+	public void bindMetrics(DiscoveryMetrics metrics) {
+		metrics.gauge("dispatcher.queueDepth", this::getQueueDepth);
+		metrics.gauge("dispatcher.maxQueueDepth", this::getMaxQueueDepth);
+		metrics.gauge("dispatcher.coalesced", this::getCoalescedCount);
+		metrics.gauge("dispatcher.rejected", this::getRejectedCount);
+		metrics.gauge("dispatcher.resyncs", this::getResyncCount);
+		metrics.gauge("dispatcher.queueLagAvgMicros", this::getAverageLagMicros);
+	}
+
+	/**
+	 * 停止所有工作线程，未处理的事件将被丢弃
+	 */
+	public void shutdown() {
+		running = false;
+		for (Worker worker : workers)
+			worker.thread.interrupt();
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * @return 当前排队等待处理的事件数
+	 */
+	public int getQueueDepth() {
+		return depth.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxDepth.get();
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.sum();
+	}
+
+	/**
+	 * @return 因同一path已有未处理事件而被合并的事件数
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * @return 因队列满被丢弃的事件数
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public long getProcessedCount() {
+		return processed.sum();
+	}
+
+	public long getResyncCount() {
+		return resyncs.sum();
+	}
+
+	/**
+	 * @return 事件从入队到开始处理的平均等待时间（微秒）
+	 */
+	public long getAverageLagMicros() {
+		long n = processed.sum();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLagNanos.sum() / n);
+	}
+
+	public long getMaxLagMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxLagNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "DiscoveryEventDispatcher{" +
+				"workers=" + workers.length +
+				", depth=" + getQueueDepth() +
+				", maxDepth=" + getMaxQueueDepth() +
+				", enqueued=" + getEnqueuedCount() +
+				", coalesced=" + getCoalescedCount() +
+				", rejected=" + getRejectedCount() +
+				", processed=" + getProcessedCount() +
+				", resyncs=" + getResyncCount() +
+				", avgLag=" + getAverageLagMicros() + "us" +
+				", maxLag=" + getMaxLagMicros() + "us" +
+				'}';
+	}
+
+	private static final class Pending {
+		private WatchedEvent event;
+		private Runnable task;
+		private final long enqueuedNanos;
+
+		private Pending(WatchedEvent event, long enqueuedNanos) {
+			this.event = event;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+
+		private Pending(Runnable task, long enqueuedNanos) {
+			this.task = task;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+	}
+
+	private final class Worker implements Runnable {
+		/**
+		 * path（任务为序号）-> 待处理事件，按首次入队顺序排列，合并时保留原位置
+		 */
+		private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		private Thread thread;
+		/**
+		 * 任务在队列中的序号，只在lock内读写
+		 */
+		private long taskSequence;
+		/**
+		 * 最后一次take之后队列已空，即本批次的最后一个事件，只在工作线程内读写
+		 */
+		private boolean drained;
+		private int batchSize;
+
+		private boolean offer(String path, WatchedEvent event) {
+			lock.lock();
+			try {
+				Pending p = pending.get(path);
+				if (p != null) {
+					//节点创建尚未处理时，处理创建事件时会读取最新数据，数据变化事件不能替换它
+					if (p.event.getType().getIntValue() != NODE_CREATED
+							|| event.getType().getIntValue() != NODE_DATA_CHANGED)
+						p.event = event;
+					coalesced.increment();
+					return true;
+				}
+				return add(path, new Pending(event, System.nanoTime()));
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 任务不合并，每个任务单独占一个位置，与事件按入队顺序处理
+		 */
+		private boolean offer(Runnable task) {
+			lock.lock();
+			try {
+				return add(TASK_KEY_PREFIX + taskSequence++, new Pending(task, System.nanoTime()));
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 必须在lock内调用
+		 */
+		private boolean add(String key, Pending p) {
+			if (pending.size() >= workerCapacity)
+				return false;
+			pending.put(key, p);
+			enqueued.increment();
+			updateMax(maxDepth, depth.incrementAndGet());
+			notEmpty.signal();
+			return true;
+		}
+
+		private void wakeUp() {
+			lock.lock();
+			try {
+				notEmpty.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private Pending take() throws InterruptedException {
+			lock.lock();
+			try {
+				while (pending.isEmpty() && !resyncRequired.get())
+					notEmpty.await();
+				if (pending.isEmpty())
+					return null;
+				Iterator<Pending> it = pending.values().iterator();
+				Pending p = it.next();
+				it.remove();
+				depth.decrementAndGet();
+				drained = pending.isEmpty();
+				return p;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					Pending p = take();
+					if (resyncRequired.compareAndSet(true, false))
+						resync();
+					if (p != null && p.task != null)
+						runTask(p);
+					else if (p != null)
+						process(p);
+					//每批事件处理完后统一通知注册表变化
+					if (p != null && (drained || ++batchSize >= MAX_BATCH)) {
+						batchSize = 0;
+						discoveryService.notifyChangeListeners();
+					}
+					if (Thread.interrupted() && !running)
+						return;
+				}
+				catch (InterruptedException e) {
+					if (!running)
+						return;
+				}
+			}
+		}
+	}
+}
@@ -1,21 +1,43 @@
 package com.github.cloudgyb.discovery;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.github.cloudgyb.ZookeeperSessionExpiredListener;
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
 import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.discovery.selector.ConsistentHashSelector;
+import com.github.cloudgyb.discovery.selector.InstanceSelector;
+import com.github.cloudgyb.discovery.selector.OutlierDetector;
+import com.github.cloudgyb.discovery.selector.RoundRobinSelector;
+import com.github.cloudgyb.discovery.selector.ZoneAffinitySelector;
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+import com.github.cloudgyb.metrics.NoopDiscoveryMetrics;
+import com.github.cloudgyb.metrics.ZookeeperOperation;
 import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -30,156 +52,1420 @@ public class DiscoveryService implements ServiceDiscover, ZookeeperSessionExpire
 	private final Logger logger = LoggerFactory.getLogger(DiscoveryService.class);
 	private final ZookeeperServerConfigProperties properties;
 	private ZooKeeper zooKeeper;
-	private ConcurrentHashMap<String, Map<String, ServiceInstanceInfo>> registry;
+	/**
+	 * 当前注册表快照，读取无锁，修改时在writeLock内复制出新快照再发布
+	 */
+	private volatile RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
+	private final Object writeLock = new Object();
+	private final ServiceInstanceCodec codec;
+	private volatile InstanceSelector selector;
+	private volatile OutlierDetector outlierDetector;
+	/**
+	 * 本地快照文件，未配置时为null
+	 */
+	private final RegistrySnapshotStore snapshotStore;
+	private ScheduledExecutorService snapshotWriter;
+	private volatile boolean snapshotDirty;
+	/**
+	 * 注册表可能已过时的起始时间，0表示注册表与zookeeper一致
+	 */
+	private volatile long staleSince;
+	/**
+	 * 注册表来自本地快照或session过期后，需要一次全量拉取才能与zookeeper一致
+	 */
+	private volatile boolean resyncRequired;
+	private volatile long lastSyncTime;
+	private volatile DiscoveryMetrics metrics = NoopDiscoveryMetrics.INSTANCE;
+	/**
+	 * 记录最近访问时间的精度，避免每次查询都写共享变量
+	 */
+	private static final long ACCESS_RESOLUTION_MILLIS = 1000;
+	/**
+	 * subscribe模式下订阅的服务，all模式下为null
+	 */
+	private final ConcurrentHashMap<String, Subscription> subscriptions;
+	private ScheduledExecutorService subscriptionEvictor;
+	private volatile DiscoveryEventDispatcher eventDispatcher;
+	/**
+	 * 实例上下线的防抖和抖动抑制，未配置zk.discovery.debounce和zk.discovery.flap.suppress时为null
+	 */
+	private final FlapDamper flapDamper;
+	/**
+	 * 按服务检测事件突发，zk.discovery.burst.threshold为0时为null
+	 */
+	private final EventBurstDetector burstDetector;
+	/**
+	 * 服务名 -> 处于突发状态的服务等待合并重新加载的事件
+	 */
+	private final ConcurrentHashMap<String, PendingReload> pendingReloads = new ConcurrentHashMap<>();
+	/**
+	 * 进行中的拉取各自的修改记录，在writeLock内读写
+	 */
+	private final List<EventReplayLog> replayLogs = new ArrayList<>();
+	private final List<RegistryChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+	/**
+	 * 注册表变化日志，zk.discovery.journal.capacity为0时为null
+	 */
+	private final RegistryJournal journal;
+	private ExecutorService changeListenerExecutor;
+	/**
+	 * 最后一次通知监听器时的快照，在notifyLock内读写
+	 */
+	private RegistrySnapshot lastNotified = RegistrySnapshot.EMPTY;
+	private final Object notifyLock = new Object();
 
 	public DiscoveryService(ZookeeperServerConfigProperties properties, ZooKeeper zooKeeper) {
+		this(properties, zooKeeper, ServiceInstanceCodecs.defaultCodec());
+	}
+
+	/**
+	 * @param codec 解码znode数据的编解码器，会自动识别binary和旧的Java序列化格式
+	 */
+	public DiscoveryService(ZookeeperServerConfigProperties properties, ZooKeeper zooKeeper,
+			ServiceInstanceCodec codec) {
 		this.properties = properties;
 		this.zooKeeper = zooKeeper;
-		this.registry = new ConcurrentHashMap<>(4);
+		this.codec = codec;
+		//配置了区域时默认优先选择同区域的实例
+		this.selector = properties.getZone() == null ? new RoundRobinSelector() :
+				new ZoneAffinitySelector(properties.getZone());
+		String snapshotFile = properties.getSnapshotFile();
+		this.snapshotStore = snapshotFile == null ? null :
+				new RegistrySnapshotStore(Paths.get(snapshotFile), codec);
+		if (snapshotStore != null)
+			startSnapshotWriter(properties.getSnapshotIntervalMillis());
+		this.flapDamper = properties.getDebounceMillis() > 0 || properties.getFlapSuppress() > 0 ?
+				new FlapDamper(properties.getDebounceMillis(), properties.getFlapSuppress(),
+						properties.getFlapHalfLifeMillis()) : null;
+		this.burstDetector = properties.getBurstThreshold() > 0 ?
+				new EventBurstDetector(properties.getBurstThreshold(), properties.getBurstWindowMillis()) : null;
+		this.journal = properties.getJournalCapacity() > 0 ?
+				new RegistryJournal(properties.getJournalCapacity(), RegistrySnapshot.EMPTY.getVersion()) : null;
+		if (ZookeeperServerConfigProperties.DISCOVERY_MODE_SUBSCRIBE.equals(properties.getDiscoveryMode())) {
+			this.subscriptions = new ConcurrentHashMap<>();
+			for (String serviceName : properties.getSubscriptions())
+				subscriptions.put(serviceName, new Subscription(true));
+			if (properties.getSubscriptionIdleTtlMillis() > 0)
+				startSubscriptionEvictor(properties.getSubscriptionIdleTtlMillis());
+		}
+		else {
+			this.subscriptions = null;
+		}
 	}
 
 	/**
-	 * 该方法只处理zookeeper中监听的namespace对应children的增加和删除事件
+	 * 该方法处理zookeeper中监听的namespace下实例节点的增加、删除和数据变化事件
 	 * @param e Zookeeper事件
 	 */
 	public void discovery(WatchedEvent e) throws KeeperException, InterruptedException {
 		int type = e.getType().getIntValue();
 		if (type == -1) //事件type=-1是zookeeper客户端连接到server（或者重新连接）这儿不做服务发现
 			return;
+		if (burstDetector != null && eventDispatcher != null && type >= 1 && type <= 3) {
+			//突发中的服务只记录事件涉及的实例，合并为一次重新加载。
+			//合并加载需要排在该服务的工作线程上与其他事件保持顺序，没有分发器时逐个处理
+			String[] names = parseInstancePath(e.getPath());
+			if (names != null && isSubscribed(names[0]) && burstDetector.record(names[0])) {
+				scheduleReload(names[0], type == 2 ? null : names[1]);
+				return;
+			}
+		}
 		logger.info("注册信息发生变化，type=" + type + ",path=" + e.getPath());
 		if (type == 1) {//节点创建（有新的服务注册）
 			logger.info("有新的服务注册，添加服务信息到注册表...");
 			String path = e.getPath();
-			ServiceInstanceInfo serviceInstanceInfo = addServiceInfo(path);
-			logger.info("已添加服务：" + serviceInstanceInfo);
+			ServiceInstanceInfo serviceInstanceInfo = addServiceInfo(path, true);
+			//被抖动抑制暂缓或已是更新的数据时没有加入注册表
+			if (serviceInstanceInfo != null)
+				logger.info("已添加服务：" + serviceInstanceInfo);
 		}
 		else if (type == 2) {//节点删除（有服务断开）
 			logger.info("有服务离线，从注册表删除服务信息...");
 			String path = e.getPath();
 			ServiceInstanceInfo serviceInstanceInfo = deleteServiceInfo(path);
-			logger.info("已移除服务：" + serviceInstanceInfo);
+			//防抖延迟删除或实例不在注册表中时没有移除
+			if (serviceInstanceInfo != null)
+				logger.info("已移除服务：" + serviceInstanceInfo);
 		}
+		else if (type == 3) {//节点数据变化（实例更新了权重、状态或元数据）
+			String path = e.getPath();
+			ServiceInstanceInfo serviceInstanceInfo = addServiceInfo(path, false);
+			if (serviceInstanceInfo != null)
+				logger.info("已更新服务：" + serviceInstanceInfo);
+		}
+		//由分发器调用时，每批事件处理完再统一通知
+		if (eventDispatcher == null)
+			notifyChangeListeners();
+	}
 
+	/**
+	 * 解析实例节点路径，例如：path=/namespace/serviceName/serviceName0000000000，namespace可以有多级
+	 * @return {服务名, 实例znode名称}，不是实例节点时返回null
+	 */
+	private String[] parseInstancePath(String path) {
+		String namespace = properties.getNamespace();
+		if (path == null || !path.startsWith(namespace + "/"))
+			return null;
+		int start = namespace.length() + 1;
+		int slash = path.indexOf('/', start);
+		if (slash < 0 || slash == start || slash == path.length() - 1 || path.indexOf('/', slash + 1) >= 0)
+			return null;
+		return new String[]{path.substring(start, slash), path.substring(slash + 1)};
+	}
+
+	/**
+	 * @return 路径所属的服务名，不在namespace下时返回空字符串，用于分发器按服务分配工作线程
+	 */
+	String serviceNameOf(String path) {
+		String namespace = properties.getNamespace();
+		if (!path.startsWith(namespace + "/"))
+			return "";
+		int start = namespace.length() + 1;
+		int end = path.indexOf('/', start);
+		return end < 0 ? path.substring(start) : path.substring(start, end);
 	}
 
+	/**
+	 * @return 从注册表移除的实例，实例不在注册表中或被防抖延迟删除时返回null
+	 */
 	private ServiceInstanceInfo deleteServiceInfo(String path) {
-		String[] split = path.split("/");
-		if (split.length < 4)
+		String[] names = parseInstancePath(path);
+		if (names == null)
 			return null;
-		String serviceName = split[2];
-		String serviceInstanceName = split[3];
-		Map<String, ServiceInstanceInfo> map = registry.get(serviceName);
-		ServiceInstanceInfo serviceInstanceInfo = map.get(serviceInstanceName);
-		map.remove(serviceInstanceName);
-		return serviceInstanceInfo;
+		String serviceName = names[0];
+		String serviceInstanceName = names[1];
+		if (!isSubscribed(serviceName))
+			return null;
+		synchronized (writeLock) {
+			RegistrySnapshot current = this.snapshot;
+			ServiceInstances instances = current.get(serviceName);
+			int i = instances == null ? -1 : instances.indexOf(serviceInstanceName);
+			if (i < 0) {
+				if (flapDamper != null)
+					flapDamper.removeWithheld(serviceName, serviceInstanceName);
+				//实例还不在注册表中（例如新建事件读取时节点已删除），进行中的拉取可能已经读到了它，仍需记录删除
+				recordRemoval(serviceName, serviceInstanceName, InstanceRecord.UNKNOWN_ZXID);
+				return null;
+			}
+			ServiceInstanceInfo serviceInstanceInfo = instances.get(i);
+			String address = addressOf(serviceInstanceInfo);
+			if (flapDamper != null && flapDamper.removed(serviceName, serviceInstanceName, address,
+					() -> execute(serviceName, () -> completeRemoval(serviceName, serviceInstanceName, address)))) {
+				logger.info("实例" + address + "下线，延迟" + properties.getDebounceMillis() + "ms从注册表删除，path=" + path);
+				return null;
+			}
+			//删除事件不带zxid，以快照中该实例的czxid标识被删除的节点
+			recordRemoval(serviceName, serviceInstanceName, instances.getCreatedZxid(i));
+			publish(current.with(instances.without(serviceInstanceName, current.getVersion() + 1)));
+			return serviceInstanceInfo;
+		}
+	}
+
+	/**
+	 * 防抖延迟到期，期间同一地址没有重新注册时删除实例
+	 */
+	private void completeRemoval(String serviceName, String serviceInstanceName, String address) {
+		synchronized (writeLock) {
+			if (!flapDamper.completeRemoval(serviceName, serviceInstanceName, address))
+				return;
+			RegistrySnapshot current = this.snapshot;
+			ServiceInstances instances = current.get(serviceName);
+			int i = instances == null ? -1 : instances.indexOf(serviceInstanceName);
+			if (i < 0)
+				return;
+			recordRemoval(serviceName, serviceInstanceName, instances.getCreatedZxid(i));
+			publish(current.with(instances.without(serviceInstanceName, current.getVersion() + 1)));
+			logger.info("防抖延迟到期，已移除服务：" + instances.get(i));
+		}
+		notifyChangeListeners();
+	}
+
+	/**
+	 * 抖动抑制到期，实例在此期间没有下线时重新读取并加入注册表
+	 */
+	private void releaseWithheld(String path, String serviceName, String serviceInstanceName) {
+		synchronized (writeLock) {
+			if (!flapDamper.release(serviceName, serviceInstanceName))
+				return;
+		}
+		try {
+			ServiceInstanceInfo serviceInstanceInfo = addServiceInfo(path, false);
+			if (serviceInstanceInfo != null)
+				logger.info("抖动抑制到期，已添加服务：" + serviceInstanceInfo);
+		}
+		catch (KeeperException e) {
+			logger.error("抖动抑制到期后读取实例失败，path=" + path, e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		notifyChangeListeners();
+	}
+
+	/**
+	 * 记录突发中的服务的一个事件，该服务还没有等待执行的重新加载时安排一次：
+	 * 短暂延迟后在该服务的工作线程上排在已入队的事件之后执行，使这段时间内的事件都合并到这次加载中
+	 * @param touchedInstance 新建或数据变化的实例znode名称，删除事件为null（由子节点列表得知）
+	 */
+	private void scheduleReload(String serviceName, String touchedInstance) {
+		PendingReload reload = pendingReloads.computeIfAbsent(serviceName, name -> new PendingReload());
+		synchronized (reload) {
+			if (touchedInstance != null)
+				reload.touched.add(touchedInstance);
+			reload.events++;
+			if (reload.scheduled)
+				return;
+			reload.scheduled = true;
+		}
+		burstDetector.schedule(() -> {
+			DiscoveryEventDispatcher dispatcher = this.eventDispatcher;
+			if (dispatcher != null && dispatcher.execute(serviceName, () -> reloadService(serviceName)))
+				return;
+			//队列满或已停止：放弃本次合并加载，由全量拉取补偿
+			synchronized (reload) {
+				reload.touched = new HashSet<>();
+				reload.events = 0;
+				reload.scheduled = false;
+			}
+			logger.warn("服务" + serviceName + "的合并重新加载无法入队，等待全量拉取补偿！");
+			if (dispatcher != null)
+				dispatcher.requestResync();
+		});
+	}
+
+	/**
+	 * 合并重新加载一个服务：拉取一次子节点列表，批量读取事件涉及的实例和新出现的实例，其余实例沿用当前快照。
+	 * 与全量拉取一样不经过防抖，但仍然不会加入被抖动抑制暂缓的实例
+	 */
+	private void reloadService(String serviceName) {
+		PendingReload reload = pendingReloads.get(serviceName);
+		Set<String> touched;
+		int events;
+		synchronized (reload) {
+			touched = reload.touched;
+			events = reload.events;
+			reload.touched = new HashSet<>();
+			reload.events = 0;
+			reload.scheduled = false;
+		}
+		EventReplayLog log = beginLoad();
+		AsyncRegistryLoader loader = new AsyncRegistryLoader(zooKeeper, properties.getNamespace(), codec,
+				Math.max(2, properties.getFlushMaxInFlight()), metrics, this.snapshot);
+		try {
+			Map<String, Map<String, InstanceRecord>> loaded = loader.reload(serviceName, touched);
+			synchronized (writeLock) {
+				if (isSubscribed(serviceName)) {
+					Map<String, InstanceRecord> records = loaded.get(serviceName);
+					if (records != null && flapDamper != null)
+						records.keySet().removeIf(name -> flapDamper.isWithheld(serviceName, name));
+					publishLoaded(log, this.snapshot.replace(loaded, records == null ?
+							Collections.singleton(serviceName) : Collections.<String>emptyList(),
+							loader.getChildrenZxids()));
+				}
+			}
+			RegistryLoadReport report = loader.getReport();
+			burstDetector.reloaded(report.getRequests(), events);
+			if (logger.isDebugEnabled())
+				logger.debug("服务" + serviceName + "事件突发，合并" + events + "个事件重新加载：" + report);
+		}
+		catch (KeeperException e) {
+			logger.error("合并重新加载服务" + serviceName + "失败，等待全量拉取补偿！", e);
+			DiscoveryEventDispatcher dispatcher = this.eventDispatcher;
+			if (dispatcher != null)
+				dispatcher.requestResync();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			endLoad(log);
+		}
+		notifyChangeListeners();
+	}
+
+	/**
+	 * @return 防抖和抖动抑制识别同一实例的地址
+	 */
+	private static String addressOf(ServiceInstanceInfo info) {
+		return info.getIp() + ":" + info.getPort();
 	}
 
-	private ServiceInstanceInfo addServiceInfo(String path) throws KeeperException, InterruptedException {
-		//例如：path=/service/serviceName/serviceName0000000000
-		String[] split = path.split("/");
-		if (split.length < 4)
+	/**
+	 * 读取实例节点的最新数据并添加或原地替换注册表中的实例。
+	 * 注册表中已有实例的mzxid不低于读到的mzxid时（事件乱序、重复或已被拉取覆盖）忽略本次结果。
+	 * 新注册的实例经过防抖和抖动抑制：同一地址有等待删除的旧实例时一起替换，反复上下线的实例暂不加入
+	 * @param created 是否是节点创建事件
+	 * @return 添加或替换后的实例，节点已删除、数据已过时或被暂缓加入时返回null
+	 */
+	private ServiceInstanceInfo addServiceInfo(String path, boolean created)
+			throws KeeperException, InterruptedException {
+		String[] names = parseInstancePath(path);
+		if (names == null)
+			return null;
+		String serviceName = names[0];
+		String serviceInstanceName = names[1];
+		if (!isSubscribed(serviceName))
+			return null;
+		Stat stat = new Stat();
+		byte[] data;
+		if (burstDetector != null)
+			burstDetector.read();
+		try {
+			data = metrics.time(ZookeeperOperation.GET_DATA, () -> zooKeeper.getData(path, false, stat));
+		}
+		catch (KeeperException.NoNodeException e) {
+			//节点已删除，随后的删除事件会将其移除
 			return null;
-		//分割之后，serviceName就是第2个元素
-		String serviceName = split[2];
-		String serviceInstanceName = split[3];
-		Map<String, ServiceInstanceInfo> map = registry.get(serviceName);
-		if(map == null){
-			map = new ConcurrentHashMap<>();
-			registry.put(serviceName,map);
-		}
-		byte[] data = zooKeeper.getData(path, false, new Stat());
+		}
 		ServiceInstanceInfo serviceInstanceInfo = toObject(data);
-		map.put(serviceInstanceName, serviceInstanceInfo);
+		if (serviceInstanceInfo == null)
+			return null;
+		InstanceRecord record = new InstanceRecord(serviceInstanceInfo, stat.getVersion(), stat.getCzxid(),
+				stat.getMzxid());
+		synchronized (writeLock) {
+			//getData期间服务可能已被取消订阅
+			if (!isSubscribed(serviceName))
+				return null;
+			RegistrySnapshot current = this.snapshot;
+			long newVersion = current.getVersion() + 1;
+			ServiceInstances instances = current.get(serviceName);
+			if (instances == null) {
+				instances = ServiceInstances.empty(serviceName, newVersion);
+			}
+			else {
+				int i = instances.indexOf(serviceInstanceName);
+				if (i >= 0 && !record.isNewerThan(instances.getModifiedZxid(i)))
+					return null;
+			}
+			if (flapDamper != null) {
+				//被暂缓的实例到期后重新读取，期间的数据变化不需要处理
+				if (!created && flapDamper.isWithheld(serviceName, serviceInstanceName))
+					return null;
+				if (created) {
+					String address = addressOf(serviceInstanceInfo);
+					String replaced = flapDamper.takeRemoval(serviceName, address);
+					int replacedIndex = replaced == null ? -1 : instances.indexOf(replaced);
+					if (replacedIndex >= 0) {
+						recordRemoval(serviceName, replaced, instances.getCreatedZxid(replacedIndex));
+						instances = instances.without(replaced, newVersion);
+					}
+					long hold = flapDamper.holdMillis(serviceName, address);
+					if (hold > 0) {
+						flapDamper.withhold(serviceName, serviceInstanceName, address, hold, () -> execute(serviceName,
+								() -> releaseWithheld(path, serviceName, serviceInstanceName)));
+						if (replacedIndex >= 0)
+							publish(current.with(instances));
+						logger.info("实例" + address + "反复上下线，暂缓" + hold + "ms加入注册表，path=" + path);
+						return null;
+					}
+				}
+			}
+			recordUpsert(serviceName, serviceInstanceName, record);
+			publish(current.with(instances.with(serviceInstanceName, record, newVersion)));
+		}
 		return serviceInstanceInfo;
 	}
 
 	/**
 	 * 服务启动成功后调用该方法，进行首次服务发现
-	 * 使用CopyOnWrite修改注册表
+	 * 使用CopyOnWrite修改注册表，全部拉取完成后才整体替换。
+	 * subscribe模式下只拉取已订阅的服务，并（重新）添加这些服务的监听
+	 * @return 本次拉取的耗时报告
 	 */
-	public void flushRegistry() throws KeeperException, InterruptedException {
-		ConcurrentHashMap<String, Map<String, ServiceInstanceInfo>> newRegistry =  new ConcurrentHashMap<>(4);;
-		List<String> serviceNameList = zooKeeper.getChildren(properties.getNamespace(), true);
-		if (serviceNameList == null)
-			return;
+	public RegistryLoadReport flushRegistry() throws KeeperException, InterruptedException {
+		return flush(null);
+	}
+
+	/**
+	 * 重新同步注册表（session过期恢复、事件丢弃后补偿）：以当前快照为基准增量拉取，
+	 * 只重新拉取pzxid变化的服务的子节点列表，只重新读取mzxid变化的实例，没有变化的实例沿用原来的对象。
+	 * 串行拉取模式（flush.max-inflight小于等于1）下仍然全量拉取
+	 * @return 本次拉取的耗时报告
+	 */
+	public RegistryLoadReport resyncRegistry() throws KeeperException, InterruptedException {
+		return flush(this.snapshot);
+	}
+
+	/**
+	 * @param previous 增量拉取参照的快照，为null时全量拉取
+	 */
+	private RegistryLoadReport flush(RegistrySnapshot previous) throws KeeperException, InterruptedException {
+		if (properties.getFlushMaxInFlight() <= 1)
+			return flushRegistrySerially();
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			RegistryLoadReport report = loadAsync(subscribedServices(), previous);
+			markSynced();
+			notifyChangeListeners();
+			logger.info("拉取注册表完成：" + report);
+			success = true;
+			return report;
+		}
+		finally {
+			metrics.flushCompleted(System.nanoTime() - start, success);
+		}
+	}
+
+	/**
+	 * 逐个同步请求拉取注册表，保留用于和异步流水线方式对比耗时
+	 * @return 本次拉取的耗时报告
+	 */
+	public RegistryLoadReport flushRegistrySerially() throws KeeperException, InterruptedException {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			RegistryLoadReport report = loadSerially(subscribedServices());
+			markSynced();
+			notifyChangeListeners();
+			logger.info("拉取注册表完成：" + report);
+			success = true;
+			return report;
+		}
+		finally {
+			metrics.flushCompleted(System.nanoTime() - start, success);
+		}
+	}
+
+	/**
+	 * @return subscribe模式下当前订阅的服务，all模式下返回null
+	 */
+	private List<String> subscribedServices() {
+		return subscriptions == null ? null : new ArrayList<>(subscriptions.keySet());
+	}
+
+	/**
+	 * @param serviceNames 要拉取的服务，为null时拉取整个命名空间并整体替换注册表
+	 */
+	private RegistryLoadReport load(Collection<String> serviceNames) throws KeeperException, InterruptedException {
+		if (properties.getFlushMaxInFlight() <= 1)
+			return loadSerially(serviceNames);
+		return loadAsync(serviceNames, null);
+	}
+
+	/**
+	 * @param previous 增量拉取参照的快照，为null时全量拉取
+	 */
+	private RegistryLoadReport loadAsync(Collection<String> serviceNames, RegistrySnapshot previous)
+			throws KeeperException, InterruptedException {
+		AsyncRegistryLoader loader = new AsyncRegistryLoader(zooKeeper, properties.getNamespace(), codec,
+				properties.getFlushMaxInFlight(), metrics, previous);
+		EventReplayLog log = beginLoad();
+		try {
+			if (serviceNames == null)
+				publish(log, loader.load(), loader.getChildrenZxids());
+			else
+				publish(log, serviceNames, loader.load(serviceNames), loader.getChildrenZxids());
+		}
+		finally {
+			endLoad(log);
+		}
+		return loader.getReport();
+	}
+
+	private RegistryLoadReport loadSerially(Collection<String> serviceNames)
+			throws KeeperException, InterruptedException {
+		EventReplayLog log = beginLoad();
+		try {
+			return loadSerially(serviceNames, log);
+		}
+		finally {
+			endLoad(log);
+		}
+	}
+
+	private RegistryLoadReport loadSerially(Collection<String> serviceNames, EventReplayLog log)
+			throws KeeperException, InterruptedException {
+		long start = System.nanoTime();
+		DiscoveryMetrics metrics = this.metrics;
+		int requests = 0;
+		int instances = 0;
+		ConcurrentHashMap<String, Map<String, InstanceRecord>> newRegistry =  new ConcurrentHashMap<>(4);
+		Map<String, Long> childrenZxids = new HashMap<>();
+		Collection<String> serviceNameList = serviceNames;
+		if (serviceNameList == null) {
+			serviceNameList = metrics.time(ZookeeperOperation.GET_CHILDREN,
+					() -> zooKeeper.getChildren(properties.getNamespace(), true));
+			requests++;
+		}
 		for (String serviceName : serviceNameList) {
-			Map<String, ServiceInstanceInfo> serviceList = newRegistry.get(serviceName);
-			if (serviceList == null)
-				serviceList = new ConcurrentHashMap<>();
-			List<String> serviceInstanceList = zooKeeper
-					.getChildren(properties.getNamespace() + "/" + serviceName,
-							false);
-			if (serviceInstanceList != null) {
-				for (String serviceInstanceName : serviceInstanceList) {
-					byte[] data = zooKeeper.getData(
-							properties.getNamespace() + "/" + serviceName + "/" +
-									serviceInstanceName,
-							false, new Stat());
-					ServiceInstanceInfo serviceInstanceInfo = toObject(data);
-					serviceList.put(serviceInstanceName, serviceInstanceInfo);
+			Map<String, InstanceRecord> serviceList = new ConcurrentHashMap<>();
+			String servicePath = properties.getNamespace() + "/" + serviceName;
+			List<String> serviceInstanceList;
+			Stat serviceStat = new Stat();
+			if (serviceNames == null) {
+				serviceInstanceList = metrics.time(ZookeeperOperation.GET_CHILDREN,
+						() -> zooKeeper.getChildren(servicePath, false, serviceStat));
+				requests++;
+			}
+			else {
+				//订阅的服务先添加监听再拉取，服务节点不存在时监听仍然有效
+				metrics.time(ZookeeperOperation.ADD_WATCH, () -> {
+					zooKeeper.addWatch(servicePath, AddWatchMode.PERSISTENT_RECURSIVE);
+					return null;
+				});
+				requests += 2;
+				try {
+					serviceInstanceList = metrics.time(ZookeeperOperation.GET_CHILDREN,
+							() -> zooKeeper.getChildren(servicePath, false, serviceStat));
+				}
+				catch (KeeperException.NoNodeException e) {
+					continue;
+				}
+			}
+			childrenZxids.put(serviceName, serviceStat.getPzxid());
+			for (String serviceInstanceName : serviceInstanceList) {
+				String instancePath = servicePath + "/" + serviceInstanceName;
+				Stat stat = new Stat();
+				byte[] data;
+				try {
+					data = metrics.time(ZookeeperOperation.GET_DATA,
+							() -> zooKeeper.getData(instancePath, false, stat));
+				}
+				catch (KeeperException.NoNodeException e) {
+					//拉取过程中实例已下线
+					continue;
+				}
+				finally {
+					requests++;
+				}
+				//只检查数据头，实例在首次访问时才解码
+				if (data != null && codec.canDecode(data)) {
+					serviceList.put(serviceInstanceName, InstanceRecord.encoded(data, codec, stat.getVersion(),
+							stat.getCzxid(), stat.getMzxid()));
+					instances++;
+				}
+				else if (data != null) {
+					logger.error("解析服务实例信息失败，无法识别的数据格式，path=" + instancePath);
 				}
 			}
 			newRegistry.put(serviceName, serviceList);
 		}
-		this.registry = newRegistry;
+		if (serviceNames == null)
+			publish(log, newRegistry, childrenZxids);
+		else
+			publish(log, serviceNames, newRegistry, childrenZxids);
+		return new RegistryLoadReport("serial", newRegistry.size(), instances, requests, 1,
+				System.nanoTime() - start);
+	}
+
+	/**
+	 * 用全量拉取的结果整体替换注册表
+	 */
+	private void publish(EventReplayLog log, Map<String, Map<String, InstanceRecord>> newRegistry,
+			Map<String, Long> childrenZxids) {
+		synchronized (writeLock) {
+			publishLoaded(log, this.snapshot.replaceAll(newRegistry, childrenZxids));
+		}
+	}
+
+	/**
+	 * 用订阅服务的拉取结果替换这些服务，拉取期间已取消订阅的服务不再发布
+	 * @param serviceNames 本次拉取的服务
+	 * @param loaded 拉取结果，不存在的服务不包含在内
+	 * @param childrenZxids 服务名 -> 拉取时服务znode的pzxid
+	 */
+	private void publish(EventReplayLog log, Collection<String> serviceNames,
+			Map<String, Map<String, InstanceRecord>> loaded, Map<String, Long> childrenZxids) {
+		Map<String, Map<String, InstanceRecord>> subscribed = new HashMap<>();
+		List<String> removed = new ArrayList<>();
+		synchronized (writeLock) {
+			for (String serviceName : serviceNames) {
+				if (!subscriptions.containsKey(serviceName))
+					removed.add(serviceName);
+				else if (loaded.containsKey(serviceName))
+					subscribed.put(serviceName, loaded.get(serviceName));
+				else
+					removed.add(serviceName);
+			}
+			publishLoaded(log, this.snapshot.replace(subscribed, removed, childrenZxids));
+		}
+	}
+
+	/**
+	 * 开始一次拉取，之后事件对注册表的修改都记录下来，在拉取结果发布前重放
+	 */
+	private EventReplayLog beginLoad() {
+		EventReplayLog log = new EventReplayLog();
+		synchronized (writeLock) {
+			replayLogs.add(log);
+		}
+		return log;
+	}
+
+	/**
+	 * 拉取结束（已发布或失败），不再记录修改
+	 */
+	private void endLoad(EventReplayLog log) {
+		synchronized (writeLock) {
+			replayLogs.remove(log);
+		}
+	}
+
+	/**
+	 * 事件添加或替换了一个实例，记录到进行中的拉取，必须在writeLock内调用
+	 */
+	private void recordUpsert(String serviceName, String serviceInstanceName, InstanceRecord record) {
+		for (EventReplayLog log : replayLogs)
+			log.upsert(serviceName, serviceInstanceName, record);
+	}
+
+	/**
+	 * 事件删除了一个实例，记录到进行中的拉取，必须在writeLock内调用
+	 */
+	private void recordRemoval(String serviceName, String serviceInstanceName, long createdZxid) {
+		for (EventReplayLog log : replayLogs)
+			log.remove(serviceName, serviceInstanceName, createdZxid);
+	}
+
+	/**
+	 * 发布拉取得到的快照：先重放拉取期间事件对注册表的修改，再把这次发布带来的修改记录到其它进行中的拉取，
+	 * 必须在writeLock内调用
+	 * @param loaded 以当前快照为基础、替换为拉取结果的快照
+	 */
+	private void publishLoaded(EventReplayLog log, RegistrySnapshot loaded) {
+		replayLogs.remove(log);
+		RegistrySnapshot replayed = log.replay(loaded, this::isSubscribed);
+		if (log.isOverflowed()) {
+			logger.warn("拉取期间的修改超过" + EventReplayLog.MAX_MUTATIONS + "个，未能全部重放，等待全量拉取补偿！");
+			DiscoveryEventDispatcher dispatcher = this.eventDispatcher;
+			if (dispatcher != null)
+				dispatcher.requestResync();
+		}
+		else if (log.size() > 0 && logger.isDebugEnabled()) {
+			logger.debug("已将拉取期间的" + log.size() + "个修改重放到新的注册表");
+		}
+		RegistrySnapshot current = this.snapshot;
+		if (!replayLogs.isEmpty()) {
+			Set<String> serviceNames = new HashSet<>(current.getServiceNames());
+			serviceNames.addAll(replayed.getServiceNames());
+			for (String serviceName : serviceNames) {
+				ServiceInstances before = current.get(serviceName);
+				ServiceInstances after = replayed.get(serviceName);
+				if (before == after)
+					continue;
+				for (EventReplayLog other : replayLogs)
+					other.recordChanges(serviceName, before, after);
+			}
+		}
+		publish(replayed);
+	}
+
+	/**
+	 * 全量拉取完成，之后注册表与zookeeper一致
+	 */
+	private void markSynced() {
+		lastSyncTime = System.currentTimeMillis();
+		resyncRequired = false;
+		staleSince = 0;
+	}
+
+	/**
+	 * 发布新快照，必须在writeLock内调用
+	 */
+	private void publish(RegistrySnapshot newSnapshot) {
+		this.snapshot = newSnapshot;
+		this.snapshotDirty = true;
+	}
+
+	/**
+	 * 从本地快照文件加载注册表，加载成功后可以立即提供查询，此时注册表标记为过时，直到首次全量拉取完成
+	 * @return 未配置快照文件或文件不可用时返回false
+	 */
+	public boolean loadLocalSnapshot() {
+		if (snapshotStore == null)
+			return false;
+		RegistrySnapshotStore.Loaded loaded = snapshotStore.read();
+		if (loaded == null)
+			return false;
+		synchronized (writeLock) {
+			this.snapshot = this.snapshot.replaceAll(InstanceRecord.unversioned(loaded.getRegistry()),
+					Collections.<String, Long>emptyMap());
+		}
+		if (subscriptions != null) {
+			//快照中的服务视为已按需加载，首次全量拉取时添加监听并刷新，空闲后淘汰
+			for (String serviceName : loaded.getRegistry().keySet())
+				subscriptions.computeIfAbsent(serviceName, name -> new Subscription(false)).loaded.complete(null);
+		}
+		resyncRequired = true;
+		staleSince = loaded.getWrittenAt();
+		lastSyncTime = loaded.getWrittenAt();
+		notifyChangeListeners();
+		logger.info("已从本地快照" + snapshotStore.getFile() + "加载" + snapshot.size() + "个服务，快照已过时" +
+				getStalenessMillis() + "ms");
+		return true;
+	}
+
+	private void startSnapshotWriter(long intervalMillis) {
+		snapshotWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-snapshot-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotWriter.scheduleWithFixedDelay(this::writeLocalSnapshot, intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 注册表有变化且与zookeeper一致时写入本地快照，过时的注册表不会覆盖快照文件
+	 */
+	private void writeLocalSnapshot() {
+		if (!snapshotDirty || isStale())
+			return;
+		snapshotDirty = false;
+		try {
+			snapshotStore.write(snapshot);
+		}
+		catch (IOException e) {
+			snapshotDirty = true;
+			logger.error("写入本地注册表快照失败！", e);
+		}
+	}
+
+	/**
+	 * 与zookeeper的连接断开，注册表从此刻开始可能过时
+	 */
+	public void connectionLost() {
+		if (staleSince == 0)
+			staleSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * session已过期，注册表从此刻开始可能过时，并且在重新全量拉取之前重新连接也不能视为最新
+	 */
+	public void sessionLost() {
+		resyncRequired = true;
+		connectionLost();
+	}
+
+	/**
+	 * 与zookeeper重新连接（session未过期），如果不需要全量拉取则注册表恢复为最新
+	 */
+	public void connectionRestored() {
+		if (!resyncRequired)
+			staleSince = 0;
+	}
+
+	/**
+	 * @return 注册表是否可能已过时（来自本地快照尚未同步，或与zookeeper断开连接）
+	 */
+	public boolean isStale() {
+		return staleSince != 0;
+	}
+
+	/**
+	 * @return 注册表已过时多久（毫秒），未过时返回0
+	 */
+	public long getStalenessMillis() {
+		long since = staleSince;
+		return since == 0 ? 0 : Math.max(0, System.currentTimeMillis() - since);
+	}
+
+	/**
+	 * @return 最后一次与zookeeper全量同步的时间（毫秒），来自本地快照时为快照的写入时间
+	 */
+	public long getLastSyncTime() {
+		return lastSyncTime;
+	}
+
+	/**
+	 * 停止后台任务，配置了本地快照时写入最后一次快照
+	 */
+	public void shutdown() {
+		OutlierDetector detector = this.outlierDetector;
+		if (detector != null)
+			detector.shutdown();
+		if (subscriptionEvictor != null)
+			subscriptionEvictor.shutdownNow();
+		if (flapDamper != null)
+			flapDamper.shutdown();
+		if (burstDetector != null)
+			burstDetector.shutdown();
+		synchronized (notifyLock) {
+			if (changeListenerExecutor != null)
+				changeListenerExecutor.shutdown();
+		}
+		if (snapshotWriter != null) {
+			snapshotWriter.shutdownNow();
+			writeLocalSnapshot();
+		}
 	}
 
 	private ServiceInstanceInfo toObject(byte[] data) {
-		try (
-				ByteArrayInputStream bis = new ByteArrayInputStream(data);
-				ObjectInputStream ois = new ObjectInputStream(bis)
-		) {
-			return (ServiceInstanceInfo) ois.readObject();
+		if (data == null)
+			return null;
+		try {
+			return codec.decode(data);
 		}
-		catch (ClassNotFoundException | IOException e) {
-			e.printStackTrace();
+		catch (CodecException e) {
+			logger.error("解析服务实例信息失败！", e);
 		}
 		return null;
 	}
 
-	public ConcurrentHashMap<String, Map<String, ServiceInstanceInfo>> getRegistry() {
-		return registry;
+	/**
+	 * 兼容旧接口，返回当前快照的只读视图
+	 * @return 服务名 -> (znode名称 -> 实例信息)
+	 */
+	public Map<String, Map<String, ServiceInstanceInfo>> getRegistry() {
+		return snapshot.asMap();
+	}
+
+	/**
+	 * @return 当前注册表的不可变快照
+	 */
+	public RegistrySnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @param serviceName 服务名
+	 * @return 服务的实例快照，服务不存在时返回null
+	 */
+	public ServiceInstances getServiceInstances(String serviceName) {
+		return lookup(serviceName);
+	}
+
+	/**
+	 * subscribe模式下记录服务的访问时间，未订阅的服务先按需加载（最多等待session超时时间）
+	 */
+	private ServiceInstances lookup(String serviceName) {
+		if (serviceName == null)
+			throw new NullPointerException();
+		metrics.lookup();
+		if (subscriptions != null) {
+			Subscription subscription = subscriptions.get(serviceName);
+			if (subscription == null) {
+				subscribeLazily(serviceName);
+			}
+			else {
+				long now = System.currentTimeMillis();
+				if (now - subscription.lastAccess > ACCESS_RESOLUTION_MILLIS)
+					subscription.lastAccess = now;
+			}
+		}
+		return snapshot.get(serviceName);
 	}
 
 	/**
 	 * 给更具服务名查找所有的服务实例信息
 	 * @param serviceName 服务名
-	 * @return Set集合
+	 * @return 只读集合，直接引用当前快照中的实例数组，不会复制
 	 */
 	public Collection<ServiceInstanceInfo> findService(String serviceName){
-		if(serviceName == null)
+		ServiceInstances instances = lookup(serviceName);
+		if(instances == null)
+			return Collections.emptyList();
+		return instances.asList();
+	}
+
+	/**
+	 * 按标签（实例元数据）查找服务实例，例如同区域或灰度版本的实例
+	 * @param serviceName 服务名
+	 * @param query 查询条件，应复用同一个对象
+	 * @return 只读集合，快照不变时重复查询返回同一个缓存的结果，不分配对象
+	 */
+	public List<ServiceInstanceInfo> findService(String serviceName, TagQuery query) {
+		ServiceInstances instances = lookup(serviceName);
+		if (instances == null)
+			return Collections.emptyList();
+		return instances.query(query).asList();
+	}
+
+	/**
+	 * 使用默认负载均衡策略（轮询，配置了zk.discovery.zone时为同区域优先，可通过setSelector修改）选出一个实例
+	 * @param serviceName 服务名
+	 * @return 服务没有实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName) {
+		return select(serviceName, selector);
+	}
+
+	/**
+	 * 使用指定的负载均衡策略选出一个实例，基于当前快照，不加锁，只在状态为UP的实例中选择。
+	 * 设置了OutlierDetector时跳过被摘除的实例，所有实例都被摘除时仍返回最后选中的实例
+	 * @param serviceName 服务名
+	 * @param selector 负载均衡策略
+	 * @return 服务没有状态为UP的实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName, InstanceSelector selector) {
+		ServiceInstances instances = lookup(serviceName);
+		if (instances == null)
+			return null;
+		return select(instances.available(), selector);
+	}
+
+	/**
+	 * 在满足标签查询条件的实例中使用默认负载均衡策略选出一个实例
+	 * @param serviceName 服务名
+	 * @param query 查询条件，应复用同一个对象
+	 * @return 没有满足条件且状态为UP的实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName, TagQuery query) {
+		ServiceInstances instances = lookup(serviceName);
+		if (instances == null)
+			return null;
+		return select(instances.available().query(query), selector);
+	}
+
+	/**
+	 * 按路由键使用一致性哈希选出一个实例，同一个键总是选中同一个实例（直到该实例下线、被摘除或负载已满）。
+	 * 设置了OutlierDetector时沿哈希环跳过被摘除的实例
+	 * @param serviceName 服务名
+	 * @param key 路由键
+	 * @param selector 一致性哈希策略，应复用同一个对象
+	 * @return 服务没有状态为UP的实例时返回null
+	 */
+	public ServiceInstanceInfo select(String serviceName, String key, ConsistentHashSelector selector) {
+		ServiceInstances instances = lookup(serviceName);
+		if (instances == null || instances.available().isEmpty())
+			return null;
+		OutlierDetector detector = this.outlierDetector;
+		return selector.select(instances.available(), ConsistentHashSelector.hash(key),
+				detector == null ? null : detector::isEjected);
+	}
+
+	private ServiceInstanceInfo select(ServiceInstances instances, InstanceSelector selector) {
+		if (instances.isEmpty())
+			return null;
+		ServiceInstanceInfo instance = selector.select(instances);
+		OutlierDetector detector = this.outlierDetector;
+		if (detector == null)
+			return instance;
+		for (int i = 1; i < instances.size() && detector.isEjected(instance); i++)
+			instance = selector.select(instances);
+		return instance;
+	}
+
+	/**
+	 * 上报一次调用的耗时和结果，用于异常实例检测，未设置OutlierDetector时忽略
+	 * @param instance 被调用的实例
+	 * @param latencyNanos 调用耗时（纳秒）
+	 * @param success 调用是否成功
+	 */
+	public void record(ServiceInstanceInfo instance, long latencyNanos, boolean success) {
+		OutlierDetector detector = this.outlierDetector;
+		if (detector != null)
+			detector.record(instance, latencyNanos, success);
+	}
+
+	/**
+	 * 启用异常实例检测，被摘除的实例不会被select选中
+	 */
+	public void setOutlierDetector(OutlierDetector outlierDetector) {
+		OutlierDetector old = this.outlierDetector;
+		if (old != null && old != outlierDetector)
+			old.shutdown();
+		this.outlierDetector = outlierDetector;
+		if (outlierDetector != null)
+			outlierDetector.start(this::getSnapshot);
+	}
+
+	public OutlierDetector getOutlierDetector() {
+		return outlierDetector;
+	}
+
+	public void setSelector(InstanceSelector selector) {
+		if (selector == null)
 			throw new NullPointerException();
-		Map<String, ServiceInstanceInfo> map = registry.get(serviceName);
-		if(map == null)
+		this.selector = selector;
+	}
+
+	public InstanceSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * 设置监控指标的实现，并绑定当前注册表用于统计各服务的实例数
+	 */
+	public void setMetrics(DiscoveryMetrics metrics) {
+		if (metrics == null)
+			throw new NullPointerException();
+		metrics.bindRegistry(this::getSnapshot);
+		if (flapDamper != null)
+			flapDamper.bindMetrics(metrics);
+		if (burstDetector != null)
+			burstDetector.bindMetrics(metrics);
+		this.metrics = metrics;
+	}
+
+	public DiscoveryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return 是否是subscribe模式
+	 */
+	public boolean isSubscriptionMode() {
+		return subscriptions != null;
+	}
+
+	/**
+	 * @return subscribe模式下已订阅的服务，all模式下返回空集合
+	 */
+	public Set<String> getSubscribedServices() {
+		if (subscriptions == null)
 			return Collections.emptySet();
-		HashSet<ServiceInstanceInfo> set = new HashSet<>(map.size());
-		set.addAll(map.values());
-		return set;
+		return Collections.unmodifiableSet(subscriptions.keySet());
 	}
 
-	public void showRegistry() {
-		ConcurrentHashMap<String, Map<String,ServiceInstanceInfo>> registry = getRegistry();
-		Set<Map.Entry<String, Map<String,ServiceInstanceInfo>>> entries = registry.entrySet();
-		for (Map.Entry<String, Map<String,ServiceInstanceInfo>> entry : entries) {
-			System.out.println(entry.getKey());
-			Map<String,ServiceInstanceInfo> entryValue = entry.getValue();
-			if(entryValue != null){
-				Set<Map.Entry<String, ServiceInstanceInfo>> entries1 = entryValue.entrySet();
-				for (Map.Entry<String, ServiceInstanceInfo> e : entries1) {
-					System.out.println(e.getKey()+":"+e.getValue());
-				}
+	private boolean isSubscribed(String serviceName) {
+		return subscriptions == null || subscriptions.containsKey(serviceName);
+	}
+
+	/**
+	 * subscribe模式下订阅服务：添加该服务的监听并拉取实例，主动订阅的服务不会因空闲被淘汰。
+	 * all模式下所有服务都已监听，直接返回
+	 * @param serviceName 服务名
+	 */
+	public void subscribe(String serviceName) throws KeeperException, InterruptedException {
+		if (serviceName == null)
+			throw new NullPointerException();
+		if (subscriptions == null)
+			return;
+		Subscription created = new Subscription(true);
+		Subscription existing = subscriptions.putIfAbsent(serviceName, created);
+		if (existing != null) {
+			existing.pinned = true;
+			if (!existing.loaded.isDone())
+				await(serviceName, existing);
+			return;
+		}
+		loadSubscription(serviceName, created);
+		try {
+			created.loaded.get();
+		}
+		catch (ExecutionException e) {
+			subscriptions.remove(serviceName, created);
+			if (e.getCause() instanceof KeeperException)
+				throw (KeeperException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * 取消订阅，移除该服务的监听并从注册表删除
+	 * @param serviceName 服务名
+	 */
+	public void unsubscribe(String serviceName) {
+		if (subscriptions == null)
+			return;
+		Subscription subscription = subscriptions.remove(serviceName);
+		if (subscription != null)
+			evict(serviceName);
+	}
+
+	private void subscribeLazily(String serviceName) {
+		Subscription created = new Subscription(false);
+		Subscription existing = subscriptions.putIfAbsent(serviceName, created);
+		if (existing != null) {
+			if (!existing.loaded.isDone())
+				await(serviceName, existing);
+			return;
+		}
+		logger.info("按需订阅服务" + serviceName + "...");
+		loadSubscription(serviceName, created);
+		await(serviceName, created);
+	}
+
+	/**
+	 * 加载订阅的服务，加载结果与之后的事件按顺序应用
+	 */
+	private void loadSubscription(String serviceName, Subscription subscription) {
+		Runnable task = () -> {
+			try {
+				load(Collections.singletonList(serviceName));
+				notifyChangeListeners();
+				subscription.loaded.complete(null);
+			}
+			catch (KeeperException | RuntimeException e) {
+				subscription.loaded.completeExceptionally(e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				subscription.loaded.completeExceptionally(e);
+			}
+		};
+		execute(serviceName, task);
+	}
+
+	/**
+	 * 在处理该服务事件的工作线程上执行任务，使同一服务的加载、淘汰和事件按顺序执行；
+	 * 当前线程就是工作线程或分发器不可用时直接执行
+	 */
+	private void execute(String serviceName, Runnable task) {
+		DiscoveryEventDispatcher dispatcher = this.eventDispatcher;
+		if (dispatcher == null || dispatcher.isWorkerThread() || !dispatcher.execute(serviceName, task))
+			task.run();
+	}
+
+	/**
+	 * 等待订阅的服务加载完成，加载失败时取消该订阅，下次查询时重试
+	 */
+	private void await(String serviceName, Subscription subscription) {
+		try {
+			subscription.loaded.get(properties.getSessionTimeout(), TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (TimeoutException e) {
+			logger.warn("等待服务" + serviceName + "加载超时！");
+		}
+		catch (ExecutionException e) {
+			logger.warn("按需加载服务" + serviceName + "失败！", e.getCause());
+			if (!subscription.pinned && subscriptions.remove(serviceName, subscription))
+				evict(serviceName);
+		}
+	}
+
+	private void startSubscriptionEvictor(long idleTtlMillis) {
+		subscriptionEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-subscription-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1000, Math.min(60000, idleTtlMillis / 4));
+		subscriptionEvictor.scheduleWithFixedDelay(() -> evictIdleSubscriptions(idleTtlMillis), period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 淘汰空闲超过idleTtlMillis的按需订阅服务，由定时线程调用，包可见用于测试
+	 */
+	void evictIdleSubscriptions(long idleTtlMillis) {
+		long deadline = System.currentTimeMillis() - idleTtlMillis;
+		for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+			Subscription subscription = entry.getValue();
+			if (subscription.pinned || subscription.lastAccess >= deadline)
+				continue;
+			if (subscriptions.remove(entry.getKey(), subscription)) {
+				logger.info("服务" + entry.getKey() + "空闲超过" + idleTtlMillis + "ms，取消订阅");
+				evict(entry.getKey());
 			}
 		}
 	}
 
-	@Override
-	public void sessionExpired(ZooKeeper zooKeeper) {
-		this.zooKeeper = zooKeeper;
+	/**
+	 * 移除服务的监听并从注册表删除，调用前已从subscriptions中移除
+	 */
+	private void evict(String serviceName) {
+		execute(serviceName, () -> {
+			//排队期间又被重新订阅
+			if (!subscriptions.containsKey(serviceName)) {
+				removeSubscription(serviceName);
+				notifyChangeListeners();
+			}
+		});
+	}
+
+	private void removeSubscription(String serviceName) {
+		String servicePath = properties.getNamespace() + "/" + serviceName;
 		try {
-			this.flushRegistry();
+			metrics.time(ZookeeperOperation.REMOVE_WATCH, () -> {
+				zooKeeper.removeAllWatches(servicePath, Watcher.WatcherType.Any, false);
+				return null;
+			});
+		}
+		catch (KeeperException.NoWatcherException ignored) {
+		}
+		catch (KeeperException e) {
+			//无法通知服务端时只移除本地监听，之后收到的事件会被忽略
+			try {
+				zooKeeper.removeAllWatches(servicePath, Watcher.WatcherType.Any, true);
+			}
+			catch (KeeperException | InterruptedException ignored) {
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		catch (KeeperException | InterruptedException e) {
-			e.printStackTrace();
+		synchronized (writeLock) {
+			if (subscriptions.containsKey(serviceName))
+				return;
+			publish(this.snapshot.without(serviceName));
+		}
+	}
+
+	/**
+	 * 注册注册表变化监听器。注册后应先调用getSnapshot获取当前状态，之后的变化通过监听器按批次通知，
+	 * 事件的版本号可能早于获取的快照，可以据此跳过已处理的变化
+	 * @param listener 监听器，在监听器线程上回调
+	 */
+	public void addChangeListener(RegistryChangeListener listener) {
+		if (listener == null)
+			throw new NullPointerException();
+		synchronized (notifyLock) {
+			if (changeListenerExecutor == null) {
+				changeListenerExecutor = Executors.newSingleThreadExecutor(r -> {
+					Thread thread = new Thread(r, "discovery-change-listener");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			changeListeners.add(listener);
 		}
 	}
+
+	/**
+	 * 注册监听器并先补发变化日志中sinceVersion之后的变化，之后的变化与其它监听器一起通知，
+	 * 补发和通知都在监听器线程上按版本顺序执行，不会遗漏或重复。
+	 * 补发的变化不包含完整的实例快照（ServiceChange.getBefore/getAfter为null）
+	 * @param sinceVersion 监听器已同步到的注册表版本号，例如之前getSnapshot().getVersion()的结果
+	 * @return 未启用变化日志或部分变化已被覆盖时返回false，此时监听器没有注册，应重新获取快照后调用addChangeListener
+	 */
+	public boolean addChangeListener(RegistryChangeListener listener, long sinceVersion) {
+		if (listener == null)
+			throw new NullPointerException();
+		synchronized (notifyLock) {
+			//日志记录到lastNotified，之后的变化由notifyChangeListeners通知
+			List<RegistryChangeEvent> missed = journal == null ? null : journal.changesSince(sinceVersion);
+			if (missed == null)
+				return false;
+			addChangeListener(listener);
+			if (!missed.isEmpty()) {
+				RegistryChangeListener[] target = {listener};
+				changeListenerExecutor.execute(() -> {
+					for (RegistryChangeEvent event : missed)
+						deliver(event, target);
+				});
+			}
+			return true;
+		}
+	}
+
+	public void removeChangeListener(RegistryChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * 查询变化日志，可以代替反复获取完整快照进行增量同步
+	 * @param sequence 调用方已同步到的注册表版本号
+	 * @return 版本号大于sequence的变化批次，按版本顺序排列，批次的起始版本可能早于sequence；
+	 * 未启用变化日志或部分变化已被覆盖时返回null，调用方应重新获取完整快照
+	 */
+	public List<RegistryChangeEvent> changesSince(long sequence) {
+		return journal == null ? null : journal.changesSince(sequence);
+	}
+
+	/**
+	 * 比较当前快照与上次通知时的快照，有变化时记录到变化日志，并在监听器线程上通知所有监听器。
+	 * 由分发器在每批事件处理完后调用，全量拉取、按需加载和淘汰服务后也会调用
+	 */
+	void notifyChangeListeners() {
+		synchronized (notifyLock) {
+			RegistrySnapshot current = this.snapshot;
+			RegistrySnapshot previous = this.lastNotified;
+			if (current == previous)
+				return;
+			this.lastNotified = current;
+			if (journal != null)
+				journal.append(previous, current);
+			//释放默认负载均衡策略中已删除的服务的表
+			selector.retain(current);
+			if (changeListeners.isEmpty())
+				return;
+			RegistryChangeEvent event = RegistryChangeEvent.diff(previous, current);
+			if (event.isEmpty())
+				return;
+			//只通知此时已注册的监听器，之后注册并补发的监听器不会重复收到
+			RegistryChangeListener[] targets = changeListeners.toArray(new RegistryChangeListener[0]);
+			changeListenerExecutor.execute(() -> deliver(event, targets));
+		}
+	}
+
+	private void deliver(RegistryChangeEvent event, RegistryChangeListener[] targets) {
+		for (RegistryChangeListener listener : targets) {
+			//已经移除的监听器不再通知
+			if (!changeListeners.contains(listener))
+				continue;
+			try {
+				listener.onChange(event);
+			}
+			catch (RuntimeException e) {
+				logger.error("注册表变化监听器执行失败！", e);
+			}
+		}
+	}
+
+	void setEventDispatcher(DiscoveryEventDispatcher eventDispatcher) {
+		this.eventDispatcher = eventDispatcher;
+	}
+
+	/**
+	 * @return 事件突发检测，未启用时为null
+	 */
+	EventBurstDetector getBurstDetector() {
+		return burstDetector;
+	}
+
+	/**
+	 * 输出注册表摘要：版本号、服务数、实例数及变化日志的范围，只遍历服务不遍历实例，也不解码实例。
+	 * 需要查看具体变化时使用changesSince
+	 */
+	public void showRegistry() {
+		logger.info(getRegistrySummary());
+	}
+
+	/**
+	 * @return 注册表摘要
+	 */
+	public String getRegistrySummary() {
+		RegistrySnapshot current = this.snapshot;
+		long instances = 0;
+		for (String serviceName : current.getServiceNames())
+			instances += current.get(serviceName).size();
+		StringBuilder summary = new StringBuilder("注册表版本=").append(current.getVersion())
+				.append("，服务数=").append(current.size())
+				.append("，实例数=").append(instances);
+		if (journal != null) {
+			summary.append("，变化日志=").append(journal.size()).append("批(")
+					.append(journal.getFirstSequence()).append(", ").append(journal.getLastSequence()).append(']');
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * 使用新连接重新同步注册表，失败时抛出异常，由调用方退避后重试
+	 */
+	@Override
+	public void sessionExpired(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
+		this.zooKeeper = zooKeeper;
+		this.resyncRequired = true;
+		this.resyncRegistry();
+	}
+
+	/**
+	 * subscribe模式下的一个订阅
+	 */
+	private static final class Subscription {
+		/**
+		 * 主动订阅的服务不会因空闲被淘汰
+		 */
+		private volatile boolean pinned;
+		private volatile long lastAccess = System.currentTimeMillis();
+		/**
+		 * 首次加载完成（或失败）
+		 */
+		private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+		private Subscription(boolean pinned) {
+			this.pinned = pinned;
+		}
+	}
+
+	/**
+	 * 突发中的服务等待合并重新加载的事件
+	 */
+	private static final class PendingReload {
+		/**
+		 * 新建或数据变化的实例znode名称
+		 */
+		private Set<String> touched = new HashSet<>();
+		private int events;
+		/**
+		 * 已在工作线程排队，尚未开始执行
+		 */
+		private boolean scheduled;
+	}
 }
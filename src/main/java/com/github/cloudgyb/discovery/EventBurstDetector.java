@@ -0,0 +1,163 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+
+/**
+ * 按服务检测事件突发：一个服务在一个窗口内的实例事件数超过阈值时进入突发状态，
+ * 此后该服务的事件不再逐个getData，而是合并为一次子节点列表拉取和批量读取；
+ * 某个完整窗口内的事件数不超过阈值时退出突发状态。
+ * 重新加载延迟窗口长度的1/10执行，使这段时间内的事件合并为一次加载。
+ * 同时统计读放大（zookeeper读请求数/实例事件数），用于观察合并读取的效果
+ * @author cloudgyb
+ * 2021/3/30 15:40
+ */
+final class EventBurstDetector {
+	private final int threshold;
+	private final long windowMillis;
+	/**
+	 * 服务名 -> 当前窗口
+	 */
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+	private final AtomicInteger bursting = new AtomicInteger();
+	private final ScheduledExecutorService timer;
+	/**
+	 * 当前时间（毫秒），测试时可以替换
+	 */
+	private final LongSupplier clock;
+
+	private final LongAdder events = new LongAdder();
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder reloads = new LongAdder();
+	private final LongAdder absorbed = new LongAdder();
+
+	/**
+	 * @param threshold 一个窗口内的事件数超过该值时进入突发状态
+	 * @param windowMillis 窗口长度（毫秒）
+	 */
+	EventBurstDetector(int threshold, long windowMillis) {
+		this(threshold, windowMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param clock 当前时间（毫秒）
+	 */
+	EventBurstDetector(int threshold, long windowMillis, LongSupplier clock) {
+		this.threshold = threshold;
+		this.windowMillis = windowMillis;
+		this.clock = clock;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-burst-reload");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * 延迟窗口长度的1/10后执行重新加载
+	 */
+	void schedule(Runnable reload) {
+		timer.schedule(reload, Math.max(1, windowMillis / 10), TimeUnit.MILLISECONDS);
+	}
+
+	void shutdown() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * 记录服务的一个实例事件
+	 * @return 该服务是否处于突发状态
+	 */
+	boolean record(String serviceName) {
+		events.increment();
+		Window window = windows.get(serviceName);
+		if (window == null)
+			window = windows.computeIfAbsent(serviceName, name -> new Window());
+		long now = clock.getAsLong();
+		synchronized (window) {
+			if (now - window.start >= windowMillis) {
+				//上一个完整窗口的事件数不超过阈值时突发结束，窗口之间有空闲时同样结束
+				boolean quiet = window.count <= threshold || now - window.start >= 2 * windowMillis;
+				if (window.bursting && quiet)
+					setBursting(window, false);
+				window.start = now;
+				window.count = 0;
+			}
+			if (++window.count > threshold && !window.bursting)
+				setBursting(window, true);
+			return window.bursting;
+		}
+	}
+
+	private void setBursting(Window window, boolean bursting) {
+		window.bursting = bursting;
+		if (bursting)
+			this.bursting.incrementAndGet();
+		else
+			this.bursting.decrementAndGet();
+	}
+
+	/**
+	 * 逐个处理事件时读取了一个实例
+	 */
+	void read() {
+		reads.increment();
+	}
+
+	/**
+	 * 完成一次合并重新加载
+	 * @param requests 本次加载的zookeeper请求数
+	 * @param absorbedEvents 本次合并的事件数
+	 */
+	void reloaded(int requests, int absorbedEvents) {
+		reads.add(requests);
+		reloads.increment();
+		absorbed.add(absorbedEvents);
+	}
+
+	void bindMetrics(DiscoveryMetrics metrics) {
+		metrics.gauge("burst.activeServices", this::getBurstingServices);
+		metrics.gauge("burst.reloads", this::getReloadCount);
+		metrics.gauge("burst.absorbedEvents", this::getAbsorbedEventCount);
+		metrics.gauge("events.readAmplificationPercent", this::getReadAmplificationPercent);
+	}
+
+	/**
+	 * @return 当前处于突发状态的服务数
+	 */
+	long getBurstingServices() {
+		return bursting.get();
+	}
+
+	long getReloadCount() {
+		return reloads.sum();
+	}
+
+	/**
+	 * @return 被合并重新加载代替逐个读取的事件数
+	 */
+	long getAbsorbedEventCount() {
+		return absorbed.sum();
+	}
+
+	/**
+	 * @return 读放大（zookeeper读请求数/实例事件数）的百分比，逐个处理时每个新建和数据变化事件各读取一次，合并读取后更低
+	 */
+	long getReadAmplificationPercent() {
+		long n = events.sum();
+		return n == 0 ? 0 : reads.sum() * 100 / n;
+	}
+
+	private static final class Window {
+		private long start;
+		private int count;
+		private boolean bursting;
+	}
+}
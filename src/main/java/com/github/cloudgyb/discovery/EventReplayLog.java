@@ -0,0 +1,137 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 拉取期间应用到注册表的修改记录。
+ * 拉取开始时创建，之后事件对注册表的每次修改都追加到所有进行中的拉取的记录中；
+ * 拉取结果发布前在其上按顺序重放这些修改，拉取开始后才到达的事件不会被较早读取的结果覆盖。
+ * 重放按zxid判断：添加和替换只应用mzxid更新的记录，删除只删除czxid不晚于被删除节点的实例，
+ * 拉取结果已经包含的修改重放时被忽略，因此重放与事件和拉取的先后顺序无关。
+ * 所有方法都在DiscoveryService的writeLock内调用
+ * @author cloudgyb
+ * 2021/3/30 17:10
+ */
+final class EventReplayLog {
+	/**
+	 * 最多记录的修改数，超过后不再记录，拉取结果发布后需要再进行一次全量拉取
+	 */
+	static final int MAX_MUTATIONS = 65536;
+	private final List<Mutation> mutations = new ArrayList<>();
+	private boolean overflowed;
+
+	/**
+	 * 添加或替换了一个实例
+	 */
+	void upsert(String serviceName, String instanceName, InstanceRecord record) {
+		append(new Mutation(serviceName, instanceName, record, InstanceRecord.UNKNOWN_ZXID));
+	}
+
+	/**
+	 * 删除了一个实例
+	 * @param createdZxid 被删除实例的czxid，未知时为InstanceRecord.UNKNOWN_ZXID
+	 */
+	void remove(String serviceName, String instanceName, long createdZxid) {
+		append(new Mutation(serviceName, instanceName, null, createdZxid));
+	}
+
+	/**
+	 * 记录一个服务整体替换（例如合并重新加载）带来的修改，数据没有变化的实例不记录
+	 * @param before 替换前的实例，服务不存在时为null
+	 * @param after 替换后的实例，服务被删除时为null
+	 */
+	void recordChanges(String serviceName, ServiceInstances before, ServiceInstances after) {
+		if (before != null) {
+			for (int i = 0; i < before.size(); i++) {
+				String name = before.getName(i);
+				if (after == null || after.indexOf(name) < 0)
+					remove(serviceName, name, before.getCreatedZxid(i));
+			}
+		}
+		if (after != null) {
+			for (int j = 0; j < after.size(); j++) {
+				int i = before == null ? -1 : before.indexOf(after.getName(j));
+				if (i < 0 || !before.sameEntry(i, after, j))
+					upsert(serviceName, after.getName(j), after.record(j));
+			}
+		}
+	}
+
+	private void append(Mutation mutation) {
+		if (overflowed)
+			return;
+		if (mutations.size() >= MAX_MUTATIONS) {
+			overflowed = true;
+			mutations.clear();
+			return;
+		}
+		mutations.add(mutation);
+	}
+
+	/**
+	 * @return 修改数超过上限，有修改没有记录，重放后注册表仍可能落后
+	 */
+	boolean isOverflowed() {
+		return overflowed;
+	}
+
+	int size() {
+		return mutations.size();
+	}
+
+	/**
+	 * 在拉取得到的快照上按顺序重放记录的修改
+	 * @param subscribed 只重放仍然订阅的服务
+	 * @return 重放后的快照，没有修改生效时返回snapshot
+	 */
+	RegistrySnapshot replay(RegistrySnapshot snapshot, Predicate<String> subscribed) {
+		if (mutations.isEmpty())
+			return snapshot;
+		long newVersion = snapshot.getVersion() + 1;
+		Map<String, ServiceInstances> changed = new HashMap<>();
+		for (Mutation mutation : mutations) {
+			if (!subscribed.test(mutation.serviceName))
+				continue;
+			ServiceInstances instances = changed.get(mutation.serviceName);
+			if (instances == null)
+				instances = snapshot.get(mutation.serviceName);
+			ServiceInstances applied;
+			if (mutation.record != null) {
+				if (instances == null)
+					instances = ServiceInstances.empty(mutation.serviceName, newVersion);
+				applied = instances.withNewer(mutation.instanceName, mutation.record, newVersion);
+			}
+			else {
+				if (instances == null)
+					continue;
+				applied = instances.withoutIncarnation(mutation.instanceName, mutation.createdZxid, newVersion);
+			}
+			if (applied != instances)
+				changed.put(mutation.serviceName, applied);
+		}
+		for (ServiceInstances instances : changed.values())
+			snapshot = snapshot.with(instances);
+		return snapshot;
+	}
+
+	private static final class Mutation {
+		private final String serviceName;
+		private final String instanceName;
+		/**
+		 * 添加或替换后的实例，删除时为null
+		 */
+		private final InstanceRecord record;
+		private final long createdZxid;
+
+		private Mutation(String serviceName, String instanceName, InstanceRecord record, long createdZxid) {
+			this.serviceName = serviceName;
+			this.instanceName = instanceName;
+			this.record = record;
+			this.createdZxid = createdZxid;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+
+/**
+ * 实例上下线的防抖和抖动抑制，按服务名+实例地址（ip:port）识别同一个实例，
+ * 因为反复重启的实例每次都会创建新的临时顺序节点，znode名称各不相同。
+ * <ul>
+ *     <li>防抖：实例下线后延迟debounce毫秒才从注册表删除，期间同一地址重新注册时，删除旧节点和添加新节点合并为一次修改</li>
+ *     <li>抖动抑制：每次下线给该地址累加1点惩罚值，惩罚值按半衰期指数衰减；
+ *     重新注册时惩罚值不低于suppress则暂不加入注册表，等衰减到suppress的一半以下再加入</li>
+ * </ul>
+ * 除计数器外的方法都在DiscoveryService的writeLock内调用。全量拉取的结果直接发布，不经过防抖和抑制
+ * @author cloudgyb
+ * 2021/3/30 10:20
+ */
+final class FlapDamper {
+	/**
+	 * 惩罚值的上限为suppress的这么多倍，限制最长的抑制时间（上限衰减到suppress的一半需要2个半衰期）
+	 */
+	private static final int MAX_PENALTY_FACTOR = 2;
+	/**
+	 * 衰减到该值以下的惩罚记录被清理
+	 */
+	private static final double MIN_PENALTY = 0.05;
+	/**
+	 * 惩罚记录超过这么多条时清理已衰减的记录
+	 */
+	private static final int SWEEP_THRESHOLD = 1024;
+	private final long debounceMillis;
+	private final double suppress;
+	private final double reuse;
+	private final long halfLifeMillis;
+	private final ScheduledExecutorService timer;
+	/**
+	 * 计算惩罚值衰减使用的当前时间（毫秒），测试时可以替换
+	 */
+	private final LongSupplier clock;
+	/**
+	 * 服务名/地址 -> 等待删除的实例
+	 */
+	private final Map<String, PendingRemoval> pendingRemovals = new HashMap<>();
+	/**
+	 * 服务名/地址 -> 惩罚值
+	 */
+	private final Map<String, Penalty> penalties = new HashMap<>();
+	private int sweepAt = SWEEP_THRESHOLD;
+	/**
+	 * 服务名/znode名称 -> 被暂缓加入注册表的实例地址
+	 */
+	private final Map<String, String> withheld = new HashMap<>();
+	private final AtomicInteger withheldCount = new AtomicInteger();
+
+	private final LongAdder deferred = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder suppressed = new LongAdder();
+	private final LongAdder released = new LongAdder();
+
+	/**
+	 * @param debounceMillis 删除的延迟，0表示不延迟
+	 * @param suppress 抑制重新注册的惩罚值，0表示不抑制
+	 * @param halfLifeMillis 惩罚值的半衰期
+	 */
+	FlapDamper(long debounceMillis, int suppress, long halfLifeMillis) {
+		this(debounceMillis, suppress, halfLifeMillis, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param clock 当前时间（毫秒）
+	 */
+	FlapDamper(long debounceMillis, int suppress, long halfLifeMillis, LongSupplier clock) {
+		this.debounceMillis = debounceMillis;
+		this.clock = clock;
+		this.suppress = suppress;
+		this.reuse = suppress / 2.0;
+		this.halfLifeMillis = halfLifeMillis;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-flap-damper");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static String key(String serviceName, String name) {
+		return serviceName + "/" + name;
+	}
+
+	/**
+	 * 实例下线，累加惩罚值，启用防抖时延迟删除
+	 * @param apply 延迟到期后执行删除的任务，应调用completeRemoval确认仍需删除
+	 * @return 已延迟返回true，调用方不应立即删除
+	 */
+	boolean removed(String serviceName, String instanceName, String address, Runnable apply) {
+		String key = key(serviceName, address);
+		penalize(key);
+		if (debounceMillis <= 0)
+			return false;
+		//同一地址还有未到期的删除（极少见），先删除的那个直接删除
+		if (pendingRemovals.containsKey(key))
+			return false;
+		pendingRemovals.put(key, new PendingRemoval(instanceName));
+		deferred.increment();
+		timer.schedule(apply, debounceMillis, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * 延迟到期时调用
+	 * @return 该删除仍未被合并，需要从注册表删除时返回true
+	 */
+	boolean completeRemoval(String serviceName, String instanceName, String address) {
+		String key = key(serviceName, address);
+		PendingRemoval pending = pendingRemovals.get(key);
+		if (pending == null || !pending.instanceName.equals(instanceName))
+			return false;
+		pendingRemovals.remove(key);
+		return true;
+	}
+
+	/**
+	 * 同一地址重新注册时取出等待删除的旧实例，与添加合并为一次修改
+	 * @return 等待删除的旧实例的znode名称，没有时返回null
+	 */
+	String takeRemoval(String serviceName, String address) {
+		PendingRemoval pending = pendingRemovals.remove(key(serviceName, address));
+		if (pending == null)
+			return null;
+		coalesced.increment();
+		return pending.instanceName;
+	}
+
+	/**
+	 * @return 实例重新注册时需要暂缓多久（毫秒）才能加入注册表，不需要抑制时返回0
+	 */
+	long holdMillis(String serviceName, String address) {
+		if (suppress <= 0)
+			return 0;
+		Penalty penalty = penalties.get(key(serviceName, address));
+		if (penalty == null)
+			return 0;
+		double value = penalty.decayed(clock.getAsLong(), halfLifeMillis);
+		if (!penalty.suppressed && value >= suppress)
+			penalty.suppressed = true;
+		else if (penalty.suppressed && value < reuse)
+			penalty.suppressed = false;
+		if (!penalty.suppressed)
+			return 0;
+		//衰减到reuse需要的时间
+		return Math.max(1, (long) Math.ceil(halfLifeMillis * Math.log(value / reuse) / Math.log(2)));
+	}
+
+	/**
+	 * 暂缓加入注册表
+	 * @param release 到期后执行的任务，应调用release确认实例仍然存在
+	 */
+	void withhold(String serviceName, String instanceName, String address, long holdMillis, Runnable release) {
+		if (withheld.put(key(serviceName, instanceName), address) == null)
+			withheldCount.incrementAndGet();
+		suppressed.increment();
+		timer.schedule(release, holdMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return 实例是否正被暂缓加入注册表
+	 */
+	boolean isWithheld(String serviceName, String instanceName) {
+		return withheld.containsKey(key(serviceName, instanceName));
+	}
+
+	/**
+	 * 暂缓到期时调用
+	 * @return 实例仍被暂缓（期间没有下线）时返回true，调用方重新读取并加入注册表
+	 */
+	boolean release(String serviceName, String instanceName) {
+		if (withheld.remove(key(serviceName, instanceName)) == null)
+			return false;
+		withheldCount.decrementAndGet();
+		released.increment();
+		return true;
+	}
+
+	/**
+	 * 被暂缓的实例下线，同样累加惩罚值
+	 * @return 实例被暂缓时返回true
+	 */
+	boolean removeWithheld(String serviceName, String instanceName) {
+		String address = withheld.remove(key(serviceName, instanceName));
+		if (address == null)
+			return false;
+		withheldCount.decrementAndGet();
+		penalize(key(serviceName, address));
+		return true;
+	}
+
+	private void penalize(String key) {
+		if (suppress <= 0)
+			return;
+		long now = clock.getAsLong();
+		Penalty penalty = penalties.get(key);
+		if (penalty == null)
+			penalties.put(key, penalty = new Penalty());
+		penalty.value = Math.min(suppress * MAX_PENALTY_FACTOR, penalty.decayed(now, halfLifeMillis) + 1);
+		penalty.updatedAt = now;
+		if (penalties.size() >= sweepAt) {
+			for (Iterator<Penalty> it = penalties.values().iterator(); it.hasNext(); ) {
+				if (it.next().decayed(now, halfLifeMillis) < MIN_PENALTY)
+					it.remove();
+			}
+			sweepAt = Math.max(SWEEP_THRESHOLD, penalties.size() * 2);
+		}
+	}
+
+	void bindMetrics(DiscoveryMetrics metrics) {
+		metrics.gauge("damping.deferredRemovals", this::getDeferredCount);
+		metrics.gauge("damping.coalesced", this::getCoalescedCount);
+		metrics.gauge("damping.suppressed", this::getSuppressedCount);
+		metrics.gauge("damping.released", this::getReleasedCount);
+		metrics.gauge("damping.withheld", this::getWithheldCount);
+	}
+
+	void shutdown() {
+		timer.shutdownNow();
+	}
+
+	/**
+	 * @return 延迟删除的次数
+	 */
+	long getDeferredCount() {
+		return deferred.sum();
+	}
+
+	/**
+	 * @return 延迟期间同一地址重新注册，删除和添加合并为一次修改的次数
+	 */
+	long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * @return 重新注册因抖动被暂缓的次数
+	 */
+	long getSuppressedCount() {
+		return suppressed.sum();
+	}
+
+	/**
+	 * @return 暂缓到期后加入注册表的次数
+	 */
+	long getReleasedCount() {
+		return released.sum();
+	}
+
+	/**
+	 * @return 当前被暂缓的实例数
+	 */
+	long getWithheldCount() {
+		return withheldCount.get();
+	}
+
+	private static final class PendingRemoval {
+		private final String instanceName;
+
+		private PendingRemoval(String instanceName) {
+			this.instanceName = instanceName;
+		}
+	}
+
+	private static final class Penalty {
+		private double value;
+		private long updatedAt;
+		/**
+		 * 超过suppress后一直抑制，直到衰减到reuse以下
+		 */
+		private boolean suppressed;
+
+		private double decayed(long now, long halfLifeMillis) {
+			long elapsed = Math.max(0, now - updatedAt);
+			return value * Math.pow(0.5, (double) elapsed / halfLifeMillis);
+		}
+	}
+}
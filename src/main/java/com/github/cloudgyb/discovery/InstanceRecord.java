@@ -0,0 +1,86 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 拉取到的一个实例：实例信息及其znode的数据版本号、czxid和mzxid，用于丢弃过时的更新及增量同步。
+ * mzxid全局递增，同名节点删除后重建时也更大，所以只应用mzxid更大的更新；czxid标识节点的一次创建，
+ * 删除时只删除czxid不晚于被删除节点的实例，不会误删之后重建的同名节点。
+ * 全量拉取的实例只保存znode数据（data）和解码用的编解码器，info为null，由ServiceInstances在首次访问时解码
+ * @author cloudgyb
+ * 2021/3/19 16:10
+ */
+final class InstanceRecord {
+	/**
+	 * 数据版本未知，例如来自本地快照，任何更新都会被接受
+	 */
+	static final int UNKNOWN_VERSION = -1;
+	/**
+	 * zxid未知，zookeeper的zxid从1开始
+	 */
+	static final long UNKNOWN_ZXID = 0;
+
+	final ServiceInstanceInfo info;
+	final byte[] data;
+	final ServiceInstanceCodec codec;
+	final int dataVersion;
+	final long createdZxid;
+	final long modifiedZxid;
+
+	InstanceRecord(ServiceInstanceInfo info, int dataVersion, long createdZxid, long modifiedZxid) {
+		this(info, null, null, dataVersion, createdZxid, modifiedZxid);
+	}
+
+	private InstanceRecord(ServiceInstanceInfo info, byte[] data, ServiceInstanceCodec codec, int dataVersion,
+			long createdZxid, long modifiedZxid) {
+		this.info = info;
+		this.data = data;
+		this.codec = codec;
+		this.dataVersion = dataVersion;
+		this.createdZxid = createdZxid;
+		this.modifiedZxid = modifiedZxid;
+	}
+
+	/**
+	 * @param data 尚未解码的znode数据，调用方应先用codec.canDecode检查数据头
+	 * @return 首次访问时才解码的记录
+	 */
+	static InstanceRecord encoded(byte[] data, ServiceInstanceCodec codec, int dataVersion, long createdZxid,
+			long modifiedZxid) {
+		return new InstanceRecord(null, data, codec, dataVersion, createdZxid, modifiedZxid);
+	}
+
+	/**
+	 * @param modifiedZxid 现有实例的mzxid
+	 * @return 该记录是否比现有实例更新，任一方的mzxid未知时视为更新
+	 */
+	boolean isNewerThan(long modifiedZxid) {
+		return modifiedZxid == UNKNOWN_ZXID || this.modifiedZxid == UNKNOWN_ZXID || this.modifiedZxid > modifiedZxid;
+	}
+
+	/**
+	 * @return 实例信息，尚未解码时为znode数据
+	 */
+	Object entry() {
+		return info != null ? info : data;
+	}
+
+	/**
+	 * @return 服务名 -> (znode名称 -> 数据版本未知的记录)
+	 */
+	static Map<String, Map<String, InstanceRecord>> unversioned(Map<String, Map<String, ServiceInstanceInfo>> registry) {
+		Map<String, Map<String, InstanceRecord>> records = new HashMap<>(Math.max(4, registry.size() * 4 / 3 + 1));
+		for (Map.Entry<String, Map<String, ServiceInstanceInfo>> service : registry.entrySet()) {
+			Map<String, InstanceRecord> instances = new HashMap<>(Math.max(4, service.getValue().size() * 4 / 3 + 1));
+			for (Map.Entry<String, ServiceInstanceInfo> instance : service.getValue().entrySet())
+				instances.put(instance.getKey(), new InstanceRecord(instance.getValue(), UNKNOWN_VERSION,
+						UNKNOWN_ZXID, UNKNOWN_ZXID));
+			records.put(service.getKey(), instances);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 注册表在两个快照版本之间的变化，按服务分组
+ * @author cloudgyb
+ * 2021/3/19 10:35
+ */
+public final class RegistryChangeEvent {
+	private final long fromVersion;
+	private final long toVersion;
+	private final List<ServiceChange> changes;
+
+	RegistryChangeEvent(long fromVersion, long toVersion, List<ServiceChange> changes) {
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	/**
+	 * 比较两个注册表快照，没有变化的服务沿用同一个ServiceInstances对象，只需比较引用
+	 */
+	static RegistryChangeEvent diff(RegistrySnapshot before, RegistrySnapshot after) {
+		List<ServiceChange> changes = new ArrayList<>();
+		for (String serviceName : after.getServiceNames()) {
+			ServiceChange change = ServiceChange.diff(serviceName, before.get(serviceName), after.get(serviceName));
+			if (change != null)
+				changes.add(change);
+		}
+		for (String serviceName : before.getServiceNames()) {
+			if (after.get(serviceName) != null)
+				continue;
+			ServiceChange change = ServiceChange.diff(serviceName, before.get(serviceName), null);
+			if (change != null)
+				changes.add(change);
+		}
+		return new RegistryChangeEvent(before.getVersion(), after.getVersion(), changes);
+	}
+
+	/**
+	 * @return 变化前的注册表版本
+	 */
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	/**
+	 * @return 变化后的注册表版本
+	 */
+	public long getToVersion() {
+		return toVersion;
+	}
+
+	public List<ServiceChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return 该服务的变化，没有变化时返回null
+	 */
+	public ServiceChange getChange(String serviceName) {
+		for (ServiceChange change : changes) {
+			if (change.getServiceName().equals(serviceName))
+				return change;
+		}
+		return null;
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "RegistryChangeEvent{" +
+				"fromVersion=" + fromVersion +
+				", toVersion=" + toVersion +
+				", changes=" + changes +
+				'}';
+	}
+}
@@ -0,0 +1,16 @@
+package com.github.cloudgyb.discovery;
+
+/**
+ * 注册表变化监听器，通过DiscoveryService.addChangeListener注册。
+ * 同一批次内的所有变化合并为一个事件，在监听器线程上按版本顺序依次回调，回调中不应执行耗时操作。
+ * @author cloudgyb
+ * 2021/3/19 10:10
+ */
+@FunctionalInterface
+public interface RegistryChangeListener {
+
+	/**
+	 * @param event 注册表从event.getFromVersion()到event.getToVersion()的变化
+	 */
+	void onChange(RegistryChangeEvent event);
+}
@@ -0,0 +1,164 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 注册表变化日志：按通知批次记录注册表的变化，保存在固定容量的环形缓冲区中，写满后覆盖最早的批次。
+ * 序号就是注册表快照的版本号，单调递增，每个批次记录变化前后的版本号。
+ * 每个批次只保存变化的实例（变化前被删除或修改的实例、变化后新增或修改的实例），不引用完整的快照，
+ * 也不解码尚未解码的实例，查询时才计算出新增、删除和更新的实例。
+ * @author cloudgyb
+ * 2021/3/31 10:30
+ */
+final class RegistryJournal {
+	private final Entry[] entries;
+	/**
+	 * 最早的批次在entries中的下标
+	 */
+	private int head;
+	private int size;
+	/**
+	 * 从该序号起的变化都还在日志中，覆盖一个批次后前移到该批次变化后的版本号
+	 */
+	private long firstSequence;
+	private long lastSequence;
+
+	/**
+	 * @param capacity 最多保留的批次数
+	 * @param initialSequence 开始记录时的注册表版本号
+	 */
+	RegistryJournal(int capacity, long initialSequence) {
+		this.entries = new Entry[capacity];
+		this.firstSequence = initialSequence;
+		this.lastSequence = initialSequence;
+	}
+
+	/**
+	 * 记录注册表从before到after的变化，没有变化的服务只比较引用
+	 */
+	synchronized void append(RegistrySnapshot before, RegistrySnapshot after) {
+		List<ServiceDelta> deltas = new ArrayList<>();
+		for (String serviceName : after.getServiceNames()) {
+			ServiceInstances previous = before.get(serviceName);
+			ServiceInstances current = after.get(serviceName);
+			if (previous == current)
+				continue;
+			ServiceInstances removed = previous == null ? null : previous.changedSince(current);
+			ServiceInstances added = current.changedSince(previous);
+			if ((removed == null || removed.isEmpty()) && added.isEmpty())
+				continue;
+			deltas.add(new ServiceDelta(serviceName, removed, added));
+		}
+		for (String serviceName : before.getServiceNames()) {
+			ServiceInstances previous = before.get(serviceName);
+			if (after.get(serviceName) == null && !previous.isEmpty())
+				deltas.add(new ServiceDelta(serviceName, previous, null));
+		}
+		lastSequence = after.getVersion();
+		if (deltas.isEmpty())
+			return;
+		Entry entry = new Entry(before.getVersion(), after.getVersion(), deltas);
+		if (size == entries.length) {
+			firstSequence = entries[head].toVersion;
+			entries[head] = entry;
+			head = (head + 1) % entries.length;
+		}
+		else {
+			entries[(head + size) % entries.length] = entry;
+			size++;
+		}
+	}
+
+	/**
+	 * @param sequence 调用方已同步到的注册表版本号
+	 * @return 变化后的版本号大于sequence的所有批次，按版本顺序排列；部分批次已被覆盖时返回null，调用方应重新获取完整快照。
+	 * 批次的变化前版本号可能早于sequence，调用方需要能重复应用同一变化
+	 */
+	synchronized List<RegistryChangeEvent> changesSince(long sequence) {
+		if (sequence < firstSequence)
+			return null;
+		//二分查找第一个变化后版本号大于sequence的批次
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entry(mid).toVersion <= sequence)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if (low == size)
+			return Collections.emptyList();
+		List<RegistryChangeEvent> events = new ArrayList<>(size - low);
+		for (int i = low; i < size; i++)
+			events.add(entry(i).toEvent());
+		return events;
+	}
+
+	private Entry entry(int i) {
+		return entries[(head + i) % entries.length];
+	}
+
+	/**
+	 * @return 可以查询的最早序号，更早的变化已被覆盖
+	 */
+	synchronized long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * @return 最后记录的注册表版本号
+	 */
+	synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return 日志中的批次数
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	private static final class Entry {
+		private final long fromVersion;
+		private final long toVersion;
+		private final List<ServiceDelta> deltas;
+
+		private Entry(long fromVersion, long toVersion, List<ServiceDelta> deltas) {
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.deltas = deltas;
+		}
+
+		private RegistryChangeEvent toEvent() {
+			List<ServiceChange> changes = new ArrayList<>(deltas.size());
+			for (ServiceDelta delta : deltas) {
+				ServiceChange change = ServiceChange.delta(delta.serviceName, delta.before, delta.after);
+				if (change != null)
+					changes.add(change);
+			}
+			return new RegistryChangeEvent(fromVersion, toVersion, changes);
+		}
+	}
+
+	private static final class ServiceDelta {
+		private final String serviceName;
+		/**
+		 * 变化前被删除或修改的实例，没有时为null
+		 */
+		private final ServiceInstances before;
+		/**
+		 * 变化后新增或修改的实例，服务已删除时为null
+		 */
+		private final ServiceInstances after;
+
+		private ServiceDelta(String serviceName, ServiceInstances before, ServiceInstances after) {
+			this.serviceName = serviceName;
+			this.before = before;
+			this.after = after;
+		}
+	}
+}
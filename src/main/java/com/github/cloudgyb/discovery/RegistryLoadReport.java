@@ -0,0 +1,99 @@
+package com.github.cloudgyb.discovery;
+
+/**
+ * 一次拉取注册表的耗时报告，用于对比串行、异步流水线及增量三种加载方式
+ * @author cloudgyb
+ * 2021/3/9 15:10
+ */
+public class RegistryLoadReport {
+	private final String mode;
+	private final int services;
+	private final int instances;
+	private final int requests;
+	private final int maxInFlight;
+	private final long elapsedNanos;
+	private final int dataReads;
+	private final int reusedInstances;
+
+	RegistryLoadReport(String mode, int services, int instances, int requests, int maxInFlight,
+			long elapsedNanos) {
+		this(mode, services, instances, requests, maxInFlight, elapsedNanos, instances, 0);
+	}
+
+	RegistryLoadReport(String mode, int services, int instances, int requests, int maxInFlight,
+			long elapsedNanos, int dataReads, int reusedInstances) {
+		this.mode = mode;
+		this.services = services;
+		this.instances = instances;
+		this.requests = requests;
+		this.maxInFlight = maxInFlight;
+		this.elapsedNanos = elapsedNanos;
+		this.dataReads = dataReads;
+		this.reusedInstances = reusedInstances;
+	}
+
+	/**
+	 * @return serial、async或incremental
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	public int getServices() {
+		return services;
+	}
+
+	public int getInstances() {
+		return instances;
+	}
+
+	/**
+	 * @return 发送给zookeeper的请求数
+	 */
+	public int getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return 同时在途的最大请求数，串行方式为1
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @return 读取并解析实例数据（getData）的次数
+	 */
+	public int getDataReads() {
+		return dataReads;
+	}
+
+	/**
+	 * @return 增量加载时mzxid没有变化、沿用旧快照对象的实例数
+	 */
+	public int getReusedInstances() {
+		return reusedInstances;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "RegistryLoadReport{" +
+				"mode=" + mode +
+				", services=" + services +
+				", instances=" + instances +
+				", requests=" + requests +
+				", maxInFlight=" + maxInFlight +
+				", dataReads=" + dataReads +
+				", reused=" + reusedInstances +
+				", elapsed=" + getElapsedMillis() + "ms" +
+				'}';
+	}
+}
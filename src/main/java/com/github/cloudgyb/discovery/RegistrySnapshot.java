@@ -0,0 +1,176 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 整个注册表的不可变快照，服务名 -> ServiceInstances。
+ * DiscoveryService通过一个volatile引用发布快照，读取时无锁，修改时复制出新的快照。
+ * @author cloudgyb
+ * 2021/3/11 14:40
+ */
+public final class RegistrySnapshot {
+	static final RegistrySnapshot EMPTY = new RegistrySnapshot(0, Collections.emptyMap());
+
+	private final long version;
+	private final Map<String, ServiceInstances> services;
+
+	private RegistrySnapshot(long version, Map<String, ServiceInstances> services) {
+		this.version = version;
+		this.services = services;
+	}
+
+	/**
+	 * @param services 服务名 -> 实例快照，之后不能再修改
+	 */
+	static RegistrySnapshot of(long version, Map<String, ServiceInstances> services) {
+		return new RegistrySnapshot(version, services);
+	}
+
+	/**
+	 * @return 替换（或添加）一个服务后的新快照，版本号加1
+	 */
+	RegistrySnapshot with(ServiceInstances instances) {
+		HashMap<String, ServiceInstances> newServices = new HashMap<>(services);
+		newServices.put(instances.getServiceName(), instances);
+		return new RegistrySnapshot(version + 1, newServices);
+	}
+
+	/**
+	 * @return 删除一个服务后的新快照，版本号加1
+	 */
+	RegistrySnapshot without(String serviceName) {
+		if (!services.containsKey(serviceName))
+			return this;
+		HashMap<String, ServiceInstances> newServices = new HashMap<>(services);
+		newServices.remove(serviceName);
+		return new RegistrySnapshot(version + 1, newServices);
+	}
+
+	/**
+	 * 使用全量拉取的结果创建新快照，实例及数据版本都没有变化的服务沿用旧快照中的对象
+	 * @param registry 服务名 -> (znode名称 -> 实例及数据版本号)
+	 * @param childrenZxids 服务名 -> 拉取时服务znode的pzxid，不包含的服务记为未知
+	 */
+	RegistrySnapshot replaceAll(Map<String, Map<String, InstanceRecord>> registry, Map<String, Long> childrenZxids) {
+		long newVersion = version + 1;
+		HashMap<String, ServiceInstances> newServices = new HashMap<>(Math.max(4, registry.size() * 4 / 3 + 1));
+		for (Map.Entry<String, Map<String, InstanceRecord>> entry : registry.entrySet())
+			newServices.put(entry.getKey(), merge(entry.getKey(), entry.getValue(), childrenZxids, newVersion));
+		return new RegistrySnapshot(newVersion, newServices);
+	}
+
+	private ServiceInstances merge(String serviceName, Map<String, InstanceRecord> records,
+			Map<String, Long> childrenZxids, long newVersion) {
+		Long childrenZxid = childrenZxids.get(serviceName);
+		long zxid = childrenZxid == null ? InstanceRecord.UNKNOWN_ZXID : childrenZxid;
+		ServiceInstances fresh = ServiceInstances.ofRecords(serviceName, newVersion, records, zxid);
+		ServiceInstances old = services.get(serviceName);
+		if (!fresh.sameEntries(old))
+			return fresh;
+		old.recordChildrenZxid(zxid);
+		return old;
+	}
+
+	/**
+	 * 替换部分服务并删除另一部分服务，其余服务保持不变，实例及数据版本都没有变化的服务沿用旧快照中的对象
+	 * @param registry 要替换的服务：服务名 -> (znode名称 -> 实例及数据版本号)
+	 * @param removed 要删除的服务
+	 * @param childrenZxids 服务名 -> 拉取时服务znode的pzxid，不包含的服务记为未知
+	 */
+	RegistrySnapshot replace(Map<String, Map<String, InstanceRecord>> registry, Collection<String> removed,
+			Map<String, Long> childrenZxids) {
+		long newVersion = version + 1;
+		HashMap<String, ServiceInstances> newServices = new HashMap<>(services);
+		for (Map.Entry<String, Map<String, InstanceRecord>> entry : registry.entrySet())
+			newServices.put(entry.getKey(), merge(entry.getKey(), entry.getValue(), childrenZxids, newVersion));
+		for (String serviceName : removed)
+			newServices.remove(serviceName);
+		return new RegistrySnapshot(newVersion, newServices);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return 服务对应的实例快照，服务不存在时返回null
+	 */
+	public ServiceInstances get(String serviceName) {
+		return services.get(serviceName);
+	}
+
+	public Set<String> getServiceNames() {
+		return Collections.unmodifiableSet(services.keySet());
+	}
+
+	public int size() {
+		return services.size();
+	}
+
+	/**
+	 * @return 兼容旧接口的只读视图：服务名 -> (znode名称 -> 实例信息)
+	 */
+	public Map<String, Map<String, ServiceInstanceInfo>> asMap() {
+		return new AbstractMap<String, Map<String, ServiceInstanceInfo>>() {
+			@Override
+			public Map<String, ServiceInstanceInfo> get(Object key) {
+				ServiceInstances instances = services.get(key);
+				return instances == null ? null : instances.asMap();
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return services.containsKey(key);
+			}
+
+			@Override
+			public int size() {
+				return services.size();
+			}
+
+			@Override
+			public Set<Entry<String, Map<String, ServiceInstanceInfo>>> entrySet() {
+				return new AbstractSet<Entry<String, Map<String, ServiceInstanceInfo>>>() {
+					@Override
+					public Iterator<Entry<String, Map<String, ServiceInstanceInfo>>> iterator() {
+						Iterator<Entry<String, ServiceInstances>> it = services.entrySet().iterator();
+						return new Iterator<Entry<String, Map<String, ServiceInstanceInfo>>>() {
+							@Override
+							public boolean hasNext() {
+								return it.hasNext();
+							}
+
+							@Override
+							public Entry<String, Map<String, ServiceInstanceInfo>> next() {
+								Entry<String, ServiceInstances> e = it.next();
+								return new SimpleImmutableEntry<>(e.getKey(), e.getValue().asMap());
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return services.size();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "RegistrySnapshot{" +
+				"version=" + version +
+				", services=" + services.size() +
+				'}';
+	}
+}
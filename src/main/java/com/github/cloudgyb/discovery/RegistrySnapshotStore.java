@@ -0,0 +1,219 @@
+package com.github.cloudgyb.discovery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 本地注册表快照文件，用于快速启动和zookeeper不可用时继续提供服务发现。
+ * 写入时先写临时文件再原子重命名，读取时使用内存映射。文件布局（大端）：
+ * <pre>
+ * magic         4字节 'ZSNP'
+ * formatVersion 4字节
+ * writtenAt     8字节 写入时间（毫秒）
+ * version       8字节 注册表版本号
+ * serviceCount  4字节
+ *   serviceName     string
+ *   instanceCount   4字节
+ *     instanceName  string
+ *     dataLength    4字节
+ *     data          编码后的实例信息
+ * crc32         4字节 之前所有字节的CRC32
+ * string = 2字节长度 + UTF-8字节
+ * </pre>
+ * @author cloudgyb
+ * 2021/3/16 10:20
+ */
+public class RegistrySnapshotStore {
+	private final Logger logger = LoggerFactory.getLogger(RegistrySnapshotStore.class);
+	private static final int MAGIC = 0x5A534E50;
+	private static final int FORMAT_VERSION = 1;
+	private final Path file;
+	private final ServiceInstanceCodec codec;
+
+	public RegistrySnapshotStore(Path file, ServiceInstanceCodec codec) {
+		this.file = file;
+		this.codec = codec;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * 原子地写入快照文件
+	 */
+	public void write(RegistrySnapshot snapshot) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null)
+			Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			CRC32 crc = new CRC32();
+			try (OutputStream fos = Files.newOutputStream(tmp);
+				 DataOutputStream out = new DataOutputStream(
+						 new CheckedOutputStream(new BufferedOutputStream(fos, 64 * 1024), crc))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(snapshot.getVersion());
+				out.writeInt(snapshot.size());
+				for (String serviceName : snapshot.getServiceNames()) {
+					ServiceInstances instances = snapshot.get(serviceName);
+					writeString(out, serviceName);
+					out.writeInt(instances.size());
+					for (int i = 0; i < instances.size(); i++) {
+						writeString(out, instances.getName(i));
+						byte[] data = encode(instances, i);
+						out.writeInt(data.length);
+						out.write(data);
+					}
+				}
+				//crc不计入自身
+				out.flush();
+				new DataOutputStream(fos).writeInt((int) crc.getValue());
+			}
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (CodecException e) {
+			throw new IOException("编码服务实例信息失败！", e);
+		}
+		finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * 读取快照文件
+	 * @return 文件不存在或已损坏时返回null
+	 */
+	public Loaded read() {
+		if (!Files.isRegularFile(file))
+			return null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 32 || size > Integer.MAX_VALUE) {
+				logger.warn("本地注册表快照文件大小不合法：" + file);
+				return null;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int bodyLength = (int) size - 4;
+			CRC32 crc = new CRC32();
+			ByteBuffer body = buf.duplicate();
+			((Buffer) body).limit(bodyLength);
+			crc.update(body);
+			if ((int) crc.getValue() != buf.getInt(bodyLength)) {
+				logger.warn("本地注册表快照文件校验失败：" + file);
+				return null;
+			}
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+				logger.warn("不支持的本地注册表快照文件格式：" + file);
+				return null;
+			}
+			long writtenAt = buf.getLong();
+			long version = buf.getLong();
+			int serviceCount = buf.getInt();
+			Map<String, Map<String, ServiceInstanceInfo>> registry = new HashMap<>(Math.max(4, serviceCount * 2));
+			for (int s = 0; s < serviceCount; s++) {
+				String serviceName = readString(buf);
+				int instanceCount = buf.getInt();
+				Map<String, ServiceInstanceInfo> instances = new HashMap<>(Math.max(4, instanceCount * 2));
+				for (int i = 0; i < instanceCount; i++) {
+					String name = readString(buf);
+					int dataLength = buf.getInt();
+					if (dataLength < 0 || dataLength > buf.remaining())
+						throw new IOException("实例数据长度不合法：" + dataLength);
+					byte[] data = new byte[dataLength];
+					buf.get(data);
+					instances.put(name, codec.decode(data));
+				}
+				registry.put(serviceName, instances);
+			}
+			return new Loaded(registry, writtenAt, version);
+		}
+		catch (IOException | CodecException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.warn("读取本地注册表快照文件失败：" + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * 尚未解码的实例直接写入拉取到的数据，不需要先解码再编码
+	 */
+	private byte[] encode(ServiceInstances instances, int i) throws CodecException {
+		byte[] data = instances.payload(i);
+		return data != null && codec.canDecode(data) ? data : codec.encode(instances.get(i));
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer buf) {
+		byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 从文件读取的快照内容
+	 */
+	public static final class Loaded {
+		private final Map<String, Map<String, ServiceInstanceInfo>> registry;
+		private final long writtenAt;
+		private final long version;
+
+		private Loaded(Map<String, Map<String, ServiceInstanceInfo>> registry, long writtenAt, long version) {
+			this.registry = registry;
+			this.writtenAt = writtenAt;
+			this.version = version;
+		}
+
+		public Map<String, Map<String, ServiceInstanceInfo>> getRegistry() {
+			return registry;
+		}
+
+		/**
+		 * @return 快照写入时间（毫秒）
+		 */
+		public long getWrittenAt() {
+			return writtenAt;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+	}
+}
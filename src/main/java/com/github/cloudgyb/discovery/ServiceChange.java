@@ -0,0 +1,153 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 一个服务在两个注册表快照之间的变化：新增、删除和更新的实例，key为实例的znode名称
+ * @author cloudgyb
+ * 2021/3/19 10:20
+ */
+public final class ServiceChange {
+	private final String serviceName;
+	private final ServiceInstances before;
+	private final ServiceInstances after;
+	private final Map<String, ServiceInstanceInfo> added;
+	private final Map<String, ServiceInstanceInfo> removed;
+	private final Map<String, ServiceInstanceInfo> updated;
+
+	private ServiceChange(String serviceName, ServiceInstances before, ServiceInstances after,
+			Map<String, ServiceInstanceInfo> added, Map<String, ServiceInstanceInfo> removed,
+			Map<String, ServiceInstanceInfo> updated) {
+		this.serviceName = serviceName;
+		this.before = before;
+		this.after = after;
+		this.added = added;
+		this.removed = removed;
+		this.updated = updated;
+	}
+
+	/**
+	 * 比较同一服务的两个快照，实例按znode名称排序，一次归并即可得到差异
+	 * @param before 变化前的快照，服务不存在时为null
+	 * @param after 变化后的快照，服务已删除时为null
+	 * @return 没有变化时返回null
+	 */
+	static ServiceChange diff(String serviceName, ServiceInstances before, ServiceInstances after) {
+		return diff(serviceName, before, after, true);
+	}
+
+	/**
+	 * 从变化日志保存的部分实例得到变化，结果不引用完整的快照
+	 * @param before 变化前被删除或修改的实例，没有时为null
+	 * @param after 变化后新增或修改的实例，没有时为null
+	 * @return 没有变化时返回null
+	 */
+	static ServiceChange delta(String serviceName, ServiceInstances before, ServiceInstances after) {
+		return diff(serviceName, before, after, false);
+	}
+
+	private static ServiceChange diff(String serviceName, ServiceInstances before, ServiceInstances after,
+			boolean keepSnapshots) {
+		if (before == after)
+			return null;
+		Map<String, ServiceInstanceInfo> added = new LinkedHashMap<>();
+		Map<String, ServiceInstanceInfo> removed = new LinkedHashMap<>();
+		Map<String, ServiceInstanceInfo> updated = new LinkedHashMap<>();
+		int n = before == null ? 0 : before.size();
+		int m = after == null ? 0 : after.size();
+		int i = 0;
+		int j = 0;
+		while (i < n || j < m) {
+			int cmp = i == n ? 1 : j == m ? -1 : before.getName(i).compareTo(after.getName(j));
+			if (cmp < 0) {
+				removed.put(before.getName(i), before.get(i));
+				i++;
+			}
+			else if (cmp > 0) {
+				added.put(after.getName(j), after.get(j));
+				j++;
+			}
+			else {
+				if (!before.sameEntry(i, after, j) && !sameContent(before.get(i), after.get(j)))
+					updated.put(after.getName(j), after.get(j));
+				i++;
+				j++;
+			}
+		}
+		if (added.isEmpty() && removed.isEmpty() && updated.isEmpty())
+			return null;
+		return new ServiceChange(serviceName, keepSnapshots ? before : null, keepSnapshots ? after : null,
+				unmodifiable(added), unmodifiable(removed), unmodifiable(updated));
+	}
+
+	/**
+	 * 全量拉取会重新解码所有实例，所以不能只比较对象引用
+	 */
+	static boolean sameContent(ServiceInstanceInfo a, ServiceInstanceInfo b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+		return a.getPort() == b.getPort() && a.getWeight() == b.getWeight() && a.getStatus() == b.getStatus() &&
+				Objects.equals(a.getServiceName(), b.getServiceName()) && Objects.equals(a.getIp(), b.getIp()) &&
+				a.getMetadata().equals(b.getMetadata());
+	}
+
+	private static Map<String, ServiceInstanceInfo> unmodifiable(Map<String, ServiceInstanceInfo> map) {
+		return map.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(map);
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	/**
+	 * @return 变化前的实例快照，新出现的服务为null，从变化日志查询或补发的变化也为null
+	 */
+	public ServiceInstances getBefore() {
+		return before;
+	}
+
+	/**
+	 * @return 变化后的实例快照，已删除的服务为null，从变化日志查询或补发的变化也为null
+	 */
+	public ServiceInstances getAfter() {
+		return after;
+	}
+
+	/**
+	 * @return znode名称 -> 新增的实例
+	 */
+	public Map<String, ServiceInstanceInfo> getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return znode名称 -> 删除的实例（删除前的信息）
+	 */
+	public Map<String, ServiceInstanceInfo> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * @return znode名称 -> 更新的实例（更新后的信息）
+	 */
+	public Map<String, ServiceInstanceInfo> getUpdated() {
+		return updated;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceChange{" +
+				"serviceName='" + serviceName + '\'' +
+				", added=" + added.size() +
+				", removed=" + removed.size() +
+				", updated=" + updated.size() +
+				'}';
+	}
+}
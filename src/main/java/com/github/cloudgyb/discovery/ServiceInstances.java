@@ -0,0 +1,649 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 某个服务所有实例的不可变快照。
+ * 实例按znode名称排序保存在数组中，asList()返回预先创建的只读视图，查询时不复制。
+ * 任何修改都会生成新的对象（CopyOnWrite），version为生成该快照时注册表的版本号。
+ * 同时记录每个实例znode的数据版本号、创建时的zxid（czxid）和最后修改的zxid（mzxid），用于丢弃过时的更新及增量同步。
+ * 按标签（元数据）查询的结果也是ServiceInstances，首次查询时建立索引并缓存在快照上，
+ * 快照不变时重复查询只有一次ConcurrentHashMap读取，不分配对象；服务变化后只有该服务的索引需要重建。
+ * 全量拉取的实例先保存znode数据，首次访问时才解码，只查询少数服务的应用不需要解码整个注册表。
+ * @author cloudgyb
+ * 2021/3/11 14:02
+ */
+public final class ServiceInstances {
+	private static final Logger logger = LoggerFactory.getLogger(ServiceInstances.class);
+	/**
+	 * 每个快照最多缓存的查询结果数，超过后的查询每次重新计算
+	 */
+	private static final int MAX_CACHED_QUERIES = 64;
+	private final String serviceName;
+	/**
+	 * 负载均衡策略缓存内部表的键，按标签查询得到的子集使用不同的键
+	 */
+	private final String selectionKey;
+	private final long version;
+	/**
+	 * 按名称排序，按名称查找使用二分查找
+	 */
+	private final String[] names;
+	/**
+	 * 每个实例的ServiceInstanceInfo，或尚未解码的znode数据（byte[]），解码后原子地替换为解码结果
+	 */
+	private final AtomicReferenceArray<Object> entries;
+	/**
+	 * 解码entries中的znode数据，所有实例都已解码时可以为null
+	 */
+	private final ServiceInstanceCodec codec;
+	/**
+	 * 每个实例znode的数据版本号，未知时为InstanceRecord.UNKNOWN_VERSION
+	 */
+	private final int[] dataVersions;
+	/**
+	 * 每个实例znode最后一次修改的zxid（mzxid），未知时为InstanceRecord.UNKNOWN_ZXID。
+	 * 节点删除后以相同名称重建时mzxid也不同，增量同步据此判断实例是否需要重新读取
+	 */
+	private final long[] modifiedZxids;
+	/**
+	 * 每个实例znode创建时的zxid（czxid），未知时为InstanceRecord.UNKNOWN_ZXID。
+	 * 同名节点删除后重建时czxid不同，删除事件据此只删除被删除的那一次创建
+	 */
+	private final long[] createdZxids;
+	/**
+	 * 服务znode子节点最后一次变化的zxid（pzxid），只由全量或增量拉取记录，未知时为InstanceRecord.UNKNOWN_ZXID。
+	 * 事件增量修改实例时沿用旧值，之后同步时与服务端不一致只会多拉取一次子节点列表，不会漏掉变化
+	 */
+	private volatile long childrenZxid;
+	/**
+	 * 状态为UP的实例，全部为UP时就是this，首次调用available()时计算
+	 */
+	private volatile ServiceInstances available;
+	private final List<ServiceInstanceInfo> view;
+	private Map<String, ServiceInstanceInfo> mapView;
+	/**
+	 * 标签名 -> (标签值 -> 实例子集)，首次按该标签查询时建立
+	 */
+	private volatile ConcurrentHashMap<String, Map<String, ServiceInstances>> tagIndex;
+	private volatile ConcurrentHashMap<TagQuery, ServiceInstances> queryCache;
+	private ServiceInstances emptySubset;
+
+	private ServiceInstances(String serviceName, long version, String[] names, Object[] entries,
+			ServiceInstanceCodec codec, int[] dataVersions, long[] createdZxids, long[] modifiedZxids,
+			long childrenZxid) {
+		this(serviceName, serviceName, version, names, entries, codec, dataVersions, createdZxids, modifiedZxids,
+				childrenZxid);
+	}
+
+	/**
+	 * @param entries 每个实例的ServiceInstanceInfo或尚未解码的znode数据，不再修改
+	 */
+	private ServiceInstances(String serviceName, String selectionKey, long version, String[] names,
+			Object[] entries, ServiceInstanceCodec codec, int[] dataVersions, long[] createdZxids,
+			long[] modifiedZxids, long childrenZxid) {
+		this.serviceName = serviceName;
+		this.selectionKey = selectionKey;
+		this.version = version;
+		this.names = names;
+		this.entries = new AtomicReferenceArray<>(entries);
+		this.codec = codec;
+		this.dataVersions = dataVersions;
+		this.createdZxids = createdZxids;
+		this.modifiedZxids = modifiedZxids;
+		this.childrenZxid = childrenZxid;
+		this.view = new InstanceListView();
+	}
+
+	static ServiceInstances empty(String serviceName, long version) {
+		return new ServiceInstances(serviceName, version, new String[0], new Object[0], null, new int[0],
+				new long[0], new long[0], InstanceRecord.UNKNOWN_ZXID);
+	}
+
+	private Object[] entries() {
+		Object[] copy = new Object[names.length];
+		for (int i = 0; i < copy.length; i++)
+			copy[i] = entries.get(i);
+		return copy;
+	}
+
+	/**
+	 * @param selectionKey 子集的负载均衡缓存键
+	 * @return 满足条件的实例组成的子集，全部满足时返回this
+	 */
+	ServiceInstances filter(Predicate<ServiceInstanceInfo> predicate, String selectionKey) {
+		int[] positions = new int[names.length];
+		int count = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (predicate.test(get(i)))
+				positions[count++] = i;
+		}
+		if (count == names.length)
+			return this;
+		return subset(positions, count, selectionKey);
+	}
+
+	private ServiceInstances subset(int[] positions, int count, String selectionKey) {
+		String[] subNames = new String[count];
+		Object[] subEntries = new Object[count];
+		int[] subVersions = new int[count];
+		long[] subCreated = new long[count];
+		long[] subZxids = new long[count];
+		for (int j = 0; j < count; j++) {
+			int i = positions[j];
+			subNames[j] = names[i];
+			subEntries[j] = entries.get(i);
+			subVersions[j] = dataVersions[i];
+			subCreated[j] = createdZxids[i];
+			subZxids[j] = modifiedZxids[i];
+		}
+		return new ServiceInstances(serviceName, selectionKey, version, subNames, subEntries, codec, subVersions,
+				subCreated, subZxids, childrenZxid);
+	}
+
+	/**
+	 * 只保留与other中同名实例不是同一份数据的实例（包括other中没有的实例），变化日志只保存变化的部分
+	 * @param other 比较的快照，为null时保留全部
+	 * @return 变化的实例组成的子集，全部变化时返回this
+	 */
+	ServiceInstances changedSince(ServiceInstances other) {
+		int[] positions = new int[names.length];
+		int count = 0;
+		int m = other == null ? 0 : other.names.length;
+		int j = 0;
+		for (int i = 0; i < names.length; i++) {
+			int cmp = 1;
+			while (j < m && (cmp = other.names[j].compareTo(names[i])) < 0)
+				j++;
+			if (j == m || cmp != 0 || !sameEntry(i, other, j))
+				positions[count++] = i;
+		}
+		if (count == names.length)
+			return this;
+		return subset(positions, count, selectionKey);
+	}
+
+	private static boolean isUp(ServiceInstanceInfo instance) {
+		return instance != null && instance.getStatus() == ServiceInstanceStatus.UP;
+	}
+
+	/**
+	 * 从实例表创建快照
+	 * @param instanceMap znode名称 -> 实例信息
+	 */
+	public static ServiceInstances of(String serviceName, long version, Map<String, ServiceInstanceInfo> instanceMap) {
+		String[] names = instanceMap.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		Object[] entries = new Object[names.length];
+		int[] dataVersions = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			entries[i] = instanceMap.get(names[i]);
+			dataVersions[i] = InstanceRecord.UNKNOWN_VERSION;
+		}
+		return new ServiceInstances(serviceName, version, names, entries, null, dataVersions,
+				new long[names.length], new long[names.length], InstanceRecord.UNKNOWN_ZXID);
+	}
+
+	/**
+	 * 从拉取结果创建快照
+	 * @param records znode名称 -> 实例及数据版本号，可以是尚未解码的记录
+	 * @param childrenZxid 拉取时服务znode的pzxid，未知时为InstanceRecord.UNKNOWN_ZXID
+	 */
+	static ServiceInstances ofRecords(String serviceName, long version, Map<String, InstanceRecord> records,
+			long childrenZxid) {
+		String[] names = records.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		Object[] entries = new Object[names.length];
+		int[] dataVersions = new int[names.length];
+		long[] createdZxids = new long[names.length];
+		long[] modifiedZxids = new long[names.length];
+		ServiceInstanceCodec codec = null;
+		for (int i = 0; i < names.length; i++) {
+			InstanceRecord record = records.get(names[i]);
+			entries[i] = record.entry();
+			dataVersions[i] = record.dataVersion;
+			createdZxids[i] = record.createdZxid;
+			modifiedZxids[i] = record.modifiedZxid;
+			if (record.codec != null)
+				codec = record.codec;
+		}
+		return new ServiceInstances(serviceName, version, names, entries, codec, dataVersions, createdZxids,
+				modifiedZxids, childrenZxid);
+	}
+
+	/**
+	 * @return 添加（或替换）一个实例后的新快照
+	 */
+	ServiceInstances with(String name, InstanceRecord record, long newVersion) {
+		int i = Arrays.binarySearch(names, name);
+		Object[] entries = entries();
+		Object entry = record.entry();
+		ServiceInstanceCodec codec = record.codec != null ? record.codec : this.codec;
+		if (i >= 0) {
+			int[] newDataVersions = dataVersions.clone();
+			long[] newCreated = createdZxids.clone();
+			long[] newZxids = modifiedZxids.clone();
+			entries[i] = entry;
+			newDataVersions[i] = record.dataVersion;
+			newCreated[i] = record.createdZxid;
+			newZxids[i] = record.modifiedZxid;
+			return new ServiceInstances(serviceName, newVersion, names, entries, codec, newDataVersions, newCreated,
+					newZxids, childrenZxid);
+		}
+		int pos = -i - 1;
+		int n = names.length;
+		String[] newNames = new String[n + 1];
+		Object[] newEntries = new Object[n + 1];
+		int[] newDataVersions = new int[n + 1];
+		long[] newCreated = new long[n + 1];
+		long[] newZxids = new long[n + 1];
+		System.arraycopy(names, 0, newNames, 0, pos);
+		System.arraycopy(entries, 0, newEntries, 0, pos);
+		System.arraycopy(dataVersions, 0, newDataVersions, 0, pos);
+		System.arraycopy(createdZxids, 0, newCreated, 0, pos);
+		System.arraycopy(modifiedZxids, 0, newZxids, 0, pos);
+		newNames[pos] = name;
+		newEntries[pos] = entry;
+		newDataVersions[pos] = record.dataVersion;
+		newCreated[pos] = record.createdZxid;
+		newZxids[pos] = record.modifiedZxid;
+		System.arraycopy(names, pos, newNames, pos + 1, n - pos);
+		System.arraycopy(entries, pos, newEntries, pos + 1, n - pos);
+		System.arraycopy(dataVersions, pos, newDataVersions, pos + 1, n - pos);
+		System.arraycopy(createdZxids, pos, newCreated, pos + 1, n - pos);
+		System.arraycopy(modifiedZxids, pos, newZxids, pos + 1, n - pos);
+		return new ServiceInstances(serviceName, newVersion, newNames, newEntries, codec, newDataVersions, newCreated,
+				newZxids, childrenZxid);
+	}
+
+	/**
+	 * 事件按zxid顺序应用：只有记录比快照中同名实例更新（mzxid更大，或任一方未知）时才添加或替换
+	 * @return 应用后的新快照，记录已过时返回this
+	 */
+	ServiceInstances withNewer(String name, InstanceRecord record, long newVersion) {
+		int i = indexOf(name);
+		if (i >= 0 && !record.isNewerThan(modifiedZxids[i]))
+			return this;
+		return with(name, record, newVersion);
+	}
+
+	/**
+	 * 删除事件只删除czxid不晚于被删除节点的实例，之后以相同名称重建的实例不受过时的删除事件影响
+	 * @param createdZxid 被删除节点的czxid，未知时为InstanceRecord.UNKNOWN_ZXID，直接删除
+	 * @return 删除后的新快照，实例不存在或已是之后重建的节点时返回this
+	 */
+	ServiceInstances withoutIncarnation(String name, long createdZxid, long newVersion) {
+		int i = indexOf(name);
+		if (i < 0)
+			return this;
+		long existing = createdZxids[i];
+		if (createdZxid != InstanceRecord.UNKNOWN_ZXID && existing != InstanceRecord.UNKNOWN_ZXID &&
+				existing > createdZxid)
+			return this;
+		return without(name, newVersion);
+	}
+
+	/**
+	 * @return 删除一个实例后的新快照，实例不存在时返回this
+	 */
+	ServiceInstances without(String name, long newVersion) {
+		int i = indexOf(name);
+		if (i < 0)
+			return this;
+		int n = names.length;
+		Object[] entries = entries();
+		String[] newNames = new String[n - 1];
+		Object[] newEntries = new Object[n - 1];
+		int[] newDataVersions = new int[n - 1];
+		long[] newCreated = new long[n - 1];
+		long[] newZxids = new long[n - 1];
+		System.arraycopy(names, 0, newNames, 0, i);
+		System.arraycopy(entries, 0, newEntries, 0, i);
+		System.arraycopy(dataVersions, 0, newDataVersions, 0, i);
+		System.arraycopy(createdZxids, 0, newCreated, 0, i);
+		System.arraycopy(modifiedZxids, 0, newZxids, 0, i);
+		System.arraycopy(names, i + 1, newNames, i, n - i - 1);
+		System.arraycopy(entries, i + 1, newEntries, i, n - i - 1);
+		System.arraycopy(dataVersions, i + 1, newDataVersions, i, n - i - 1);
+		System.arraycopy(createdZxids, i + 1, newCreated, i, n - i - 1);
+		System.arraycopy(modifiedZxids, i + 1, newZxids, i, n - i - 1);
+		return new ServiceInstances(serviceName, newVersion, newNames, newEntries, codec, newDataVersions, newCreated,
+				newZxids, childrenZxid);
+	}
+
+	/**
+	 * @return 两个快照包含的znode及其数据版本、mzxid是否完全相同，数据版本未知时视为不同
+	 */
+	boolean sameEntries(ServiceInstances other) {
+		if (other == null || !Arrays.equals(names, other.names) || !Arrays.equals(dataVersions, other.dataVersions) ||
+				!Arrays.equals(modifiedZxids, other.modifiedZxids))
+			return false;
+		for (int dataVersion : dataVersions) {
+			if (dataVersion == InstanceRecord.UNKNOWN_VERSION)
+				return false;
+		}
+		return true;
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	/**
+	 * @return 该服务最后一次变化时注册表的版本号
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return 自己的第i个实例与other的第j个实例是否为同一份数据：同一个对象，或数据版本号和mzxid都已知且相同
+	 */
+	boolean sameEntry(int i, ServiceInstances other, int j) {
+		if (entries.get(i) == other.entries.get(j))
+			return true;
+		return dataVersions[i] != InstanceRecord.UNKNOWN_VERSION && dataVersions[i] == other.dataVersions[j] &&
+				modifiedZxids[i] != InstanceRecord.UNKNOWN_ZXID && modifiedZxids[i] == other.modifiedZxids[j];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public boolean isEmpty() {
+		return names.length == 0;
+	}
+
+	/**
+	 * 尚未解码的实例在这里解码，解码失败时记录日志并以状态为DOWN的实例代替
+	 */
+	public ServiceInstanceInfo get(int i) {
+		Object entry = entries.get(i);
+		if (!(entry instanceof byte[]))
+			return (ServiceInstanceInfo) entry;
+		ServiceInstanceInfo info;
+		try {
+			info = codec.decode((byte[]) entry);
+		}
+		catch (CodecException e) {
+			logger.error("解析服务实例信息失败，service=" + serviceName + "，instance=" + names[i], e);
+			info = new ServiceInstanceInfo(serviceName, null, 0);
+			info.setStatus(ServiceInstanceStatus.DOWN);
+		}
+		if (entries.compareAndSet(i, entry, info))
+			return info;
+		return (ServiceInstanceInfo) entries.get(i);
+	}
+
+	/**
+	 * @return 第i个实例的记录，尚未解码的实例不会解码
+	 */
+	InstanceRecord record(int i) {
+		Object entry = entries.get(i);
+		if (entry instanceof byte[])
+			return InstanceRecord.encoded((byte[]) entry, codec, dataVersions[i], createdZxids[i], modifiedZxids[i]);
+		return new InstanceRecord((ServiceInstanceInfo) entry, dataVersions[i], createdZxids[i], modifiedZxids[i]);
+	}
+
+	/**
+	 * @return 第i个实例尚未解码时返回其znode数据，已解码返回null
+	 */
+	byte[] payload(int i) {
+		Object entry = entries.get(i);
+		return entry instanceof byte[] ? (byte[]) entry : null;
+	}
+
+	/**
+	 * @return 第i个实例对应的znode名称
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * @return 第i个实例znode的mzxid，未知时为InstanceRecord.UNKNOWN_ZXID
+	 */
+	long getModifiedZxid(int i) {
+		return modifiedZxids[i];
+	}
+
+	/**
+	 * @return 第i个实例znode的czxid，未知时为InstanceRecord.UNKNOWN_ZXID
+	 */
+	long getCreatedZxid(int i) {
+		return createdZxids[i];
+	}
+
+	/**
+	 * @return 最后一次拉取时服务znode的pzxid，未知时为InstanceRecord.UNKNOWN_ZXID
+	 */
+	long getChildrenZxid() {
+		return childrenZxid;
+	}
+
+	/**
+	 * 拉取结果与该快照的实例完全相同而沿用该快照时，记录这次拉取得到的pzxid
+	 */
+	void recordChildrenZxid(long childrenZxid) {
+		this.childrenZxid = childrenZxid;
+	}
+
+	/**
+	 * @return 第i个实例znode的数据版本号，未知时返回-1
+	 */
+	public int getDataVersion(int i) {
+		return dataVersions[i];
+	}
+
+	/**
+	 * @return 只包含状态为UP的实例的快照，全部为UP时返回this，负载均衡只在该快照中选择
+	 */
+	public ServiceInstances available() {
+		ServiceInstances available = this.available;
+		if (available == null)
+			this.available = available = filter(ServiceInstances::isUp, selectionKey);
+		return available;
+	}
+
+	/**
+	 * 按一个标签（元数据）精确查找实例，首次按该标签名查询时为所有标签值建立索引
+	 * @return 元数据中key对应的值等于value的实例，没有时返回空的快照
+	 */
+	public ServiceInstances withTag(String key, String value) {
+		ServiceInstances tagged = tagIndex(key).get(value);
+		return tagged != null ? tagged : emptySubset();
+	}
+
+	/**
+	 * 按查询条件过滤实例，结果缓存在该快照上，快照不变时重复查询不分配对象
+	 * @return 满足条件的实例，全部满足时返回this
+	 */
+	public ServiceInstances query(TagQuery query) {
+		ConcurrentHashMap<TagQuery, ServiceInstances> cache = this.queryCache;
+		if (cache == null) {
+			synchronized (this) {
+				cache = this.queryCache;
+				if (cache == null)
+					this.queryCache = cache = new ConcurrentHashMap<>(4);
+			}
+		}
+		ServiceInstances result = cache.get(query);
+		if (result != null)
+			return result;
+		result = query.evaluate(this);
+		if (cache.size() < MAX_CACHED_QUERIES) {
+			ServiceInstances existing = cache.putIfAbsent(query, result);
+			if (existing != null)
+				return existing;
+		}
+		return result;
+	}
+
+	private Map<String, ServiceInstances> tagIndex(String key) {
+		ConcurrentHashMap<String, Map<String, ServiceInstances>> index = this.tagIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = this.tagIndex;
+				if (index == null)
+					this.tagIndex = index = new ConcurrentHashMap<>(4);
+			}
+		}
+		Map<String, ServiceInstances> byValue = index.get(key);
+		return byValue != null ? byValue : index.computeIfAbsent(key, this::buildTagIndex);
+	}
+
+	private Map<String, ServiceInstances> buildTagIndex(String key) {
+		Map<String, int[]> positions = new HashMap<>();
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			ServiceInstanceInfo instance = get(i);
+			String value = instance == null ? null : instance.getMetadata().get(key);
+			if (value == null)
+				continue;
+			int[] p = positions.computeIfAbsent(value, v -> new int[names.length]);
+			int count = counts.getOrDefault(value, 0);
+			p[count] = i;
+			counts.put(value, count + 1);
+		}
+		Map<String, ServiceInstances> byValue = new HashMap<>(Math.max(4, positions.size() * 4 / 3 + 1));
+		for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+			int count = counts.get(entry.getKey());
+			byValue.put(entry.getKey(), count == names.length ? this :
+					subset(entry.getValue(), count, selectionKey + "#" + TagQuery.tagKey(key, entry.getKey())));
+		}
+		return byValue;
+	}
+
+	private synchronized ServiceInstances emptySubset() {
+		if (emptySubset == null)
+			emptySubset = subset(new int[0], 0, selectionKey + "#");
+		return emptySubset;
+	}
+
+	/**
+	 * @return 负载均衡策略按该键缓存内部表，完整的快照为服务名，按标签查询的子集各不相同
+	 */
+	public String getSelectionKey() {
+		return selectionKey;
+	}
+
+	/**
+	 * @return znode名称对应的实例在数组中的下标，不存在返回-1
+	 */
+	public int indexOf(String name) {
+		int i = Arrays.binarySearch(names, name);
+		return i < 0 ? -1 : i;
+	}
+
+	public ServiceInstanceInfo getInstance(String name) {
+		int i = indexOf(name);
+		return i < 0 ? null : get(i);
+	}
+
+	/**
+	 * @return 只读的实例列表视图，不会复制
+	 */
+	public List<ServiceInstanceInfo> asList() {
+		return view;
+	}
+
+	/**
+	 * @return znode名称 -> 实例信息的只读视图
+	 */
+	public Map<String, ServiceInstanceInfo> asMap() {
+		Map<String, ServiceInstanceInfo> m = mapView;
+		if (m == null)
+			mapView = m = Collections.unmodifiableMap(new InstanceMapView());
+		return m;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceInstances{" +
+				"serviceName='" + serviceName + '\'' +
+				", version=" + version +
+				", size=" + names.length +
+				'}';
+	}
+
+	private final class InstanceListView extends AbstractList<ServiceInstanceInfo> {
+		@Override
+		public ServiceInstanceInfo get(int i) {
+			return ServiceInstances.this.get(i);
+		}
+
+		@Override
+		public int size() {
+			return names.length;
+		}
+	}
+
+	private final class InstanceMapView extends AbstractMap<String, ServiceInstanceInfo> {
+		@Override
+		public ServiceInstanceInfo get(Object key) {
+			return key instanceof String ? getInstance((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && indexOf((String) key) >= 0;
+		}
+
+		@Override
+		public int size() {
+			return names.length;
+		}
+
+		@Override
+		public Set<Entry<String, ServiceInstanceInfo>> entrySet() {
+			return new AbstractSet<Entry<String, ServiceInstanceInfo>>() {
+				@Override
+				public Iterator<Entry<String, ServiceInstanceInfo>> iterator() {
+					return new Iterator<Entry<String, ServiceInstanceInfo>>() {
+						private int i;
+
+						@Override
+						public boolean hasNext() {
+							return i < names.length;
+						}
+
+						@Override
+						public Entry<String, ServiceInstanceInfo> next() {
+							if (i >= names.length)
+								throw new NoSuchElementException();
+							Entry<String, ServiceInstanceInfo> e = new SimpleImmutableEntry<>(names[i],
+									ServiceInstances.this.get(i));
+							i++;
+							return e;
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return names.length;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package com.github.cloudgyb.discovery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+
+/**
+ * 本机共享注册表文件，同一主机上的多个JVM通过内存映射共享一份注册表。
+ * 只有一个进程（leader）写入，其他进程直接从映射中读取，不需要自己的zookeeper session。
+ * 写入使用seqlock：写入前把sequence加1变为奇数，写完后再加1变为偶数；
+ * 读取前后sequence相同且为偶数、并且数据的CRC32一致时才是完整的注册表。
+ * 读取方按sequence缓存解码后的快照，sequence不变时查询只读取映射中的8个字节；
+ * 变化时只解码版本号变化的服务，数据版本和mzxid都没变的实例沿用旧对象。文件布局（大端）：
+ * <pre>
+ * magic          4字节 'ZSHM'
+ * formatVersion  4字节
+ * sequence       8字节 seqlock序列号，奇数表示正在写入
+ * heartbeat      8字节 leader最后一次心跳的时间（毫秒）
+ * staleSince     8字节 leader的注册表开始过时的时间（毫秒），未过时为0，随心跳更新
+ * epoch          8字节 leader任期，每次选出新的leader时变化
+ * publishedAt    8字节 最后一次发布的时间（毫秒）
+ * version        8字节 leader注册表的版本号
+ * length         4字节 注册表数据的长度
+ * crc32          4字节 注册表数据的CRC32
+ * 注册表数据（从第64字节开始）：
+ * serviceCount   4字节
+ *   serviceName    string
+ *   serviceVersion 8字节 该服务最后一次变化时leader注册表的版本号
+ *   childrenZxid   8字节
+ *   blockLength    4字节 以下实例数据的长度，读取方据此跳过未变化的服务
+ *   instanceCount  4字节
+ *     instanceName   string
+ *     dataVersion    4字节
+ *     modifiedZxid   8字节
+ *     dataLength     4字节
+ *     data           编码后的实例信息
+ * string = 2字节长度 + UTF-8字节
+ * </pre>
+ * @author cloudgyb
+ * 2021/3/26 15:40
+ */
+public class SharedRegistryFile {
+	private static final int MAGIC = 0x5A53484D;
+	private static final int FORMAT_VERSION = 1;
+	private static final int FORMAT_VERSION_OFFSET = 4;
+	private static final int SEQUENCE_OFFSET = 8;
+	private static final int HEARTBEAT_OFFSET = 16;
+	private static final int STALE_SINCE_OFFSET = 24;
+	private static final int EPOCH_OFFSET = 32;
+	private static final int PUBLISHED_AT_OFFSET = 40;
+	private static final int VERSION_OFFSET = 48;
+	private static final int LENGTH_OFFSET = 56;
+	private static final int CRC_OFFSET = 60;
+	private static final int DATA_OFFSET = 64;
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	/**
+	 * 读取时遇到正在写入或数据不一致的最大重试次数，超过后本次查询使用上一次读到的快照
+	 */
+	private static final int MAX_READ_RETRIES = 100;
+
+	private final Path file;
+	private final ServiceInstanceCodec codec;
+	private final FileChannel channel;
+	private volatile MappedByteBuffer buffer;
+	private volatile Cached cached = new Cached(-1, 0, RegistrySnapshot.EMPTY, Collections.<String, Long>emptyMap());
+	private final Object readLock = new Object();
+	/**
+	 * 写入方：当前任期及每个服务编码后的数据，服务不变时不重新编码
+	 */
+	private long epoch;
+	private Map<String, EncodedService> encoded = new HashMap<>();
+
+	public SharedRegistryFile(Path file, ServiceInstanceCodec codec) throws IOException {
+		this.file = file;
+		this.codec = codec;
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null)
+			Files.createDirectories(dir);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		//只扩展不截断，其他进程可能已经写入
+		if (channel.size() < DATA_OFFSET)
+			channel.write(ByteBuffer.allocate(1), INITIAL_SIZE - 1);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * 读取当前的注册表，sequence与上次读取时相同时直接返回缓存的快照
+	 * @return leader尚未发布过注册表时返回空的快照
+	 */
+	public RegistrySnapshot read() {
+		Cached cached = this.cached;
+		if (buffer.getLong(SEQUENCE_OFFSET) == cached.sequence)
+			return cached.snapshot;
+		synchronized (readLock) {
+			return reload().snapshot;
+		}
+	}
+
+	private Cached reload() {
+		Cached cached = this.cached;
+		for (int attempt = 0; attempt < MAX_READ_RETRIES; attempt++) {
+			MappedByteBuffer buf = this.buffer;
+			long sequence = buf.getLong(SEQUENCE_OFFSET);
+			if (sequence == cached.sequence)
+				return cached;
+			if ((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			if (buf.getInt(0) != MAGIC || buf.getInt(FORMAT_VERSION_OFFSET) != FORMAT_VERSION) {
+				//尚未发布过，记住sequence避免每次查询都进入这里
+				this.cached = new Cached(sequence, cached.epoch, cached.snapshot, cached.serviceVersions);
+				return this.cached;
+			}
+			int length = buf.getInt(LENGTH_OFFSET);
+			int crc = buf.getInt(CRC_OFFSET);
+			long epoch = buf.getLong(EPOCH_OFFSET);
+			if (length < 0)
+				continue;
+			try {
+				if (DATA_OFFSET + (long) length > buf.capacity()) {
+					//leader扩大了文件
+					remap();
+					continue;
+				}
+				ByteBuffer data = buf.duplicate();
+				((Buffer) data).limit(DATA_OFFSET + length);
+				((Buffer) data).position(DATA_OFFSET);
+				CRC32 checksum = new CRC32();
+				checksum.update(data.duplicate());
+				if ((int) checksum.getValue() != crc)
+					continue;
+				Cached loaded = decode(data, sequence, epoch, cached);
+				if (buf.getLong(SEQUENCE_OFFSET) != sequence)
+					continue;
+				this.cached = loaded;
+				return loaded;
+			}
+			catch (CodecException | BufferUnderflowException | IllegalArgumentException |
+					IndexOutOfBoundsException e) {
+				//读取过程中leader开始了新的写入，重试
+			}
+			catch (IOException e) {
+				break;
+			}
+		}
+		return cached;
+	}
+
+	private void remap() throws IOException {
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+	}
+
+	private Cached decode(ByteBuffer data, long sequence, long epoch, Cached previous) throws CodecException {
+		RegistrySnapshot old = previous.snapshot;
+		boolean sameLeader = epoch == previous.epoch;
+		long newVersion = old.getVersion() + 1;
+		int serviceCount = data.getInt();
+		HashMap<String, ServiceInstances> services = new HashMap<>(Math.max(4, serviceCount * 4 / 3 + 1));
+		HashMap<String, Long> serviceVersions = new HashMap<>(Math.max(4, serviceCount * 4 / 3 + 1));
+		boolean changed = serviceCount != old.size();
+		for (int s = 0; s < serviceCount; s++) {
+			String serviceName = readString(data);
+			long serviceVersion = data.getLong();
+			long childrenZxid = data.getLong();
+			int blockEnd = end(data, data.getInt());
+			ServiceInstances instances = old.get(serviceName);
+			Long oldServiceVersion = previous.serviceVersions.get(serviceName);
+			if (!sameLeader || instances == null || oldServiceVersion == null || oldServiceVersion != serviceVersion) {
+				ServiceInstances fresh = decodeService(data, serviceName, childrenZxid, instances, newVersion);
+				if (fresh != instances) {
+					instances = fresh;
+					changed = true;
+				}
+			}
+			((Buffer) data).position(blockEnd);
+			services.put(serviceName, instances);
+			serviceVersions.put(serviceName, serviceVersion);
+		}
+		return new Cached(sequence, epoch, changed ? RegistrySnapshot.of(newVersion, services) : old, serviceVersions);
+	}
+
+	/**
+	 * @param old 上次读到的该服务，数据版本和mzxid都没变的实例不重新解码
+	 */
+	private ServiceInstances decodeService(ByteBuffer data, String serviceName, long childrenZxid,
+			ServiceInstances old, long newVersion) throws CodecException {
+		int instanceCount = data.getInt();
+		Map<String, InstanceRecord> records = new HashMap<>(Math.max(4, instanceCount * 4 / 3 + 1));
+		for (int i = 0; i < instanceCount; i++) {
+			String name = readString(data);
+			int dataVersion = data.getInt();
+			long modifiedZxid = data.getLong();
+			int length = data.getInt();
+			int end = end(data, length);
+			int j = old == null ? -1 : old.indexOf(name);
+			InstanceRecord record;
+			if (j >= 0 && dataVersion != InstanceRecord.UNKNOWN_VERSION && old.getDataVersion(j) == dataVersion &&
+					old.getModifiedZxid(j) == modifiedZxid) {
+				record = old.record(j);
+			}
+			else {
+				//数据已通过crc校验，复制出来后首次访问时才解码
+				byte[] bytes = new byte[length];
+				data.get(bytes);
+				if (!codec.canDecode(bytes))
+					throw new CodecException("无法识别的服务实例数据：" + serviceName + "/" + name);
+				record = InstanceRecord.encoded(bytes, codec, dataVersion, InstanceRecord.UNKNOWN_ZXID,
+						modifiedZxid);
+			}
+			((Buffer) data).position(end);
+			records.put(name, record);
+		}
+		ServiceInstances fresh = ServiceInstances.ofRecords(serviceName, newVersion, records, childrenZxid);
+		if (!fresh.sameEntries(old))
+			return fresh;
+		old.recordChildrenZxid(childrenZxid);
+		return old;
+	}
+
+	/**
+	 * @return 从当前位置开始length字节之后的位置，超出数据范围时抛出异常，避免按损坏的长度分配内存
+	 */
+	private static int end(ByteBuffer data, int length) {
+		if (length < 0 || length > data.remaining())
+			throw new BufferUnderflowException();
+		return data.position() + length;
+	}
+
+	private static String readString(ByteBuffer data) {
+		int length = data.getShort() & 0xFFFF;
+		end(data, length);
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 开始新的leader任期，之后发布的注册表中服务版本号与之前的leader无关，读取方会重新解码所有服务
+	 */
+	public synchronized void startTerm() {
+		long epoch;
+		do {
+			epoch = ThreadLocalRandom.current().nextLong();
+		} while (epoch == 0 || epoch == this.epoch);
+		this.epoch = epoch;
+		this.encoded = new HashMap<>();
+	}
+
+	/**
+	 * 发布注册表，只能由leader调用，调用前需要先startTerm
+	 * @param snapshot leader当前的注册表
+	 * @param staleSince leader的注册表开始过时的时间（毫秒），未过时为0
+	 */
+	public synchronized void publish(RegistrySnapshot snapshot, long staleSince) throws IOException {
+		if (epoch == 0)
+			throw new IllegalStateException("尚未开始leader任期！");
+		Map<String, EncodedService> newEncoded = new HashMap<>(Math.max(4, snapshot.size() * 4 / 3 + 1));
+		long length = 4;
+		try {
+			for (String serviceName : snapshot.getServiceNames()) {
+				ServiceInstances instances = snapshot.get(serviceName);
+				EncodedService service = encoded.get(serviceName);
+				if (service == null || service.source != instances ||
+						service.childrenZxid != instances.getChildrenZxid())
+					service = encode(instances);
+				newEncoded.put(serviceName, service);
+				length += service.bytes.length;
+			}
+		}
+		catch (CodecException e) {
+			throw new IOException("编码服务实例信息失败！", e);
+		}
+		this.encoded = newEncoded;
+		if (DATA_OFFSET + length > Integer.MAX_VALUE)
+			throw new IOException("本机共享注册表过大：" + length);
+		MappedByteBuffer buf = ensureCapacity(DATA_OFFSET + (int) length);
+		long sequence = buf.getLong(SEQUENCE_OFFSET);
+		//上一个leader在写入过程中退出时sequence为奇数
+		if ((sequence & 1) != 0)
+			sequence++;
+		buf.putLong(SEQUENCE_OFFSET, sequence + 1);
+		ByteBuffer data = buf.duplicate();
+		((Buffer) data).position(DATA_OFFSET);
+		data.putInt(newEncoded.size());
+		for (EncodedService service : newEncoded.values())
+			data.put(service.bytes);
+		ByteBuffer written = buf.duplicate();
+		((Buffer) written).limit(DATA_OFFSET + (int) length);
+		((Buffer) written).position(DATA_OFFSET);
+		CRC32 crc = new CRC32();
+		crc.update(written);
+		long now = System.currentTimeMillis();
+		buf.putInt(0, MAGIC);
+		buf.putInt(FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+		buf.putLong(HEARTBEAT_OFFSET, now);
+		buf.putLong(STALE_SINCE_OFFSET, staleSince);
+		buf.putLong(EPOCH_OFFSET, epoch);
+		buf.putLong(PUBLISHED_AT_OFFSET, now);
+		buf.putLong(VERSION_OFFSET, snapshot.getVersion());
+		buf.putInt(LENGTH_OFFSET, (int) length);
+		buf.putInt(CRC_OFFSET, (int) crc.getValue());
+		buf.putLong(SEQUENCE_OFFSET, sequence + 2);
+	}
+
+	private EncodedService encode(ServiceInstances instances) throws IOException, CodecException {
+		ByteArrayOutputStream block = new ByteArrayOutputStream(64 + instances.size() * 128);
+		DataOutputStream out = new DataOutputStream(block);
+		out.writeInt(instances.size());
+		for (int i = 0; i < instances.size(); i++) {
+			writeString(out, instances.getName(i));
+			out.writeInt(instances.getDataVersion(i));
+			out.writeLong(instances.getModifiedZxid(i));
+			byte[] data = instances.payload(i);
+			//尚未解码的实例直接写入拉取到的数据
+			if (data == null || !codec.canDecode(data))
+				data = codec.encode(instances.get(i));
+			out.writeInt(data.length);
+			out.write(data);
+		}
+		long childrenZxid = instances.getChildrenZxid();
+		ByteArrayOutputStream service = new ByteArrayOutputStream(block.size() + 64);
+		out = new DataOutputStream(service);
+		writeString(out, instances.getServiceName());
+		out.writeLong(instances.getVersion());
+		out.writeLong(childrenZxid);
+		out.writeInt(block.size());
+		block.writeTo(out);
+		return new EncodedService(instances, childrenZxid, service.toByteArray());
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * 文件不够大时扩大为原来的2倍，读取方发现数据超出自己的映射时重新映射
+	 */
+	private MappedByteBuffer ensureCapacity(int size) throws IOException {
+		MappedByteBuffer buf = this.buffer;
+		if (size <= buf.capacity())
+			return buf;
+		int newSize = (int) Math.min(Integer.MAX_VALUE, Math.max(size, buf.capacity() * 2L));
+		if (channel.size() < newSize)
+			channel.write(ByteBuffer.allocate(1), newSize - 1);
+		remap();
+		return this.buffer;
+	}
+
+	/**
+	 * leader定期调用，读取方据此判断leader是否仍然存活
+	 * @param staleSince leader的注册表开始过时的时间（毫秒），未过时为0
+	 */
+	public void heartbeat(long staleSince) {
+		MappedByteBuffer buf = this.buffer;
+		buf.putLong(STALE_SINCE_OFFSET, staleSince);
+		buf.putLong(HEARTBEAT_OFFSET, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return 是否已有leader发布过注册表
+	 */
+	public boolean isPublished() {
+		return buffer.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * @return leader最后一次心跳的时间（毫秒），从未发布过时为0
+	 */
+	public long getHeartbeat() {
+		return buffer.getLong(HEARTBEAT_OFFSET);
+	}
+
+	/**
+	 * @return leader的注册表开始过时的时间（毫秒），未过时为0
+	 */
+	public long getStaleSince() {
+		return buffer.getLong(STALE_SINCE_OFFSET);
+	}
+
+	/**
+	 * @return 最后一次发布的时间（毫秒）
+	 */
+	public long getPublishedAt() {
+		return buffer.getLong(PUBLISHED_AT_OFFSET);
+	}
+
+	/**
+	 * @return 当前的seqlock序列号，每次发布加2
+	 */
+	public long getSequence() {
+		return buffer.getLong(SEQUENCE_OFFSET);
+	}
+
+	/**
+	 * 关闭文件，已建立的映射在被回收前仍然有效
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * 读取方缓存的快照及读取时的sequence、leader任期和每个服务的版本号
+	 */
+	private static final class Cached {
+		private final long sequence;
+		private final long epoch;
+		private final RegistrySnapshot snapshot;
+		private final Map<String, Long> serviceVersions;
+
+		private Cached(long sequence, long epoch, RegistrySnapshot snapshot, Map<String, Long> serviceVersions) {
+			this.sequence = sequence;
+			this.epoch = epoch;
+			this.snapshot = snapshot;
+			this.serviceVersions = serviceVersions;
+		}
+	}
+
+	/**
+	 * 写入方缓存的一个服务编码后的数据
+	 */
+	private static final class EncodedService {
+		private final ServiceInstances source;
+		private final long childrenZxid;
+		private final byte[] bytes;
+
+		private EncodedService(ServiceInstances source, long childrenZxid, byte[] bytes) {
+			this.source = source;
+			this.childrenZxid = childrenZxid;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.github.cloudgyb.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 预先编译的标签（实例元数据）查询条件，多个条件之间为“且”的关系，例如：
+ * <pre>
+ * TagQuery query = TagQuery.builder().eq("zone", "a").prefix("version", "2.").build();
+ * List&lt;ServiceInstanceInfo&gt; instances = discoveryService.findService("order-service", query);
+ * </pre>
+ * 查询结果缓存在服务的实例快照上，同一个快照上重复查询直接返回缓存的结果，应复用同一个TagQuery对象。
+ * 精确匹配的条件使用标签索引，只扫描索引中最小的候选集合。
+ * @author cloudgyb
+ * 2021/3/22 10:15
+ */
+public final class TagQuery {
+	private final String[] keys;
+	private final String[] values;
+	/**
+	 * 为true时按前缀匹配，否则精确匹配
+	 */
+	private final boolean[] prefixes;
+	private final String description;
+	/**
+	 * 结果子集的缓存键，每个键和值前加上长度，不同的条件不会得到相同的键（description可能相同，例如值中含有&amp;）
+	 */
+	private final String cacheKey;
+
+	private TagQuery(String[] keys, String[] values, boolean[] prefixes) {
+		this.keys = keys;
+		this.values = values;
+		this.prefixes = prefixes;
+		StringBuilder sb = new StringBuilder();
+		StringBuilder cacheKey = new StringBuilder();
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				sb.append('&');
+			sb.append(keys[i]).append(prefixes[i] ? "^=" : "=").append(values[i]);
+			cacheKey.append(keys[i].length()).append(':').append(keys[i])
+					.append(prefixes[i] ? '^' : '=')
+					.append(values[i].length()).append(':').append(values[i]);
+		}
+		this.description = sb.toString();
+		this.cacheKey = cacheKey.toString();
+	}
+
+	/**
+	 * @return 标签key=value对应子集的缓存键，键前加上长度，例如("a", "b=c")和("a=b", "c")不会得到相同的键
+	 */
+	static String tagKey(String key, String value) {
+		return key.length() + ":" + key + "=" + value;
+	}
+
+	/**
+	 * @return 只有一个精确匹配条件的查询
+	 */
+	public static TagQuery of(String key, String value) {
+		return builder().eq(key, value).build();
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return 实例是否满足所有条件
+	 */
+	public boolean matches(ServiceInstanceInfo instance) {
+		if (instance == null)
+			return false;
+		for (int i = 0; i < keys.length; i++) {
+			String value = instance.getMetadata().get(keys[i]);
+			if (value == null || !(prefixes[i] ? value.startsWith(values[i]) : value.equals(values[i])))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 在快照上计算查询结果，由ServiceInstances.query调用并缓存
+	 */
+	ServiceInstances evaluate(ServiceInstances instances) {
+		ServiceInstances candidates = instances;
+		boolean indexed = false;
+		for (int i = 0; i < keys.length; i++) {
+			if (prefixes[i])
+				continue;
+			ServiceInstances tagged = instances.withTag(keys[i], values[i]);
+			if (!indexed || tagged.size() < candidates.size())
+				candidates = tagged;
+			indexed = true;
+		}
+		if (candidates.isEmpty())
+			return candidates;
+		return candidates.filter(this::matches, instances.getSelectionKey() + "?" + cacheKey);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof TagQuery))
+			return false;
+		TagQuery other = (TagQuery) o;
+		return Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values) &&
+				Arrays.equals(prefixes, other.prefixes);
+	}
+
+	@Override
+	public int hashCode() {
+		return cacheKey.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	public static final class Builder {
+		private final List<String> keys = new ArrayList<>(4);
+		private final List<String> values = new ArrayList<>(4);
+		private final List<Boolean> prefixes = new ArrayList<>(4);
+
+		private Builder() {
+		}
+
+		/**
+		 * 标签值等于value
+		 */
+		public Builder eq(String key, String value) {
+			return add(key, value, false);
+		}
+
+		/**
+		 * 标签值以prefix开头，例如prefix("version", "2.")匹配2.x版本
+		 */
+		public Builder prefix(String key, String prefix) {
+			return add(key, prefix, true);
+		}
+
+		private Builder add(String key, String value, boolean prefix) {
+			if (key == null || value == null)
+				throw new NullPointerException();
+			keys.add(key);
+			values.add(value);
+			prefixes.add(prefix);
+			return this;
+		}
+
+		public TagQuery build() {
+			boolean[] prefixArray = new boolean[prefixes.size()];
+			for (int i = 0; i < prefixArray.length; i++)
+				prefixArray[i] = prefixes.get(i);
+			return new TagQuery(keys.toArray(new String[0]), values.toArray(new String[0]), prefixArray);
+		}
+	}
+}
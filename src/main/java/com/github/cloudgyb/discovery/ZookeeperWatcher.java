@@ -4,9 +4,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.github.cloudgyb.ZookeeperSessionExpiredListener;
 import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.connection.ExponentialBackoff;
+import com.github.cloudgyb.connection.SessionAwareWatcher;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
@@ -18,14 +24,43 @@ import org.slf4j.LoggerFactory;
  * @author cloudgyb
  * 2021/2/26 17:01
  */
-public class ZookeeperWatcher implements Watcher {
+public class ZookeeperWatcher implements SessionAwareWatcher {
 	private final Logger logger = LoggerFactory.getLogger(ZookeeperWatcher.class);
-	private CountDownLatch countDownLatch;
+	private volatile CountDownLatch countDownLatch;
 	private DiscoveryService discoveryService;
+	private DiscoveryEventDispatcher eventDispatcher;
 	private final List<ZookeeperSessionExpiredListener> sessionExpiredListenerList;
+	private final ZookeeperServerConfigProperties config;
+	/**
+	 * 是否使用共享连接，共享时session由SharedZookeeperConnection重建，重建后调用sessionRecovered
+	 */
+	private final boolean sharedSession;
+	/**
+	 * 最近一次收到session过期事件的时间（System.nanoTime），用于统计恢复耗时
+	 */
+	private volatile long expiredAt;
+	/**
+	 * session过期后在该线程上重建连接并通知监听者，不阻塞zookeeper事件线程
+	 */
+	private final ExecutorService sessionRecoveryExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "zookeeper-session-recovery");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	public ZookeeperWatcher(CountDownLatch countDownLatch) {
+		this(countDownLatch, ZookeeperServerConfigProperties.config(), false);
+	}
+
+	/**
+	 * @param config 该命名空间的配置
+	 * @param sharedSession 是否注册在共享连接上
+	 */
+	public ZookeeperWatcher(CountDownLatch countDownLatch, ZookeeperServerConfigProperties config,
+			boolean sharedSession) {
 		this.countDownLatch = countDownLatch;
+		this.config = config;
+		this.sharedSession = sharedSession;
 		this.sessionExpiredListenerList = new ArrayList<>(2);
 	}
 
@@ -36,6 +71,7 @@ public class ZookeeperWatcher implements Watcher {
 	 * 	2. 会话超时!
 	 * 	3. zookeeper连接已关闭
 	 * 	4. zookeeper认证失败
+	 * 其余事件交给分发器异步处理，该方法只负责入队
 	 * @param watchedEvent zookeeper event
 	 */
 	@Override
@@ -48,35 +84,79 @@ public class ZookeeperWatcher implements Watcher {
 		if (type.getIntValue() == Event.EventType.None.getIntValue()) {
 			if (stateValue == Event.KeeperState.SyncConnected.getIntValue()) {
 				logger.info("zookeeper已连接！");
+				if (discoveryService != null)
+					discoveryService.connectionRestored();
 				countDownLatch.countDown();
+			}else if (stateValue == Event.KeeperState.Disconnected.getIntValue()) {
+				logger.info("zookeeper连接已断开！");
+				if (discoveryService != null)
+					discoveryService.connectionLost();
 			}else if (stateValue == Watcher.Event.KeeperState.Expired.getIntValue()) {
 				logger.info("zookeeper会话超时！");
-				//zookeeper连接是异步的，所以用CountDownLatch保证zookeeper连接成功后再通知Listeners
-				countDownLatch = new CountDownLatch(1);
-				ZooKeeper zooKeeper = createNewZookeeper();
-				try {
-					countDownLatch.await();
+				expiredAt = System.nanoTime();
+				if (discoveryService != null) {
+					discoveryService.sessionLost();
+					discoveryService.getMetrics().sessionExpired();
 				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				noticeListener(zooKeeper);
+				if (!sharedSession)
+					sessionRecoveryExecutor.execute(this::recoverSession);
 			}else if (stateValue == Watcher.Event.KeeperState.Closed.getIntValue()) {
 				logger.info("zookeeper连接已关闭！");
 			}else if (stateValue == Watcher.Event.KeeperState.AuthFailed.getIntValue()) {
 				logger.info("zookeeper认证失败！");
 			}
+			return;
 		}
-		try {
-			discoveryService.discovery(watchedEvent);
-			discoveryService.showRegistry();
-		}
-		catch (Exception e) {
-			logger.error("更新注册信息失败！", e);
+		eventDispatcher.dispatch(watchedEvent);
+	}
+
+	/**
+	 * 不使用共享连接时的恢复：每次尝试前按指数退避随机等待，创建失败或在session超时时间内未连接成功时关闭后重试，
+	 * 连接成功后才通知监听者，监听者不会收到null
+	 */
+	private void recoverSession() {
+		ExponentialBackoff backoff = new ExponentialBackoff(config.getRecoveryBackoffBaseMillis(),
+				config.getRecoveryBackoffMaxMillis());
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Thread.sleep(backoff.delayMillis(attempt));
+				//zookeeper连接是异步的，所以用CountDownLatch保证zookeeper连接成功后再通知Listeners
+				countDownLatch = new CountDownLatch(1);
+				ZooKeeper zooKeeper = createNewZookeeper();
+				if (zooKeeper == null)
+					continue;
+				if (countDownLatch.await(config.getSessionTimeout(), TimeUnit.MILLISECONDS)) {
+					try {
+						sessionRecovered(zooKeeper, attempt + 1);
+					}
+					catch (KeeperException e) {
+						//新session也已过期，随后的Expired事件会重新开始恢复
+						logger.error("使用新连接恢复失败！", e);
+					}
+					return;
+				}
+				logger.warn("第" + (attempt + 1) + "次重建zookeeper连接超时，退避后重试");
+				zooKeeper.close();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
 		}
 	}
 
-	private void noticeListener(ZooKeeper zooKeeper) {
+	/**
+	 * session重建后调用，通知监听者使用新的连接重新注册和同步，全部成功后统计从过期到恢复完成的耗时
+	 */
+	@Override
+	public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts)
+			throws KeeperException, InterruptedException {
+		noticeListener(zooKeeper);
+		if (discoveryService != null)
+			discoveryService.getMetrics().sessionRecovered(System.nanoTime() - expiredAt, connectAttempts);
+	}
+
+	private void noticeListener(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
 		logger.info("开始通知监听者...");
 		for(ZookeeperSessionExpiredListener listener: sessionExpiredListenerList){
 			listener.sessionExpired(zooKeeper);
@@ -86,9 +166,8 @@ public class ZookeeperWatcher implements Watcher {
 
 	private ZooKeeper createNewZookeeper() {
 		logger.info("开始重新创建新的连接...");
-		ZookeeperServerConfigProperties zkConfig = ZookeeperServerConfigProperties.config();
 		try {
-			ZooKeeper zooKeeper = new ZooKeeper(zkConfig.getServerAddress(), zkConfig.getSessionTimeout(),
+			ZooKeeper zooKeeper = new ZooKeeper(config.getServerAddress(), config.getSessionTimeout(),
 					this);
 			logger.info("新的连接已创建！");
 			return zooKeeper;
@@ -98,8 +177,27 @@ public class ZookeeperWatcher implements Watcher {
 		return null;
 	}
 
+	/**
+	 * 使用该命名空间配置中的分发器参数创建事件分发器
+	 */
 	public void setDiscoveryService(DiscoveryService discoveryService) {
 		this.discoveryService = discoveryService;
+		this.eventDispatcher = new DiscoveryEventDispatcher(discoveryService, config.getDispatcherWorkers(),
+				config.getDispatcherQueueCapacity());
+		discoveryService.setEventDispatcher(this.eventDispatcher);
+	}
+
+	/**
+	 * 停止事件分发器及session重建线程
+	 */
+	public void shutdown() {
+		sessionRecoveryExecutor.shutdownNow();
+		if (eventDispatcher != null)
+			eventDispatcher.shutdown();
+	}
+
+	public DiscoveryEventDispatcher getEventDispatcher() {
+		return eventDispatcher;
 	}
 
 	public void addSessionExpireListener(List<ZookeeperSessionExpiredListener> sessionExpiredListenerList) {
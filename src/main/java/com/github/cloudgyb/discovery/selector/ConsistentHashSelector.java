@@ -0,0 +1,337 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 一致性哈希策略，同一个键总是落到同一个实例上，实例上下线时只有少部分键改变归属，用于缓存亲和的路由。
+ * 每个实例按地址（ip:port）生成若干虚拟节点，数量与权重成正比，实例重启后（znode名称变化）仍落在原来的位置上。
+ * 哈希环保存为一个排序的long数组，高44位为哈希值，低20位为实例下标，查找时二分查找，不加锁也不分配对象。
+ * 实例快照变化时增量更新哈希环：按znode名称与旧环比较，没有变化的实例沿用原来的虚拟节点，
+ * 只为新增或变化的实例计算并排序虚拟节点，再与沿用的节点归并，不需要重新排序整个环。
+ * <p>
+ * 可选有界负载（consistent hashing with bounded loads）：每个实例的在途请求数不超过平均值的loadFactor倍，
+ * 超过时沿环顺时针交给下一个未满的实例。启用后调用方在请求结束后必须调用release，在途计数按服务保存，
+ * 同一服务的不同标签子集共用一张表（切换子集时增量更新并沿用计数）。
+ * release按实例地址查找计数，请求期间实例快照更新（实例对象变化）后仍能减少对应实例的计数。
+ * @author cloudgyb
+ * 2021/3/31 14:20
+ */
+public class ConsistentHashSelector implements InstanceSelector {
+	/**
+	 * 默认每个实例（权重为默认值时）的虚拟节点数
+	 */
+	public static final int DEFAULT_REPLICAS = 160;
+	private static final int OWNER_BITS = 20;
+	private static final long OWNER_MASK = (1L << OWNER_BITS) - 1;
+	private static final long HASH_MASK = ~OWNER_MASK;
+	/**
+	 * 虚拟节点数最多为replicas的这么多倍，避免个别权重很大的实例占满哈希环
+	 */
+	private static final int MAX_WEIGHT_FACTOR = 10;
+	private final int replicas;
+	private final double loadFactor;
+	private final TableCache<Ring> cache;
+
+	public ConsistentHashSelector() {
+		this(DEFAULT_REPLICAS, 0);
+	}
+
+	/**
+	 * @param replicas 权重为默认值的实例的虚拟节点数
+	 * @param loadFactor 有界负载系数，每个实例的在途请求数不超过平均值的该倍数，必须大于1，0表示不限制
+	 */
+	public ConsistentHashSelector(int replicas, double loadFactor) {
+		if (replicas <= 0)
+			throw new IllegalArgumentException("replicas必须大于0");
+		if (loadFactor != 0 && loadFactor <= 1)
+			throw new IllegalArgumentException("loadFactor必须大于1");
+		this.replicas = replicas;
+		this.loadFactor = loadFactor;
+		this.cache = new TableCache<>(Ring::new, loadFactor == 0);
+	}
+
+	/**
+	 * 没有路由键时在环上随机选择一个位置
+	 */
+	@Override
+	public ServiceInstanceInfo select(ServiceInstances instances) {
+		return select(instances, ThreadLocalRandom.current().nextLong(), null);
+	}
+
+	/**
+	 * @param key 路由键，例如缓存的键或用户id
+	 * @return 键在哈希环上顺时针遇到的第一个实例
+	 */
+	public ServiceInstanceInfo select(ServiceInstances instances, String key) {
+		return select(instances, hash(key), null);
+	}
+
+	/**
+	 * @param keyHash 路由键的哈希值，见hash
+	 * @param excluded 跳过的实例（例如被摘除的异常实例），为null时不跳过，所有实例都被跳过时返回键原本的实例
+	 * @return 键在哈希环上顺时针遇到的第一个未被跳过（启用有界负载时还要未满）的实例，没有实例时返回null
+	 */
+	public ServiceInstanceInfo select(ServiceInstances instances, long keyHash,
+			Predicate<ServiceInstanceInfo> excluded) {
+		int n = instances.size();
+		if (n == 0)
+			return null;
+		if (n == 1 && loadFactor == 0)
+			return instances.get(0);
+		Ring ring = cache.get(instances);
+		long[] points = ring.points;
+		if (points.length == 0)
+			return null;
+		int start = Arrays.binarySearch(points, keyHash & HASH_MASK);
+		start = start >= 0 ? start : -start - 1;
+		int chosen = -1;
+		if (excluded == null && loadFactor == 0) {
+			chosen = owner(points[start == points.length ? 0 : start]);
+		}
+		else {
+			long capacity = loadFactor == 0 ? Long.MAX_VALUE :
+					(long) Math.ceil(loadFactor * (ring.total.get() + 1) / n);
+			for (int k = 0; k < points.length && chosen < 0; k++) {
+				int i = owner(points[(start + k) % points.length]);
+				if (excluded != null && excluded.test(instances.get(i)))
+					continue;
+				if (ring.loads != null && ring.loads.get(i) >= capacity)
+					continue;
+				chosen = i;
+			}
+			if (chosen < 0)
+				chosen = owner(points[start == points.length ? 0 : start]);
+		}
+		if (ring.loads != null) {
+			ring.loads.incrementAndGet(chosen);
+			ring.total.incrementAndGet();
+		}
+		return instances.get(chosen);
+	}
+
+	@Override
+	public void retain(RegistrySnapshot snapshot) {
+		cache.retain(snapshot::get);
+	}
+
+	/**
+	 * 启用有界负载时，请求结束后减少实例的在途请求数，未启用时什么都不做
+	 * @param serviceName 服务名
+	 * @param instance select返回的实例
+	 */
+	public void release(String serviceName, ServiceInstanceInfo instance) {
+		if (loadFactor == 0 || instance == null)
+			return;
+		Ring ring = cache.peek(serviceName);
+		if (ring == null)
+			return;
+		Integer i = ring.indexes.get(addressOf(instance));
+		if (i == null)
+			return;
+		if (ring.loads.decrementAndGet(i) < 0)
+			ring.loads.incrementAndGet(i);
+		else
+			ring.total.decrementAndGet();
+	}
+
+	/**
+	 * @return 启用有界负载时实例当前的在途请求数，未启用或实例不存在时返回0
+	 */
+	public int getLoad(String serviceName, ServiceInstanceInfo instance) {
+		if (loadFactor == 0)
+			return 0;
+		Ring ring = cache.peek(serviceName);
+		if (ring == null)
+			return 0;
+		Integer i = ring.indexes.get(addressOf(instance));
+		return i == null ? 0 : ring.loads.get(i);
+	}
+
+	/**
+	 * 计算路由键的哈希值（64位FNV-1a再做一次混合），不分配对象
+	 */
+	public static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		//fmix64，使相近的键在环上分散
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int owner(long point) {
+		return (int) (point & OWNER_MASK);
+	}
+
+	private static String addressOf(ServiceInstanceInfo info) {
+		return info.getIp() + ":" + info.getPort();
+	}
+
+	private final class Ring implements TableCache.Table {
+		private final ServiceInstances source;
+		/**
+		 * 排序的虚拟节点，高44位为哈希值，低20位为实例在source中的下标
+		 */
+		private final long[] points;
+		/**
+		 * 每个实例的地址和虚拟节点数，用于下次增量更新时判断实例是否变化
+		 */
+		private final String[] addresses;
+		private final int[] weights;
+		/**
+		 * 所有实例的权重都小于等于0，每个实例按默认权重生成虚拟节点
+		 */
+		private final boolean uniform;
+		/**
+		 * 有界负载的在途请求数，未启用时为null
+		 */
+		private final AtomicIntegerArray loads;
+		private final AtomicInteger total;
+		/**
+		 * 实例地址 -> 下标，release时按地址查找，未启用有界负载时为null
+		 */
+		private final HashMap<String, Integer> indexes;
+
+		private Ring(ServiceInstances source, Ring previous) {
+			int n = source.size();
+			if (n > OWNER_MASK + 1)
+				throw new IllegalStateException("一致性哈希最多支持" + (OWNER_MASK + 1) + "个实例");
+			this.source = source;
+			this.addresses = new String[n];
+			this.weights = new int[n];
+			boolean anyPositive = false;
+			for (int i = 0; i < n; i++) {
+				ServiceInstanceInfo info = source.get(i);
+				addresses[i] = addressOf(info);
+				weights[i] = info.getWeight();
+				anyPositive |= weights[i] > 0;
+			}
+			this.uniform = !anyPositive;
+			if (previous != null && previous.uniform != uniform)
+				previous = null;
+			//按znode名称与旧环一一对应，remap为旧下标 -> 新下标，kept表示虚拟节点可以沿用
+			int[] remap = previous == null ? new int[0] : new int[previous.source.size()];
+			boolean[] kept = new boolean[n];
+			Arrays.fill(remap, -1);
+			if (previous != null) {
+				ServiceInstances old = previous.source;
+				int i = 0;
+				int j = 0;
+				while (i < old.size() && j < n) {
+					int cmp = old.getName(i).compareTo(source.getName(j));
+					if (cmp < 0) {
+						i++;
+					}
+					else if (cmp > 0) {
+						j++;
+					}
+					else {
+						remap[i] = j;
+						kept[j] = previous.addresses[i].equals(addresses[j]) &&
+								previous.replicasOf(i) == replicasOf(j);
+						i++;
+						j++;
+					}
+				}
+			}
+			//只为新增或变化的实例生成并排序虚拟节点
+			int added = 0;
+			for (int j = 0; j < n; j++) {
+				if (!kept[j])
+					added += replicasOf(j);
+			}
+			long[] addedPoints = new long[added];
+			int a = 0;
+			for (int j = 0; j < n; j++) {
+				if (kept[j])
+					continue;
+				for (int k = replicasOf(j) - 1; k >= 0; k--)
+					addedPoints[a++] = (hash(addresses[j] + "#" + k) & HASH_MASK) | j;
+			}
+			Arrays.sort(addedPoints);
+			//沿用的节点已经有序，与新节点归并
+			long[] oldPoints = previous == null ? new long[0] : previous.points;
+			int keptCount = 0;
+			for (long point : oldPoints) {
+				int j = remap[owner(point)];
+				if (j >= 0 && kept[j])
+					keptCount++;
+			}
+			long[] points = new long[keptCount + added];
+			int p = 0;
+			int q = 0;
+			int out = 0;
+			while (p < oldPoints.length || q < added) {
+				long next;
+				if (p < oldPoints.length) {
+					int j = remap[owner(oldPoints[p])];
+					if (j < 0 || !kept[j]) {
+						p++;
+						continue;
+					}
+					next = (oldPoints[p] & HASH_MASK) | j;
+					if (q < added && addedPoints[q] < next) {
+						next = addedPoints[q++];
+					}
+					else {
+						p++;
+					}
+				}
+				else {
+					next = addedPoints[q++];
+				}
+				points[out++] = next;
+			}
+			this.points = points;
+			if (loadFactor == 0) {
+				this.loads = null;
+				this.total = null;
+				this.indexes = null;
+				return;
+			}
+			this.loads = new AtomicIntegerArray(n);
+			this.indexes = new HashMap<>(Math.max(4, n * 4 / 3 + 1));
+			int total = 0;
+			for (int i = 0; i < n; i++)
+				indexes.putIfAbsent(addresses[i], i);
+			for (int i = 0; i < remap.length; i++) {
+				if (remap[i] >= 0) {
+					int load = previous.loads.get(i);
+					loads.set(remap[i], load);
+					total += load;
+				}
+			}
+			this.total = new AtomicInteger(total);
+		}
+
+		private int replicasOf(int i) {
+			if (uniform)
+				return replicas;
+			int weight = weights[i];
+			if (weight <= 0)
+				return 0;
+			long count = (long) replicas * weight / ServiceInstanceInfo.DEFAULT_WEIGHT;
+			return (int) Math.max(1, Math.min(count, (long) replicas * MAX_WEIGHT_FACTOR));
+		}
+
+		@Override
+		public ServiceInstances source() {
+			return source;
+		}
+	}
+}
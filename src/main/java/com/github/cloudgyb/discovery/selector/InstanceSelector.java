@@ -0,0 +1,27 @@
+package com.github.cloudgyb.discovery.selector;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 负载均衡策略，从某个服务的实例快照中选出一个实例。
+ * 实现必须是线程安全的，且不能在每次选择时加锁或分配对象。
+ * @author cloudgyb
+ * 2021/3/12 10:20
+ */
+public interface InstanceSelector {
+	/**
+	 * @param instances 服务的当前实例快照，不为空
+	 * @return 选中的实例
+	 */
+	ServiceInstanceInfo select(ServiceInstances instances);
+
+	/**
+	 * 注册表变化后调用，释放已删除的服务（以及旧快照上的标签子集）缓存的内部表。
+	 * DiscoveryService在通知注册表变化时对默认策略调用，其它策略对象需要调用方在注册表变化后自行调用
+	 * @param snapshot 当前的注册表
+	 */
+	default void retain(RegistrySnapshot snapshot) {
+	}
+}
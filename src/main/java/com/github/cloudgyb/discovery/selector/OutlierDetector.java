@@ -0,0 +1,319 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 实例异常检测（参考Envoy的outlier detection）。
+ * 调用方在每次调用结束后通过record上报耗时和结果，检测器为每个实例维护耗时的EWMA评分：
+ * <ul>
+ *     <li>连续失败次数达到阈值时立即摘除该实例</li>
+ *     <li>定时扫描时，EWMA耗时超过同服务平均值latencyFactor倍的实例被摘除</li>
+ *     <li>摘除时间为baseEjectionMillis乘以累计摘除次数（最多MAX_EJECTION_MULTIPLIER倍），到期后自动恢复</li>
+ *     <li>同一服务被摘除的实例不超过maxEjectionPercent</li>
+ * </ul>
+ * record和isEjected只读取ConcurrentHashMap并使用CAS更新，不加锁（只有触发摘除时才会同步）。
+ * 实例按服务名+ip:port统计，全量拉取或重新加载后实例对象变化，统计和摘除状态仍然保留；
+ * 快照中不再存在的实例会在扫描时清除，被摘除的实例同时归还摘除名额。
+ * @author cloudgyb
+ * 2021/3/15 10:10
+ */
+public class OutlierDetector {
+	private final Logger logger = LoggerFactory.getLogger(OutlierDetector.class);
+	/**
+	 * 摘除时长最多为baseEjectionMillis的这么多倍，反复被摘除的实例恢复后仍有机会重新参与选择
+	 */
+	static final int MAX_EJECTION_MULTIPLIER = 10;
+	private final double alpha;
+	private final int consecutiveFailures;
+	private final double latencyFactor;
+	private final long baseEjectionNanos;
+	private final int maxEjectionPercent;
+	private final long intervalMillis;
+	/**
+	 * 参与耗时异常判断的实例最少需要的样本数
+	 */
+	private final int minSamples;
+
+	private final ConcurrentHashMap<InstanceKey, InstanceStats> stats = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicInteger> ejectedPerService = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> serviceSizes = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * 使用默认参数：alpha=0.3，连续失败5次，耗时超过平均值3倍，基础摘除30秒，最多摘除50%，每10秒扫描
+	 */
+	public OutlierDetector() {
+		this(0.3, 5, 3.0, 30000, 50, 10000, 10);
+	}
+
+	/**
+	 * @param alpha EWMA平滑系数，越大越偏向最新样本
+	 * @param consecutiveFailures 连续失败多少次后摘除
+	 * @param latencyFactor EWMA耗时超过同服务平均值多少倍时摘除
+	 * @param baseEjectionMillis 基础摘除时长
+	 * @param maxEjectionPercent 同一服务最多摘除的实例百分比
+	 * @param intervalMillis 扫描间隔
+	 * @param minSamples 参与耗时异常判断最少需要的样本数
+	 */
+	public OutlierDetector(double alpha, int consecutiveFailures, double latencyFactor, long baseEjectionMillis,
+			int maxEjectionPercent, long intervalMillis, int minSamples) {
+		this.alpha = alpha;
+		this.consecutiveFailures = consecutiveFailures;
+		this.latencyFactor = latencyFactor;
+		this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMillis);
+		this.maxEjectionPercent = maxEjectionPercent;
+		this.intervalMillis = intervalMillis;
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * 启动定时扫描
+	 * @param snapshotSupplier 获取当前注册表快照
+	 */
+	public synchronized void start(Supplier<RegistrySnapshot> snapshotSupplier) {
+		if (scheduler != null)
+			return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "discovery-outlier-detector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				sweep(snapshotSupplier.get());
+			}
+			catch (Exception e) {
+				logger.error("实例异常检测扫描失败！", e);
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * 上报一次调用的结果，可以在每次请求后调用
+	 * @param instance 被调用的实例
+	 * @param latencyNanos 调用耗时（纳秒）
+	 * @param success 调用是否成功
+	 */
+	public void record(ServiceInstanceInfo instance, long latencyNanos, boolean success) {
+		if (instance == null)
+			return;
+		InstanceKey key = new InstanceKey(instance);
+		InstanceStats s = stats.get(key);
+		if (s == null)
+			s = stats.computeIfAbsent(key, k -> new InstanceStats());
+		s.samples.incrementAndGet();
+		s.updateEwma(latencyNanos);
+		if (success) {
+			s.failures.set(0);
+		}
+		else if (s.failures.incrementAndGet() >= consecutiveFailures) {
+			eject(instance, s, "连续失败" + consecutiveFailures + "次");
+		}
+	}
+
+	/**
+	 * @return 实例当前是否被摘除
+	 */
+	public boolean isEjected(ServiceInstanceInfo instance) {
+		InstanceStats s = stats.get(new InstanceKey(instance));
+		return s != null && s.ejected && s.ejectedUntil - System.nanoTime() > 0;
+	}
+
+	/**
+	 * @return 实例耗时的EWMA（微秒），没有样本时返回0
+	 */
+	public double getScoreMicros(ServiceInstanceInfo instance) {
+		InstanceStats s = stats.get(new InstanceKey(instance));
+		return s == null ? 0 : s.ewma() / 1000;
+	}
+
+	/**
+	 * @return 服务当前被摘除的实例数
+	 */
+	public int getEjectedCount(String serviceName) {
+		AtomicInteger n = ejectedPerService.get(serviceName);
+		return n == null ? 0 : n.get();
+	}
+
+	private void eject(ServiceInstanceInfo instance, InstanceStats s, String reason) {
+		String serviceName = instance.getServiceName();
+		AtomicInteger ejected = ejectedPerService.computeIfAbsent(serviceName, k -> new AtomicInteger());
+		Integer size = serviceSizes.get(serviceName);
+		int max = size == null ? 0 : size * maxEjectionPercent / 100;
+		synchronized (s) {
+			if (s.ejected)
+				return;
+			int current;
+			do {
+				current = ejected.get();
+				if (current >= max)
+					return;
+			} while (!ejected.compareAndSet(current, current + 1));
+			int times = Math.min(++s.ejections, MAX_EJECTION_MULTIPLIER);
+			s.ejectedUntil = System.nanoTime() + baseEjectionNanos * times;
+			s.ejected = true;
+		}
+		logger.warn("摘除实例" + instance + "，原因：" + reason + "，第" + s.ejections + "次摘除");
+	}
+
+	/**
+	 * 定时扫描：恢复到期的实例、按耗时摘除异常实例、清理已下线实例的统计
+	 */
+	void sweep(RegistrySnapshot snapshot) {
+		Map<String, ServiceInstances> services = new HashMap<>();
+		for (String serviceName : snapshot.getServiceNames())
+			services.put(serviceName, snapshot.get(serviceName));
+		sweep(services);
+	}
+
+	/**
+	 * @param services 服务名 -> 当前实例快照
+	 */
+	void sweep(Map<String, ServiceInstances> services) {
+		long now = System.nanoTime();
+		Set<InstanceKey> alive = new HashSet<>();
+		for (Map.Entry<String, ServiceInstances> service : services.entrySet()) {
+			String serviceName = service.getKey();
+			ServiceInstances instances = service.getValue();
+			serviceSizes.put(serviceName, instances.size());
+			double sum = 0;
+			int count = 0;
+			for (int i = 0; i < instances.size(); i++) {
+				ServiceInstanceInfo instance = instances.get(i);
+				InstanceKey key = new InstanceKey(instance);
+				alive.add(key);
+				InstanceStats s = stats.get(key);
+				if (s == null)
+					continue;
+				synchronized (s) {
+					if (s.ejected && s.ejectedUntil - now <= 0) {
+						//恢复后重新积累样本，避免旧的评分导致立即再次被摘除
+						s.ejected = false;
+						s.reset();
+						ejectedPerService.computeIfAbsent(serviceName, k -> new AtomicInteger()).decrementAndGet();
+						logger.info("恢复实例" + instance);
+					}
+				}
+				if (!s.ejected && s.samples.get() >= minSamples) {
+					sum += s.ewma();
+					count++;
+				}
+			}
+			if (count < 2)
+				continue;
+			double threshold = sum / count * latencyFactor;
+			for (int i = 0; i < instances.size(); i++) {
+				ServiceInstanceInfo instance = instances.get(i);
+				InstanceStats s = stats.get(new InstanceKey(instance));
+				if (s != null && !s.ejected && s.samples.get() >= minSamples && s.ewma() > threshold)
+					eject(instance, s, "耗时" + (long) (s.ewma() / 1000) + "us超过平均值" + latencyFactor + "倍");
+			}
+		}
+		for (Iterator<Map.Entry<InstanceKey, InstanceStats>> it = stats.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<InstanceKey, InstanceStats> entry = it.next();
+			if (alive.contains(entry.getKey()))
+				continue;
+			InstanceStats s = entry.getValue();
+			synchronized (s) {
+				//已下线的实例仍被摘除时归还摘除名额
+				if (s.ejected) {
+					s.ejected = false;
+					AtomicInteger ejected = ejectedPerService.get(entry.getKey().serviceName);
+					if (ejected != null)
+						ejected.decrementAndGet();
+				}
+			}
+			it.remove();
+		}
+		serviceSizes.keySet().retainAll(services.keySet());
+		ejectedPerService.keySet().retainAll(services.keySet());
+	}
+
+	/**
+	 * 实例统计的键：服务名+ip:port，同一地址的实例对象变化后仍对应同一份统计
+	 */
+	private static final class InstanceKey {
+		private final String serviceName;
+		private final String ip;
+		private final int port;
+
+		private InstanceKey(ServiceInstanceInfo instance) {
+			this.serviceName = instance.getServiceName();
+			this.ip = instance.getIp();
+			this.port = instance.getPort();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof InstanceKey))
+				return false;
+			InstanceKey other = (InstanceKey) o;
+			return port == other.port && Objects.equals(serviceName, other.serviceName) &&
+					Objects.equals(ip, other.ip);
+		}
+
+		@Override
+		public int hashCode() {
+			return (Objects.hashCode(serviceName) * 31 + Objects.hashCode(ip)) * 31 + port;
+		}
+	}
+
+	private final class InstanceStats {
+		/**
+		 * EWMA耗时（纳秒），以double的bit形式保存以便CAS更新
+		 */
+		private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(-1));
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicInteger samples = new AtomicInteger();
+		private volatile boolean ejected;
+		private volatile long ejectedUntil;
+		private int ejections;
+
+		private void updateEwma(long latencyNanos) {
+			long bits;
+			double next;
+			do {
+				bits = ewmaBits.get();
+				double current = Double.longBitsToDouble(bits);
+				next = current < 0 ? latencyNanos : current + alpha * (latencyNanos - current);
+			} while (!ewmaBits.compareAndSet(bits, Double.doubleToRawLongBits(next)));
+		}
+
+		private void reset() {
+			failures.set(0);
+			samples.set(0);
+			ewmaBits.set(Double.doubleToRawLongBits(-1));
+		}
+
+		private double ewma() {
+			return Math.max(0, Double.longBitsToDouble(ewmaBits.get()));
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 两次随机选择（power of two choices）策略：随机选出两个实例，取正在处理的请求数较少的一个。
+ * 调用方在请求结束后必须调用release，否则在途请求数会一直增加：
+ * <pre>
+ * ServiceInstanceInfo instance = discoveryService.select(serviceName, selector);
+ * try {
+ *     ...
+ * } finally {
+ *     selector.release(serviceName, instance);
+ * }
+ * </pre>
+ * 实例快照变化时重建在途计数数组，未变化的实例沿用原来的计数。
+ * 在途计数按服务保存，同一服务的不同标签子集共用一张表（切换子集时重建并沿用计数）。
+ * @author cloudgyb
+ * 2021/3/12 11:30
+ */
+public class PowerOfTwoChoicesSelector implements InstanceSelector {
+	private final TableCache<InFlight> cache = new TableCache<>(InFlight::new, false);
+
+	@Override
+	public ServiceInstanceInfo select(ServiceInstances instances) {
+		InFlight table = cache.get(instances);
+		int n = instances.size();
+		int chosen;
+		if (n == 1) {
+			chosen = 0;
+		}
+		else {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int a = random.nextInt(n);
+			int b = random.nextInt(n - 1);
+			if (b >= a)
+				b++;
+			chosen = table.counts.get(a) <= table.counts.get(b) ? a : b;
+		}
+		table.counts.incrementAndGet(chosen);
+		return instances.get(chosen);
+	}
+
+	@Override
+	public void retain(RegistrySnapshot snapshot) {
+		cache.retain(snapshot::get);
+	}
+
+	/**
+	 * 请求结束，减少实例的在途请求数
+	 * @param serviceName 服务名
+	 * @param instance select返回的实例
+	 */
+	public void release(String serviceName, ServiceInstanceInfo instance) {
+		if (instance == null)
+			return;
+		InFlight table = cache.peek(serviceName);
+		if (table == null)
+			return;
+		Integer i = table.indexes.get(instance);
+		if (i != null && table.counts.decrementAndGet(i) < 0)
+			table.counts.incrementAndGet(i);
+	}
+
+	/**
+	 * @return 实例当前的在途请求数，实例不存在时返回0
+	 */
+	public int getInFlight(String serviceName, ServiceInstanceInfo instance) {
+		InFlight table = cache.peek(serviceName);
+		if (table == null)
+			return 0;
+		Integer i = table.indexes.get(instance);
+		return i == null ? 0 : table.counts.get(i);
+	}
+
+	private static final class InFlight implements TableCache.Table {
+		private final ServiceInstances source;
+		private final AtomicIntegerArray counts;
+		/**
+		 * 实例对象 -> 下标，按对象标识查找，release时不需要计算hashCode和equals
+		 */
+		private final IdentityHashMap<ServiceInstanceInfo, Integer> indexes;
+
+		private InFlight(ServiceInstances source, InFlight previous) {
+			this.source = source;
+			int n = source.size();
+			this.counts = new AtomicIntegerArray(n);
+			this.indexes = new IdentityHashMap<>(n);
+			for (int i = 0; i < n; i++) {
+				ServiceInstanceInfo instance = source.get(i);
+				indexes.put(instance, i);
+				if (previous != null) {
+					Integer old = previous.indexes.get(instance);
+					if (old != null)
+						counts.set(i, previous.counts.get(old));
+				}
+			}
+		}
+
+		@Override
+		public ServiceInstances source() {
+			return source;
+		}
+	}
+}
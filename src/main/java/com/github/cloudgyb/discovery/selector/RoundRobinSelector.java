@@ -0,0 +1,73 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 轮询策略。
+ * 每个服务使用一组分段的原子计数器，线程按线程id落到不同的分段上，避免所有调用线程争用同一个计数器；
+ * 每个分段本身都完整地轮询所有实例，只是起始位置错开。
+ * @author cloudgyb
+ * 2021/3/12 10:45
+ */
+public class RoundRobinSelector implements InstanceSelector {
+	/**
+	 * 每个计数器占用一个缓存行（8个long），避免伪共享
+	 */
+	private static final int PADDING = 8;
+	private final int stripes;
+	private final TableCache<Counters> cache;
+
+	public RoundRobinSelector() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param stripes 计数器分段数，会向上取整为2的幂
+	 */
+	public RoundRobinSelector(int stripes) {
+		int n = 1;
+		while (n < stripes && n < 64)
+			n <<= 1;
+		this.stripes = n;
+		//计数器与实例集合无关，实例变化时沿用原来的计数器
+		this.cache = new TableCache<>((instances, previous) ->
+				new Counters(instances, previous == null ? new AtomicLongArray(this.stripes * PADDING) :
+						previous.counters));
+	}
+
+	@Override
+	public ServiceInstanceInfo select(ServiceInstances instances) {
+		int n = instances.size();
+		if (n == 1)
+			return instances.get(0);
+		int stripe = (int) Thread.currentThread().getId() & (stripes - 1);
+		long c = cache.get(instances).counters.getAndIncrement(stripe * PADDING);
+		//各分段的起始位置错开
+		long offset = (long) stripe * n / stripes;
+		return instances.get((int) ((c + offset) % n));
+	}
+
+	@Override
+	public void retain(RegistrySnapshot snapshot) {
+		cache.retain(snapshot::get);
+	}
+
+	private static final class Counters implements TableCache.Table {
+		private final ServiceInstances source;
+		private final AtomicLongArray counters;
+
+		private Counters(ServiceInstances source, AtomicLongArray counters) {
+			this.source = source;
+			this.counters = counters;
+		}
+
+		@Override
+		public ServiceInstances source() {
+			return source;
+		}
+	}
+}
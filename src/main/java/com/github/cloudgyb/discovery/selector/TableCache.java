@@ -0,0 +1,87 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.github.cloudgyb.discovery.ServiceInstances;
+
+/**
+ * 按服务（及标签查询的子集，见ServiceInstances.getSelectionKey）缓存负载均衡策略的内部表，只有实例快照变化时才重建。
+ * 查询时只有一次ConcurrentHashMap读取和一次引用比较。
+ * 注册表变化后由retain清理已删除的服务的表，以及标签子集中服务版本已更新、不会再被查询的表。
+ * @author cloudgyb
+ * 2021/3/12 10:31
+ */
+final class TableCache<T extends TableCache.Table> {
+	private final ConcurrentHashMap<String, T> tables = new ConcurrentHashMap<>();
+	private final Builder<T> builder;
+	/**
+	 * 为false时同一服务的所有子集共用一张表，子集切换时重建
+	 */
+	private final boolean perSubset;
+
+	TableCache(Builder<T> builder) {
+		this(builder, true);
+	}
+
+	TableCache(Builder<T> builder, boolean perSubset) {
+		this.builder = builder;
+		this.perSubset = perSubset;
+	}
+
+	T get(ServiceInstances instances) {
+		String key = perSubset ? instances.getSelectionKey() : instances.getServiceName();
+		T table = tables.get(key);
+		if (table != null && table.source() == instances)
+			return table;
+		return tables.compute(key,
+				(k, old) -> old != null && old.source() == instances ? old : builder.build(instances, old));
+	}
+
+	/**
+	 * @param key perSubset时为ServiceInstances.getSelectionKey，否则为服务名
+	 * @return 当前的表，尚未创建时返回null
+	 */
+	T peek(String key) {
+		return tables.get(key);
+	}
+
+	/**
+	 * 删除注册表中已不存在的服务的表；按子集缓存时，还删除服务已有更新版本的子集的表（服务本身的表保留，以便沿用状态）
+	 * @param services 服务名 -> 注册表中该服务当前的实例快照，服务已删除时返回null
+	 */
+	void retain(Function<String, ServiceInstances> services) {
+		for (Map.Entry<String, T> entry : tables.entrySet()) {
+			ServiceInstances source = entry.getValue().source();
+			ServiceInstances current = services.apply(source.getServiceName());
+			boolean stale = current == null || perSubset && !entry.getKey().equals(source.getServiceName()) &&
+					source.getVersion() < current.getVersion();
+			//只删除检查过的表，期间被重建的表保留
+			if (stale)
+				tables.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return 缓存的表的数量
+	 */
+	int size() {
+		return tables.size();
+	}
+
+	interface Table {
+		/**
+		 * @return 创建该表时使用的实例快照
+		 */
+		ServiceInstances source();
+	}
+
+	interface Builder<T> {
+		/**
+		 * @param instances 新的实例快照
+		 * @param previous 旧的表，可以从中继承状态，可能为null
+		 */
+		T build(ServiceInstances instances, T previous);
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.cloudgyb.discovery.selector;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 加权随机策略。
+ * 实例变化时预先计算累计权重数组，选择时生成一个随机数并二分查找，不加锁也不分配对象。
+ * 权重小于等于0的实例不会被选中，所有实例权重都小于等于0时退化为等概率随机。
+ * @author cloudgyb
+ * 2021/3/12 11:05
+ */
+public class WeightedRandomSelector implements InstanceSelector {
+	private final ToIntFunction<ServiceInstanceInfo> weigher;
+	private final TableCache<Weights> cache;
+
+	/**
+	 * 使用实例注册时声明的权重（ServiceInstanceInfo.getWeight）
+	 */
+	public WeightedRandomSelector() {
+		this(ServiceInstanceInfo::getWeight);
+	}
+
+	/**
+	 * @param weigher 计算实例权重，只在实例快照变化时调用
+	 */
+	public WeightedRandomSelector(ToIntFunction<ServiceInstanceInfo> weigher) {
+		this.weigher = weigher;
+		this.cache = new TableCache<>((instances, previous) -> new Weights(instances));
+	}
+
+	@Override
+	public ServiceInstanceInfo select(ServiceInstances instances) {
+		int n = instances.size();
+		if (n == 1)
+			return instances.get(0);
+		Weights weights = cache.get(instances);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (weights.cumulative == null)
+			return instances.get(random.nextInt(n));
+		long r = random.nextLong(weights.total);
+		int i = Arrays.binarySearch(weights.cumulative, r);
+		//cumulative[i]为前i+1个实例的权重和，查找第一个大于r的位置
+		i = i >= 0 ? i + 1 : -i - 1;
+		return instances.get(i);
+	}
+
+	@Override
+	public void retain(RegistrySnapshot snapshot) {
+		cache.retain(snapshot::get);
+	}
+
+	private final class Weights implements TableCache.Table {
+		private final ServiceInstances source;
+		/**
+		 * 权重都相同时为null
+		 */
+		private final long[] cumulative;
+		private final long total;
+
+		private Weights(ServiceInstances source) {
+			this.source = source;
+			int n = source.size();
+			long[] cumulative = new long[n];
+			long sum = 0;
+			boolean uniform = true;
+			int first = n == 0 ? 0 : Math.max(0, weigher.applyAsInt(source.get(0)));
+			for (int i = 0; i < n; i++) {
+				int w = Math.max(0, weigher.applyAsInt(source.get(i)));
+				uniform &= w == first;
+				sum += w;
+				cumulative[i] = sum;
+			}
+			this.cumulative = uniform || sum == 0 ? null : cumulative;
+			this.total = sum;
+		}
+
+		@Override
+		public ServiceInstances source() {
+			return source;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.github.cloudgyb.discovery.selector;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+
+/**
+ * 同区域优先策略：优先在元数据zone与本实例相同的实例中选择，同区域可用实例不足时在所有实例中选择。
+ * 同区域的实例子集来自ServiceInstances的标签索引，快照不变时不分配对象。
+ * @author cloudgyb
+ * 2021/3/22 11:02
+ */
+public class ZoneAffinitySelector implements InstanceSelector {
+	private final String zone;
+	private final InstanceSelector delegate;
+	private final int minInstances;
+
+	/**
+	 * 同区域内使用轮询
+	 * @param zone 本实例所在区域
+	 */
+	public ZoneAffinitySelector(String zone) {
+		this(zone, new RoundRobinSelector(), 1);
+	}
+
+	/**
+	 * @param zone 本实例所在区域
+	 * @param delegate 在同区域（或回退后的所有）实例中选择时使用的策略
+	 * @param minInstances 同区域实例少于该数量时回退到所有实例，至少为1
+	 */
+	public ZoneAffinitySelector(String zone, InstanceSelector delegate, int minInstances) {
+		if (zone == null || delegate == null)
+			throw new NullPointerException();
+		this.zone = zone;
+		this.delegate = delegate;
+		this.minInstances = Math.max(1, minInstances);
+	}
+
+	@Override
+	public ServiceInstanceInfo select(ServiceInstances instances) {
+		ServiceInstances local = instances.withTag(ServiceInstanceInfo.ZONE_KEY, zone);
+		return delegate.select(local.size() >= minInstances ? local : instances);
+	}
+
+	@Override
+	public void retain(RegistrySnapshot snapshot) {
+		delegate.retain(snapshot);
+	}
+
+	public String getZone() {
+		return zone;
+	}
+}
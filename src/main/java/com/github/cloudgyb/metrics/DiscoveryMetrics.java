@@ -0,0 +1,82 @@
+package com.github.cloudgyb.metrics;
+
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * 服务注册与发现的监控指标SPI，默认实现为JmxDiscoveryMetrics。
+ * 所有方法都可能在findService等热点路径上调用，实现必须无锁且开销极小（例如使用LongAdder）。
+ * @author cloudgyb
+ * 2021/3/18 10:05
+ */
+public interface DiscoveryMetrics {
+
+	/**
+	 * 一个zookeeper事件已应用到注册表
+	 * @param lagNanos 从事件到达到应用完成的耗时
+	 */
+	void eventApplied(long lagNanos);
+
+	/**
+	 * 一次全量拉取注册表完成
+	 */
+	void flushCompleted(long durationNanos, boolean success);
+
+	/**
+	 * 一次zookeeper请求完成
+	 */
+	void zookeeperOperation(ZookeeperOperation operation, long latencyNanos, boolean success);
+
+	void sessionExpired();
+
+	/**
+	 * session过期后重新注册完成
+	 */
+	void reRegistered(long durationNanos);
+
+	/**
+	 * session过期后恢复完成（重建连接、重新注册、重新监听并同步注册表）
+	 * @param timeToRecoverNanos 从收到session过期事件到恢复完成的耗时
+	 * @param connectAttempts 重建连接的尝试次数
+	 */
+	void sessionRecovered(long timeToRecoverNanos, int connectAttempts);
+
+	/**
+	 * 一次findService或select查询
+	 */
+	void lookup();
+
+	/**
+	 * 绑定注册表，用于按服务统计实例数
+	 */
+	void bindRegistry(Supplier<RegistrySnapshot> registry);
+
+	/**
+	 * 注册一个按需读取的数值指标，例如事件队列深度
+	 */
+	void gauge(String name, LongSupplier supplier);
+
+	/**
+	 * 执行zookeeper请求并统计耗时
+	 */
+	default <T> T time(ZookeeperOperation operation, ZookeeperCall<T> call)
+			throws KeeperException, InterruptedException {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			T result = call.call();
+			success = true;
+			return result;
+		}
+		finally {
+			zookeeperOperation(operation, System.nanoTime() - start, success);
+		}
+	}
+
+	interface ZookeeperCall<T> {
+		T call() throws KeeperException, InterruptedException;
+	}
+}
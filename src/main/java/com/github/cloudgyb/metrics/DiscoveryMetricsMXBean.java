@@ -0,0 +1,82 @@
+package com.github.cloudgyb.metrics;
+
+import java.util.Map;
+
+/**
+ * 服务注册与发现的JMX监控接口，时间单位见属性名
+ * @author cloudgyb
+ * 2021/3/18 10:20
+ */
+public interface DiscoveryMetricsMXBean {
+	long getEventsApplied();
+
+	long getEventLagAvgMicros();
+
+	long getEventLagMaxMicros();
+
+	long getFlushCount();
+
+	long getFlushFailures();
+
+	long getLastFlushMillis();
+
+	long getFlushAvgMillis();
+
+	/**
+	 * @return 操作类型 -> 请求数
+	 */
+	Map<String, Long> getZookeeperOperations();
+
+	/**
+	 * @return 操作类型 -> 失败数
+	 */
+	Map<String, Long> getZookeeperErrors();
+
+	/**
+	 * @return 操作类型 -> 平均耗时（微秒）
+	 */
+	Map<String, Long> getZookeeperLatencyAvgMicros();
+
+	/**
+	 * @return 操作类型 -> 最大耗时（微秒）
+	 */
+	Map<String, Long> getZookeeperLatencyMaxMicros();
+
+	/**
+	 * @return 服务名 -> 实例数
+	 */
+	Map<String, Integer> getRegistrySizes();
+
+	int getServices();
+
+	int getInstances();
+
+	long getRegistryVersion();
+
+	long getSessionExpirations();
+
+	long getLastReRegistrationMillis();
+
+	long getSessionRecoveries();
+
+	/**
+	 * @return 最近一次从session过期到恢复完成的耗时
+	 */
+	long getLastTimeToRecoverMillis();
+
+	long getMaxTimeToRecoverMillis();
+
+	int getLastRecoveryConnectAttempts();
+
+	long getLookups();
+
+	/**
+	 * @return 注册的其他数值指标，例如事件队列深度
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * 清零所有最大值
+	 */
+	void resetMaxima();
+}
@@ -0,0 +1,355 @@
+package com.github.cloudgyb.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+import com.github.cloudgyb.discovery.ServiceInstances;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 基于LongAdder的监控指标实现，通过JMX（MXBean）暴露。
+ * 计数与累计耗时使用分段的LongAdder，热点路径上只有一次无竞争的add；
+ * 注册表大小等指标在JMX读取时才从注册表快照计算。
+ * @author cloudgyb
+ * 2021/3/18 10:30
+ */
+public class JmxDiscoveryMetrics implements DiscoveryMetrics, DiscoveryMetricsMXBean {
+	public static final String DOMAIN = "com.github.cloudgyb";
+	private static final Logger logger = LoggerFactory.getLogger(JmxDiscoveryMetrics.class);
+
+	private final LongAdder eventsApplied = new LongAdder();
+	private final LongAdder eventLagNanos = new LongAdder();
+	private final AtomicLong eventLagMaxNanos = new AtomicLong();
+
+	private final LongAdder flushCount = new LongAdder();
+	private final LongAdder flushFailures = new LongAdder();
+	private final LongAdder flushNanos = new LongAdder();
+	private volatile long lastFlushNanos;
+
+	private final Map<ZookeeperOperation, OperationStats> operations =
+			new EnumMap<>(ZookeeperOperation.class);
+
+	private final LongAdder sessionExpirations = new LongAdder();
+	private volatile long lastReRegistrationNanos;
+	private final LongAdder sessionRecoveries = new LongAdder();
+	private volatile long lastTimeToRecoverNanos;
+	private volatile long maxTimeToRecoverNanos;
+	private volatile int lastRecoveryConnectAttempts;
+	private final LongAdder lookups = new LongAdder();
+
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private volatile Supplier<RegistrySnapshot> registry = () -> null;
+	private ObjectName objectName;
+
+	public JmxDiscoveryMetrics() {
+		for (ZookeeperOperation operation : ZookeeperOperation.values()) {
+			operations.put(operation, new OperationStats());
+		}
+	}
+
+	/**
+	 * 注册到平台MBeanServer，ObjectName为com.github.cloudgyb:type=ServiceDiscovery,namespace=...，
+	 * 同名MBean已存在时追加id以区分同一进程中的多个实例
+	 * @param namespace 服务注册的命名空间
+	 * @return this
+	 */
+	public synchronized JmxDiscoveryMetrics register(String namespace) {
+		if (objectName != null) {
+			return this;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String base = DOMAIN + ":type=ServiceDiscovery,namespace=" + ObjectName.quote(namespace);
+		try {
+			for (int id = 0; ; id++) {
+				ObjectName name = new ObjectName(id == 0 ? base : base + ",id=" + id);
+				try {
+					server.registerMBean(this, name);
+					objectName = name;
+					logger.info("监控指标已注册到JMX：" + name);
+					return this;
+				}
+				catch (InstanceAlreadyExistsException ignored) {
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.warn("监控指标注册到JMX失败！", e);
+			return this;
+		}
+	}
+
+	/**
+	 * 从MBeanServer注销
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Exception e) {
+			logger.warn("监控指标从JMX注销失败！", e);
+		}
+		objectName = null;
+	}
+
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override
+	public void eventApplied(long lagNanos) {
+		eventsApplied.increment();
+		eventLagNanos.add(lagNanos);
+		updateMax(eventLagMaxNanos, lagNanos);
+	}
+
+	@Override
+	public void flushCompleted(long durationNanos, boolean success) {
+		if (!success) {
+			flushFailures.increment();
+			return;
+		}
+		flushCount.increment();
+		flushNanos.add(durationNanos);
+		lastFlushNanos = durationNanos;
+	}
+
+	@Override
+	public void zookeeperOperation(ZookeeperOperation operation, long latencyNanos, boolean success) {
+		operations.get(operation).record(latencyNanos, success);
+	}
+
+	@Override
+	public void sessionExpired() {
+		sessionExpirations.increment();
+	}
+
+	@Override
+	public void reRegistered(long durationNanos) {
+		lastReRegistrationNanos = durationNanos;
+	}
+
+	@Override
+	public void sessionRecovered(long timeToRecoverNanos, int connectAttempts) {
+		sessionRecoveries.increment();
+		lastTimeToRecoverNanos = timeToRecoverNanos;
+		lastRecoveryConnectAttempts = connectAttempts;
+		//恢复只在单个线程上串行进行，不需要CAS
+		if (timeToRecoverNanos > maxTimeToRecoverNanos)
+			maxTimeToRecoverNanos = timeToRecoverNanos;
+	}
+
+	@Override
+	public void lookup() {
+		lookups.increment();
+	}
+
+	@Override
+	public void bindRegistry(Supplier<RegistrySnapshot> registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void gauge(String name, LongSupplier supplier) {
+		gauges.put(name, supplier);
+	}
+
+	@Override
+	public long getEventsApplied() {
+		return eventsApplied.sum();
+	}
+
+	@Override
+	public long getEventLagAvgMicros() {
+		long count = eventsApplied.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(eventLagNanos.sum() / count);
+	}
+
+	@Override
+	public long getEventLagMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(eventLagMaxNanos.get());
+	}
+
+	@Override
+	public long getFlushCount() {
+		return flushCount.sum();
+	}
+
+	@Override
+	public long getFlushFailures() {
+		return flushFailures.sum();
+	}
+
+	@Override
+	public long getLastFlushMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos);
+	}
+
+	@Override
+	public long getFlushAvgMillis() {
+		long count = flushCount.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushNanos.sum() / count);
+	}
+
+	@Override
+	public Map<String, Long> getZookeeperOperations() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		operations.forEach((operation, stats) -> result.put(operation.name(), stats.count.sum()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getZookeeperErrors() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		operations.forEach((operation, stats) -> result.put(operation.name(), stats.errors.sum()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getZookeeperLatencyAvgMicros() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		operations.forEach((operation, stats) -> result.put(operation.name(), stats.avgMicros()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getZookeeperLatencyMaxMicros() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		operations.forEach((operation, stats) ->
+				result.put(operation.name(), TimeUnit.NANOSECONDS.toMicros(stats.maxNanos.get())));
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getRegistrySizes() {
+		RegistrySnapshot snapshot = registry.get();
+		if (snapshot == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, Integer> result = new TreeMap<>();
+		for (String serviceName : snapshot.getServiceNames()) {
+			ServiceInstances instances = snapshot.get(serviceName);
+			if (instances != null) {
+				result.put(serviceName, instances.size());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int getServices() {
+		RegistrySnapshot snapshot = registry.get();
+		return snapshot == null ? 0 : snapshot.size();
+	}
+
+	@Override
+	public int getInstances() {
+		int total = 0;
+		for (Integer size : getRegistrySizes().values()) {
+			total += size;
+		}
+		return total;
+	}
+
+	@Override
+	public long getRegistryVersion() {
+		RegistrySnapshot snapshot = registry.get();
+		return snapshot == null ? 0 : snapshot.getVersion();
+	}
+
+	@Override
+	public long getSessionExpirations() {
+		return sessionExpirations.sum();
+	}
+
+	@Override
+	public long getLastReRegistrationMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastReRegistrationNanos);
+	}
+
+	@Override
+	public long getSessionRecoveries() {
+		return sessionRecoveries.sum();
+	}
+
+	@Override
+	public long getLastTimeToRecoverMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastTimeToRecoverNanos);
+	}
+
+	@Override
+	public long getMaxTimeToRecoverMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxTimeToRecoverNanos);
+	}
+
+	@Override
+	public int getLastRecoveryConnectAttempts() {
+		return lastRecoveryConnectAttempts;
+	}
+
+	@Override
+	public long getLookups() {
+		return lookups.sum();
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> result = new TreeMap<>();
+		gauges.forEach((name, supplier) -> result.put(name, supplier.getAsLong()));
+		return result;
+	}
+
+	@Override
+	public void resetMaxima() {
+		eventLagMaxNanos.set(0);
+		for (OperationStats stats : operations.values()) {
+			stats.maxNanos.set(0);
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	private static final class OperationStats {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long latencyNanos, boolean success) {
+			count.increment();
+			if (!success) {
+				errors.increment();
+			}
+			totalNanos.add(latencyNanos);
+			updateMax(maxNanos, latencyNanos);
+		}
+
+		long avgMicros() {
+			long n = count.sum();
+			return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / n);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.github.cloudgyb.metrics;
+
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.github.cloudgyb.discovery.RegistrySnapshot;
+
+/**
+ * 不统计任何指标
+ * @author cloudgyb
+ * 2021/3/18 10:12
+ */
+public final class NoopDiscoveryMetrics implements DiscoveryMetrics {
+	public static final NoopDiscoveryMetrics INSTANCE = new NoopDiscoveryMetrics();
+
+	private NoopDiscoveryMetrics() {
+	}
+
+	@Override
+	public void eventApplied(long lagNanos) {
+	}
+
+	@Override
+	public void flushCompleted(long durationNanos, boolean success) {
+	}
+
+	@Override
+	public void zookeeperOperation(ZookeeperOperation operation, long latencyNanos, boolean success) {
+	}
+
+	@Override
+	public void sessionExpired() {
+	}
+
+	@Override
+	public void reRegistered(long durationNanos) {
+	}
+
+	@Override
+	public void sessionRecovered(long timeToRecoverNanos, int connectAttempts) {
+	}
+
+	@Override
+	public void lookup() {
+	}
+
+	@Override
+	public void bindRegistry(Supplier<RegistrySnapshot> registry) {
+	}
+
+	@Override
+	public void gauge(String name, LongSupplier supplier) {
+	}
+}
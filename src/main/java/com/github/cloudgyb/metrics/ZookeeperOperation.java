@@ -0,0 +1,18 @@
+package com.github.cloudgyb.metrics;
+
+/**
+ * 统计耗时的zookeeper操作类型
+ * @author cloudgyb
+ * 2021/3/18 10:02
+ */
+public enum ZookeeperOperation {
+	GET_DATA,
+	GET_CHILDREN,
+	EXISTS,
+	CREATE,
+	DELETE,
+	SET_DATA,
+	MULTI,
+	ADD_WATCH,
+	REMOVE_WATCH
+}
@@ -0,0 +1,94 @@
+package com.github.cloudgyb.registry;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.github.cloudgyb.util.StringPool;
+
+/**
+ * 只读的元数据，键值交替保存在一个数组中，保持插入顺序。
+ * 实例的元数据通常只有几项，按键线性查找比哈希表更快，也不需要为每一项创建节点对象
+ * @author cloudgyb
+ * 2021/3/29 11:40
+ */
+final class MetadataMap extends AbstractMap<String, String> {
+	/**
+	 * key0, value0, key1, value1, ...，键和值都来自StringPool
+	 */
+	private final String[] entries;
+
+	private MetadataMap(String[] entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * @param metadata 不为空，复制后保存
+	 */
+	static MetadataMap copyOf(Map<String, String> metadata) {
+		String[] entries = new String[metadata.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> entry : metadata.entrySet()) {
+			entries[i++] = StringPool.intern(entry.getKey());
+			entries[i++] = StringPool.intern(entry.getValue());
+		}
+		return new MetadataMap(entries);
+	}
+
+	@Override
+	public String get(Object key) {
+		for (int i = 0; i < entries.length; i += 2) {
+			if (entries[i] == null ? key == null : entries[i].equals(key))
+				return entries[i + 1];
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		for (int i = 0; i < entries.length; i += 2) {
+			if (entries[i] == null ? key == null : entries[i].equals(key))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int size() {
+		return entries.length / 2;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int i;
+
+					@Override
+					public boolean hasNext() {
+						return i < entries.length;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (i >= entries.length)
+							throw new NoSuchElementException();
+						Entry<String, String> e = new SimpleImmutableEntry<>(entries[i], entries[i + 1]);
+						i += 2;
+						return e;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return entries.length / 2;
+			}
+		};
+	}
+}
@@ -1,16 +1,30 @@
 package com.github.cloudgyb.registry;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.cloudgyb.ZookeeperSessionExpiredListener;
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
 import com.github.cloudgyb.config.ApplicationProperties;
 import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.metrics.DiscoveryMetrics;
+import com.github.cloudgyb.metrics.NoopDiscoveryMetrics;
+import com.github.cloudgyb.metrics.ZookeeperOperation;
 import com.github.cloudgyb.util.IPUtil;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
@@ -22,12 +36,48 @@ import org.apache.zookeeper.data.Stat;
  */
 public class RegistryService implements ServiceRegister, ZookeeperSessionExpiredListener {
 	private final Logger logger = Logger.getLogger(RegistryService.class);
+	/**
+	 * 单个multi事务最多包含的create操作数，避免请求超过jute.maxbuffer
+	 */
+	private static final int MAX_OPS_PER_MULTI = 128;
 	private ZooKeeper zooKeeper;
 	private final ZookeeperServerConfigProperties configProperties;
+	private final ServiceInstanceCodec codec;
+	private volatile DiscoveryMetrics metrics = NoopDiscoveryMetrics.INSTANCE;
+	/**
+	 * 已确认存在的父节点（namespace及服务节点），注册时不再检查
+	 */
+	private final Set<String> knownParents = ConcurrentHashMap.newKeySet();
+	/**
+	 * registry()注册的本应用实例，未注册时为null
+	 */
+	private Registration primary;
+	/**
+	 * 所有注册的实例（包括primary），session过期后整体重新注册
+	 */
+	private final List<Registration> registrations = new ArrayList<>();
 
 	public RegistryService(ZooKeeper zooKeeper) {
+		this(zooKeeper, ZookeeperServerConfigProperties.config());
+	}
+
+	/**
+	 * @param configProperties 注册使用的配置（命名空间、编码格式等），多个命名空间共用连接时每个命名空间一份
+	 */
+	public RegistryService(ZooKeeper zooKeeper, ZookeeperServerConfigProperties configProperties) {
 		this.zooKeeper = zooKeeper;
-		this.configProperties = ZookeeperServerConfigProperties.config();
+		this.configProperties = configProperties;
+		this.codec = createCodec(configProperties.getRegistryCodec());
+	}
+
+	private ServiceInstanceCodec createCodec(String name) {
+		try {
+			return ServiceInstanceCodecs.forName(name);
+		}
+		catch (CodecException e) {
+			logger.error(e.getMessage() + "，使用默认编码格式！");
+			return ServiceInstanceCodecs.defaultCodec();
+		}
 	}
 
 	/**
@@ -35,57 +85,371 @@ public class RegistryService implements ServiceRegister, ZookeeperSessionExpired
 	 * /namespace/serviceName/serviceName0000000000
 	 *                       /serviceName0000000001
 	 *                       /serviceName0000000002
+	 * 已注册过（例如session过期后重新注册）时使用最后一次更新的实例信息
 	 * @return 注册成功返回true
 	 */
 	@Override
-	public boolean registry() {
-		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			 ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-			ServiceInstanceInfo info = generateServiceInfo();
-			oos.writeObject(info);
-			ensureZNodeExist(configProperties.getNamespace(), info.getServiceName());
-			this.zooKeeper.create(configProperties.getNamespace() + "/" +
-							info.getServiceName() + "/" + info.getServiceName(),
-					baos.toByteArray(),
-					ZooDefs.Ids.OPEN_ACL_UNSAFE,
-					CreateMode.EPHEMERAL_SEQUENTIAL);
-		}
-		catch (IOException | InterruptedException | KeeperException e) {
+	public synchronized boolean registry() {
+		if (primary == null) {
+			primary = new Registration(generateServiceInfo());
+			registrations.add(primary);
+		}
+		if (primary.path != null)
+			return true;
+		try {
+			createAll(Collections.singletonList(primary));
+		}
+		catch (CodecException | InterruptedException | KeeperException e) {
 			logger.error(e.getMessage(), e);
 			return false;
 		}
 		return true;
 	}
 
-	private void ensureZNodeExist(String namespace, String serviceName) throws KeeperException, InterruptedException {
-		Stat exists = zooKeeper.exists(namespace, false);
-		if (exists == null) {
-			logger.info("zookeeper namespace:" + namespace + "不存在，开始创建...");
-			String s = zooKeeper.create(namespace, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-			logger.info("zookeeper namespace:" + s + "已创建！");
+	/**
+	 * 批量注册多个实例（例如sidecar代理的多个端点）：缺少的父节点与所有实例节点流水线式地异步提交，
+	 * 实例节点每最多128个放在一个multi事务中，整批只需要约一次网络往返。
+	 * 已存在的父节点会被缓存，之后注册时不再创建，创建父节点时NodeExists视为成功。
+	 * 注册的实例会在session过期后重新注册。不能在zookeeper回调线程中调用
+	 * @param infos 要注册的实例
+	 * @return 每个实例的注册记录，顺序与infos相同
+	 * @throws KeeperException 部分multi事务失败时抛出，已成功的实例仍然保留注册
+	 */
+	public synchronized List<Registration> registerAll(Collection<ServiceInstanceInfo> infos)
+			throws KeeperException, InterruptedException, CodecException {
+		List<Registration> batch = new ArrayList<>(infos.size());
+		for (ServiceInstanceInfo info : infos)
+			batch.add(new Registration(info.copy()));
+		try {
+			createAll(batch);
+		}
+		finally {
+			for (Registration registration : batch) {
+				if (registration.path != null)
+					registrations.add(registration);
+			}
+		}
+		return Collections.unmodifiableList(batch);
+	}
+
+	/**
+	 * 创建batch中尚未注册的实例节点。
+	 * zookeeper按提交顺序处理同一session的请求，所以父节点的create排在multi之前提交后不需要等待返回。
+	 * 缓存的父节点被外部删除时multi返回NoNode，清空缓存后重试一次
+	 */
+	private void createAll(List<Registration> batch) throws KeeperException, InterruptedException, CodecException {
+		String namespace = configProperties.getNamespace();
+		byte[][] data = new byte[batch.size()][];
+		for (int i = 0; i < batch.size(); i++)
+			data[i] = codec.encode(batch.get(i).info);
+		for (int attempt = 0; ; attempt++) {
+			ZooKeeper zooKeeper = this.zooKeeper;
+			List<Integer> pending = new ArrayList<>(batch.size());
+			Set<String> parents = new LinkedHashSet<>();
+			//多级命名空间（如/a/b）逐级创建
+			if (!knownParents.contains(namespace)) {
+				for (int i = namespace.indexOf('/', 1); i > 0; i = namespace.indexOf('/', i + 1))
+					parents.add(namespace.substring(0, i));
+				parents.add(namespace);
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				Registration registration = batch.get(i);
+				if (registration.path != null)
+					continue;
+				pending.add(i);
+				String servicePath = namespace + "/" + registration.info.getServiceName();
+				if (!knownParents.contains(servicePath))
+					parents.add(servicePath);
+			}
+			if (pending.isEmpty())
+				return;
+			int chunks = (pending.size() + MAX_OPS_PER_MULTI - 1) / MAX_OPS_PER_MULTI;
+			CountDownLatch done = new CountDownLatch(parents.size() + chunks);
+			AtomicReference<KeeperException.Code> failure = new AtomicReference<>();
+			AtomicReference<String> failurePath = new AtomicReference<>();
+			for (String parent : parents)
+				createParent(zooKeeper, parent, done, failure, failurePath);
+			for (int from = 0; from < pending.size(); from += MAX_OPS_PER_MULTI) {
+				List<Integer> chunk = pending.subList(from, Math.min(pending.size(), from + MAX_OPS_PER_MULTI));
+				createInstances(zooKeeper, namespace, batch, data, chunk, done, failure, failurePath);
+			}
+			done.await();
+			KeeperException.Code code = failure.get();
+			if (code == null)
+				return;
+			if (code == KeeperException.Code.NONODE && attempt == 0) {
+				logger.warn("缓存的父节点已不存在，重新创建后重试：" + failurePath.get());
+				knownParents.clear();
+				continue;
+			}
+			throw KeeperException.create(code, failurePath.get());
+		}
+	}
+
+	private void createParent(ZooKeeper zooKeeper, String path, CountDownLatch done,
+			AtomicReference<KeeperException.Code> failure, AtomicReference<String> failurePath) {
+		long start = System.nanoTime();
+		zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+				(rc, p, ctx, name) -> {
+					KeeperException.Code code = KeeperException.Code.get(rc);
+					boolean exists = code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS;
+					metrics.zookeeperOperation(ZookeeperOperation.CREATE, System.nanoTime() - start, exists);
+					if (code == KeeperException.Code.OK)
+						logger.info("zookeeper Znode:" + name + "已创建！");
+					if (exists)
+						knownParents.add(path);
+					else if (failure.compareAndSet(null, code))
+						failurePath.set(path);
+					done.countDown();
+				}, null);
+	}
+
+	private void createInstances(ZooKeeper zooKeeper, String namespace, List<Registration> batch, byte[][] data,
+			List<Integer> chunk, CountDownLatch done, AtomicReference<KeeperException.Code> failure,
+			AtomicReference<String> failurePath) {
+		List<Op> ops = new ArrayList<>(chunk.size());
+		for (int i : chunk) {
+			String serviceName = batch.get(i).info.getServiceName();
+			ops.add(Op.create(namespace + "/" + serviceName + "/" + serviceName, data[i], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.EPHEMERAL_SEQUENTIAL));
+		}
+		long start = System.nanoTime();
+		zooKeeper.multi(ops, (rc, path, ctx, results) -> {
+			KeeperException.Code code = KeeperException.Code.get(rc);
+			metrics.zookeeperOperation(ZookeeperOperation.MULTI, System.nanoTime() - start,
+					code == KeeperException.Code.OK);
+			if (code == KeeperException.Code.OK) {
+				for (int j = 0; j < chunk.size(); j++) {
+					Registration registration = batch.get(chunk.get(j));
+					registration.path = ((OpResult.CreateResult) results.get(j)).getPath();
+					registration.dataVersion = 0;
+					logger.info("已注册服务实例：" + registration.path);
+				}
+			}
+			else if (failure.compareAndSet(null, code)) {
+				failurePath.set(failedPath(ops, results));
+			}
+			done.countDown();
+		}, null);
+	}
+
+	/**
+	 * @return multi中第一个失败的操作的路径
+	 */
+	private static String failedPath(List<Op> ops, List<OpResult> results) {
+		if (results != null) {
+			for (int i = 0; i < results.size() && i < ops.size(); i++) {
+				OpResult result = results.get(i);
+				if (result instanceof OpResult.ErrorResult &&
+						((OpResult.ErrorResult) result).getErr() != KeeperException.Code.OK.intValue() &&
+						((OpResult.ErrorResult) result).getErr() != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue())
+					return ops.get(i).getPath();
+			}
+		}
+		return ops.isEmpty() ? null : ops.get(0).getPath();
+	}
+
+	/**
+	 * 原地更新registry()注册的实例的权重、状态和元数据，使用znode数据版本号做乐观锁，
+	 * 其他客户端并发修改了该znode时放弃本次更新并刷新版本号，由调用方基于getRegisteredInfo重试。
+	 * znode已随session过期删除时，只保存新的实例信息，重新注册时生效
+	 * @param info 新的实例信息，服务名不能改变
+	 * @return 写入zookeeper成功返回true
+	 * @throws IllegalStateException 尚未调用registry()时抛出，避免session过期时把从未注册的实例注册上去
+	 */
+	@Override
+	public synchronized boolean update(ServiceInstanceInfo info) {
+		if (primary == null)
+			throw new IllegalStateException("尚未调用registry()注册本应用实例，不能更新！");
+		return update(primary, info);
+	}
+
+	/**
+	 * 原地更新一个已注册的实例，规则与update(ServiceInstanceInfo)相同
+	 * @param registration registry()或registerAll返回的注册记录
+	 * @param info 新的实例信息，服务名不能改变
+	 * @return 写入zookeeper成功返回true
+	 */
+	public synchronized boolean update(Registration registration, ServiceInstanceInfo info) {
+		if (registration == null || info == null)
+			throw new NullPointerException();
+		if (!registration.info.getServiceName().equals(info.getServiceName()))
+			throw new IllegalArgumentException("更新实例信息时不能修改服务名：" + info.getServiceName());
+		ServiceInstanceInfo newInfo = info.copy();
+		String path = registration.path;
+		if (path == null) {
+			registration.info = newInfo;
+			return false;
+		}
+		try {
+			byte[] data = codec.encode(newInfo);
+			int expectedVersion = registration.dataVersion;
+			Stat stat = metrics.time(ZookeeperOperation.SET_DATA,
+					() -> zooKeeper.setData(path, data, expectedVersion));
+			registration.info = newInfo;
+			registration.dataVersion = stat.getVersion();
+			logger.info("已更新注册信息：" + newInfo);
+			return true;
+		}
+		catch (KeeperException.BadVersionException e) {
+			logger.warn("注册信息已被并发修改，放弃本次更新：" + path);
+			refresh(registration);
+		}
+		catch (KeeperException.NoNodeException e) {
+			logger.warn("注册的znode已不存在，更新将在重新注册时生效：" + path);
+			registration.info = newInfo;
+		}
+		catch (CodecException | KeeperException e) {
+			logger.error(e.getMessage(), e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error(e.getMessage(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * 重新读取znode的数据和版本号
+	 */
+	private void refresh(Registration registration) {
+		String path = registration.path;
+		try {
+			Stat stat = new Stat();
+			byte[] data = metrics.time(ZookeeperOperation.GET_DATA, () -> zooKeeper.getData(path, false, stat));
+			registration.info = codec.decode(data);
+			registration.dataVersion = stat.getVersion();
+		}
+		catch (CodecException | KeeperException e) {
+			logger.error(e.getMessage(), e);
 		}
-		Stat isExist = zooKeeper.exists(namespace + "/" + serviceName, false);
-		if (isExist == null) {
-			logger.info("zookeeper service Znode:" + serviceName + "不存在，开始创建...");
-			String s = zooKeeper.create(namespace + "/" + serviceName, null,
-					ZooDefs.Ids.OPEN_ACL_UNSAFE,
-					CreateMode.PERSISTENT);
-			logger.info("zookeeper service Znode:" + s + "已创建！");
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * @return registry()注册的实例最后一次注册或更新的信息的副本，尚未注册时返回null
+	 */
+	public synchronized ServiceInstanceInfo getRegisteredInfo() {
+		return primary == null ? null : primary.getInfo();
+	}
+
+	/**
+	 * @return registry()注册生成的znode路径，尚未注册时返回null
+	 */
+	public synchronized String getRegisteredPath() {
+		return primary == null ? null : primary.path;
+	}
+
+	/**
+	 * @return 所有注册的实例，包括registry()注册的本应用实例
+	 */
+	public synchronized List<Registration> getRegistrations() {
+		return Collections.unmodifiableList(new ArrayList<>(registrations));
+	}
+
 	private ServiceInstanceInfo generateServiceInfo() {
 		ApplicationProperties config = ApplicationProperties.config();
-		return new ServiceInstanceInfo(config.getApplicationName(), IPUtil
+		ServiceInstanceInfo info = new ServiceInstanceInfo(config.getApplicationName(), IPUtil
 				.getIpAddress(),
 				config.getServerPort());
+		if (configProperties.getZone() != null)
+			info.setMetadata(Collections.singletonMap(ServiceInstanceInfo.ZONE_KEY, configProperties.getZone()));
+		return info;
 	}
 
+	/**
+	 * session过期后临时节点已被删除，使用新连接把所有注册的实例批量重新注册。
+	 * 失败时抛出异常，使用同一个连接再次调用时只注册还没有重新注册成功的实例
+	 */
 	@Override
-	public void sessionExpired(ZooKeeper zooKeeper) {
-		this.zooKeeper = zooKeeper;
+	public void sessionExpired(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
 		logger.info("开始重新注册服务到zookeeper...");
-		this.registry();
+		long start = System.nanoTime();
+		synchronized (this) {
+			if (this.zooKeeper != zooKeeper) {
+				this.zooKeeper = zooKeeper;
+				for (Registration registration : registrations)
+					registration.path = null;
+			}
+			try {
+				createAll(registrations);
+			}
+			catch (CodecException e) {
+				//实例注册时已编码成功，重试不会改变结果
+				throw new IllegalStateException("重新注册服务时编码实例失败！", e);
+			}
+		}
+		metrics.reRegistered(System.nanoTime() - start);
 		logger.info("重新注册服务成功！");
 	}
+
+	/**
+	 * 删除所有注册的实例节点。共用连接时session不会随之关闭，临时节点需要主动删除
+	 */
+	public synchronized void deregisterAll() throws InterruptedException {
+		for (Registration registration : registrations) {
+			String path = registration.path;
+			if (path == null)
+				continue;
+			try {
+				metrics.time(ZookeeperOperation.DELETE, () -> {
+					zooKeeper.delete(path, -1);
+					return null;
+				});
+			}
+			catch (KeeperException.NoNodeException ignored) {
+			}
+			catch (KeeperException e) {
+				logger.error("删除注册的实例" + path + "失败！", e);
+			}
+			registration.path = null;
+		}
+		logger.info("已注销所有注册的实例！");
+	}
+
+	public void setMetrics(DiscoveryMetrics metrics) {
+		if (metrics == null)
+			throw new NullPointerException();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * 一个注册的实例，记录最后一次注册或更新的信息、生成的znode路径及其数据版本号
+	 */
+	public static final class Registration {
+		private volatile ServiceInstanceInfo info;
+		/**
+		 * 未注册或session过期后为null
+		 */
+		private volatile String path;
+		private volatile int dataVersion;
+
+		private Registration(ServiceInstanceInfo info) {
+			this.info = info;
+		}
+
+		/**
+		 * @return 实例信息的副本
+		 */
+		public ServiceInstanceInfo getInfo() {
+			return info.copy();
+		}
+
+		/**
+		 * @return 注册生成的znode路径，尚未注册时返回null
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return "Registration{" +
+					"path='" + path + '\'' +
+					", info=" + info +
+					'}';
+		}
+	}
 }
@@ -1,37 +1,109 @@
 package com.github.cloudgyb.registry;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.util.IPUtil;
+import com.github.cloudgyb.util.StringPool;
 
 /**
- * 服务实例属性信息，序列化后注册到zookeeper
+ * 服务实例属性信息，序列化后注册到zookeeper。
+ * 服务名和元数据使用StringPool中的字符串，IPv4地址打包为int保存，首次getIp时才生成字符串，
+ * 注册表中大量实例共用相同的字符串，减少每个实例的内存占用
  * @author cloudgyb
  * 2021/2/25 17:26
  */
 public class ServiceInstanceInfo implements Serializable {
+	/**
+	 * 固定为旧版本默认计算的值，保证旧的Java序列化数据仍然可以读取
+	 */
+	private static final long serialVersionUID = -1304520664605223192L;
+	/**
+	 * 默认权重
+	 */
+	public static final int DEFAULT_WEIGHT = 100;
+	/**
+	 * 元数据中表示实例所在区域的键，用于同区域优先选择
+	 */
+	public static final String ZONE_KEY = "zone";
+	/**
+	 * Java序列化的字段，status按名称、metadata按LinkedHashMap序列化，
+	 * 使没有ServiceInstanceStatus类的旧版本也能读取
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("serviceName", String.class),
+			new ObjectStreamField("ip", String.class),
+			new ObjectStreamField("port", int.class),
+			new ObjectStreamField("weight", int.class),
+			new ObjectStreamField("status", String.class),
+			new ObjectStreamField("metadata", LinkedHashMap.class)
+	};
 	private String serviceName;
+	/**
+	 * 不是规范的IPv4地址时保存原字符串，否则为null，地址打包保存在ipv4中
+	 */
 	private String ip;
+	private int ipv4;
+	private boolean ipPacked;
+	private transient volatile String ipText;
 	private int port;
+	private int weight = DEFAULT_WEIGHT;
+	private ServiceInstanceStatus status = ServiceInstanceStatus.UP;
+	private Map<String, String> metadata = Collections.emptyMap();
 
-	ServiceInstanceInfo(String serviceName, String ip, int port) {
-		this.serviceName = serviceName;
-		this.ip = ip;
+	public ServiceInstanceInfo(String serviceName, String ip, int port) {
+		setServiceName(serviceName);
+		setIp(ip);
 		this.port = port;
 	}
 
+	public ServiceInstanceInfo(String serviceName, String ip, int port, int weight,
+			ServiceInstanceStatus status, Map<String, String> metadata) {
+		this(serviceName, ip, port);
+		setWeight(weight);
+		setStatus(status);
+		setMetadata(metadata);
+	}
+
+	/**
+	 * 复制一个实例信息，用于修改后更新注册信息
+	 */
+	public ServiceInstanceInfo copy() {
+		return new ServiceInstanceInfo(serviceName, getIp(), port, weight, status, metadata);
+	}
+
 	public String getServiceName() {
 		return serviceName;
 	}
 
 	public void setServiceName(String serviceName) {
-		this.serviceName = serviceName;
+		this.serviceName = StringPool.intern(serviceName);
 	}
 
-	String getIp() {
-		return ip;
+	public String getIp() {
+		if (!ipPacked)
+			return ip;
+		String text = ipText;
+		if (text == null) {
+			//首次读取时生成字符串
+			text = IPUtil.formatIpv4(ipv4);
+			ipText = text;
+		}
+		return text;
 	}
 
 	public void setIp(String ip) {
-		this.ip = ip;
+		long packed = IPUtil.parseIpv4(ip);
+		this.ipText = null;
+		this.ipPacked = packed >= 0;
+		this.ip = ipPacked ? null : ip;
+		this.ipv4 = ipPacked ? (int) packed : 0;
 	}
 
 	public int getPort() {
@@ -42,12 +114,85 @@ public class ServiceInstanceInfo implements Serializable {
 		this.port = port;
 	}
 
+	/**
+	 * @return 负载均衡权重，小于等于0的实例不会被加权策略选中
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	public void setWeight(int weight) {
+		this.weight = weight;
+	}
+
+	public ServiceInstanceStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(ServiceInstanceStatus status) {
+		this.status = status == null ? ServiceInstanceStatus.UP : status;
+	}
+
+	/**
+	 * @return 只读的元数据
+	 */
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @param metadata 复制后保存，之后修改传入的Map不会影响该实例
+	 */
+	public void setMetadata(Map<String, String> metadata) {
+		this.metadata = metadata == null || metadata.isEmpty() ? Collections.emptyMap() :
+				MetadataMap.copyOf(metadata);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("serviceName", serviceName);
+		fields.put("ip", getIp());
+		fields.put("port", port);
+		fields.put("weight", weight);
+		fields.put("status", status.name());
+		fields.put("metadata", new LinkedHashMap<>(metadata));
+		out.writeFields();
+	}
+
+	/**
+	 * 旧版本序列化的数据中没有weight、status和metadata，读取时使用默认值
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		setServiceName((String) fields.get("serviceName", null));
+		setIp((String) fields.get("ip", null));
+		port = fields.get("port", 0);
+		weight = fields.defaulted("weight") ? DEFAULT_WEIGHT : fields.get("weight", DEFAULT_WEIGHT);
+		String statusName = (String) fields.get("status", null);
+		ServiceInstanceStatus status = ServiceInstanceStatus.UP;
+		if (statusName != null) {
+			try {
+				status = ServiceInstanceStatus.valueOf(statusName);
+			}
+			catch (IllegalArgumentException e) {
+				status = ServiceInstanceStatus.DOWN;
+			}
+		}
+		this.status = status;
+		@SuppressWarnings("unchecked")
+		Map<String, String> metadata = (Map<String, String>) fields.get("metadata", null);
+		setMetadata(metadata);
+	}
+
 	@Override
 	public String toString() {
 		return "ServiceInstanceInfo{" +
 				"serviceName='" + serviceName + '\'' +
-				", ip='" + ip + '\'' +
+				", ip='" + getIp() + '\'' +
 				", port=" + port +
+				", weight=" + weight +
+				", status=" + status +
+				", metadata=" + metadata +
 				'}';
 	}
 }
@@ -0,0 +1,49 @@
+package com.github.cloudgyb.registry;
+
+/**
+ * 服务实例状态，只有UP状态的实例会被负载均衡选中
+ * @author cloudgyb
+ * 2021/3/19 15:02
+ */
+public enum ServiceInstanceStatus {
+	/**
+	 * 正常提供服务
+	 */
+	UP(0),
+	/**
+	 * 不可用
+	 */
+	DOWN(1),
+	/**
+	 * 正在启动，还不能提供服务
+	 */
+	STARTING(2),
+	/**
+	 * 人工摘除，例如发布前摘流量
+	 */
+	OUT_OF_SERVICE(3);
+
+	private final int code;
+
+	ServiceInstanceStatus(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return 编码时使用的固定值，不随枚举顺序变化
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @return code对应的状态，不认识的code（更新版本新增的状态）视为DOWN
+	 */
+	public static ServiceInstanceStatus fromCode(int code) {
+		for (ServiceInstanceStatus status : values()) {
+			if (status.code == code)
+				return status;
+		}
+		return DOWN;
+	}
+}
@@ -7,4 +7,12 @@ package com.github.cloudgyb.registry;
  */
 public interface ServiceRegister {
 	boolean registry();
+
+	/**
+	 * 更新已注册实例的信息
+	 * @param info 新的实例信息
+	 * @return 更新成功返回true
+	 * @throws IllegalStateException 尚未调用registry()时抛出
+	 */
+	boolean update(ServiceInstanceInfo info);
 }
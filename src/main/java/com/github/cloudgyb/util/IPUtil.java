@@ -36,6 +36,53 @@ public final class IPUtil {
 		return "";
 	}
 
+	/**
+	 * 解析点分十进制的IPv4地址，只接受规范写法（没有前导0），保证format后与原字符串相同
+	 * @return 按大端打包的地址（0到2^32-1），不是规范的IPv4地址时返回-1
+	 */
+	public static long parseIpv4(String ip) {
+		if (ip == null)
+			return -1;
+		int length = ip.length();
+		if (length < 7 || length > 15)
+			return -1;
+		long packed = 0;
+		int octet = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = 0; i < length; i++) {
+			char c = ip.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || ++dots > 3)
+					return -1;
+				packed = packed << 8 | octet;
+				octet = 0;
+				digits = 0;
+			}
+			else if (c >= '0' && c <= '9') {
+				if (digits > 0 && octet == 0)
+					return -1;
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255)
+					return -1;
+			}
+			else {
+				return -1;
+			}
+		}
+		if (dots != 3 || digits == 0)
+			return -1;
+		return packed << 8 | octet;
+	}
+
+	/**
+	 * @param packed parseIpv4返回的地址
+	 * @return 点分十进制的IPv4地址
+	 */
+	public static String formatIpv4(int packed) {
+		return (packed >>> 24) + "." + (packed >> 16 & 0xFF) + "." + (packed >> 8 & 0xFF) + "." + (packed & 0xFF);
+	}
+
 	public static void main(String[] args) {
 		String ipAddress = getIpAddress();
 		System.out.println(ipAddress);
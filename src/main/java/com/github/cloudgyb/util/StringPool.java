@@ -0,0 +1,32 @@
+package com.github.cloudgyb.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字符串常量池，服务名、元数据的键和值在大量实例间重复，解码后替换为池中的同一个对象。
+ * 池的大小有上限，满了之后不再加入新的字符串（直接返回原对象），避免唯一值（例如实例id）无限增长
+ * @author cloudgyb
+ * 2021/3/29 11:20
+ */
+public final class StringPool {
+	private static final int MAX_SIZE = 65536;
+	private static final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>(1024);
+
+	private StringPool() {
+	}
+
+	/**
+	 * @return 池中与s相等的字符串，s为null时返回null
+	 */
+	public static String intern(String s) {
+		if (s == null)
+			return null;
+		String pooled = pool.get(s);
+		if (pooled != null)
+			return pooled;
+		if (pool.size() >= MAX_SIZE)
+			return s;
+		pooled = pool.putIfAbsent(s, s);
+		return pooled == null ? s : pooled;
+	}
+}
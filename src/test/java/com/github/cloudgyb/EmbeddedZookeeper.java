@@ -0,0 +1,83 @@
+package com.github.cloudgyb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * 测试使用的进程内单机zookeeper server，监听随机端口，数据目录在关闭时删除
+ * @author cloudgyb
+ * 2021/4/1 10:00
+ */
+public class EmbeddedZookeeper implements AutoCloseable {
+	private final File dataDir;
+	private final ZooKeeperServer server;
+	private final ServerCnxnFactory factory;
+
+	public EmbeddedZookeeper() throws IOException, InterruptedException {
+		this.dataDir = Files.createTempDirectory("zk-test").toFile();
+		this.server = new ZooKeeperServer(dataDir, dataDir, 2000);
+		this.factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 1000);
+		factory.startup(server);
+	}
+
+	public String getConnectString() {
+		return "127.0.0.1:" + factory.getLocalPort();
+	}
+
+	/**
+	 * @return 连接到该server、使用指定命名空间的配置，其余配置与config()相同
+	 */
+	public ZookeeperServerConfigProperties config(String namespace) {
+		return ZookeeperServerConfigProperties.config().withServerAddress(getConnectString())
+				.withNamespace(namespace);
+	}
+
+	/**
+	 * @return 已连接的客户端
+	 */
+	public ZooKeeper connect() throws IOException, InterruptedException {
+		CountDownLatch connected = new CountDownLatch(1);
+		ZooKeeper zooKeeper = new ZooKeeper(getConnectString(), 30000, event -> {
+			if (event.getState() == Watcher.Event.KeeperState.SyncConnected)
+				connected.countDown();
+		});
+		if (!connected.await(10, TimeUnit.SECONDS)) {
+			zooKeeper.close();
+			throw new IOException("连接进程内zookeeper超时：" + getConnectString());
+		}
+		return zooKeeper;
+	}
+
+	/**
+	 * 在server端关闭session，客户端随后收到Expired事件，用于测试session过期后的恢复
+	 */
+	public void expire(long sessionId) {
+		server.closeSession(sessionId);
+	}
+
+	@Override
+	public void close() {
+		factory.shutdown();
+		server.shutdown();
+		delete(dataDir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
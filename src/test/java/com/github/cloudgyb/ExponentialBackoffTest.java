@@ -0,0 +1,40 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.cloudgyb.connection.ExponentialBackoff;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/25 11:05
+ */
+public class ExponentialBackoffTest {
+
+	@Test
+	public void testCeilingDoublesUntilMax() {
+		ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+		assertEquals(100, backoff.ceilingMillis(0));
+		assertEquals(200, backoff.ceilingMillis(1));
+		assertEquals(800, backoff.ceilingMillis(3));
+		assertEquals(1000, backoff.ceilingMillis(4));
+		assertEquals(1000, backoff.ceilingMillis(100));
+	}
+
+	@Test
+	public void testFullJitter() {
+		ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (int i = 0; i < 2000; i++) {
+			long delay = backoff.delayMillis(5);
+			assertTrue(delay >= 0 && delay <= 1000);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		//等待时间分布在整个[0, ceiling]区间内，而不是集中在ceiling附近
+		assertTrue(min < 100);
+		assertTrue(max > 900);
+	}
+}
@@ -0,0 +1,133 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.discovery.selector.ConsistentHashSelector;
+import com.github.cloudgyb.discovery.selector.PowerOfTwoChoicesSelector;
+import com.github.cloudgyb.discovery.selector.RoundRobinSelector;
+import com.github.cloudgyb.discovery.selector.WeightedRandomSelector;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/12 14:10
+ */
+public class InstanceSelectorTest {
+
+	private ServiceInstances instances(int n) {
+		return instances(0, n);
+	}
+
+	private ServiceInstances instances(int from, int to) {
+		Map<String, ServiceInstanceInfo> map = new HashMap<>();
+		for (int i = from; i < to; i++)
+			map.put(String.format("order-service%010d", i), new ServiceInstanceInfo("order-service", "10.0.0." + i, i));
+		return ServiceInstances.of("order-service", 1, map);
+	}
+
+	@Test
+	public void testRoundRobin() {
+		ServiceInstances instances = instances(5);
+		RoundRobinSelector selector = new RoundRobinSelector(1);
+		int[] hits = new int[5];
+		for (int i = 0; i < 50; i++)
+			hits[selector.select(instances).getPort()]++;
+		for (int hit : hits)
+			assertEquals(10, hit);
+	}
+
+	@Test
+	public void testWeightedRandom() {
+		ServiceInstances instances = instances(3);
+		//只有port=2的实例有权重
+		WeightedRandomSelector selector = new WeightedRandomSelector(info -> info.getPort() == 2 ? 10 : 0);
+		for (int i = 0; i < 100; i++)
+			assertEquals(2, selector.select(instances).getPort());
+	}
+
+	@Test
+	public void testPowerOfTwoChoices() {
+		ServiceInstances instances = instances(2);
+		PowerOfTwoChoicesSelector selector = new PowerOfTwoChoicesSelector();
+		ServiceInstanceInfo first = selector.select(instances);
+		//第一个实例有1个在途请求，第二次一定选另一个
+		ServiceInstanceInfo second = selector.select(instances);
+		assertTrue(first != second);
+		selector.release("order-service", first);
+		assertEquals(0, selector.getInFlight("order-service", first));
+		assertEquals(1, selector.getInFlight("order-service", second));
+	}
+
+	@Test
+	public void testConsistentHash() {
+		ConsistentHashSelector selector = new ConsistentHashSelector();
+		ServiceInstances before = instances(0, 10);
+		int[] owners = new int[1000];
+		for (int k = 0; k < owners.length; k++)
+			owners[k] = selector.select(before, "user-" + k).getPort();
+		//增加一个实例并下线一个实例（增量更新哈希环），只有落在这两个实例上的键改变归属
+		ServiceInstances after = instances(1, 11);
+		int moved = 0;
+		for (int k = 0; k < owners.length; k++) {
+			int port = selector.select(after, "user-" + k).getPort();
+			if (port != owners[k]) {
+				moved++;
+				assertTrue(owners[k] == 0 || port == 10);
+			}
+		}
+		assertTrue(moved > 0 && moved < 300);
+		//增量更新的结果与重新建立的哈希环一致
+		ConsistentHashSelector fresh = new ConsistentHashSelector();
+		for (int k = 0; k < owners.length; k++)
+			assertEquals(fresh.select(after, "user-" + k), selector.select(after, "user-" + k));
+	}
+
+	@Test
+	public void testConsistentHashEmpty() {
+		ServiceInstances empty = instances(0);
+		assertNull(new ConsistentHashSelector().select(empty, "user-1"));
+		assertNull(new ConsistentHashSelector().select(empty));
+		//启用有界负载时同样返回null，不计入负载
+		ConsistentHashSelector bounded = new ConsistentHashSelector(ConsistentHashSelector.DEFAULT_REPLICAS, 1.25);
+		assertNull(bounded.select(empty, ConsistentHashSelector.hash("user-1"), info -> false));
+	}
+
+	@Test
+	public void testConsistentHashBoundedLoad() {
+		ServiceInstances instances = instances(4);
+		ConsistentHashSelector selector = new ConsistentHashSelector(ConsistentHashSelector.DEFAULT_REPLICAS, 1.25);
+		//同一个键不断请求且不释放时，负载超过上限后顺时针交给其它实例
+		for (int i = 0; i < 40; i++)
+			selector.select(instances, "hot-key");
+		for (ServiceInstanceInfo instance : instances.asList())
+			assertTrue(selector.getLoad("order-service", instance) <= 13);
+		ServiceInstanceInfo instance = selector.select(instances, "hot-key");
+		int load = selector.getLoad("order-service", instance);
+		selector.release("order-service", instance);
+		assertEquals(load - 1, selector.getLoad("order-service", instance));
+	}
+
+	@Test
+	public void testConsistentHashReleaseAcrossSnapshots() {
+		ConsistentHashSelector selector = new ConsistentHashSelector(ConsistentHashSelector.DEFAULT_REPLICAS, 2);
+		ServiceInstances instances = instances(4);
+		ServiceInstanceInfo instance = selector.select(instances, "user-1");
+		assertEquals(1, selector.getLoad("order-service", instance));
+		//请求期间重新拉取，实例对象全部变化，计数沿用并仍能按原来的对象释放
+		ServiceInstances reloaded = instances(0, 5);
+		ServiceInstanceInfo other = selector.select(reloaded, "user-2");
+		assertEquals(other == reloaded.getInstance(String.format("order-service%010d", instance.getPort())) ? 2 : 1,
+				selector.getLoad("order-service", instance));
+		selector.release("order-service", instance);
+		selector.release("order-service", other);
+		for (ServiceInstanceInfo info : reloaded.asList())
+			assertEquals(0, selector.getLoad("order-service", info));
+	}
+}
@@ -0,0 +1,73 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import com.github.cloudgyb.metrics.JmxDiscoveryMetrics;
+import com.github.cloudgyb.metrics.ZookeeperOperation;
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/18 15:20
+ */
+public class JmxDiscoveryMetricsTest {
+
+	@Test
+	public void testRecordAndReadThroughJmx() throws Exception {
+		JmxDiscoveryMetrics metrics = new JmxDiscoveryMetrics().register("/metrics-test");
+		ObjectName name = metrics.getObjectName();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			metrics.eventApplied(TimeUnit.MICROSECONDS.toNanos(100));
+			metrics.eventApplied(TimeUnit.MICROSECONDS.toNanos(300));
+			metrics.lookup();
+			metrics.gauge("dispatcher.queueDepth", () -> 7);
+			String data = metrics.time(ZookeeperOperation.GET_DATA, () -> "ok");
+			assertEquals("ok", data);
+			try {
+				metrics.time(ZookeeperOperation.GET_DATA, () -> {
+					throw new KeeperException.ConnectionLossException();
+				});
+			}
+			catch (KeeperException.ConnectionLossException ignored) {
+			}
+
+			assertEquals(2L, server.getAttribute(name, "EventsApplied"));
+			assertEquals(200L, server.getAttribute(name, "EventLagAvgMicros"));
+			assertEquals(300L, server.getAttribute(name, "EventLagMaxMicros"));
+			assertEquals(1L, server.getAttribute(name, "Lookups"));
+			assertEquals(2L, mapValue(server.getAttribute(name, "ZookeeperOperations"), "GET_DATA"));
+			assertEquals(1L, mapValue(server.getAttribute(name, "ZookeeperErrors"), "GET_DATA"));
+			assertEquals(7L, mapValue(server.getAttribute(name, "Gauges"), "dispatcher.queueDepth"));
+			assertEquals(0, server.getAttribute(name, "Services"));
+
+			//同一namespace再次注册不会冲突
+			JmxDiscoveryMetrics other = new JmxDiscoveryMetrics().register("/metrics-test");
+			assertNotEquals(name, other.getObjectName());
+			other.unregister();
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertNull(metrics.getObjectName());
+	}
+
+	/**
+	 * MXBean中的Map属性以TabularData形式暴露
+	 */
+	private static Object mapValue(Object tabular, String key) {
+		CompositeData row = ((TabularData) tabular).get(new Object[]{key});
+		return row.get("value");
+	}
+}
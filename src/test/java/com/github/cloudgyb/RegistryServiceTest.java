@@ -0,0 +1,140 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.metrics.JmxDiscoveryMetrics;
+import com.github.cloudgyb.registry.RegistryService;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 21:40
+ */
+public class RegistryServiceTest {
+	private static EmbeddedZookeeper server;
+	private final JmxDiscoveryMetrics metrics = new JmxDiscoveryMetrics();
+	private ZookeeperServerConfigProperties config;
+	private ZooKeeper zooKeeper;
+	private RegistryService registryService;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new EmbeddedZookeeper();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.close();
+	}
+
+	@Before
+	public void init() throws Exception {
+		config = server.config("/registry-test-" + System.nanoTime());
+		zooKeeper = server.connect();
+		registryService = new RegistryService(zooKeeper, config);
+		registryService.setMetrics(metrics);
+	}
+
+	@After
+	public void close() throws Exception {
+		try {
+			if (zooKeeper.exists(config.getNamespace(), false) != null)
+				ZKUtil.deleteRecursive(zooKeeper, config.getNamespace());
+		}
+		finally {
+			zooKeeper.close();
+		}
+	}
+
+	private static List<ServiceInstanceInfo> instances(String serviceName, int from, int n) {
+		List<ServiceInstanceInfo> infos = new ArrayList<>(n);
+		for (int i = from; i < from + n; i++)
+			infos.add(new ServiceInstanceInfo(serviceName, "10.0." + i / 256 + "." + i % 256, 8080));
+		return infos;
+	}
+
+	private long operations(String operation) {
+		return metrics.getZookeeperOperations().get(operation);
+	}
+
+	private long errors(String operation) {
+		return metrics.getZookeeperErrors().get(operation);
+	}
+
+	@Test
+	public void testRegisterAllChunksMulti() throws Exception {
+		List<ServiceInstanceInfo> infos = instances("order-service", 0, 200);
+		infos.addAll(instances("user-service", 200, 100));
+		List<RegistryService.Registration> registrations = registryService.registerAll(infos);
+		assertEquals(300, registrations.size());
+		for (int i = 0; i < registrations.size(); i++) {
+			assertNotNull(registrations.get(i).getPath());
+			assertEquals(infos.get(i).getIp(), registrations.get(i).getInfo().getIp());
+		}
+		//每个multi最多128个create：300个实例分3个multi，父节点为命名空间和2个服务节点
+		assertEquals(3, operations("MULTI"));
+		assertEquals(3, operations("CREATE"));
+		assertEquals(0, errors("MULTI"));
+		String namespace = config.getNamespace();
+		assertEquals(200, zooKeeper.getChildren(namespace + "/order-service", false).size());
+		assertEquals(100, zooKeeper.getChildren(namespace + "/user-service", false).size());
+
+		//父节点已缓存，再次注册只发一个multi
+		registryService.registerAll(instances("order-service", 300, 128));
+		assertEquals(4, operations("MULTI"));
+		assertEquals(3, operations("CREATE"));
+		assertEquals(328, zooKeeper.getChildren(namespace + "/order-service", false).size());
+	}
+
+	@Test
+	public void testRetryWhenCachedParentIsDeleted() throws Exception {
+		registryService.registerAll(instances("order-service", 0, 1));
+		String servicePath = config.getNamespace() + "/order-service";
+		//缓存的服务节点被外部删除，multi返回NoNode后重新创建父节点并重试一次
+		ZKUtil.deleteRecursive(zooKeeper, servicePath);
+		List<RegistryService.Registration> registrations =
+				registryService.registerAll(instances("order-service", 1, 2));
+		assertEquals(1, errors("MULTI"));
+		assertEquals(3, operations("MULTI"));
+		for (RegistryService.Registration registration : registrations)
+			assertNotNull(zooKeeper.exists(registration.getPath(), false));
+		assertEquals(2, zooKeeper.getChildren(servicePath, false).size());
+	}
+
+	@Test
+	public void testSessionExpiredCanBeRetried() throws Exception {
+		registryService.registerAll(instances("order-service", 0, 3));
+		String servicePath = config.getNamespace() + "/order-service";
+		ZooKeeper recovered = server.connect();
+		try {
+			//使用同一个新连接再次调用（重试）时不会重复注册已注册成功的实例
+			registryService.sessionExpired(recovered);
+			assertEquals(6, zooKeeper.getChildren(servicePath, false).size());
+			registryService.sessionExpired(recovered);
+			assertEquals(6, zooKeeper.getChildren(servicePath, false).size());
+			for (RegistryService.Registration registration : registryService.getRegistrations())
+				assertEquals(recovered.getSessionId(), zooKeeper.exists(registration.getPath(), false)
+						.getEphemeralOwner());
+		}
+		finally {
+			recovered.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUpdateBeforeRegistry() {
+		registryService.update(new ServiceInstanceInfo("order-service", "10.0.0.1", 8080));
+	}
+}
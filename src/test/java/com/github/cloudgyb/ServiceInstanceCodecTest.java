@@ -0,0 +1,148 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.codec.BinaryServiceInstanceCodec;
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.JavaSerializationCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/8 14:20
+ */
+public class ServiceInstanceCodecTest {
+	private final ServiceInstanceInfo info = new ServiceInstanceInfo("order-service", "10.1.2.3", 8093);
+
+	@Test
+	public void testBinaryRoundTrip() throws CodecException {
+		ServiceInstanceCodec codec = ServiceInstanceCodecs.defaultCodec();
+		ServiceInstanceInfo decoded = codec.decode(codec.encode(info));
+		assertEquals(info.toString(), decoded.toString());
+	}
+
+	@Test
+	public void testNullField() throws CodecException {
+		ServiceInstanceCodec codec = new BinaryServiceInstanceCodec();
+		ServiceInstanceInfo decoded = codec.decode(codec.encode(new ServiceInstanceInfo("a", null, 1)));
+		assertNull(decoded.getIp());
+	}
+
+	@Test
+	public void testReadLegacyJavaSerialization() throws CodecException {
+		byte[] legacy = new JavaSerializationCodec().encode(info);
+		ServiceInstanceInfo decoded = ServiceInstanceCodecs.defaultCodec().decode(legacy);
+		assertEquals(info.toString(), decoded.toString());
+	}
+
+	@Test
+	public void testWeightStatusAndMetadata() throws CodecException {
+		Map<String, String> metadata = new LinkedHashMap<>();
+		metadata.put("zone", "cn-north-1a");
+		metadata.put("version", "1.2.0");
+		ServiceInstanceInfo full = new ServiceInstanceInfo("order-service", "10.1.2.3", 8093, 30,
+				ServiceInstanceStatus.OUT_OF_SERVICE, metadata);
+		ServiceInstanceCodec[] codecs = {new JavaSerializationCodec(), new BinaryServiceInstanceCodec()};
+		for (ServiceInstanceCodec codec : codecs) {
+			ServiceInstanceInfo decoded = ServiceInstanceCodecs.defaultCodec().decode(codec.encode(full));
+			assertEquals(30, decoded.getWeight());
+			assertEquals(ServiceInstanceStatus.OUT_OF_SERVICE, decoded.getStatus());
+			assertEquals(metadata, decoded.getMetadata());
+		}
+	}
+
+	/**
+	 * 规范的IPv4地址打包保存，其他写法（主机名、IPv6、带前导0）原样保存
+	 */
+	@Test
+	public void testIpRoundTrip() throws CodecException {
+		String[] ips = {"10.1.2.3", "0.0.0.0", "255.255.255.255", "010.1.2.3", "1.2.3", "fe80::1", "host-a"};
+		ServiceInstanceCodec[] codecs = {new JavaSerializationCodec(), new BinaryServiceInstanceCodec()};
+		for (String ip : ips) {
+			ServiceInstanceInfo instance = new ServiceInstanceInfo("order-service", ip, 8093);
+			assertEquals(ip, instance.getIp());
+			for (ServiceInstanceCodec codec : codecs)
+				assertEquals(ip, ServiceInstanceCodecs.defaultCodec().decode(codec.encode(instance)).getIp());
+		}
+	}
+
+	/**
+	 * 旧版本（schema v1）写入的数据没有权重、状态和元数据，读取时使用默认值
+	 */
+	@Test
+	public void testReadSchemaV1() throws CodecException {
+		byte[] serviceName = "order-service".getBytes(StandardCharsets.UTF_8);
+		byte[] ip = "10.1.2.3".getBytes(StandardCharsets.UTF_8);
+		int bodyLength = 2 + serviceName.length + 2 + ip.length + 4;
+		ByteBuffer v1 = ByteBuffer.allocate(8 + bodyLength);
+		v1.put((byte) 'Z').put((byte) 'S').put((byte) 1).put((byte) 0).putInt(bodyLength);
+		v1.putShort((short) serviceName.length).put(serviceName).putShort((short) ip.length).put(ip).putInt(8093);
+		ServiceInstanceInfo decoded = ServiceInstanceCodecs.defaultCodec().decode(v1.array());
+		assertEquals(info.toString(), decoded.toString());
+		assertEquals(ServiceInstanceInfo.DEFAULT_WEIGHT, decoded.getWeight());
+		assertEquals(ServiceInstanceStatus.UP, decoded.getStatus());
+		assertTrue(decoded.getMetadata().isEmpty());
+	}
+
+	@Test
+	public void testCompressLargeBody() throws CodecException {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			name.append("service-");
+		ServiceInstanceInfo large = new ServiceInstanceInfo(name.toString(), "10.1.2.3", 1);
+		ServiceInstanceCodec codec = new BinaryServiceInstanceCodec(64);
+		byte[] data = codec.encode(large);
+		assertTrue(data.length < name.length());
+		assertEquals(large.toString(), codec.decode(data).toString());
+	}
+
+	@Test(expected = CodecException.class)
+	public void testCorruptedData() throws CodecException {
+		byte[] data = new BinaryServiceInstanceCodec().encode(info);
+		byte[] truncated = new byte[data.length - 3];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		ServiceInstanceCodecs.defaultCodec().decode(truncated);
+	}
+
+	private static byte[] compressed() throws CodecException {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			name.append("service-");
+		return new BinaryServiceInstanceCodec(64).encode(new ServiceInstanceInfo(name.toString(), "10.1.2.3", 1));
+	}
+
+	@Test(expected = CodecException.class)
+	public void testRawLengthAboveLimit() throws CodecException {
+		byte[] data = compressed();
+		//头部声明的解压长度不能直接用于分配数组
+		ByteBuffer.wrap(data).putInt(8, Integer.MAX_VALUE);
+		ServiceInstanceCodecs.defaultCodec().decode(data);
+	}
+
+	@Test(expected = CodecException.class)
+	public void testRawLengthAboveInflateRatio() throws CodecException {
+		byte[] data = compressed();
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		//小于固定上限，但超过压缩长度能解压出的最大长度
+		buf.putInt(8, buf.getInt(4) * 2000);
+		ServiceInstanceCodecs.defaultCodec().decode(data);
+	}
+
+	@Test(expected = CodecException.class)
+	public void testUnknownSchemaVersion() throws CodecException {
+		byte[] data = new BinaryServiceInstanceCodec().encode(info);
+		data[2] = 0;
+		ServiceInstanceCodecs.defaultCodec().decode(data);
+	}
+}
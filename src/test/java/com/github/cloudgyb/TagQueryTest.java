@@ -0,0 +1,97 @@
+package com.github.cloudgyb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.discovery.TagQuery;
+import com.github.cloudgyb.discovery.selector.RoundRobinSelector;
+import com.github.cloudgyb.discovery.selector.ZoneAffinitySelector;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/22 14:30
+ */
+public class TagQueryTest {
+
+	/**
+	 * port为i的实例：zone=a（i为偶数）或b，version=1.i或2.i
+	 */
+	private ServiceInstances instances(int n) {
+		Map<String, ServiceInstanceInfo> map = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			Map<String, String> metadata = new HashMap<>();
+			metadata.put("zone", i % 2 == 0 ? "a" : "b");
+			metadata.put("version", (i < n / 2 ? "1." : "2.") + i);
+			map.put(String.format("order-service%010d", i), new ServiceInstanceInfo("order-service", "10.0.0." + i, i,
+					100, ServiceInstanceStatus.UP, metadata));
+		}
+		return ServiceInstances.of("order-service", 1, map);
+	}
+
+	@Test
+	public void testQuery() {
+		ServiceInstances instances = instances(8);
+		TagQuery query = TagQuery.builder().eq("zone", "a").prefix("version", "2.").build();
+		ServiceInstances result = instances.query(query);
+		assertEquals(2, result.size());
+		for (ServiceInstanceInfo instance : result.asList()) {
+			assertEquals("a", instance.getMetadata().get("zone"));
+			assertTrue(instance.getMetadata().get("version").startsWith("2."));
+		}
+		//同一快照上重复查询返回缓存的结果
+		assertSame(result, instances.query(query));
+		assertSame(result, instances.query(TagQuery.builder().eq("zone", "a").prefix("version", "2.").build()));
+		assertSame(instances.withTag("zone", "b"), instances.withTag("zone", "b"));
+		assertEquals(4, instances.withTag("zone", "b").size());
+		assertTrue(instances.withTag("zone", "c").isEmpty());
+	}
+
+	@Test
+	public void testAmbiguousDescription() {
+		//两个查询的描述都是zone=a&version=2.1，但条件不同
+		TagQuery single = TagQuery.of("zone", "a&version=2.1");
+		TagQuery both = TagQuery.builder().eq("zone", "a").eq("version", "2.1").build();
+		assertEquals(single.toString(), both.toString());
+		assertNotEquals(single, both);
+		assertEquals(both, TagQuery.builder().eq("zone", "a").eq("version", "2.1").build());
+		assertEquals(both.hashCode(), TagQuery.builder().eq("zone", "a").eq("version", "2.1").build().hashCode());
+		assertNotEquals(TagQuery.of("version", "2."), TagQuery.builder().prefix("version", "2.").build());
+
+		Map<String, String> metadata = new HashMap<>();
+		metadata.put("zone", "a");
+		metadata.put("version", "2.1");
+		Map<String, ServiceInstanceInfo> map = new HashMap<>();
+		map.put("order-service0000000000", new ServiceInstanceInfo("order-service", "10.0.0.1", 1,
+				100, ServiceInstanceStatus.UP, metadata));
+		ServiceInstances instances = ServiceInstances.of("order-service", 1, map);
+		ServiceInstances matched = instances.query(both);
+		ServiceInstances unmatched = instances.query(single);
+		assertEquals(1, matched.size());
+		assertTrue(unmatched.isEmpty());
+		assertNotEquals(matched.getSelectionKey(), unmatched.getSelectionKey());
+	}
+
+	@Test
+	public void testZoneAffinity() {
+		ServiceInstances instances = instances(4);
+		ZoneAffinitySelector selector = new ZoneAffinitySelector("b", new RoundRobinSelector(1), 1);
+		for (int i = 0; i < 10; i++)
+			assertEquals(1, selector.select(instances).getPort() % 2);
+		//本区域没有实例时回退到所有实例
+		ZoneAffinitySelector fallback = new ZoneAffinitySelector("c", new RoundRobinSelector(1), 1);
+		int[] hits = new int[4];
+		for (int i = 0; i < 8; i++)
+			hits[fallback.select(instances).getPort()]++;
+		for (int hit : hits)
+			assertEquals(2, hit);
+	}
+}
@@ -0,0 +1,302 @@
+package com.github.cloudgyb.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.cloudgyb.EmbeddedZookeeper;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/4/1 10:30
+ */
+public class SharedZookeeperConnectionTest {
+	private static EmbeddedZookeeper server;
+	private static ZookeeperServerConfigProperties config;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new EmbeddedZookeeper();
+		config = server.config("/shared-test");
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.close();
+	}
+
+	private static class RecordingWatcher implements SessionAwareWatcher {
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private final AtomicInteger syncConnected = new AtomicInteger();
+		private final AtomicInteger recovered = new AtomicInteger();
+
+		@Override
+		public void process(WatchedEvent event) {
+			if (event.getType() == Event.EventType.None && event.getState() == Event.KeeperState.SyncConnected) {
+				syncConnected.incrementAndGet();
+				connected.countDown();
+			}
+		}
+
+		@Override
+		public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts)
+				throws KeeperException, InterruptedException {
+			recovered.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void testRegisterRacingWithConnect() throws Exception {
+		for (int i = 0; i < 30; i++) {
+			SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+			try {
+				//在连接建立前后的不同时刻注册，每个watcher都恰好收到一次SyncConnected
+				long spinUntil = System.nanoTime() + ThreadLocalRandom.current().nextLong(2000000);
+				while (System.nanoTime() < spinUntil) {
+					Thread.yield();
+				}
+				RecordingWatcher watcher = new RecordingWatcher();
+				connection.register("/shared-test", watcher);
+				assertTrue(watcher.connected.await(10, TimeUnit.SECONDS));
+				assertEquals(SharedZookeeperConnection.State.CONNECTED, connection.getState());
+				assertEquals(1, watcher.syncConnected.get());
+			}
+			finally {
+				connection.release();
+			}
+		}
+	}
+
+	@Test
+	public void testWatcherRegisteredDuringRecovery() throws Exception {
+		CountDownLatch recovering = new CountDownLatch(1);
+		CountDownLatch finishRecovery = new CountDownLatch(1);
+		RecordingWatcher first = new RecordingWatcher() {
+			@Override
+			public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts)
+					throws KeeperException, InterruptedException {
+				super.sessionRecovered(zooKeeper, connectAttempts);
+				recovering.countDown();
+				try {
+					finishRecovery.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		try {
+			connection.register("/shared-test", first);
+			assertTrue(first.connected.await(10, TimeUnit.SECONDS));
+			ZooKeeper expired = connection.getZooKeeper();
+			server.expire(expired.getSessionId());
+			//第一个命名空间恢复期间注册：不会收到sessionRecovered，恢复完成回到CONNECTED时收到SyncConnected
+			assertTrue(recovering.await(30, TimeUnit.SECONDS));
+			assertEquals(SharedZookeeperConnection.State.RECOVERING, connection.getState());
+			RecordingWatcher second = new RecordingWatcher();
+			connection.register("/shared-test", second);
+			assertEquals(0, second.syncConnected.get());
+			finishRecovery.countDown();
+			assertTrue(second.connected.await(10, TimeUnit.SECONDS));
+			assertEquals(SharedZookeeperConnection.State.CONNECTED, connection.getState());
+			assertEquals(1, second.syncConnected.get());
+			assertEquals(0, second.recovered.get());
+			assertEquals(1, first.recovered.get());
+			assertNotSame(expired, connection.getZooKeeper());
+			assertEquals(ZooKeeper.States.CONNECTED, connection.getZooKeeper().getState());
+		}
+		finally {
+			finishRecovery.countDown();
+			connection.release();
+		}
+	}
+
+	@Test
+	public void testRecoveryStepRetriedBeforeConnected() throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		AtomicInteger attempts = new AtomicInteger();
+		List<SharedZookeeperConnection.State> states = new CopyOnWriteArrayList<>();
+		CountDownLatch recovered = new CountDownLatch(1);
+		RecordingWatcher watcher = new RecordingWatcher() {
+			@Override
+			public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts)
+					throws KeeperException, InterruptedException {
+				//前两次失败，按退避重试，成功前连接一直处于RECOVERING
+				connection.retryRecoveryStep("测试恢复", () -> {
+					states.add(connection.getState());
+					if (attempts.incrementAndGet() <= 2)
+						throw new KeeperException.ConnectionLossException();
+				});
+				recovered.countDown();
+			}
+		};
+		try {
+			connection.register("/shared-test", watcher);
+			assertTrue(watcher.connected.await(10, TimeUnit.SECONDS));
+			server.expire(connection.getZooKeeper().getSessionId());
+			assertTrue(recovered.await(30, TimeUnit.SECONDS));
+			long deadline = System.currentTimeMillis() + 10000;
+			while (connection.getState() != SharedZookeeperConnection.State.CONNECTED
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(SharedZookeeperConnection.State.CONNECTED, connection.getState());
+			assertEquals(3, attempts.get());
+			assertEquals(Collections.nCopies(3, SharedZookeeperConnection.State.RECOVERING), states);
+		}
+		finally {
+			connection.release();
+		}
+	}
+
+	@Test
+	public void testRecoveryFailureIsNotConnected() throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch failed = new CountDownLatch(1);
+		RecordingWatcher watcher = new RecordingWatcher() {
+			@Override
+			public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts)
+					throws KeeperException, InterruptedException {
+				try {
+					//新session已过期时不重试
+					connection.retryRecoveryStep("测试恢复", () -> {
+						attempts.incrementAndGet();
+						throw new KeeperException.SessionExpiredException();
+					});
+				}
+				finally {
+					failed.countDown();
+				}
+			}
+		};
+		try {
+			connection.register("/shared-test", watcher);
+			assertTrue(watcher.connected.await(10, TimeUnit.SECONDS));
+			server.expire(connection.getZooKeeper().getSessionId());
+			assertTrue(failed.await(30, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			assertEquals(1, attempts.get());
+			assertEquals(SharedZookeeperConnection.State.RECOVERING, connection.getState());
+		}
+		finally {
+			connection.release();
+		}
+	}
+
+	@Test
+	public void testRefCounting() throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		SharedZookeeperConnection same = ZookeeperConnectionManager.acquire(config.withNamespace("/shared-test-b"));
+		assertSame(connection, same);
+		assertEquals(2, connection.refCount);
+		connection.release();
+		assertEquals(1, connection.refCount);
+		assertFalse(connection.getState() == SharedZookeeperConnection.State.CLOSED);
+		connection.release();
+		assertEquals(SharedZookeeperConnection.State.CLOSED, connection.getState());
+		//多余的release不会使引用计数变为负数
+		connection.release();
+		assertEquals(0, connection.refCount);
+		SharedZookeeperConnection reopened = ZookeeperConnectionManager.acquire(config);
+		try {
+			assertNotSame(connection, reopened);
+		}
+		finally {
+			reopened.release();
+		}
+	}
+
+	@Test
+	public void testUnregisterReportsLastWatcherOfNamespace() throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		try {
+			RecordingWatcher a = new RecordingWatcher();
+			RecordingWatcher b = new RecordingWatcher();
+			RecordingWatcher other = new RecordingWatcher();
+			connection.register("/shared-test", a);
+			connection.register("/shared-test", b);
+			connection.register("/shared-test/nested", other);
+			assertFalse(connection.unregister(a));
+			//未注册的watcher
+			assertFalse(connection.unregister(a));
+			assertTrue(connection.unregister(b));
+			assertTrue(connection.unregister(other));
+		}
+		finally {
+			connection.release();
+		}
+	}
+
+	@Test
+	public void testEventsRoutedToLongestNamespace() throws Exception {
+		SharedZookeeperConnection connection = ZookeeperConnectionManager.acquire(config);
+		try {
+			AtomicInteger outer = new AtomicInteger();
+			AtomicInteger inner = new AtomicInteger();
+			connection.register("/shared-test", new CountingWatcher(outer));
+			connection.register("/shared-test/nested", new CountingWatcher(inner));
+			RecordingWatcher unrelated = new RecordingWatcher();
+			connection.register("/other", unrelated);
+			assertTrue(unrelated.connected.await(10, TimeUnit.SECONDS));
+			ZooKeeper zooKeeper = connection.getZooKeeper();
+			//节点事件只分发给最长匹配的命名空间
+			zooKeeper.exists("/shared-test/nested/a", true);
+			zooKeeper.exists("/shared-test/a", true);
+			zooKeeper.create("/shared-test", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.PERSISTENT);
+			zooKeeper.create("/shared-test/nested", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.PERSISTENT);
+			zooKeeper.create("/shared-test/nested/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.EPHEMERAL);
+			zooKeeper.create("/shared-test/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.EPHEMERAL);
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((outer.get() == 0 || inner.get() == 0) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(1, outer.get());
+			assertEquals(1, inner.get());
+		}
+		finally {
+			connection.release();
+		}
+	}
+
+	private static final class CountingWatcher implements SessionAwareWatcher {
+		private final AtomicInteger nodeEvents;
+
+		private CountingWatcher(AtomicInteger nodeEvents) {
+			this.nodeEvents = nodeEvents;
+		}
+
+		@Override
+		public void process(WatchedEvent event) {
+			if (event.getType() != Watcher.Event.EventType.None)
+				nodeEvents.incrementAndGet();
+		}
+
+		@Override
+		public void sessionRecovered(ZooKeeper zooKeeper, int connectAttempts) {
+		}
+	}
+}
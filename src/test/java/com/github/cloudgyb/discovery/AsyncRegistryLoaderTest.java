@@ -0,0 +1,158 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.github.cloudgyb.EmbeddedZookeeper;
+import com.github.cloudgyb.codec.CodecException;
+import com.github.cloudgyb.codec.ServiceInstanceCodec;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.metrics.NoopDiscoveryMetrics;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 21:30
+ */
+public class AsyncRegistryLoaderTest {
+	private static EmbeddedZookeeper server;
+	private final ServiceInstanceCodec codec = ServiceInstanceCodecs.defaultCodec();
+	private final String namespace = "/loader-test-" + System.nanoTime();
+	private ZooKeeper zooKeeper;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new EmbeddedZookeeper();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.close();
+	}
+
+	@Before
+	public void init() throws Exception {
+		zooKeeper = server.connect();
+		zooKeeper.create(namespace, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		createInstance("order-service", "a", "10.0.0.1");
+		createInstance("order-service", "b", "10.0.0.2");
+		createInstance("order-service", "c", "10.0.0.3");
+		createInstance("user-service", "x", "10.0.1.1");
+	}
+
+	@After
+	public void close() throws Exception {
+		try {
+			ZKUtil.deleteRecursive(zooKeeper, namespace);
+		}
+		finally {
+			zooKeeper.close();
+		}
+	}
+
+	private void createInstance(String serviceName, String name, String ip)
+			throws KeeperException, InterruptedException, CodecException {
+		String servicePath = namespace + "/" + serviceName;
+		if (zooKeeper.exists(servicePath, false) == null)
+			zooKeeper.create(servicePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		zooKeeper.create(servicePath + "/" + name, codec.encode(new ServiceInstanceInfo(serviceName, ip, 8080)),
+				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	}
+
+	private AsyncRegistryLoader loader(RegistrySnapshot previous) {
+		return new AsyncRegistryLoader(zooKeeper, namespace, codec, 8, NoopDiscoveryMetrics.INSTANCE, previous);
+	}
+
+	private static RegistrySnapshot publish(RegistrySnapshot snapshot, AsyncRegistryLoader loader,
+			Map<String, Map<String, InstanceRecord>> loaded) {
+		return snapshot.replaceAll(loaded, loader.getChildrenZxids());
+	}
+
+	/**
+	 * @return 实例在快照中的条目，沿用旧快照的实例条目是同一个对象（可能尚未解码）
+	 */
+	private static Object entry(ServiceInstances instances, String name) {
+		return instances.record(instances.indexOf(name)).entry();
+	}
+
+	@Test
+	public void testIncrementalLoadReusesUnchangedInstances() throws Exception {
+		AsyncRegistryLoader full = loader(null);
+		RegistrySnapshot first = publish(RegistrySnapshot.EMPTY, full, full.load());
+		assertEquals(4, full.getReport().getDataReads());
+		assertEquals(3, first.get("order-service").size());
+
+		//没有任何变化：只检查Stat，不读取数据，沿用原来的快照对象
+		AsyncRegistryLoader unchanged = loader(first);
+		RegistrySnapshot second = publish(first, unchanged, unchanged.load());
+		assertEquals("incremental", unchanged.getReport().getMode());
+		assertEquals(0, unchanged.getReport().getDataReads());
+		assertEquals(4, unchanged.getReport().getReusedInstances());
+		assertSame(first.get("order-service"), second.get("order-service"));
+		assertSame(first.get("user-service"), second.get("user-service"));
+	}
+
+	@Test
+	public void testIncrementalLoadRefetchesChangedInstances() throws Exception {
+		AsyncRegistryLoader full = loader(null);
+		RegistrySnapshot first = publish(RegistrySnapshot.EMPTY, full, full.load());
+
+		//修改一个实例的数据、删除一个实例、新增一个实例
+		zooKeeper.setData(namespace + "/order-service/a",
+				codec.encode(new ServiceInstanceInfo("order-service", "10.0.0.11", 8080)), -1);
+		zooKeeper.delete(namespace + "/order-service/c", -1);
+		createInstance("user-service", "y", "10.0.1.2");
+
+		AsyncRegistryLoader incremental = loader(first);
+		RegistrySnapshot second = publish(first, incremental, incremental.load());
+		//只读取数据变化的a和新增的y
+		assertEquals(2, incremental.getReport().getDataReads());
+		assertEquals(2, incremental.getReport().getReusedInstances());
+		ServiceInstances orders = second.get("order-service");
+		assertEquals(2, orders.size());
+		assertEquals("10.0.0.11", orders.getInstance("a").getIp());
+		assertSame(entry(first.get("order-service"), "b"), entry(orders, "b"));
+		ServiceInstances users = second.get("user-service");
+		assertNotSame(first.get("user-service"), users);
+		assertEquals(2, users.size());
+		assertSame(entry(first.get("user-service"), "x"), entry(users, "x"));
+	}
+
+	@Test
+	public void testReloadReadsOnlyTouchedAndNewInstances() throws Exception {
+		AsyncRegistryLoader full = loader(null);
+		RegistrySnapshot first = publish(RegistrySnapshot.EMPTY, full, full.load());
+
+		zooKeeper.setData(namespace + "/order-service/b",
+				codec.encode(new ServiceInstanceInfo("order-service", "10.0.0.12", 8080)), -1);
+		createInstance("order-service", "d", "10.0.0.4");
+
+		AsyncRegistryLoader reload = loader(first);
+		Map<String, Map<String, InstanceRecord>> loaded = reload.reload("order-service", Collections.singleton("b"));
+		assertEquals("reload", reload.getReport().getMode());
+		//一次子节点列表，读取事件涉及的b和新出现的d，a、c直接沿用
+		assertEquals(3, reload.getReport().getRequests());
+		assertEquals(2, reload.getReport().getDataReads());
+		assertEquals(2, reload.getReport().getReusedInstances());
+		Map<String, InstanceRecord> records = loaded.get("order-service");
+		assertEquals(4, records.size());
+		assertSame(entry(first.get("order-service"), "a"), records.get("a").entry());
+		RegistrySnapshot second = publish(first, reload, loaded);
+		assertEquals("10.0.0.12", second.get("order-service").getInstance("b").getIp());
+		assertEquals("10.0.0.4", second.get("order-service").getInstance("d").getIp());
+	}
+}
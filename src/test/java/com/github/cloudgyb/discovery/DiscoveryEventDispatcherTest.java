@@ -0,0 +1,170 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/4/1 11:00
+ */
+public class DiscoveryEventDispatcherTest {
+	private RecordingDiscoveryService discoveryService;
+	private DiscoveryEventDispatcher dispatcher;
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	/**
+	 * 只记录分发器交给它处理的事件，不访问zookeeper
+	 */
+	private static final class RecordingDiscoveryService extends DiscoveryService {
+		private final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+		private final AtomicInteger resyncs = new AtomicInteger();
+
+		private RecordingDiscoveryService() {
+			super(ZookeeperServerConfigProperties.config().withNamespace("/dispatcher-test"), null);
+		}
+
+		@Override
+		public void discovery(WatchedEvent e) {
+			handled.add(e.getType() + " " + e.getPath());
+		}
+
+		@Override
+		public RegistryLoadReport resyncRegistry() {
+			resyncs.incrementAndGet();
+			handled.add("resync");
+			return null;
+		}
+	}
+
+	@Before
+	public void init() {
+		discoveryService = new RecordingDiscoveryService();
+	}
+
+	@After
+	public void close() {
+		release.countDown();
+		if (dispatcher != null)
+			dispatcher.shutdown();
+		discoveryService.shutdown();
+	}
+
+	private static WatchedEvent event(Watcher.Event.EventType type, String path) {
+		return new WatchedEvent(type, Watcher.Event.KeeperState.SyncConnected, path);
+	}
+
+	/**
+	 * 让唯一的工作线程阻塞在一个任务上，之后入队的事件和任务都在队列中等待
+	 */
+	private void blockWorker() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		assertTrue(dispatcher.execute("order-service", () -> {
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+	}
+
+	private void awaitProcessed(long n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getProcessedCount() < n && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(n, dispatcher.getProcessedCount());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		dispatcher = new DiscoveryEventDispatcher(discoveryService, 1, 100);
+		blockWorker();
+		String a = "/dispatcher-test/order-service/a";
+		String b = "/dispatcher-test/order-service/b";
+		String c = "/dispatcher-test/order-service/c";
+		//同一path的数据变化合并为一个
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeDataChanged, a)));
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeDataChanged, a)));
+		//未处理的创建事件不会被数据变化替换
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, b)));
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeDataChanged, b)));
+		//创建后又删除时只保留删除
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, c)));
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeDeleted, c)));
+		assertEquals(3, dispatcher.getQueueDepth());
+		assertEquals(3, dispatcher.getCoalescedCount());
+		release.countDown();
+		awaitProcessed(4);
+		assertEquals(Arrays.asList(
+				"NodeDataChanged " + a,
+				"NodeCreated " + b,
+				"NodeDeleted " + c), discoveryService.handled);
+	}
+
+	@Test
+	public void testTasksKeepOrderWithEvents() throws Exception {
+		dispatcher = new DiscoveryEventDispatcher(discoveryService, 1, 100);
+		blockWorker();
+		String a = "/dispatcher-test/order-service/a";
+		String b = "/dispatcher-test/order-service/b";
+		//同一服务的任务不合并，按入队顺序与事件交替执行
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, a)));
+		assertTrue(dispatcher.execute("order-service", () -> discoveryService.handled.add("task1")));
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, b)));
+		assertTrue(dispatcher.execute("order-service", () -> discoveryService.handled.add("task2")));
+		assertEquals(4, dispatcher.getQueueDepth());
+		assertEquals(0, dispatcher.getCoalescedCount());
+		release.countDown();
+		awaitProcessed(5);
+		assertEquals(Arrays.asList(
+				"NodeCreated " + a,
+				"task1",
+				"NodeCreated " + b,
+				"task2"), discoveryService.handled);
+	}
+
+	@Test
+	public void testOverflowTriggersResync() throws Exception {
+		dispatcher = new DiscoveryEventDispatcher(discoveryService, 1, 2);
+		blockWorker();
+		String prefix = "/dispatcher-test/order-service/";
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, prefix + "a")));
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, prefix + "b")));
+		//队列满：事件和任务都被拒绝
+		assertFalse(dispatcher.dispatch(event(Watcher.Event.EventType.NodeCreated, prefix + "c")));
+		assertFalse(dispatcher.execute("order-service", () -> discoveryService.handled.add("task")));
+		//已在队列中的path仍可合并
+		assertTrue(dispatcher.dispatch(event(Watcher.Event.EventType.NodeDeleted, prefix + "a")));
+		assertEquals(1, dispatcher.getRejectedCount());
+		release.countDown();
+		awaitProcessed(3);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (discoveryService.resyncs.get() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		//被丢弃的事件由随后的一次全量拉取补偿
+		assertEquals(1, discoveryService.resyncs.get());
+		assertEquals(1, dispatcher.getResyncCount());
+		assertEquals(Arrays.asList(
+				"resync",
+				"NodeDeleted " + prefix + "a",
+				"NodeCreated " + prefix + "b"), discoveryService.handled);
+	}
+}
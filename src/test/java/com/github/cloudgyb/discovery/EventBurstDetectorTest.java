@@ -0,0 +1,185 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.cloudgyb.EmbeddedZookeeper;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 21:00
+ */
+public class EventBurstDetectorTest {
+
+	@Test
+	public void testThreshold() {
+		EventBurstDetector detector = new EventBurstDetector(3, 60000);
+		try {
+			for (int i = 0; i < 3; i++)
+				assertFalse(detector.record("order-service"));
+			assertTrue(detector.record("order-service"));
+			assertTrue(detector.record("order-service"));
+			//按服务分别统计
+			assertFalse(detector.record("user-service"));
+			assertEquals(1, detector.getBurstingServices());
+		}
+		finally {
+			detector.shutdown();
+		}
+	}
+
+	@Test
+	public void testBurstEndsAfterQuietWindow() {
+		long window = 200;
+		AtomicLong clock = new AtomicLong(1000);
+		EventBurstDetector detector = new EventBurstDetector(3, window, clock::get);
+		try {
+			for (int i = 0; i < 4; i++)
+				detector.record("order-service");
+			assertEquals(1, detector.getBurstingServices());
+			//上一个窗口的事件数超过阈值，新窗口中仍处于突发状态
+			clock.addAndGet(window);
+			assertTrue(detector.record("order-service"));
+			//上一个窗口只有1个事件，突发结束
+			clock.addAndGet(window);
+			assertFalse(detector.record("order-service"));
+			assertEquals(0, detector.getBurstingServices());
+		}
+		finally {
+			detector.shutdown();
+		}
+	}
+
+	@Test
+	public void testBurstEndsAfterIdle() {
+		long window = 100;
+		AtomicLong clock = new AtomicLong(1000);
+		EventBurstDetector detector = new EventBurstDetector(3, window, clock::get);
+		try {
+			for (int i = 0; i < 10; i++)
+				detector.record("order-service");
+			assertEquals(1, detector.getBurstingServices());
+			//窗口尚未结束
+			clock.addAndGet(window - 1);
+			assertTrue(detector.record("order-service"));
+			//超过2个窗口没有事件，即使上一个窗口超过阈值也结束突发
+			clock.addAndGet(2 * window);
+			assertFalse(detector.record("order-service"));
+			assertEquals(0, detector.getBurstingServices());
+		}
+		finally {
+			detector.shutdown();
+		}
+	}
+
+	@Test
+	public void testReadAmplification() {
+		EventBurstDetector detector = new EventBurstDetector(1, 60000);
+		try {
+			for (int i = 0; i < 10; i++)
+				detector.record("order-service");
+			//1个事件逐个读取，其余9个合并为一次3个请求的重新加载
+			detector.read();
+			detector.reloaded(3, 9);
+			assertEquals(40, detector.getReadAmplificationPercent());
+			assertEquals(1, detector.getReloadCount());
+			assertEquals(9, detector.getAbsorbedEventCount());
+		}
+		finally {
+			detector.shutdown();
+		}
+	}
+
+	@Test
+	public void testCoalescedReload() throws Exception {
+		int threshold = 5;
+		int n = threshold + 10;
+		try (EmbeddedZookeeper server = new EmbeddedZookeeper()) {
+			ZookeeperServerConfigProperties config = server.config("/burst-test").withBurstThreshold(threshold);
+			ZooKeeper zooKeeper = server.connect();
+			String namespace = config.getNamespace();
+			String servicePath = namespace + "/order-service";
+			zooKeeper.create(namespace, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			zooKeeper.create(servicePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			DiscoveryService discoveryService = new DiscoveryService(config, zooKeeper);
+			DiscoveryEventDispatcher dispatcher = new DiscoveryEventDispatcher(discoveryService, 1, 10000);
+			discoveryService.setEventDispatcher(dispatcher);
+			try {
+				discoveryService.flushRegistry();
+				String[] paths = new String[n];
+				for (int i = 0; i < n; i++) {
+					ServiceInstanceInfo info = new ServiceInstanceInfo("order-service", "10.0.0." + i, 8080);
+					paths[i] = zooKeeper.create(servicePath + "/order-service",
+							ServiceInstanceCodecs.defaultCodec().encode(info), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+							CreateMode.PERSISTENT_SEQUENTIAL);
+				}
+				//前threshold个事件逐个读取，之后的事件合并为一次在该服务的工作线程上执行的重新加载
+				for (String path : paths)
+					assertTrue(dispatcher.dispatch(new WatchedEvent(Watcher.Event.EventType.NodeCreated,
+							Watcher.Event.KeeperState.SyncConnected, path)));
+				EventBurstDetector detector = discoveryService.getBurstDetector();
+				assertNotNull(detector);
+				long deadline = System.currentTimeMillis() + 10000;
+				while (detector.getReloadCount() == 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(10);
+				assertEquals(1, detector.getReloadCount());
+				assertEquals(10, detector.getAbsorbedEventCount());
+				assertEquals(n, discoveryService.getSnapshot().get("order-service").size());
+				for (int i = 0; i < n; i++) {
+					String name = paths[i].substring(servicePath.length() + 1);
+					assertEquals("10.0.0." + i, discoveryService.getSnapshot().get("order-service")
+							.getInstance(name).getIp());
+				}
+			}
+			finally {
+				dispatcher.shutdown();
+				discoveryService.shutdown();
+				zooKeeper.close();
+			}
+		}
+	}
+
+	@Test
+	public void testNotDetectedWithoutDispatcher() throws Exception {
+		try (EmbeddedZookeeper server = new EmbeddedZookeeper()) {
+			ZookeeperServerConfigProperties config = server.config("/burst-test").withBurstThreshold(1);
+			ZooKeeper zooKeeper = server.connect();
+			String servicePath = config.getNamespace() + "/order-service";
+			zooKeeper.create(config.getNamespace(), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			zooKeeper.create(servicePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			DiscoveryService discoveryService = new DiscoveryService(config, zooKeeper);
+			try {
+				discoveryService.flushRegistry();
+				//直接调用discovery时事件在调用方线程上逐个处理，不会转到定时线程上合并加载
+				for (int i = 0; i < 5; i++) {
+					ServiceInstanceInfo info = new ServiceInstanceInfo("order-service", "10.0.0." + i, 8080);
+					String path = zooKeeper.create(servicePath + "/order-service",
+							ServiceInstanceCodecs.defaultCodec().encode(info), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+							CreateMode.PERSISTENT_SEQUENTIAL);
+					discoveryService.discovery(new WatchedEvent(Watcher.Event.EventType.NodeCreated,
+							Watcher.Event.KeeperState.SyncConnected, path));
+					assertEquals(i + 1, discoveryService.getSnapshot().get("order-service").size());
+				}
+				assertEquals(0, discoveryService.getBurstDetector().getBurstingServices());
+				assertEquals(0, discoveryService.getBurstDetector().getReloadCount());
+			}
+			finally {
+				discoveryService.shutdown();
+				zooKeeper.close();
+			}
+		}
+	}
+}
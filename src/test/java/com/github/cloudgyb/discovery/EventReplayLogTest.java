@@ -0,0 +1,108 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 16:20
+ */
+public class EventReplayLogTest {
+
+	private static InstanceRecord record(String ip, long createdZxid, long modifiedZxid) {
+		return new InstanceRecord(new ServiceInstanceInfo("order-service", ip, 8080), 0, createdZxid, modifiedZxid);
+	}
+
+	private static RegistrySnapshot loaded(Map<String, InstanceRecord> records) {
+		Map<String, Map<String, InstanceRecord>> registry = new HashMap<>();
+		registry.put("order-service", records);
+		return RegistrySnapshot.EMPTY.replaceAll(registry, Collections.<String, Long>emptyMap());
+	}
+
+	@Test
+	public void testWithNewerAppliesOnlyNewerRecords() {
+		ServiceInstances instances = ServiceInstances.empty("order-service", 1)
+				.with("a", record("10.0.0.1", 5, 10), 2);
+		assertSame(instances, instances.withNewer("a", record("10.0.0.2", 5, 8), 3));
+		assertSame(instances, instances.withNewer("a", record("10.0.0.2", 5, 10), 3));
+		ServiceInstances updated = instances.withNewer("a", record("10.0.0.3", 5, 12), 3);
+		assertEquals("10.0.0.3", updated.getInstance("a").getIp());
+		assertEquals(12, updated.getModifiedZxid(0));
+		//mzxid未知（例如来自本地快照）时总是应用
+		ServiceInstances unknown = ServiceInstances.empty("order-service", 1)
+				.with("a", record("10.0.0.1", 0, 0), 2);
+		assertEquals("10.0.0.4", unknown.withNewer("a", record("10.0.0.4", 5, 3), 3).getInstance("a").getIp());
+	}
+
+	@Test
+	public void testWithoutIncarnationKeepsRecreatedNode() {
+		ServiceInstances instances = ServiceInstances.empty("order-service", 1)
+				.with("a", record("10.0.0.1", 9, 9), 2);
+		//删除的是czxid=3的旧节点，注册表中是之后重建的节点
+		assertSame(instances, instances.withoutIncarnation("a", 3, 3));
+		assertEquals(0, instances.withoutIncarnation("a", 9, 3).size());
+		assertEquals(0, instances.withoutIncarnation("a", InstanceRecord.UNKNOWN_ZXID, 3).size());
+		assertSame(instances, instances.withoutIncarnation("b", 9, 3));
+	}
+
+	@Test
+	public void testReplay() {
+		Map<String, InstanceRecord> records = new HashMap<>();
+		records.put("a", record("10.0.0.1", 5, 10));
+		records.put("b", record("10.0.0.2", 7, 7));
+		records.put("c", record("10.0.0.3", 9, 9));
+		RegistrySnapshot snapshot = loaded(records);
+
+		EventReplayLog log = new EventReplayLog();
+		log.upsert("order-service", "a", record("10.0.0.11", 5, 12));
+		log.upsert("order-service", "a", record("10.0.0.10", 5, 8));
+		log.remove("order-service", "b", 7);
+		log.remove("order-service", "c", 3);
+		log.remove("order-service", "d", InstanceRecord.UNKNOWN_ZXID);
+		log.upsert("user-service", "x", record("10.0.1.1", 20, 20));
+		log.upsert("unsubscribed", "y", record("10.0.2.1", 21, 21));
+		RegistrySnapshot replayed = log.replay(snapshot, name -> !name.equals("unsubscribed"));
+
+		ServiceInstances instances = replayed.get("order-service");
+		assertEquals(2, instances.size());
+		assertEquals("10.0.0.11", instances.getInstance("a").getIp());
+		assertNull(instances.getInstance("b"));
+		assertNotNull(instances.getInstance("c"));
+		assertEquals(1, replayed.get("user-service").size());
+		assertNull(replayed.get("unsubscribed"));
+	}
+
+	@Test
+	public void testReplayDropsInstanceDeletedBeforeItWasApplied() {
+		//拉取读到了实例，而它的新建事件读取时节点已删除，删除事件只能以未知czxid记录
+		Map<String, InstanceRecord> records = new HashMap<>();
+		records.put("a", record("10.0.0.1", 5, 5));
+		EventReplayLog log = new EventReplayLog();
+		log.remove("order-service", "a", InstanceRecord.UNKNOWN_ZXID);
+		assertEquals(0, log.replay(loaded(records), name -> true).get("order-service").size());
+	}
+
+	@Test
+	public void testEmptyLogReturnsSameSnapshot() {
+		RegistrySnapshot snapshot = loaded(new HashMap<>());
+		assertSame(snapshot, new EventReplayLog().replay(snapshot, name -> true));
+	}
+
+	@Test
+	public void testOverflow() {
+		EventReplayLog log = new EventReplayLog();
+		for (int i = 0; i <= EventReplayLog.MAX_MUTATIONS; i++)
+			log.remove("order-service", "a" + i, InstanceRecord.UNKNOWN_ZXID);
+		assertEquals(true, log.isOverflowed());
+		assertEquals(0, log.size());
+	}
+}
@@ -0,0 +1,116 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 19:00
+ */
+public class FlapDamperTest {
+	private static final Runnable NOOP = () -> {
+	};
+
+	@Test
+	public void testDebounce() throws InterruptedException {
+		FlapDamper damper = new FlapDamper(100, 0, 1000);
+		try {
+			//延迟期间同一地址重新注册，删除与添加合并
+			assertTrue(damper.removed("order-service", "a", "10.0.0.1:8080", NOOP));
+			assertFalse(damper.removed("order-service", "b", "10.0.0.1:8080", NOOP));
+			assertEquals("a", damper.takeRemoval("order-service", "10.0.0.1:8080"));
+			assertNull(damper.takeRemoval("order-service", "10.0.0.1:8080"));
+			assertFalse(damper.completeRemoval("order-service", "a", "10.0.0.1:8080"));
+			assertEquals(1, damper.getCoalescedCount());
+
+			//没有重新注册，延迟到期后删除
+			CountDownLatch expired = new CountDownLatch(1);
+			assertTrue(damper.removed("order-service", "c", "10.0.0.2:8080", expired::countDown));
+			assertTrue(expired.await(5, TimeUnit.SECONDS));
+			assertFalse(damper.completeRemoval("order-service", "other", "10.0.0.2:8080"));
+			assertTrue(damper.completeRemoval("order-service", "c", "10.0.0.2:8080"));
+			assertFalse(damper.completeRemoval("order-service", "c", "10.0.0.2:8080"));
+			assertEquals(2, damper.getDeferredCount());
+			//没有启用抖动抑制
+			assertEquals(0, damper.holdMillis("order-service", "10.0.0.2:8080"));
+		}
+		finally {
+			damper.shutdown();
+		}
+	}
+
+	@Test
+	public void testSuppressAndReuse() {
+		long halfLife = 200;
+		AtomicLong clock = new AtomicLong(1000);
+		FlapDamper damper = new FlapDamper(0, 3, halfLife, clock::get);
+		try {
+			String address = "10.0.0.1:8080";
+			assertFalse(damper.removed("order-service", "a", address, NOOP));
+			assertFalse(damper.removed("order-service", "b", address, NOOP));
+			assertEquals(0, damper.holdMillis("order-service", address));
+			//惩罚值达到suppress，暂缓到衰减为suppress的一半（1个半衰期）
+			damper.removed("order-service", "c", address, NOOP);
+			assertEquals(halfLife, damper.holdMillis("order-service", address));
+			//其它地址不受影响
+			assertEquals(0, damper.holdMillis("order-service", "10.0.0.2:8080"));
+			//衰减到suppress以下但仍不低于reuse时继续抑制
+			clock.addAndGet(halfLife / 4);
+			long remaining = damper.holdMillis("order-service", address);
+			assertEquals(halfLife - halfLife / 4, remaining);
+			clock.addAndGet(remaining + 1);
+			assertEquals(0, damper.holdMillis("order-service", address));
+		}
+		finally {
+			damper.shutdown();
+		}
+	}
+
+	@Test
+	public void testPenaltyIsCapped() {
+		long halfLife = 1000;
+		FlapDamper damper = new FlapDamper(0, 3, halfLife, () -> 1000);
+		try {
+			for (int i = 0; i < 100; i++)
+				damper.removed("order-service", "a" + i, "10.0.0.1:8080", NOOP);
+			//惩罚值不超过suppress的2倍，衰减到一半以下需要2个半衰期
+			assertEquals(2 * halfLife, damper.holdMillis("order-service", "10.0.0.1:8080"));
+		}
+		finally {
+			damper.shutdown();
+		}
+	}
+
+	@Test
+	public void testWithheld() {
+		FlapDamper damper = new FlapDamper(0, 1, 60000);
+		try {
+			damper.withhold("order-service", "a", "10.0.0.1:8080", 60000, NOOP);
+			assertTrue(damper.isWithheld("order-service", "a"));
+			assertEquals(1, damper.getWithheldCount());
+			assertEquals(1, damper.getSuppressedCount());
+			//暂缓期间下线：不再加入注册表，并累加惩罚值
+			assertTrue(damper.removeWithheld("order-service", "a"));
+			assertFalse(damper.isWithheld("order-service", "a"));
+			assertFalse(damper.release("order-service", "a"));
+			assertTrue(damper.holdMillis("order-service", "10.0.0.1:8080") > 0);
+
+			damper.withhold("order-service", "b", "10.0.0.1:8080", 60000, NOOP);
+			assertTrue(damper.release("order-service", "b"));
+			assertFalse(damper.removeWithheld("order-service", "b"));
+			assertEquals(0, damper.getWithheldCount());
+			assertEquals(1, damper.getReleasedCount());
+		}
+		finally {
+			damper.shutdown();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 20:40
+ */
+public class RegistryJournalTest {
+
+	private static InstanceRecord record(String ip, long zxid) {
+		return new InstanceRecord(new ServiceInstanceInfo("order-service", ip, 8080), 0, zxid, zxid);
+	}
+
+	/**
+	 * @return 向order-service添加（或替换）一个实例后的快照，版本号加1
+	 */
+	private static RegistrySnapshot put(RegistrySnapshot snapshot, String name, String ip, long zxid) {
+		ServiceInstances instances = snapshot.get("order-service");
+		if (instances == null)
+			instances = ServiceInstances.empty("order-service", snapshot.getVersion() + 1);
+		return snapshot.with(instances.with(name, record(ip, zxid), snapshot.getVersion() + 1));
+	}
+
+	@Test
+	public void testChangesSince() {
+		RegistryJournal journal = new RegistryJournal(8, 0);
+		RegistrySnapshot s0 = RegistrySnapshot.EMPTY;
+		RegistrySnapshot s1 = put(s0, "a", "10.0.0.1", 1);
+		RegistrySnapshot s2 = put(s1, "b", "10.0.0.2", 2);
+		RegistrySnapshot s3 = put(s2, "a", "10.0.0.3", 3);
+		RegistrySnapshot s4 = s3.without("order-service");
+		journal.append(s0, s1);
+		journal.append(s1, s2);
+		journal.append(s2, s3);
+		journal.append(s3, s4);
+
+		List<RegistryChangeEvent> events = journal.changesSince(0);
+		assertEquals(4, events.size());
+		assertEquals(0, events.get(0).getFromVersion());
+		assertEquals(1, events.get(0).getToVersion());
+		assertEquals("10.0.0.1", events.get(0).getChange("order-service").getAdded().get("a").getIp());
+		assertEquals("10.0.0.2", events.get(1).getChange("order-service").getAdded().get("b").getIp());
+		ServiceChange updated = events.get(2).getChange("order-service");
+		assertEquals("10.0.0.3", updated.getUpdated().get("a").getIp());
+		assertTrue(updated.getAdded().isEmpty());
+		assertTrue(updated.getRemoved().isEmpty());
+		ServiceChange removed = events.get(3).getChange("order-service");
+		assertEquals(2, removed.getRemoved().size());
+		assertNull(removed.getBefore());
+		assertNull(removed.getAfter());
+
+		assertEquals(2, journal.changesSince(2).size());
+		assertEquals(3, journal.changesSince(2).get(0).getToVersion());
+		assertTrue(journal.changesSince(4).isEmpty());
+	}
+
+	@Test
+	public void testUnchangedSnapshotIsNotRecorded() {
+		RegistryJournal journal = new RegistryJournal(8, 0);
+		RegistrySnapshot s1 = put(RegistrySnapshot.EMPTY, "a", "10.0.0.1", 1);
+		journal.append(RegistrySnapshot.EMPTY, s1);
+		//服务对象不同，但实例的数据版本和mzxid没有变化
+		RegistrySnapshot s2 = put(s1, "a", "10.0.0.1", 1);
+		journal.append(s1, s2);
+		assertEquals(1, journal.size());
+		assertEquals(2, journal.getLastSequence());
+		assertTrue(journal.changesSince(1).isEmpty());
+	}
+
+	@Test
+	public void testWraparound() {
+		RegistryJournal journal = new RegistryJournal(3, 0);
+		RegistrySnapshot snapshot = RegistrySnapshot.EMPTY;
+		for (int k = 1; k <= 7; k++) {
+			RegistrySnapshot next = put(snapshot, "i" + k, "10.0.0." + k, k);
+			journal.append(snapshot, next);
+			snapshot = next;
+		}
+		//只保留最后3个批次（版本4->5、5->6、6->7），环形缓冲区已绕回
+		assertEquals(3, journal.size());
+		assertEquals(4, journal.getFirstSequence());
+		assertEquals(7, journal.getLastSequence());
+		List<RegistryChangeEvent> events = journal.changesSince(4);
+		assertEquals(3, events.size());
+		for (int k = 0; k < 3; k++) {
+			RegistryChangeEvent event = events.get(k);
+			assertEquals(4 + k, event.getFromVersion());
+			assertEquals(5 + k, event.getToVersion());
+			assertEquals("10.0.0." + (5 + k), event.getChange("order-service").getAdded().get("i" + (5 + k)).getIp());
+		}
+		assertEquals(1, journal.changesSince(6).size());
+		assertEquals(7, journal.changesSince(6).get(0).getToVersion());
+		assertTrue(journal.changesSince(7).isEmpty());
+	}
+
+	@Test
+	public void testTooOldRequiresResync() {
+		RegistryJournal journal = new RegistryJournal(2, 10);
+		//早于开始记录时的版本
+		assertNull(journal.changesSince(9));
+		assertTrue(journal.changesSince(10).isEmpty());
+		RegistrySnapshot snapshot = RegistrySnapshot.of(10, Collections.<String, ServiceInstances>emptyMap());
+		for (int k = 1; k <= 3; k++) {
+			RegistrySnapshot next = put(snapshot, "i" + k, "10.0.0." + k, k);
+			journal.append(snapshot, next);
+			snapshot = next;
+		}
+		//版本10->11的批次已被覆盖
+		assertEquals(11, journal.getFirstSequence());
+		assertNull(journal.changesSince(10));
+		assertEquals(2, journal.changesSince(11).size());
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author cloudgyb
+ * 2021/4/1 11:30
+ */
+public class RegistrySnapshotStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private Path file;
+	private RegistrySnapshotStore store;
+
+	@Before
+	public void init() {
+		file = folder.getRoot().toPath().resolve("registry.snapshot");
+		store = new RegistrySnapshotStore(file, ServiceInstanceCodecs.defaultCodec());
+	}
+
+	private static RegistrySnapshot snapshot() {
+		Map<String, ServiceInstanceInfo> orders = new HashMap<>();
+		for (int i = 0; i < 3; i++)
+			orders.put("order-service000000000" + i, new ServiceInstanceInfo("order-service", "10.0.0." + i, 8080));
+		Map<String, ServiceInstances> services = new HashMap<>();
+		services.put("order-service", ServiceInstances.of("order-service", 7, orders));
+		services.put("user-service", ServiceInstances.of("user-service", 7, Collections.singletonMap(
+				"user-service0000000000", new ServiceInstanceInfo("user-service", "10.0.1.1", 9090))));
+		return RegistrySnapshot.of(7, services);
+	}
+
+	/**
+	 * 修改文件内容后重新计算末尾的CRC32，使文件通过校验
+	 */
+	private void rewriteWithCrc(byte[] bytes) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int) crc.getValue());
+		Files.write(file, bytes);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		long before = System.currentTimeMillis();
+		store.write(snapshot());
+		RegistrySnapshotStore.Loaded loaded = store.read();
+		assertNotNull(loaded);
+		assertEquals(7, loaded.getVersion());
+		assertTrue(loaded.getWrittenAt() >= before);
+		Map<String, Map<String, ServiceInstanceInfo>> registry = loaded.getRegistry();
+		assertEquals(2, registry.size());
+		assertEquals(3, registry.get("order-service").size());
+		ServiceInstanceInfo info = registry.get("order-service").get("order-service0000000002");
+		assertEquals("10.0.0.2", info.getIp());
+		assertEquals(8080, info.getPort());
+		assertEquals(9090, registry.get("user-service").get("user-service0000000000").getPort());
+	}
+
+	@Test
+	public void testMissingFile() {
+		assertNull(store.read());
+	}
+
+	@Test
+	public void testTruncatedFile() throws IOException {
+		store.write(snapshot());
+		byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+		assertNull(store.read());
+		//不足文件头的长度
+		Files.write(file, Arrays.copyOf(bytes, 16));
+		assertNull(store.read());
+	}
+
+	@Test
+	public void testFlippedByte() throws IOException {
+		store.write(snapshot());
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length / 2] ^= 0x01;
+		Files.write(file, bytes);
+		assertNull(store.read());
+	}
+
+	@Test
+	public void testWrongMagic() throws IOException {
+		store.write(snapshot());
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[0] = 'X';
+		rewriteWithCrc(bytes);
+		assertNull(store.read());
+	}
+
+	@Test
+	public void testCorruptLengthWithValidCrc() throws IOException {
+		store.write(snapshot());
+		byte[] bytes = Files.readAllBytes(file);
+		//第一个实例的数据长度改为负数，CRC仍然正确
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		int instanceCountOffset = 30 + (buf.getShort(28) & 0xFFFF);
+		int instanceNameOffset = instanceCountOffset + 4;
+		buf.putInt(instanceNameOffset + 2 + (buf.getShort(instanceNameOffset) & 0xFFFF), -1);
+		rewriteWithCrc(bytes);
+		assertNull(store.read());
+	}
+}
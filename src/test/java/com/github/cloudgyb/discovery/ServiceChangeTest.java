@@ -0,0 +1,105 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 22:00
+ */
+public class ServiceChangeTest {
+
+	private static InstanceRecord record(String ip, long zxid) {
+		return new InstanceRecord(new ServiceInstanceInfo("order-service", ip, 8080), 0, zxid, zxid);
+	}
+
+	/**
+	 * @param entries 依次为znode名称、ip、mzxid
+	 */
+	private static ServiceInstances instances(long version, Object... entries) {
+		ServiceInstances instances = ServiceInstances.empty("order-service", version);
+		for (int i = 0; i < entries.length; i += 3)
+			instances = instances.with((String) entries[i], record((String) entries[i + 1], (Long) entries[i + 2]),
+					version);
+		return instances;
+	}
+
+	@Test
+	public void testAddedRemovedAndUpdated() {
+		ServiceInstances before = instances(1, "a", "10.0.0.1", 1L, "b", "10.0.0.2", 2L, "c", "10.0.0.3", 3L);
+		//删除a，修改b，c不变，新增d
+		ServiceInstances after = before.without("a", 2)
+				.with("b", record("10.0.0.12", 4L), 2)
+				.with("d", record("10.0.0.4", 5L), 2);
+		ServiceChange change = ServiceChange.diff("order-service", before, after);
+		assertEquals("order-service", change.getServiceName());
+		assertSame(before, change.getBefore());
+		assertSame(after, change.getAfter());
+		assertEquals(Collections.singleton("d"), change.getAdded().keySet());
+		assertEquals("10.0.0.4", change.getAdded().get("d").getIp());
+		assertEquals(Collections.singleton("a"), change.getRemoved().keySet());
+		assertEquals("10.0.0.1", change.getRemoved().get("a").getIp());
+		assertEquals(Collections.singleton("b"), change.getUpdated().keySet());
+		assertEquals("10.0.0.12", change.getUpdated().get("b").getIp());
+	}
+
+	@Test
+	public void testUnchanged() {
+		ServiceInstances before = instances(1, "a", "10.0.0.1", 1L);
+		assertNull(ServiceChange.diff("order-service", before, before));
+		assertNull(ServiceChange.diff("order-service", null, null));
+		//版本不同但实例的数据版本和mzxid相同
+		assertNull(ServiceChange.diff("order-service", before, instances(2, "a", "10.0.0.1", 1L)));
+	}
+
+	@Test
+	public void testReloadedWithSameContentIsNotUpdated() {
+		ServiceInstances before = instances(1, "a", "10.0.0.1", 1L);
+		//全量拉取没有mzxid，重新解码出的对象内容相同时不算更新
+		Map<String, ServiceInstanceInfo> reloaded = new HashMap<>();
+		reloaded.put("a", new ServiceInstanceInfo("order-service", "10.0.0.1", 8080));
+		assertNull(ServiceChange.diff("order-service", before, ServiceInstances.of("order-service", 2, reloaded)));
+		//内容不同（状态变化）时算更新
+		reloaded.put("a", new ServiceInstanceInfo("order-service", "10.0.0.1", 8080, 100,
+				ServiceInstanceStatus.OUT_OF_SERVICE, Collections.<String, String>emptyMap()));
+		ServiceChange change = ServiceChange.diff("order-service", before,
+				ServiceInstances.of("order-service", 3, reloaded));
+		assertEquals(ServiceInstanceStatus.OUT_OF_SERVICE, change.getUpdated().get("a").getStatus());
+		assertTrue(change.getAdded().isEmpty());
+		assertTrue(change.getRemoved().isEmpty());
+	}
+
+	@Test
+	public void testServiceAddedAndRemoved() {
+		ServiceInstances instances = instances(1, "a", "10.0.0.1", 1L, "b", "10.0.0.2", 2L);
+		ServiceChange added = ServiceChange.diff("order-service", null, instances);
+		assertNull(added.getBefore());
+		assertEquals(2, added.getAdded().size());
+		assertTrue(added.getRemoved().isEmpty());
+		ServiceChange removed = ServiceChange.diff("order-service", instances, null);
+		assertNull(removed.getAfter());
+		assertEquals(2, removed.getRemoved().size());
+		assertTrue(removed.getAdded().isEmpty());
+		assertTrue(removed.getUpdated().isEmpty());
+	}
+
+	@Test
+	public void testDeltaDoesNotKeepSnapshots() {
+		ServiceInstances before = instances(1, "a", "10.0.0.1", 1L);
+		ServiceInstances after = instances(2, "a", "10.0.0.11", 2L);
+		ServiceChange change = ServiceChange.delta("order-service", before, after);
+		assertNull(change.getBefore());
+		assertNull(change.getAfter());
+		assertEquals("10.0.0.11", change.getUpdated().get("a").getIp());
+	}
+}
@@ -0,0 +1,118 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 18:10
+ */
+public class SharedRegistryFileTest {
+	private static final int SEQUENCE_OFFSET = 8;
+	private static final int DATA_OFFSET = 64;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static ServiceInstances instances(String serviceName, long version, int n) {
+		Map<String, ServiceInstanceInfo> map = new HashMap<>();
+		for (int i = 0; i < n; i++)
+			map.put(String.format("%s%010d", serviceName, i), new ServiceInstanceInfo(serviceName, "10.0.0." + i, 8080 + i));
+		return ServiceInstances.of(serviceName, version, map);
+	}
+
+	private static RegistrySnapshot snapshot(long version, ServiceInstances... services) {
+		Map<String, ServiceInstances> map = new HashMap<>();
+		for (ServiceInstances instances : services)
+			map.put(instances.getServiceName(), instances);
+		return RegistrySnapshot.of(version, map);
+	}
+
+	private static SharedRegistryFile open(Path file) throws IOException {
+		return new SharedRegistryFile(file, ServiceInstanceCodecs.defaultCodec());
+	}
+
+	@Test
+	public void testPublishAndRead() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("registry.shm");
+		SharedRegistryFile writer = open(file);
+		SharedRegistryFile reader = open(file);
+		assertFalse(reader.isPublished());
+		assertEquals(0, reader.read().size());
+
+		writer.startTerm();
+		ServiceInstances orders = instances("order-service", 1, 3);
+		ServiceInstances users = instances("user-service", 1, 2);
+		writer.publish(snapshot(1, orders, users), 0);
+		assertTrue(reader.isPublished());
+		assertEquals(2, reader.getSequence());
+		RegistrySnapshot read = reader.read();
+		assertEquals(2, read.size());
+		ServiceInstances readOrders = read.get("order-service");
+		assertEquals(3, readOrders.size());
+		for (int i = 0; i < orders.size(); i++) {
+			assertEquals(orders.getName(i), readOrders.getName(i));
+			assertEquals(orders.get(i).getIp(), readOrders.get(i).getIp());
+			assertEquals(orders.get(i).getPort(), readOrders.get(i).getPort());
+		}
+		//sequence不变时返回缓存的快照
+		assertSame(read, reader.read());
+
+		//同一任期内只有变化的服务重新解码
+		writer.publish(snapshot(2, instances("order-service", 2, 4), users), 0);
+		RegistrySnapshot next = reader.read();
+		assertEquals(4, next.get("order-service").size());
+		assertNotSame(readOrders, next.get("order-service"));
+		assertSame(read.get("user-service"), next.get("user-service"));
+		writer.close();
+		reader.close();
+	}
+
+	@Test
+	public void testTornReadKeepsPreviousSnapshot() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("registry.shm");
+		SharedRegistryFile writer = open(file);
+		SharedRegistryFile reader = open(file);
+		writer.startTerm();
+		writer.publish(snapshot(1, instances("order-service", 1, 2)), 0);
+		RegistrySnapshot first = reader.read();
+		assertEquals(2, first.get("order-service").size());
+		writer.publish(snapshot(2, instances("order-service", 2, 5)), 0);
+		long sequence = writer.getSequence();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			//sequence为奇数：leader正在写入，读取方使用上一次读到的快照
+			buf.putLong(SEQUENCE_OFFSET, sequence + 1);
+			assertSame(first, reader.read());
+			//sequence为偶数但数据与CRC不一致：写入被截断
+			buf.putLong(SEQUENCE_OFFSET, sequence + 2);
+			byte original = buf.get(DATA_OFFSET + 10);
+			buf.put(DATA_OFFSET + 10, (byte) (original ^ 0xFF));
+			assertSame(first, reader.read());
+			//恢复数据后读到完整的注册表
+			buf.put(DATA_OFFSET + 10, original);
+			RegistrySnapshot second = reader.read();
+			assertEquals(5, second.get("order-service").size());
+		}
+		writer.close();
+		reader.close();
+	}
+}
@@ -0,0 +1,138 @@
+package com.github.cloudgyb.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.github.cloudgyb.EmbeddedZookeeper;
+import com.github.cloudgyb.codec.ServiceInstanceCodecs;
+import com.github.cloudgyb.config.ZookeeperServerConfigProperties;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/4/1 12:00
+ */
+public class SubscriptionModeTest {
+	private static EmbeddedZookeeper server;
+	private ZookeeperServerConfigProperties config;
+	private ZooKeeper zooKeeper;
+	private DiscoveryService discoveryService;
+	private volatile DiscoveryEventDispatcher dispatcher;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new EmbeddedZookeeper();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.close();
+	}
+
+	@Before
+	public void init() throws Exception {
+		config = server.config("/subscribe-test-" + System.nanoTime())
+				.withDiscoveryMode(ZookeeperServerConfigProperties.DISCOVERY_MODE_SUBSCRIBE);
+		//节点事件交给分发器，与ZookeeperWatcher相同
+		CountDownLatch connected = new CountDownLatch(1);
+		zooKeeper = new ZooKeeper(server.getConnectString(), 30000, event -> {
+			if (event.getType() == Watcher.Event.EventType.None) {
+				if (event.getState() == Watcher.Event.KeeperState.SyncConnected)
+					connected.countDown();
+			}
+			else if (dispatcher != null) {
+				dispatcher.dispatch(event);
+			}
+		});
+		assertTrue(connected.await(10, TimeUnit.SECONDS));
+		zooKeeper.create(config.getNamespace(), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		createInstance("order-service", "10.0.0.1");
+		createInstance("order-service", "10.0.0.2");
+		createInstance("user-service", "10.0.1.1");
+		discoveryService = new DiscoveryService(config, zooKeeper);
+		dispatcher = new DiscoveryEventDispatcher(discoveryService, 2, 1000);
+		discoveryService.setEventDispatcher(dispatcher);
+		discoveryService.flushRegistry();
+	}
+
+	@After
+	public void close() throws Exception {
+		dispatcher.shutdown();
+		discoveryService.shutdown();
+		zooKeeper.close();
+	}
+
+	private void createInstance(String serviceName, String ip) throws Exception {
+		String servicePath = config.getNamespace() + "/" + serviceName;
+		if (zooKeeper.exists(servicePath, false) == null)
+			zooKeeper.create(servicePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		zooKeeper.create(servicePath + "/" + serviceName,
+				ServiceInstanceCodecs.defaultCodec().encode(new ServiceInstanceInfo(serviceName, ip, 8080)),
+				ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	public void testLazyLoadOnFirstFind() throws Exception {
+		//启动时没有订阅任何服务
+		assertTrue(discoveryService.getSubscribedServices().isEmpty());
+		assertNull(discoveryService.getSnapshot().get("order-service"));
+		assertEquals(2, discoveryService.findService("order-service").size());
+		assertEquals(Collections.singleton("order-service"), discoveryService.getSubscribedServices());
+		//只加载查询的服务
+		assertNull(discoveryService.getSnapshot().get("user-service"));
+		//加载后该服务的变化通过监听更新
+		createInstance("order-service", "10.0.0.3");
+		await(() -> discoveryService.findService("order-service").size() == 3);
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		assertEquals(2, discoveryService.findService("order-service").size());
+		discoveryService.subscribe("user-service");
+		//最近访问过的服务不会被淘汰
+		discoveryService.evictIdleSubscriptions(60000);
+		assertEquals(2, discoveryService.getSubscribedServices().size());
+		Thread.sleep(5);
+		discoveryService.evictIdleSubscriptions(1);
+		//主动订阅的服务不会因空闲被淘汰
+		assertEquals(Collections.singleton("user-service"), discoveryService.getSubscribedServices());
+		await(() -> discoveryService.getSnapshot().get("order-service") == null);
+		assertEquals(1, discoveryService.getSnapshot().get("user-service").size());
+	}
+
+	@Test
+	public void testReloadAfterEviction() throws Exception {
+		assertEquals(2, discoveryService.findService("order-service").size());
+		Thread.sleep(5);
+		discoveryService.evictIdleSubscriptions(1);
+		await(() -> discoveryService.getSnapshot().get("order-service") == null);
+		//淘汰后的变化不再监听，再次查询时重新加载
+		createInstance("order-service", "10.0.0.3");
+		Thread.sleep(100);
+		assertNull(discoveryService.getSnapshot().get("order-service"));
+		assertEquals(3, discoveryService.findService("order-service").size());
+		assertEquals(Collections.singleton("order-service"), discoveryService.getSubscribedServices());
+	}
+}
@@ -0,0 +1,79 @@
+package com.github.cloudgyb.discovery.selector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 17:30
+ */
+public class OutlierDetectorTest {
+
+	/**
+	 * 每次调用都创建新的实例对象，模拟一次全量拉取
+	 */
+	private static Map<String, ServiceInstances> services(int from, int to) {
+		Map<String, ServiceInstanceInfo> instanceMap = new HashMap<>();
+		for (int i = from; i < to; i++)
+			instanceMap.put(String.format("order-service%010d", i), new ServiceInstanceInfo("order-service", "10.0.0." + i, 8080));
+		return Collections.singletonMap("order-service", ServiceInstances.of("order-service", 1, instanceMap));
+	}
+
+	private static ServiceInstanceInfo instance(Map<String, ServiceInstances> services, int i) {
+		return services.get("order-service").getInstance(String.format("order-service%010d", i));
+	}
+
+	private static OutlierDetector detector() {
+		return new OutlierDetector(0.3, 3, 3, 60000, 50, 10000, 10);
+	}
+
+	private static void fail(OutlierDetector detector, ServiceInstanceInfo instance) {
+		for (int k = 0; k < 3; k++)
+			detector.record(instance, 1000, false);
+	}
+
+	@Test
+	public void testEjectionSurvivesReload() {
+		OutlierDetector detector = detector();
+		Map<String, ServiceInstances> services = services(0, 4);
+		detector.sweep(services);
+		fail(detector, instance(services, 0));
+		assertTrue(detector.isEjected(instance(services, 0)));
+		//重新拉取后实例对象变化，地址不变，仍然被摘除
+		Map<String, ServiceInstances> reloaded = services(0, 4);
+		assertTrue(detector.isEjected(instance(reloaded, 0)));
+		detector.sweep(reloaded);
+		assertTrue(detector.isEjected(instance(reloaded, 0)));
+		assertFalse(detector.isEjected(instance(reloaded, 1)));
+		assertEquals(1, detector.getEjectedCount("order-service"));
+	}
+
+	@Test
+	public void testRemovedEjectedInstanceReleasesBudget() {
+		OutlierDetector detector = detector();
+		Map<String, ServiceInstances> services = services(0, 4);
+		detector.sweep(services);
+		//4个实例最多摘除50%
+		fail(detector, instance(services, 0));
+		fail(detector, instance(services, 1));
+		fail(detector, instance(services, 2));
+		assertEquals(2, detector.getEjectedCount("order-service"));
+		assertFalse(detector.isEjected(instance(services, 2)));
+		//被摘除的实例下线后归还名额，其它实例可以被摘除
+		Map<String, ServiceInstances> remaining = services(1, 5);
+		detector.sweep(remaining);
+		assertEquals(1, detector.getEjectedCount("order-service"));
+		fail(detector, instance(remaining, 2));
+		assertTrue(detector.isEjected(instance(remaining, 2)));
+		assertEquals(2, detector.getEjectedCount("order-service"));
+	}
+}
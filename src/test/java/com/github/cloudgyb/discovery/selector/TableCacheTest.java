@@ -0,0 +1,107 @@
+package com.github.cloudgyb.discovery.selector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.cloudgyb.discovery.ServiceInstances;
+import com.github.cloudgyb.registry.ServiceInstanceInfo;
+import com.github.cloudgyb.registry.ServiceInstanceStatus;
+import org.junit.Test;
+
+/**
+ * @author cloudgyb
+ * 2021/3/31 20:10
+ */
+public class TableCacheTest {
+
+	private static final class Source implements TableCache.Table {
+		private final ServiceInstances source;
+
+		private Source(ServiceInstances source) {
+			this.source = source;
+		}
+
+		@Override
+		public ServiceInstances source() {
+			return source;
+		}
+	}
+
+	/**
+	 * 实例的zone为a（i为偶数）或b
+	 */
+	private static ServiceInstances instances(String serviceName, long version, int n) {
+		Map<String, ServiceInstanceInfo> map = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			Map<String, String> metadata = new HashMap<>();
+			metadata.put(ServiceInstanceInfo.ZONE_KEY, i % 2 == 0 ? "a" : "b");
+			map.put(String.format("%s%010d", serviceName, i), new ServiceInstanceInfo(serviceName, "10.0.0." + i, i,
+					100, ServiceInstanceStatus.UP, metadata));
+		}
+		return ServiceInstances.of(serviceName, version, map);
+	}
+
+	@Test
+	public void testRetainDropsRemovedServices() {
+		TableCache<Source> cache = new TableCache<>((instances, previous) -> new Source(instances));
+		ServiceInstances orders = instances("order-service", 1, 4);
+		ServiceInstances users = instances("user-service", 1, 4);
+		cache.get(orders);
+		cache.get(orders.withTag(ServiceInstanceInfo.ZONE_KEY, "a"));
+		cache.get(users);
+		assertEquals(3, cache.size());
+
+		Map<String, ServiceInstances> registry = new HashMap<>();
+		registry.put("order-service", orders);
+		registry.put("user-service", users);
+		cache.retain(registry::get);
+		assertEquals(3, cache.size());
+
+		registry.remove("user-service");
+		cache.retain(registry::get);
+		assertEquals(2, cache.size());
+		assertNull(cache.peek("user-service"));
+	}
+
+	@Test
+	public void testRetainDropsSubsetsOfOldSnapshots() {
+		TableCache<Source> cache = new TableCache<>((instances, previous) -> new Source(instances));
+		ServiceInstances orders = instances("order-service", 1, 4);
+		ServiceInstances zoneA = orders.withTag(ServiceInstanceInfo.ZONE_KEY, "a");
+		cache.get(orders);
+		cache.get(zoneA);
+		//服务更新后旧快照上的子集不会再被查询，服务本身的表保留以沿用状态
+		ServiceInstances updated = instances("order-service", 2, 6);
+		Map<String, ServiceInstances> registry = new HashMap<>();
+		registry.put("order-service", updated);
+		Source service = cache.peek("order-service");
+		cache.retain(registry::get);
+		assertEquals(1, cache.size());
+		assertSame(service, cache.peek("order-service"));
+		assertNull(cache.peek(zoneA.getSelectionKey()));
+		//新快照上的子集重新建表
+		cache.get(updated.withTag(ServiceInstanceInfo.ZONE_KEY, "a"));
+		cache.retain(registry::get);
+		assertEquals(2, cache.size());
+		assertNotNull(cache.peek(zoneA.getSelectionKey()));
+	}
+
+	@Test
+	public void testSharedTableSurvivesServiceUpdate() {
+		TableCache<Source> cache = new TableCache<>((instances, previous) -> new Source(instances), false);
+		ServiceInstances orders = instances("order-service", 1, 4);
+		cache.get(orders.withTag(ServiceInstanceInfo.ZONE_KEY, "a"));
+		Map<String, ServiceInstances> registry = new HashMap<>();
+		registry.put("order-service", instances("order-service", 2, 6));
+		cache.retain(registry::get);
+		assertEquals(1, cache.size());
+		registry.clear();
+		cache.retain(registry::get);
+		assertEquals(0, cache.size());
+	}
+}